@@ -0,0 +1,225 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 非同期区間計測。
+ * 開始したスレッドと異なるスレッドで終了できる。
+ * 区間ごとに一意の区間番号を割り当て、開始時点の文脈（PeriodContext）の区間を親とする。
+ * 終了は1回だけ記録し、2回目以降の終了は無視する。
+ * <pre>
+ * AsyncPeriod period = new AsyncPeriod(ORDER);
+ * CompletableFuture&lt;Order&gt; future = period.endOn(
+ *         CompletableFuture.supplyAsync(PeriodContext.wrapSupplier(() -&gt; load(id)), executor));
+ * </pre>
+ */
+public final class AsyncPeriod implements AutoCloseable {
+
+    /**
+     * 次に割り当てる区間番号
+     */
+    private static final AtomicLong NEXT_SPAN_ID = new AtomicLong(1);
+
+    /**
+     * 非同期区間の計測箇所識別子。
+     * キーは計測箇所名と区間番号からなり、区間ごとに一意である。
+     * 区間ごとのキーは計測箇所登録簿（SiteRegistry）に登録せず、計測箇所名で登録すること。
+     */
+    public static final class Span implements Uniquable {
+
+        private final String siteKey;
+
+        private final long spanId;
+
+        private final long parentSpanId;
+
+        private final String key;
+
+        Span(final String siteKey, final long spanId, final long parentSpanId) {
+            this.siteKey = siteKey;
+            this.spanId = spanId;
+            this.parentSpanId = parentSpanId;
+            this.key = siteKey + "#" + spanId;
+        }
+
+        /**
+         * 計測箇所名を返す。
+         * 処理時間の集計に使用する。
+         *
+         * @return 計測箇所名
+         */
+        public String getSiteKey() {
+            return this.siteKey;
+        }
+
+        /**
+         * 区間番号を返す。
+         *
+         * @return 区間番号（1以上）
+         */
+        public long getSpanId() {
+            return this.spanId;
+        }
+
+        /**
+         * 親の区間番号を返す。
+         *
+         * @return 親の区間番号。親がない場合は0。
+         */
+        public long getParentSpanId() {
+            return this.parentSpanId;
+        }
+
+        @Override
+        public String getKey() {
+            return this.key;
+        }
+
+        @Override
+        public String toString() {
+            return this.key;
+        }
+    }
+
+    private final Span span;
+
+    /**
+     * 結果の出力先である。
+     */
+    private final PeriodRecordable recorder;
+
+    /**
+     * 抽出の重み。
+     * 0の場合は抽出されておらず、PeriodRecordableに出力しない。
+     */
+    private final double weight;
+
+    private final AtomicBoolean ended = new AtomicBoolean(false);
+
+    /**
+     * コンストラクタ。
+     * 標準の区間記録に出力する。
+     * 自動で開始する。
+     *
+     * @param site 計測箇所ハンドル
+     */
+    public AsyncPeriod(final Period.Site site) {
+        this(site.getKey(), PeriodRecorder.getInstance());
+    }
+
+    /**
+     * コンストラクタ。
+     * 標準の区間記録に出力する。
+     * 自動で開始する。
+     *
+     * @param name 計測箇所名
+     */
+    public AsyncPeriod(final String name) {
+        this(name, PeriodRecorder.getInstance());
+    }
+
+    /**
+     * コンストラクタ。
+     * 自動で開始する。
+     *
+     * @param name 計測箇所名
+     * @param recorder PeriodRecordableオブジェクト。
+     */
+    public AsyncPeriod(final String name, final PeriodRecordable recorder) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Argument 'name' is not allowed to be empty.");
+        }
+        final Span parent = PeriodContext.current();
+        this.span = new Span(
+                name,
+                NEXT_SPAN_ID.getAndIncrement(),
+                parent == null ? 0 : parent.getSpanId());
+        this.recorder = recorder;
+        this.weight = Sampler.getInstance().sample(name);
+        if (this.weight != 0.0) {
+            this.recorder.begin(this.span);
+        }
+    }
+
+    /**
+     * 計測を終了する。
+     * どのスレッドから呼び出してもよい。
+     *
+     * @return 計測を終了できた場合は真である。終了済みの場合は偽である。
+     */
+    public boolean end() {
+        if (!this.ended.compareAndSet(false, true)) {
+            return false;
+        }
+        if (this.weight != 0.0) {
+            this.recorder.end(this.span, this.weight);
+        }
+        return true;
+    }
+
+    /**
+     * 非同期処理の完了時に計測を終了する。
+     * 正常終了、例外終了のいずれでも終了する。
+     *
+     * @param <S> 非同期処理の型
+     * @param stage 非同期処理
+     * @return 引数の非同期処理
+     */
+    public <S extends CompletionStage<?>> S endOn(final S stage) {
+        stage.whenComplete((result, error) -> end());
+        return stage;
+    }
+
+    /**
+     * 本区間を呼び出しスレッドの文脈に設定する。
+     * 返り値を閉じると元の文脈に戻る。
+     *
+     * @return 文脈の有効範囲
+     */
+    public PeriodContext.Scope makeCurrent() {
+        return PeriodContext.attach(this.span);
+    }
+
+    /**
+     * 自動で計測を終了する。
+     */
+    @Override
+    public void close() {
+        end();
+    }
+
+    /**
+     * 計測箇所識別子を返す。
+     *
+     * @return 計測箇所識別子
+     */
+    public Span getSpan() {
+        return this.span;
+    }
+
+    /**
+     * 終了したか否かを返す。
+     *
+     * @return 終了した場合は真である。
+     */
+    public boolean isEnded() {
+        return this.ended.get();
+    }
+
+    /**
+     * 抽出されたか否かを返す。
+     *
+     * @return 抽出された場合は真である。
+     */
+    public boolean isSampled() {
+        return this.weight != 0.0;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Chrome Trace Event形式（Perfettoでも読める）のJSON出力。
+ * 記録を1件ずつ再利用するバッファに書き込み、満杯になるたびにファイルに書き出す。
+ * トレース全体を文字列やヒープに保持しない。
+ * スレッドIDをトラックに対応付け、ファイル名と行番号はイベントの引数に残す。
+ * 非同期区間（AsyncPeriod）は区間番号で対応付ける非同期イベントとして出力する。
+ * <pre>
+ * try (ChromeTraceExporter exporter = new ChromeTraceExporter(path)) {
+ *     exporter.writeAll(PeriodRecorder.getInstance());
+ * }
+ * </pre>
+ */
+public final class ChromeTraceExporter implements Closeable {
+
+    /**
+     * 既定の出力バッファのバイト数
+     */
+    public static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * プロセスID（トレース内の識別用）
+     */
+    private static final int PID = 1;
+
+    /**
+     * writeAll()で一度に複製する記録の件数
+     */
+    static final int CHUNK_SIZE = 1024;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer;
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+    /**
+     * 1イベント分の文字列（再利用する）
+     */
+    private final StringBuilder event = new StringBuilder(512);
+
+    /**
+     * スレッド名を出力済みのスレッドID
+     */
+    private final Set<Long> threads = new HashSet<>();
+
+    /**
+     * 最初のイベントを出力済みの場合は真である。
+     */
+    private boolean started = false;
+
+    private boolean closed = false;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param path 出力先
+     * @throws IOException ファイルを開けない場合
+     */
+    public ChromeTraceExporter(final Path path) throws IOException {
+        this(path, DEFAULT_BUFFER_BYTES);
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param path 出力先
+     * @param bufferBytes 出力バッファのバイト数
+     * @throws IOException ファイルを開けない場合
+     */
+    public ChromeTraceExporter(final Path path, final int bufferBytes) throws IOException {
+        if (bufferBytes < 1024) {
+            throw new IllegalArgumentException("Argument 'bufferBytes' is too small.");
+        }
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        this.buffer = ByteBuffer.allocateDirect(bufferBytes);
+        this.event.append("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[");
+        flushEvent();
+    }
+
+    /**
+     * 区間記録の全ての記録を出力する。
+     * スレッドごとのバッファの記録を一定件数ずつ複製してから、バッファのロックを外してファイルに書き出す。
+     * 複製はCHUNK_SIZE件ずつ行い、スレッドの履歴全体もトレース全体も保持しない。
+     * 出力開始時点で公開済みの記録までを出力する。
+     *
+     * @param recorder 区間記録
+     * @throws IOException 出力に失敗した場合
+     */
+    public void writeAll(final PeriodRecorder recorder) throws IOException {
+        final List<PeriodRecorder.Record> records = new ArrayList<>(CHUNK_SIZE);
+        for (ThreadRecordBuffer buffer : recorder.getBuffers()) {
+            final long end = buffer.getPublished();
+            long position = 0;
+            while (position < end) {
+                final long next = buffer.forEachFrom(position, Math.min(CHUNK_SIZE, end - position), records::add);
+                for (PeriodRecorder.Record record : records) {
+                    write(record);
+                }
+                records.clear();
+                if (next <= position) {
+                    break;
+                }
+                position = next;
+            }
+        }
+    }
+
+    /**
+     * 記録を1件出力する。
+     *
+     * @param record 記録
+     * @throws IOException 出力に失敗した場合
+     */
+    public void write(final PeriodRecorder.Record record) throws IOException {
+        final long threadId = record.getThreadId();
+        if (this.threads.add(threadId)) {
+            beginEvent();
+            this.event.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(PID)
+                    .append(",\"tid\":").append(threadId)
+                    .append(",\"args\":{\"name\":\"thread-").append(threadId).append("\"}}");
+            flushEvent();
+        }
+
+        final Uniquable id = record.getId();
+        if (id instanceof AsyncPeriod.Span) {
+            writeAsync(record, (AsyncPeriod.Span) id);
+            return;
+        }
+        beginEvent();
+        this.event.append("{\"name\":");
+        if (id instanceof Period.PeriodId) {
+            final Period.PeriodId periodId = (Period.PeriodId) id;
+            TextEscapes.appendJsonString(this.event, periodId.getClassName() + "." + periodId.getMethodName());
+        } else {
+            TextEscapes.appendJsonString(this.event, id.getKey());
+        }
+        this.event.append(",\"cat\":\"period\",\"ph\":\"").append(record.isBegin() ? 'B' : 'E')
+                .append("\",\"ts\":");
+        appendMicro(record.getEpochNano());
+        this.event.append(",\"pid\":").append(PID)
+                .append(",\"tid\":").append(threadId)
+                .append(",\"args\":{\"key\":");
+        TextEscapes.appendJsonString(this.event, id.getKey());
+        if (id instanceof Period.PeriodId) {
+            final Period.PeriodId periodId = (Period.PeriodId) id;
+            this.event.append(",\"file\":");
+            TextEscapes.appendJsonString(this.event, periodId.getFileName());
+            this.event.append(",\"line\":").append(periodId.getLineNumber());
+        }
+        this.event.append("}}");
+        flushEvent();
+    }
+
+    /**
+     * 非同期区間の記録を出力する。
+     * 開始と終了のスレッドが異なっても区間番号で対応付けられる。
+     */
+    private void writeAsync(final PeriodRecorder.Record record, final AsyncPeriod.Span span) throws IOException {
+        beginEvent();
+        this.event.append("{\"name\":");
+        TextEscapes.appendJsonString(this.event, span.getSiteKey());
+        this.event.append(",\"cat\":\"async\",\"ph\":\"").append(record.isBegin() ? 'b' : 'e')
+                .append("\",\"id\":").append(span.getSpanId())
+                .append(",\"ts\":");
+        appendMicro(record.getEpochNano());
+        this.event.append(",\"pid\":").append(PID)
+                .append(",\"tid\":").append(record.getThreadId())
+                .append(",\"args\":{\"parent\":").append(span.getParentSpanId())
+                .append("}}");
+        flushEvent();
+    }
+
+    /**
+     * 末尾を出力してファイルを閉じる。
+     *
+     * @throws IOException 出力に失敗した場合
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.event.append("]}\n");
+            flushEvent();
+            drain();
+        } finally {
+            this.channel.close();
+        }
+    }
+
+    private void beginEvent() {
+        if (this.started) {
+            this.event.append(",\n");
+        } else {
+            this.event.append('\n');
+            this.started = true;
+        }
+    }
+
+    /**
+     * ナノ秒をマイクロ秒（小数点以下3桁）で追加する。
+     */
+    private void appendMicro(final long nano) {
+        final long micro = nano / 1000;
+        final long fraction = Math.abs(nano % 1000);
+        if (nano < 0 && micro == 0) {
+            this.event.append('-');
+        }
+        this.event.append(micro).append('.');
+        if (fraction < 100) {
+            this.event.append('0');
+        }
+        if (fraction < 10) {
+            this.event.append('0');
+        }
+        this.event.append(fraction);
+    }
+
+    /**
+     * 1イベント分の文字列を出力バッファに符号化する。
+     */
+    private void flushEvent() throws IOException {
+        final CharBuffer chars = CharBuffer.wrap(this.event);
+        while (true) {
+            final CoderResult result = this.encoder.encode(chars, this.buffer, false);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+        this.event.setLength(0);
+    }
+
+    /**
+     * 出力バッファの内容をファイルに書き出す。
+     */
+    private void drain() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+
+    /**
+     * 区間記録の全ての記録をファイルに出力する。
+     *
+     * @param recorder 区間記録
+     * @param path 出力先
+     * @throws IOException 出力に失敗した場合
+     */
+    public static void export(final PeriodRecorder recorder, final Path path) throws IOException {
+        try (ChromeTraceExporter exporter = new ChromeTraceExporter(path)) {
+            exporter.writeAll(recorder);
+        }
+    }
+}
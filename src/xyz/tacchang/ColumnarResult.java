@@ -0,0 +1,540 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 列指向の処理時間記録。
+ * 計測結果を時刻（long）、計測箇所番号（int、SiteRegistry）、処理時間（long）、抽出の重み（float）の
+ * 4つの配列に分けて格納する。1件あたり24バイトであり、計測結果ごとのオブジェクトを保持しない。
+ * 配列は固定長のチャンクに分け、満杯になると次のチャンクを連結するため、拡張時に複製しない。
+ * チャンクはスレッドごとに持ち、書き込みはロックを取らない。
+ * 抽出した計測結果も1件として記録し、重みは集計時に掛ける。
+ */
+public class ColumnarResult implements MeasurementResultCollectable {
+
+    /**
+     * 1チャンクあたりの計測結果の件数
+     */
+    static final int CHUNK_SIZE = 4096;
+
+    /**
+     * チャンクの参照の表の初期の長さ
+     */
+    private static final int INITIAL_TABLE_LENGTH = 16;
+
+    /**
+     * チャンク単位の一括処理
+     */
+    @FunctionalInterface
+    public interface ChunkConsumer {
+
+        /**
+         * チャンクを受け取る。
+         * 配列は読み取り専用として扱い、先頭からlength件のみが有効である。
+         *
+         * @param epochNanos 記録時の計算機クロック時刻（ナノ秒）
+         * @param siteIds 計測箇所番号
+         * @param elapsedNanos 処理時間（ナノ秒）
+         * @param weights 抽出の重み（抽出確率の逆数）
+         * @param length 有効な件数
+         */
+        void accept(long[] epochNanos, int[] siteIds, long[] elapsedNanos, float[] weights, int length);
+    }
+
+    /**
+     * 1件ずつの処理
+     */
+    @FunctionalInterface
+    public interface SampleConsumer {
+
+        /**
+         * 計測結果を1件受け取る。
+         *
+         * @param epochNano 記録時の計算機クロック時刻（ナノ秒）
+         * @param siteId 計測箇所番号
+         * @param elapsedNano 処理時間（ナノ秒）
+         * @param weight 抽出の重み（抽出確率の逆数）
+         */
+        void accept(long epochNano, int siteId, long elapsedNano, float weight);
+    }
+
+    /**
+     * 重み付きの集計結果。
+     * 件数と合計は抽出の重みで推定した値であり、最小値と最大値は記録した値である。
+     */
+    public static final class Statistics {
+
+        private long sampleCount = 0;
+
+        private double weightSum = 0.0;
+
+        private double weightedSum = 0.0;
+
+        private long min = Long.MAX_VALUE;
+
+        private long max = Long.MIN_VALUE;
+
+        void accept(final long value, final double weight) {
+            this.sampleCount++;
+            this.weightSum += weight;
+            this.weightedSum += value * weight;
+            this.min = Math.min(this.min, value);
+            this.max = Math.max(this.max, value);
+        }
+
+        void combine(final Statistics other) {
+            this.sampleCount += other.sampleCount;
+            this.weightSum += other.weightSum;
+            this.weightedSum += other.weightedSum;
+            this.min = Math.min(this.min, other.min);
+            this.max = Math.max(this.max, other.max);
+        }
+
+        /**
+         * 記録した件数を返す。
+         *
+         * @return 件数
+         */
+        public long getSampleCount() {
+            return this.sampleCount;
+        }
+
+        /**
+         * 重みで推定した件数を返す。
+         *
+         * @return 推定件数
+         */
+        public long getCount() {
+            return Math.round(this.weightSum);
+        }
+
+        /**
+         * 重みで推定した処理時間の合計を返す。
+         *
+         * @return 合計（ナノ秒）
+         */
+        public long getSum() {
+            return Math.round(this.weightedSum);
+        }
+
+        /**
+         * 重み付きの平均を返す。
+         *
+         * @return 平均（ナノ秒）。記録がない場合は0。
+         */
+        public double getAverage() {
+            return this.weightSum > 0.0 ? this.weightedSum / this.weightSum : 0.0;
+        }
+
+        /**
+         * 最小値を返す。
+         *
+         * @return 最小値（ナノ秒）。記録がない場合はLong.MAX_VALUE。
+         */
+        public long getMin() {
+            return this.min;
+        }
+
+        /**
+         * 最大値を返す。
+         *
+         * @return 最大値（ナノ秒）。記録がない場合はLong.MIN_VALUE。
+         */
+        public long getMax() {
+            return this.max;
+        }
+    }
+
+    /**
+     * 固定長チャンク
+     */
+    private static final class Chunk {
+
+        final long[] epochNanos = new long[CHUNK_SIZE];
+
+        final int[] siteIds = new int[CHUNK_SIZE];
+
+        final long[] elapsedNanos = new long[CHUNK_SIZE];
+
+        final float[] weights = new float[CHUNK_SIZE];
+    }
+
+    /**
+     * 読み取り時点のチャンクと有効な件数の組
+     */
+    private static final class View {
+
+        final Chunk chunk;
+
+        final int length;
+
+        View(final Chunk chunk, final int length) {
+            this.chunk = chunk;
+            this.length = length;
+        }
+    }
+
+    /**
+     * チャンクの参照の表。
+     * 所有スレッドが満杯時に作り直して公開する。
+     */
+    private static final class Table {
+
+        final Chunk[] chunks;
+
+        /**
+         * chunks[0]のチャンク番号（通番をCHUNK_SIZEで割った値）
+         */
+        final long first;
+
+        Table(final Chunk[] chunks, final long first) {
+            this.chunks = chunks;
+            this.first = first;
+        }
+    }
+
+    /**
+     * スレッドごとの列。
+     * 書き込みは所有スレッドのみが行い、件数をlazySetで公開する。
+     * 読み取り側は本オブジェクトで同期する。
+     */
+    private static final class Columns {
+
+        final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+
+        /**
+         * チャンクの参照の表（追加は所有スレッドのみ。読み取り側は読み取り済みの参照を外すのみ）
+         */
+        volatile Table table = new Table(new Chunk[INITIAL_TABLE_LENGTH], 0);
+
+        /**
+         * 書き込み中のチャンク（所有スレッドのみ参照）
+         */
+        Chunk tail;
+
+        /**
+         * 書き込み中のチャンク内の位置（所有スレッドのみ参照）
+         */
+        int offset = CHUNK_SIZE;
+
+        /**
+         * 次に書き込む通番（所有スレッドのみ参照）
+         */
+        long writeIndex = 0;
+
+        /**
+         * 公開済みの書き込み件数
+         */
+        final AtomicLong published = new AtomicLong();
+
+        /**
+         * 読み取り済みで参照を外してよいチャンクの番号の上限（読み取り側で同期して更新）
+         */
+        volatile long released = 0;
+
+        /**
+         * 読み取り開始通番（読み取り側で同期）
+         */
+        long start = 0;
+
+        void append(final long epochNano, final int siteId, final long elapsedNano, final float weight) {
+            if (this.offset == CHUNK_SIZE) {
+                addChunk();
+            }
+            final int offset = this.offset;
+            this.tail.epochNanos[offset] = epochNano;
+            this.tail.siteIds[offset] = siteId;
+            this.tail.elapsedNanos[offset] = elapsedNano;
+            this.tail.weights[offset] = weight;
+            this.offset = offset + 1;
+            this.writeIndex++;
+            this.published.lazySet(this.writeIndex);
+        }
+
+        /**
+         * 書き込み中のチャンクを追加する。
+         * 表が満杯の場合は、読み取り済みのチャンクを除いて2倍の長さの表を作って公開する。
+         * 追加したチャンクは書き込み件数の公開（lazySet）で読み取り側から見えるようになる。
+         */
+        private void addChunk() {
+            final long number = this.writeIndex / CHUNK_SIZE;
+            Table table = this.table;
+            int index = (int) (number - table.first);
+            if (index == table.chunks.length) {
+                final long released = this.released;
+                final int live = (int) (number - released);
+                final Chunk[] grown = new Chunk[Math.max(INITIAL_TABLE_LENGTH, live * 2)];
+                System.arraycopy(table.chunks, (int) (released - table.first), grown, 0, live);
+                table = new Table(grown, released);
+                this.table = table;
+                index = live;
+            }
+            this.tail = new Chunk();
+            table.chunks[index] = this.tail;
+            this.offset = 0;
+        }
+
+        /**
+         * 公開済みの記録のチャンクを追加する。
+         * 先頭のチャンクは読み取り開始位置より前を含むため、開始位置から複製する。
+         */
+        synchronized void snapshot(final List<View> into) {
+            final long end = this.published.get();
+            final Table table = this.table;
+            for (long number = this.start / CHUNK_SIZE; number * CHUNK_SIZE < end; number++) {
+                final Chunk chunk = table.chunks[(int) (number - table.first)];
+                final long chunkBase = number * CHUNK_SIZE;
+                final int length = (int) Math.min(CHUNK_SIZE, end - chunkBase);
+                final int skip = (int) Math.max(0, this.start - chunkBase);
+                if (skip == 0) {
+                    into.add(new View(chunk, length));
+                } else if (skip < length) {
+                    final Chunk copy = new Chunk();
+                    final int remain = length - skip;
+                    System.arraycopy(chunk.epochNanos, skip, copy.epochNanos, 0, remain);
+                    System.arraycopy(chunk.siteIds, skip, copy.siteIds, 0, remain);
+                    System.arraycopy(chunk.elapsedNanos, skip, copy.elapsedNanos, 0, remain);
+                    System.arraycopy(chunk.weights, skip, copy.weights, 0, remain);
+                    into.add(new View(copy, remain));
+                }
+            }
+        }
+
+        synchronized long size() {
+            return this.published.get() - this.start;
+        }
+
+        synchronized void clear() {
+            final long end = this.published.get();
+            // 読み取り済みの満杯のチャンクは参照を外す。
+            // 表の作り直しと重なって新しい表に残った参照も、次回ここで外れる。
+            this.released = end / CHUNK_SIZE;
+            final Table table = this.table;
+            final int limit = (int) Math.min(table.chunks.length, this.released - table.first);
+            for (int i = 0; i < limit; i++) {
+                table.chunks[i] = null;
+            }
+            this.start = end;
+        }
+
+        boolean isOwnerTerminated() {
+            final Thread thread = this.owner.get();
+            return thread == null || !thread.isAlive();
+        }
+    }
+
+    private final List<Columns> columns = new CopyOnWriteArrayList<>();
+
+    private final ThreadLocal<Columns> local = ThreadLocal.withInitial(this::newColumns);
+
+    private final SiteRegistry registry = SiteRegistry.getInstance();
+
+    private Columns newColumns() {
+        final Columns created = new Columns();
+        this.columns.add(created);
+        return created;
+    }
+
+    @Override
+    public void append(final MeasurementReport report) {
+        append(this.registry.registerKey(report.getId()), report.getElapsedEpochNano(), report.getWeight());
+    }
+
+    /**
+     * 計測箇所識別子で処理時間を記録する。
+     * 計測箇所番号はここで引く。
+     *
+     * @param id 計測箇所識別子
+     * @param elapsedNano 処理時間（ナノ秒）
+     * @param weight 抽出の重み（抽出確率の逆数）
+     */
+    @Override
+    public void append(final String id, final long elapsedNano, final double weight) {
+        append(this.registry.registerKey(id), elapsedNano, weight);
+    }
+
+    /**
+     * 計測箇所番号で処理時間を記録する。
+     * 計測結果のオブジェクトを生成しない。
+     *
+     * @param siteId 計測箇所番号（SiteRegistry）
+     * @param elapsedNano 処理時間（ナノ秒）
+     */
+    @Override
+    public void append(final int siteId, final long elapsedNano) {
+        this.local.get().append(System.nanoTime(), siteId, elapsedNano, 1.0f);
+    }
+
+    /**
+     * 計測箇所番号で処理時間を記録する。
+     * 重みは1件の記録とともに保持し、集計時に掛ける。重みが正でない場合は記録しない。
+     *
+     * @param siteId 計測箇所番号（SiteRegistry）
+     * @param elapsedNano 処理時間（ナノ秒）
+     * @param weight 抽出の重み（抽出確率の逆数）
+     */
+    @Override
+    public void append(final int siteId, final long elapsedNano, final double weight) {
+        if (!(weight > 0.0)) {
+            return;
+        }
+        this.local.get().append(System.nanoTime(), siteId, elapsedNano, (float) weight);
+    }
+
+    /**
+     * まとめて記録する。
+     * スレッドごとの列の取得と時刻の取得は1回で済ませ、全て同じ時刻で記録する。
+     * 重みは全ての記録に同じ値を保持する。重みが正でない場合は記録しない。
+     *
+     * @param siteIds 計測箇所番号（SiteRegistry）
+     * @param elapsedNanos 処理時間（ナノ秒）
+     * @param length 件数（配列の先頭から）
+     * @param weight 抽出の重み（抽出確率の逆数）
+     */
+    @Override
+    public void appendAll(final int[] siteIds, final long[] elapsedNanos, final int length, final double weight) {
+        if (!(weight > 0.0)) {
+            return;
+        }
+        final Columns columns = this.local.get();
+        final long now = System.nanoTime();
+        final float stored = (float) weight;
+        for (int i = 0; i < length; i++) {
+            columns.append(now, siteIds[i], elapsedNanos[i], stored);
+        }
+    }
+
+    private List<View> snapshot() {
+        final List<View> views = new ArrayList<>();
+        for (Columns column : this.columns) {
+            column.snapshot(views);
+        }
+        return views;
+    }
+
+    /**
+     * 記録件数を返す。
+     *
+     * @return 件数
+     */
+    public long size() {
+        long size = 0;
+        for (Columns column : this.columns) {
+            size += column.size();
+        }
+        return size;
+    }
+
+    /**
+     * チャンク単位で一括処理する。
+     * スレッドごとに記録順であり、スレッド間では時刻順に並ばない。
+     *
+     * @param action チャンクを受け取る処理
+     */
+    public void forEachChunk(final ChunkConsumer action) {
+        for (View view : snapshot()) {
+            action.accept(view.chunk.epochNanos, view.chunk.siteIds, view.chunk.elapsedNanos, view.chunk.weights,
+                    view.length);
+        }
+    }
+
+    /**
+     * 1件ずつ処理する。
+     * スレッドごとに記録順であり、スレッド間では時刻順に並ばない。
+     *
+     * @param action 計測結果を受け取る処理
+     */
+    public void forEach(final SampleConsumer action) {
+        forEachChunk((epochNanos, siteIds, elapsedNanos, weights, length) -> {
+            for (int i = 0; i < length; i++) {
+                action.accept(epochNanos[i], siteIds[i], elapsedNanos[i], weights[i]);
+            }
+        });
+    }
+
+    /**
+     * 計測箇所の処理時間を集計する。
+     * チャンクごとに並列に集計してから合わせる。
+     * 計測箇所登録簿に未登録の識別子は登録せず、空の集計結果を返す。
+     *
+     * @param id 計測箇所識別子
+     * @return 重み付きの集計結果（ナノ秒）
+     */
+    public Statistics summarize(final String id) {
+        final int siteId = this.registry.find(id);
+        if (siteId < 0) {
+            return new Statistics();
+        }
+        return snapshot().parallelStream()
+                .collect(Statistics::new,
+                        (statistics, view) -> {
+                            final int[] siteIds = view.chunk.siteIds;
+                            final long[] elapsedNanos = view.chunk.elapsedNanos;
+                            final float[] weights = view.chunk.weights;
+                            for (int i = 0; i < view.length; i++) {
+                                if (siteIds[i] == siteId) {
+                                    statistics.accept(elapsedNanos[i], weights[i]);
+                                }
+                            }
+                        },
+                        Statistics::combine);
+    }
+
+    /**
+     * 全ての計測箇所の処理時間を集計する。
+     * チャンクごとに並列に集計してから合わせる。
+     *
+     * @return 計測箇所識別子から重み付きの集計結果（ナノ秒）への対応
+     */
+    public Map<String, Statistics> summarizeAll() {
+        final Map<Integer, Statistics> bySite = snapshot().parallelStream()
+                .collect(HashMap<Integer, Statistics>::new,
+                        (statistics, view) -> {
+                            final int[] siteIds = view.chunk.siteIds;
+                            final long[] elapsedNanos = view.chunk.elapsedNanos;
+                            final float[] weights = view.chunk.weights;
+                            for (int i = 0; i < view.length; i++) {
+                                statistics.computeIfAbsent(siteIds[i], key -> new Statistics())
+                                        .accept(elapsedNanos[i], weights[i]);
+                            }
+                        },
+                        (into, other) -> other.forEach((siteId, statistics) ->
+                                into.merge(siteId, statistics, (a, b) -> {
+                                    a.combine(b);
+                                    return a;
+                                })));
+        final Map<String, Statistics> result = new HashMap<>();
+        for (Map.Entry<Integer, Statistics> entry : bySite.entrySet()) {
+            final Uniquable site = this.registry.lookup(entry.getKey());
+            result.put(site == null ? String.valueOf(entry.getKey()) : site.getKey(), entry.getValue());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * 全ての記録を破棄する。
+     * 終了したスレッドの列も取り除く。
+     */
+    public void clear() {
+        for (Columns column : this.columns) {
+            final boolean terminated = column.isOwnerTerminated();
+            column.clear();
+            if (terminated) {
+                this.columns.remove(column);
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * 前方減衰による標本保持（forward decay）。
+ * 標本に時刻とともに指数的に増える重みを付け、重み付きの無作為抽出で固定件数を保持する。
+ * 新しい標本ほど残りやすく、統計は直近の値に重みを置いたものになる。
+ * 抽出した計測結果は抽出の重みを減衰の重みに掛けて記録する。
+ * 重みの基準時刻は定期的に進めるが、その間も記録するスレッドは待たない。
+ * 基準時刻を進める間に古い基準で記録された標本は失われることがある。
+ */
+public final class DecayingReservoir {
+
+    /**
+     * 既定の保持件数
+     */
+    public static final int DEFAULT_SIZE = 1028;
+
+    /**
+     * 既定の減衰率（毎秒）。直近5分程度に重みを置く。
+     */
+    public static final double DEFAULT_ALPHA = 0.015;
+
+    /**
+     * 基準時刻を進める間隔（ナノ秒）
+     */
+    private static final long RESCALE_THRESHOLD_NANO = TimeUnit.HOURS.toNanos(1);
+
+    /**
+     * 標本
+     */
+    private static final class Sample {
+
+        final long value;
+
+        final double weight;
+
+        Sample(final long value, final double weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 基準時刻ごとの標本の集合
+     */
+    private static final class State {
+
+        /**
+         * 基準時刻（ナノ秒）
+         */
+        final long landmarkNano;
+
+        /**
+         * 優先度から標本への対応。優先度の低い標本から捨てる。
+         */
+        final ConcurrentSkipListMap<Double, Sample> samples = new ConcurrentSkipListMap<>();
+
+        /**
+         * 標本の件数。
+         * ConcurrentSkipListMap.size()は全件を数えるため、追加と削除に合わせて数える。
+         */
+        final AtomicInteger count = new AtomicInteger();
+
+        State(final long landmarkNano) {
+            this.landmarkNano = landmarkNano;
+        }
+    }
+
+    private final int size;
+
+    private final double alphaPerNano;
+
+    private final LongSupplier clock;
+
+    private final AtomicReference<State> state;
+
+    /**
+     * 次に基準時刻を進める時刻
+     */
+    private final AtomicLong nextRescaleNano;
+
+    /**
+     * コンストラクタ。
+     * 既定の保持件数と減衰率を使用する。
+     */
+    public DecayingReservoir() {
+        this(DEFAULT_SIZE, DEFAULT_ALPHA);
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param size 保持件数
+     * @param alpha 減衰率（毎秒）
+     */
+    public DecayingReservoir(final int size, final double alpha) {
+        this(size, alpha, System::nanoTime);
+    }
+
+    DecayingReservoir(final int size, final double alpha, final LongSupplier clock) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Argument 'size' must be positive.");
+        }
+        if (!(alpha > 0.0)) {
+            throw new IllegalArgumentException("Argument 'alpha' must be positive.");
+        }
+        this.size = size;
+        this.alphaPerNano = alpha / TimeUnit.SECONDS.toNanos(1);
+        this.clock = clock;
+        final long now = clock.getAsLong();
+        this.state = new AtomicReference<>(new State(now));
+        this.nextRescaleNano = new AtomicLong(now + RESCALE_THRESHOLD_NANO);
+    }
+
+    /**
+     * 値を記録する。
+     *
+     * @param value 値（ナノ秒）
+     */
+    public void update(final long value) {
+        update(value, 1.0);
+    }
+
+    /**
+     * 抽出の重みを付けて値を記録する。
+     * 重みは減衰の重みに掛ける。重みが正でない場合は記録しない。
+     *
+     * @param value 値（ナノ秒）
+     * @param sampleWeight 抽出の重み（抽出確率の逆数）
+     */
+    public void update(final long value, final double sampleWeight) {
+        if (!(sampleWeight > 0.0)) {
+            return;
+        }
+        final long now = this.clock.getAsLong();
+        rescaleIfNeeded(now);
+        final State current = this.state.get();
+        final double weight = sampleWeight * Math.exp(this.alphaPerNano * (now - current.landmarkNano));
+        final double priority = weight / nextUniform();
+        final ConcurrentSkipListMap<Double, Sample> samples = current.samples;
+        if (current.count.get() < this.size) {
+            add(current, priority, new Sample(value, weight));
+            return;
+        }
+        final Map.Entry<Double, Sample> lowest = samples.firstEntry();
+        if (lowest != null && priority > lowest.getKey()) {
+            add(current, priority, new Sample(value, weight));
+        }
+    }
+
+    /**
+     * 標本を追加し、保持件数を超えた分を優先度の低い標本から捨てる。
+     */
+    private void add(final State current, final double priority, final Sample sample) {
+        if (current.samples.putIfAbsent(priority, sample) != null) {
+            return;
+        }
+        current.count.incrementAndGet();
+        while (current.count.get() > this.size) {
+            if (current.samples.pollFirstEntry() == null) {
+                break;
+            }
+            current.count.decrementAndGet();
+        }
+    }
+
+    private static double nextUniform() {
+        double u;
+        do {
+            u = ThreadLocalRandom.current().nextDouble();
+        } while (u == 0.0);
+        return u;
+    }
+
+    /**
+     * 基準時刻を進める。
+     * 1スレッドだけが新しい集合を作り、他のスレッドは待たずに記録を続ける。
+     */
+    private void rescaleIfNeeded(final long now) {
+        final long next = this.nextRescaleNano.get();
+        if (now - next < 0 || !this.nextRescaleNano.compareAndSet(next, now + RESCALE_THRESHOLD_NANO)) {
+            return;
+        }
+        final State old = this.state.get();
+        final State fresh = new State(now);
+        final double scale = Math.exp(-this.alphaPerNano * (now - old.landmarkNano));
+        for (Map.Entry<Double, Sample> entry : old.samples.entrySet()) {
+            final Sample sample = entry.getValue();
+            if (fresh.samples.putIfAbsent(entry.getKey() * scale,
+                    new Sample(sample.value, sample.weight * scale)) == null) {
+                fresh.count.incrementAndGet();
+            }
+        }
+        this.state.set(fresh);
+    }
+
+    /**
+     * 保持している標本の件数を返す。
+     *
+     * @return 件数
+     */
+    public int size() {
+        return this.state.get().count.get();
+    }
+
+    private List<Sample> sortedSamples() {
+        final List<Sample> samples = new ArrayList<>(this.state.get().samples.values());
+        samples.sort((a, b) -> Long.compare(a.value, b.value));
+        return samples;
+    }
+
+    /**
+     * 重み付きの百分位数を返す。
+     *
+     * @param percentile 百分位（0～100）
+     * @return 百分位数（ナノ秒）。標本がない場合は0。
+     */
+    public long getValueAtPercentile(final double percentile) {
+        if (!(percentile >= 0.0 && percentile <= 100.0)) {
+            throw new IllegalArgumentException("Argument 'percentile' is out of range.");
+        }
+        final List<Sample> samples = sortedSamples();
+        if (samples.isEmpty()) {
+            return 0;
+        }
+        double total = 0.0;
+        for (Sample sample : samples) {
+            total += sample.weight;
+        }
+        final double target = percentile / 100.0 * total;
+        double seen = 0.0;
+        for (Sample sample : samples) {
+            seen += sample.weight;
+            if (seen >= target) {
+                return sample.value;
+            }
+        }
+        return samples.get(samples.size() - 1).value;
+    }
+
+    /**
+     * 重み付きの平均値を返す。
+     *
+     * @return 平均値（ナノ秒）。標本がない場合はNaN。
+     */
+    public double getMean() {
+        double total = 0.0;
+        double weighted = 0.0;
+        for (Sample sample : this.state.get().samples.values()) {
+            total += sample.weight;
+            weighted += sample.weight * sample.value;
+        }
+        return total == 0.0 ? Double.NaN : weighted / total;
+    }
+
+    /**
+     * 保持している標本の最大値を返す。
+     *
+     * @return 最大値（ナノ秒）。標本がない場合は0。
+     */
+    public long getMax() {
+        long max = 0;
+        for (Sample sample : this.state.get().samples.values()) {
+            max = Math.max(max, sample.value);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * ヒープ上の記録バッファ。
+ * 書き込み側はロックもCASも使わず、固定長セグメントに追記して
+ * 書き込み済み件数をlazySetで公開する。
+ * 記録はオブジェクトを生成せず、セグメント内の配列に格納する。
+ */
+final class HeapRecordBuffer extends ThreadRecordBuffer {
+
+    /**
+     * 1セグメントあたりの記録数
+     */
+    static final int SEGMENT_SIZE = 1024;
+
+    /**
+     * 固定長セグメント。
+     * 満杯になると次のセグメントを連結する。
+     */
+    private static final class Segment {
+
+        /**
+         * 本セグメント先頭の通番
+         */
+        final long base;
+
+        final Uniquable[] ids = new Uniquable[SEGMENT_SIZE];
+
+        final long[] epochNanos = new long[SEGMENT_SIZE];
+
+        final boolean[] begins = new boolean[SEGMENT_SIZE];
+
+        final double[] weights = new double[SEGMENT_SIZE];
+
+        final long[] parentSpanIds = new long[SEGMENT_SIZE];
+
+        volatile Segment next;
+
+        Segment(final long base) {
+            this.base = base;
+        }
+    }
+
+    /**
+     * 書き込み中のセグメント（所有スレッドのみ参照）
+     */
+    private Segment tail;
+
+    /**
+     * 次に書き込む通番（所有スレッドのみ参照）
+     */
+    private long writeIndex = 0;
+
+    /**
+     * 読み取り側に公開済みの書き込み件数
+     */
+    private final AtomicLong published = new AtomicLong();
+
+    /**
+     * 読み取り開始セグメント（読み取り側で同期）
+     */
+    private Segment head;
+
+    /**
+     * 読み取り開始通番（読み取り側で同期）
+     */
+    private long start = 0;
+
+    /**
+     * コンストラクタ。
+     * 所有スレッドで呼び出すこと。
+     */
+    HeapRecordBuffer() {
+        this.tail = new Segment(0);
+        this.head = this.tail;
+    }
+
+    @Override
+    void append(
+            final Uniquable id,
+            final boolean begin,
+            final long epochNano,
+            final double weight,
+            final long parentSpanId) {
+        final long index = this.writeIndex;
+        int offset = (int) (index - this.tail.base);
+        if (offset == SEGMENT_SIZE) {
+            final Segment segment = new Segment(index);
+            this.tail.next = segment;
+            this.tail = segment;
+            offset = 0;
+        }
+        this.tail.ids[offset] = id;
+        this.tail.epochNanos[offset] = epochNano;
+        this.tail.begins[offset] = begin;
+        this.tail.weights[offset] = weight;
+        this.tail.parentSpanIds[offset] = parentSpanId;
+        this.writeIndex = index + 1;
+        this.published.lazySet(index + 1);
+    }
+
+    @Override
+    synchronized long forEachFrom(
+            final long from,
+            final long maxCount,
+            final Consumer<? super PeriodRecorder.Record> action) {
+        final long published = this.published.get();
+        final long first = Math.max(from, this.start);
+        final long end = first + Math.min(maxCount, Math.max(0, published - first));
+        Segment segment = this.head;
+        for (long index = first; index < end; index++) {
+            int offset = (int) (index - segment.base);
+            while (offset >= SEGMENT_SIZE) {
+                segment = segment.next;
+                offset = (int) (index - segment.base);
+            }
+            action.accept(new PeriodRecorder.Record(
+                    segment.ids[offset],
+                    segment.begins[offset],
+                    segment.epochNanos[offset],
+                    getThreadId(),
+                    index,
+                    segment.weights[offset],
+                    segment.parentSpanIds[offset]));
+        }
+        return end;
+    }
+
+    @Override
+    long getPublished() {
+        return this.published.get();
+    }
+
+    @Override
+    synchronized long size() {
+        return this.published.get() - this.start;
+    }
+
+    @Override
+    synchronized void clear(final long upTo) {
+        final long end = Math.min(upTo, this.published.get());
+        if (end <= this.start) {
+            return;
+        }
+        while (this.head.next != null && this.head.next.base <= end) {
+            this.head = this.head.next;
+        }
+        this.start = end;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ヒストグラムによる処理時間記録。
+ * 計測箇所識別子ごとに対数線形ヒストグラム（LatencyHistogram）を1つ持ち、
+ * 計測結果は保持せずにヒストグラムに加える。
+ * 使用するメモリは計測箇所の数で決まり、記録件数によらない。
+ * 複数のスレッドから同時に記録できる。
+ * 抽出の重みは確率的に丸めた件数として記録する（件数の期待値は重みに等しい）。
+ */
+public class HistogramResult implements MeasurementResultCollectable {
+
+    /**
+     * 既定の記録できる最大値（ナノ秒）
+     */
+    public static final long DEFAULT_HIGHEST_TRACKABLE_NANO = TimeUnit.HOURS.toNanos(1);
+
+    /**
+     * 既定の有効桁数
+     */
+    public static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+
+    private final long highestTrackableNano;
+
+    private final int significantDigits;
+
+    /**
+     * 計測箇所識別子ごとのヒストグラム
+     */
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * コンストラクタ。
+     * 1時間までの処理時間を有効桁数2桁で記録する。
+     */
+    public HistogramResult() {
+        this(DEFAULT_HIGHEST_TRACKABLE_NANO, DEFAULT_SIGNIFICANT_DIGITS);
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param highestTrackableNano 記録できる最大値（ナノ秒）
+     * @param significantDigits 有効桁数（1～5）
+     */
+    public HistogramResult(final long highestTrackableNano, final int significantDigits) {
+        if (highestTrackableNano < 2) {
+            throw new IllegalArgumentException("Argument 'highestTrackableNano' is too small.");
+        }
+        if (significantDigits < 1 || significantDigits > 5) {
+            throw new IllegalArgumentException("Argument 'significantDigits' is out of range.");
+        }
+        this.highestTrackableNano = highestTrackableNano;
+        this.significantDigits = significantDigits;
+    }
+
+    @Override
+    public void append(final MeasurementReport report) {
+        final long count = LatencyHistogram.sampledCount(report.getWeight());
+        histogram(report.getId()).record(report.getElapsedEpochNano(), count);
+    }
+
+    /**
+     * 計測箇所識別子で処理時間を記録する。
+     * 計測結果のオブジェクトを生成せず、計測箇所登録簿にも登録しない。
+     *
+     * @param id 計測箇所識別子
+     * @param elapsedNano 処理時間（ナノ秒）
+     * @param weight 抽出の重み（抽出確率の逆数）
+     */
+    @Override
+    public void append(final String id, final long elapsedNano, final double weight) {
+        histogram(id).record(elapsedNano, LatencyHistogram.sampledCount(weight));
+    }
+
+    /**
+     * 計測箇所番号で処理時間を記録する。
+     * 計測結果のオブジェクトを生成しない。
+     *
+     * @param siteId 計測箇所番号（SiteRegistry）
+     * @param elapsedNano 処理時間（ナノ秒）
+     * @param weight 抽出の重み（抽出確率の逆数）
+     */
+    @Override
+    public void append(final int siteId, final long elapsedNano, final double weight) {
+        final Uniquable site = SiteRegistry.getInstance().lookup(siteId);
+        final String id = site == null ? String.valueOf(siteId) : site.getKey();
+        histogram(id).record(elapsedNano, LatencyHistogram.sampledCount(weight));
+    }
+
+    private LatencyHistogram histogram(final String id) {
+        final LatencyHistogram histogram = this.histograms.get(id);
+        if (histogram != null) {
+            return histogram;
+        }
+        return this.histograms.computeIfAbsent(id,
+                key -> new LatencyHistogram(this.highestTrackableNano, this.significantDigits));
+    }
+
+    /**
+     * 計測箇所のヒストグラムを返す。
+     *
+     * @param id 計測箇所識別子
+     * @return ヒストグラム。記録がない場合はNULL。
+     */
+    public LatencyHistogram getHistogram(final String id) {
+        return this.histograms.get(id);
+    }
+
+    /**
+     * 記録のある計測箇所識別子を返す。
+     *
+     * @return 計測箇所識別子（読み取り専用）
+     */
+    public Set<String> getIds() {
+        return Collections.unmodifiableSet(this.histograms.keySet());
+    }
+
+    /**
+     * 全てのヒストグラムを返す。
+     *
+     * @return 計測箇所識別子からヒストグラムへの対応（読み取り専用）
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return Collections.unmodifiableMap(this.histograms);
+    }
+
+    /**
+     * 記録できる最大値を返す。
+     *
+     * @return 最大値（ナノ秒）
+     */
+    public long getHighestTrackableNano() {
+        return this.highestTrackableNano;
+    }
+
+    /**
+     * 有効桁数を返す。
+     *
+     * @return 有効桁数
+     */
+    public int getSignificantDigits() {
+        return this.significantDigits;
+    }
+
+    /**
+     * 全ての記録を消去する。
+     */
+    public void clear() {
+        this.histograms.clear();
+    }
+}
@@ -0,0 +1,502 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/**
+ * 一定間隔ごとの差分の出力。
+ * 計測結果を記録中のヒストグラムに加え、一定間隔ごとに空のヒストグラムと差し替えて、
+ * 前回からの差分（件数、毎秒の件数、百分位数）を計測箇所識別子ごとにCSVまたはJSON Linesで出力する。
+ * ヒストグラムは2つを交互に使い、差し替えの際に記録するスレッドは待たない。
+ * 差し替えた後は、差し替え前に記録を始めたスレッドが書き終えるのを出力側が待ってから出力する。
+ * 出力は再利用するダイレクトバッファを通してファイルに書き、ファイルが一定の大きさを超えると次のファイルに切り替える。
+ * 区間記録を指定した場合は、読み取り位置から新しい記録を読んで開始と終了を対応付け、差分に含める。
+ * <pre>
+ * try (IntervalReporter reporter = new IntervalReporter(dir, "latency", IntervalReporter.Format.CSV)) {
+ *     try (StopWatch watch = new StopWatch(true, "OrderService.price", reporter)) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public final class IntervalReporter implements MeasurementResultCollectable, Closeable {
+
+    /**
+     * 出力形式
+     */
+    public enum Format {
+
+        /**
+         * 見出し行付きのCSV
+         */
+        CSV(".csv"),
+
+        /**
+         * 1行1オブジェクトのJSON
+         */
+        JSON_LINES(".jsonl");
+
+        private final String extension;
+
+        Format(final String extension) {
+            this.extension = extension;
+        }
+    }
+
+    /**
+     * 既定の出力間隔（ミリ秒）
+     */
+    public static final long DEFAULT_INTERVAL_MILLI = 10000;
+
+    /**
+     * 既定の切り替えるファイルの大きさ（バイト）
+     */
+    public static final long DEFAULT_MAX_FILE_BYTES = 10L * 1024 * 1024;
+
+    /**
+     * 既定の残すファイルの数
+     */
+    public static final int DEFAULT_MAX_FILES = 5;
+
+    /**
+     * 出力バッファのバイト数
+     */
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private static final String CSV_HEADER = "time,id,count,rate,mean,p50,p90,p99,p999,max\n";
+
+    /**
+     * 記録中のスレッドの数え上げ。
+     * 記録するスレッドは開始時と終了時に数を増やすだけで待たない。
+     * 出力側は世代を切り替え、前の世代で開始した記録が全て終了するまで待つ。
+     */
+    private static final class Phaser {
+
+        /**
+         * 開始した記録の数。符号で世代を表す。
+         */
+        final AtomicLong started = new AtomicLong();
+
+        final AtomicLong evenEnded = new AtomicLong();
+
+        final AtomicLong oddEnded = new AtomicLong(Long.MIN_VALUE);
+
+        long enter() {
+            return this.started.getAndIncrement();
+        }
+
+        void exit(final long ticket) {
+            (ticket < 0 ? this.oddEnded : this.evenEnded).getAndIncrement();
+        }
+
+        /**
+         * 世代を切り替え、前の世代の記録が全て終了するまで待つ。
+         * 出力側の1スレッドのみが呼び出す。
+         */
+        void flip() {
+            final boolean nextOdd = this.started.get() >= 0;
+            final long nextStart = nextOdd ? Long.MIN_VALUE : 0;
+            (nextOdd ? this.oddEnded : this.evenEnded).set(nextStart);
+            final long previousEnd = this.started.getAndSet(nextStart);
+            final AtomicLong ended = nextOdd ? this.evenEnded : this.oddEnded;
+            while (ended.get() != previousEnd) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private final Path directory;
+
+    private final String prefix;
+
+    private final Format format;
+
+    private final long maxFileBytes;
+
+    private final int maxFiles;
+
+    /**
+     * 転送先（NULL許容）
+     */
+    private final MeasurementResultCollectable downstream;
+
+    /**
+     * 区間記録の読み取り位置と対応付け（区間記録を指定した場合のみ）
+     */
+    private final PeriodCursor cursor;
+
+    private final PeriodPairing pairing;
+
+    /**
+     * 記録中のヒストグラム
+     */
+    private final AtomicReference<HistogramResult> active = new AtomicReference<>(new HistogramResult());
+
+    /**
+     * 次に記録に使うヒストグラム（出力側で同期）
+     */
+    private HistogramResult spare = new HistogramResult();
+
+    private final Phaser phaser = new Phaser();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+    private final StringBuilder line = new StringBuilder(256);
+
+    private FileChannel channel;
+
+    private int fileIndex = 0;
+
+    private long lastReportNano = System.nanoTime();
+
+    private boolean closed = false;
+
+    /**
+     * コンストラクタ。
+     * 10秒ごとに出力し、10MBを超えるとファイルを切り替えて5つまで残す。
+     *
+     * @param directory 出力先のディレクトリ
+     * @param prefix ファイル名の接頭辞
+     * @param format 出力形式
+     * @throws IOException ファイルを開けない場合
+     */
+    public IntervalReporter(final Path directory, final String prefix, final Format format) throws IOException {
+        this(directory, prefix, format, DEFAULT_INTERVAL_MILLI, DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_FILES, null, null);
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param directory 出力先のディレクトリ
+     * @param prefix ファイル名の接頭辞。ファイル名は「接頭辞-番号.拡張子」となる。
+     * @param format 出力形式
+     * @param intervalMilli 出力間隔（ミリ秒）
+     * @param maxFileBytes ファイルを切り替える大きさ（バイト）
+     * @param maxFiles 残すファイルの数
+     * @param recorder 差分に含める区間記録。NULL許容。
+     * @param downstream 計測結果の転送先。NULL許容。記録するスレッドから同期せずに呼ぶため、HistogramResultなどスレッドセーフな実装とする（MeasurementResultは不可）。
+     * @throws IOException ファイルを開けない場合
+     */
+    public IntervalReporter(
+            final Path directory,
+            final String prefix,
+            final Format format,
+            final long intervalMilli,
+            final long maxFileBytes,
+            final int maxFiles,
+            final PeriodRecorder recorder,
+            final MeasurementResultCollectable downstream) throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("Argument 'directory' is null.");
+        }
+        if (prefix == null || prefix.isEmpty()) {
+            throw new IllegalArgumentException("Argument 'prefix' is not allowed to be empty.");
+        }
+        if (format == null) {
+            throw new IllegalArgumentException("Argument 'format' is null.");
+        }
+        if (intervalMilli <= 0) {
+            throw new IllegalArgumentException("Argument 'intervalMilli' must be positive.");
+        }
+        if (maxFileBytes <= 0) {
+            throw new IllegalArgumentException("Argument 'maxFileBytes' must be positive.");
+        }
+        if (maxFiles <= 0) {
+            throw new IllegalArgumentException("Argument 'maxFiles' must be positive.");
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.format = format;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.downstream = downstream;
+        this.cursor = recorder == null ? null : recorder.newCursor();
+        this.pairing = recorder == null ? null : new PeriodPairing(this::record);
+        openFile();
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "IntervalReporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleAtFixedRate(this::tick, intervalMilli, intervalMilli, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void append(final MeasurementReport report) {
+        record(report);
+        if (this.downstream != null) {
+            this.downstream.append(report);
+        }
+    }
+
+    @Override
+    public void append(final String id, final long elapsedNano, final double weight) {
+        final long ticket = this.phaser.enter();
+        try {
+            this.active.get().append(id, elapsedNano, weight);
+        } finally {
+            this.phaser.exit(ticket);
+        }
+        if (this.downstream != null) {
+            this.downstream.append(id, elapsedNano, weight);
+        }
+    }
+
+    @Override
+    public void append(final int siteId, final long elapsedNano, final double weight) {
+        final long ticket = this.phaser.enter();
+        try {
+            this.active.get().append(siteId, elapsedNano, weight);
+        } finally {
+            this.phaser.exit(ticket);
+        }
+        if (this.downstream != null) {
+            this.downstream.append(siteId, elapsedNano, weight);
+        }
+    }
+
+    /**
+     * まとめて記録する。
+     * 入れ替えとの同期は1回で済ませる。
+     */
+    @Override
+    public void appendAll(final int[] siteIds, final long[] elapsedNanos, final int length, final double weight) {
+        final long ticket = this.phaser.enter();
+        try {
+            this.active.get().appendAll(siteIds, elapsedNanos, length, weight);
+        } finally {
+            this.phaser.exit(ticket);
+        }
+        if (this.downstream != null) {
+            this.downstream.appendAll(siteIds, elapsedNanos, length, weight);
+        }
+    }
+
+    private void record(final MeasurementReport report) {
+        final long ticket = this.phaser.enter();
+        try {
+            this.active.get().append(report);
+        } finally {
+            this.phaser.exit(ticket);
+        }
+    }
+
+    /**
+     * 出力中のファイルを返す。
+     *
+     * @return ファイル
+     */
+    public synchronized Path getCurrentFile() {
+        return fileOf(this.fileIndex);
+    }
+
+    private Path fileOf(final int index) {
+        return this.directory.resolve(this.prefix + "-" + index + this.format.extension);
+    }
+
+    private void tick() {
+        try {
+            reportNow();
+        } catch (IOException | RuntimeException ex) {
+            LocalLog.getThreadLocalLogger().log(Level.WARNING, "IntervalReporter report failed.", ex);
+        }
+    }
+
+    /**
+     * 間隔を待たずに前回からの差分を出力する。
+     *
+     * @throws IOException 出力に失敗した場合
+     */
+    public synchronized void reportNow() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        if (this.cursor != null) {
+            this.cursor.poll(this.pairing::accept);
+        }
+        final HistogramResult delta = this.active.getAndSet(this.spare);
+        this.phaser.flip();
+        final long now = System.nanoTime();
+        final double seconds = Math.max(1L, now - this.lastReportNano) / 1e9;
+        this.lastReportNano = now;
+
+        final String time = Instant.now().toString();
+        final Map<String, LatencyHistogram> sorted = new TreeMap<>(delta.getHistograms());
+        for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+            final LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() > 0) {
+                writeLine(time, entry.getKey(), histogram, seconds);
+            }
+            histogram.reset();
+        }
+        drain();
+        this.spare = delta;
+        if (this.channel.size() >= this.maxFileBytes) {
+            rotate();
+        }
+    }
+
+    private void writeLine(
+            final String time,
+            final String id,
+            final LatencyHistogram histogram,
+            final double seconds) throws IOException {
+        final long count = histogram.getCount();
+        final double rate = Math.round(count / seconds * 1000.0) / 1000.0;
+        final long mean = Math.round(histogram.getMean());
+        if (this.format == Format.CSV) {
+            this.line.append(time).append(',');
+            appendCsv(id);
+            this.line.append(',').append(count)
+                    .append(',').append(rate)
+                    .append(',').append(mean)
+                    .append(',').append(histogram.getP50())
+                    .append(',').append(histogram.getP90())
+                    .append(',').append(histogram.getP99())
+                    .append(',').append(histogram.getP999())
+                    .append(',').append(histogram.getMax())
+                    .append('\n');
+        } else {
+            this.line.append("{\"time\":\"").append(time).append("\",\"id\":");
+            TextEscapes.appendJsonString(this.line, id);
+            this.line.append(",\"count\":").append(count)
+                    .append(",\"rate\":").append(rate)
+                    .append(",\"mean\":").append(mean)
+                    .append(",\"p50\":").append(histogram.getP50())
+                    .append(",\"p90\":").append(histogram.getP90())
+                    .append(",\"p99\":").append(histogram.getP99())
+                    .append(",\"p999\":").append(histogram.getP999())
+                    .append(",\"max\":").append(histogram.getMax())
+                    .append("}\n");
+        }
+        flushLine();
+    }
+
+    private void appendCsv(final String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            this.line.append(value);
+            return;
+        }
+        this.line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"') {
+                this.line.append('"');
+            }
+            this.line.append(c);
+        }
+        this.line.append('"');
+    }
+
+    /**
+     * 1行分の文字列を出力バッファに符号化する。
+     */
+    private void flushLine() throws IOException {
+        final CharBuffer chars = CharBuffer.wrap(this.line);
+        while (true) {
+            final CoderResult result = this.encoder.encode(chars, this.buffer, false);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+        this.line.setLength(0);
+    }
+
+    /**
+     * 出力バッファの内容をファイルに書き出す。
+     */
+    private void drain() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+
+    private void openFile() throws IOException {
+        this.channel = FileChannel.open(fileOf(this.fileIndex),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        if (this.format == Format.CSV) {
+            this.line.append(CSV_HEADER);
+            flushLine();
+            drain();
+        }
+    }
+
+    /**
+     * 次のファイルに切り替え、残す数を超えた古いファイルを削除する。
+     */
+    private void rotate() throws IOException {
+        this.channel.close();
+        this.fileIndex++;
+        if (this.fileIndex >= this.maxFiles) {
+            Files.deleteIfExists(fileOf(this.fileIndex - this.maxFiles));
+        }
+        openFile();
+    }
+
+    /**
+     * 残りの差分を出力してファイルを閉じる。
+     * 2回目以降の呼び出しは何もしない。
+     *
+     * @throws IOException 出力に失敗した場合
+     */
+    @Override
+    public void close() throws IOException {
+        this.scheduler.shutdown();
+        try {
+            this.scheduler.awaitTermination(DEFAULT_INTERVAL_MILLI, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            try {
+                reportNow();
+            } finally {
+                this.closed = true;
+                if (this.cursor != null) {
+                    this.cursor.close();
+                }
+                this.channel.close();
+            }
+        }
+    }
+}
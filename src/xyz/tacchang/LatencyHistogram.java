@@ -0,0 +1,424 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 処理時間の対数線形ヒストグラム（HDR Histogram方式）。
+ * 値の範囲を2の冪ごとのバケットに分け、各バケットを有効桁数に応じた数の副バケットに等分する。
+ * 記録した値は副バケットの幅の誤差（有効桁数の精度）で保持する。
+ * 使用するメモリは上限値と有効桁数で決まり、記録件数によらない。
+ * 記録はAtomicLongArrayの加算のみで行い、ロックを取らない。
+ * 百分位数は副バケットを先頭から走査して求めるため、記録件数によらず一定の手間である。
+ */
+public final class LatencyHistogram {
+
+    /**
+     * 記録できる最大値（ナノ秒）
+     */
+    private final long highestTrackableValue;
+
+    private final int significantDigits;
+
+    /**
+     * 副バケット数の半分の2進桁数
+     */
+    private final int subBucketHalfCountMagnitude;
+
+    private final int subBucketHalfCount;
+
+    private final long subBucketMask;
+
+    private final AtomicLongArray counts;
+
+    private final AtomicLong totalCount = new AtomicLong();
+
+    private final AtomicLong totalValue = new AtomicLong();
+
+    private final AtomicLong minValue = new AtomicLong(Long.MAX_VALUE);
+
+    private final AtomicLong maxValue = new AtomicLong(0);
+
+    /**
+     * 上限値を超えて上限値として記録した件数
+     */
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    /**
+     * コンストラクタ。
+     *
+     * @param highestTrackableValue 記録できる最大値（ナノ秒、2以上）
+     * @param significantDigits 有効桁数（1～5）
+     */
+    public LatencyHistogram(final long highestTrackableValue, final int significantDigits) {
+        if (highestTrackableValue < 2) {
+            throw new IllegalArgumentException("Argument 'highestTrackableValue' is too small.");
+        }
+        if (significantDigits < 1 || significantDigits > 5) {
+            throw new IllegalArgumentException("Argument 'significantDigits' is out of range.");
+        }
+        this.highestTrackableValue = highestTrackableValue;
+        this.significantDigits = significantDigits;
+
+        final long largestSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+        final int subBucketCountMagnitude =
+                (int) Math.ceil(Math.log(largestSingleUnitResolution) / Math.log(2));
+        this.subBucketHalfCountMagnitude = Math.max(subBucketCountMagnitude, 1) - 1;
+        final int subBucketCount = 1 << (this.subBucketHalfCountMagnitude + 1);
+        this.subBucketHalfCount = subBucketCount / 2;
+        this.subBucketMask = subBucketCount - 1;
+
+        // 上限値を含むまでバケットを増やす
+        long smallestUntrackableValue = subBucketCount;
+        int bucketCount = 1;
+        while (smallestUntrackableValue <= highestTrackableValue) {
+            if (smallestUntrackableValue > Long.MAX_VALUE / 2) {
+                bucketCount++;
+                break;
+            }
+            smallestUntrackableValue <<= 1;
+            bucketCount++;
+        }
+        this.counts = new AtomicLongArray((bucketCount + 1) * this.subBucketHalfCount);
+    }
+
+    /**
+     * 値を1件記録する。
+     *
+     * @param value 値（ナノ秒）。負の値は0として記録する。
+     */
+    public void record(final long value) {
+        record(value, 1);
+    }
+
+    /**
+     * 抽出の重みを記録する件数に変換する。
+     * 重みの整数部に、小数部の確率で1を加える（確率的な丸め）。
+     * 件数の期待値は重みに等しく、四捨五入のように抽出した件数が偏らない。
+     *
+     * @param weight 抽出の重み（抽出確率の逆数）
+     * @return 件数
+     */
+    static long sampledCount(final double weight) {
+        if (!(weight > 0.0)) {
+            return 0;
+        }
+        final double floor = Math.floor(weight);
+        final double fraction = weight - floor;
+        final long count = (long) floor;
+        if (fraction > 0.0 && ThreadLocalRandom.current().nextDouble() < fraction) {
+            return count + 1;
+        }
+        return count;
+    }
+
+    /**
+     * 値を指定の件数だけ記録する。
+     * 抽出した計測結果を重みの件数で記録する場合に使用する。
+     *
+     * @param value 値（ナノ秒）。負の値は0として記録する。
+     * @param count 件数
+     */
+    public void record(final long value, final long count) {
+        if (count <= 0) {
+            return;
+        }
+        long clamped = Math.max(0, value);
+        if (clamped > this.highestTrackableValue) {
+            clamped = this.highestTrackableValue;
+            this.overflowCount.addAndGet(count);
+        }
+        this.counts.addAndGet(indexOf(clamped), count);
+        this.totalCount.addAndGet(count);
+        this.totalValue.addAndGet(clamped * count);
+        updateMin(clamped);
+        updateMax(clamped);
+    }
+
+    private void updateMin(final long value) {
+        long current = this.minValue.get();
+        while (value < current && !this.minValue.compareAndSet(current, value)) {
+            current = this.minValue.get();
+        }
+    }
+
+    private void updateMax(final long value) {
+        long current = this.maxValue.get();
+        while (value > current && !this.maxValue.compareAndSet(current, value)) {
+            current = this.maxValue.get();
+        }
+    }
+
+    /**
+     * 値を格納する副バケットの位置を返す。
+     */
+    int indexOf(final long value) {
+        final int bucketIndex = 63 - Long.numberOfLeadingZeros(value | this.subBucketMask)
+                - this.subBucketHalfCountMagnitude;
+        final int subBucketIndex = (int) (value >>> bucketIndex);
+        return (bucketIndex << this.subBucketHalfCountMagnitude) + subBucketIndex;
+    }
+
+    /**
+     * 副バケットの最小値を返す。
+     */
+    long lowestValueAt(final int index) {
+        int bucketIndex = (index >> this.subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (this.subBucketHalfCount - 1)) + this.subBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= this.subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return ((long) subBucketIndex) << bucketIndex;
+    }
+
+    /**
+     * 副バケットの最大値を返す。
+     */
+    long highestValueAt(final int index) {
+        final int bucketIndex = Math.max(0, (index >> this.subBucketHalfCountMagnitude) - 1);
+        return lowestValueAt(index) + (1L << bucketIndex) - 1;
+    }
+
+    /**
+     * 副バケットの数を返す。
+     *
+     * @return 副バケットの数
+     */
+    int length() {
+        return this.counts.length();
+    }
+
+    /**
+     * 副バケットの件数を返す。
+     */
+    long countAt(final int index) {
+        return this.counts.get(index);
+    }
+
+    /**
+     * 副バケットに件数を加える。
+     * 集計の復元に使用し、件数の合計などは更新しない。
+     */
+    void addCountAt(final int index, final long count) {
+        this.counts.addAndGet(index, count);
+    }
+
+    /**
+     * 件数の合計、値の合計、最小値、最大値、上限超過件数を加える。
+     * 集計の復元に使用する。
+     */
+    void addTotals(
+            final long count,
+            final long value,
+            final long min,
+            final long max,
+            final long overflow) {
+        this.totalCount.addAndGet(count);
+        this.totalValue.addAndGet(value);
+        this.overflowCount.addAndGet(overflow);
+        if (count > 0) {
+            updateMin(min);
+            updateMax(max);
+        }
+    }
+
+    /**
+     * 値の合計を返す。
+     *
+     * @return 値の合計（ナノ秒）
+     */
+    public long getTotalValue() {
+        return this.totalValue.get();
+    }
+
+    /**
+     * 百分位数を返す。
+     * 値は副バケットの最大値であり、有効桁数の精度を持つ。
+     *
+     * @param percentile 百分位（0～100）
+     * @return 百分位数（ナノ秒）。記録がない場合は0。
+     */
+    public long getValueAtPercentile(final double percentile) {
+        if (!(percentile >= 0.0 && percentile <= 100.0)) {
+            throw new IllegalArgumentException("Argument 'percentile' is out of range.");
+        }
+        final long total = this.totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int index = 0; index < this.counts.length(); index++) {
+            seen += this.counts.get(index);
+            if (seen >= target) {
+                return Math.min(highestValueAt(index), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * 中央値を返す。
+     *
+     * @return 50パーセンタイル（ナノ秒）
+     */
+    public long getP50() {
+        return getValueAtPercentile(50.0);
+    }
+
+    /**
+     * 90パーセンタイルを返す。
+     *
+     * @return 90パーセンタイル（ナノ秒）
+     */
+    public long getP90() {
+        return getValueAtPercentile(90.0);
+    }
+
+    /**
+     * 99パーセンタイルを返す。
+     *
+     * @return 99パーセンタイル（ナノ秒）
+     */
+    public long getP99() {
+        return getValueAtPercentile(99.0);
+    }
+
+    /**
+     * 99.9パーセンタイルを返す。
+     *
+     * @return 99.9パーセンタイル（ナノ秒）
+     */
+    public long getP999() {
+        return getValueAtPercentile(99.9);
+    }
+
+    /**
+     * 記録件数を返す。
+     *
+     * @return 件数
+     */
+    public long getCount() {
+        return this.totalCount.get();
+    }
+
+    /**
+     * 最大値を返す。
+     *
+     * @return 最大値（ナノ秒）。記録がない場合は0。
+     */
+    public long getMax() {
+        return this.maxValue.get();
+    }
+
+    /**
+     * 最小値を返す。
+     *
+     * @return 最小値（ナノ秒）。記録がない場合は0。
+     */
+    public long getMin() {
+        final long min = this.minValue.get();
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    /**
+     * 平均値を返す。
+     *
+     * @return 平均値（ナノ秒）。記録がない場合はNaN。
+     */
+    public double getMean() {
+        final long count = this.totalCount.get();
+        return count == 0 ? Double.NaN : (double) this.totalValue.get() / count;
+    }
+
+    /**
+     * 上限値を超えて上限値として記録した件数を返す。
+     *
+     * @return 件数
+     */
+    public long getOverflowCount() {
+        return this.overflowCount.get();
+    }
+
+    /**
+     * 記録できる最大値を返す。
+     *
+     * @return 最大値（ナノ秒）
+     */
+    public long getHighestTrackableValue() {
+        return this.highestTrackableValue;
+    }
+
+    /**
+     * 有効桁数を返す。
+     *
+     * @return 有効桁数
+     */
+    public int getSignificantDigits() {
+        return this.significantDigits;
+    }
+
+    /**
+     * 別のヒストグラムの記録を加える。
+     * 上限値と有効桁数が同じであること。
+     *
+     * @param other 加えるヒストグラム
+     */
+    public void add(final LatencyHistogram other) {
+        if (other.counts.length() != this.counts.length()
+                || other.subBucketHalfCountMagnitude != this.subBucketHalfCountMagnitude) {
+            throw new IllegalArgumentException("Argument 'other' has a different layout.");
+        }
+        for (int index = 0; index < this.counts.length(); index++) {
+            final long count = other.counts.get(index);
+            if (count != 0) {
+                this.counts.addAndGet(index, count);
+            }
+        }
+        this.totalCount.addAndGet(other.totalCount.get());
+        this.totalValue.addAndGet(other.totalValue.get());
+        this.overflowCount.addAndGet(other.overflowCount.get());
+        if (other.totalCount.get() > 0) {
+            updateMin(other.minValue.get());
+            updateMax(other.maxValue.get());
+        }
+    }
+
+    /**
+     * 同じ上限値と有効桁数の空のヒストグラムを生成する。
+     *
+     * @return ヒストグラム
+     */
+    public LatencyHistogram newEmpty() {
+        return new LatencyHistogram(this.highestTrackableValue, this.significantDigits);
+    }
+
+    /**
+     * 記録を全て消去する。
+     * 記録中の値との間で一貫性は保証しない。
+     */
+    public void reset() {
+        for (int index = 0; index < this.counts.length(); index++) {
+            this.counts.set(index, 0);
+        }
+        this.totalCount.set(0);
+        this.totalValue.set(0);
+        this.overflowCount.set(0);
+        this.minValue.set(Long.MAX_VALUE);
+        this.maxValue.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{count=%d,p50=%d,p90=%d,p99=%d,p99.9=%d,max=%d}",
+                getCount(), getP50(), getP90(), getP99(), getP999(), getMax());
+    }
+}
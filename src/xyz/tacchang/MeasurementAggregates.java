@@ -0,0 +1,431 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 計測箇所ごとの集計結果。
+ * 件数、合計、最小値、最大値、ヒストグラムの副バケットを計測箇所識別子ごとに保持する。
+ * 計測結果そのものは保持しないため、複数のJVMや試験の結果を小さく持ち運べる。
+ * 併合は結合的かつ可換であり、どの順序でまとめても同じ分布になる。
+ * バイナリ形式は可変長整数と、件数のある副バケットのみを書き出す疎な表現である。
+ * <pre>
+ * 形式（バージョン1）
+ *   "MAGG"  4バイト
+ *   バージョン、上限値、有効桁数、計測箇所数  各可変長整数
+ *   計測箇所ごとに
+ *     識別子のバイト数、識別子（UTF-8）
+ *     件数、合計、最小値、最大値、上限超過件数、副バケット数  各可変長整数
+ *     副バケットごとに 直前の副バケットとの位置の差、件数  各可変長整数
+ * </pre>
+ */
+public final class MeasurementAggregates {
+
+    /**
+     * 形式の識別子
+     */
+    private static final byte[] MAGIC = {'M', 'A', 'G', 'G'};
+
+    /**
+     * 形式のバージョン
+     */
+    static final int VERSION = 1;
+
+    /**
+     * 計測箇所IDの最大バイト数（読み込み時の検査用）
+     */
+    static final int MAX_ID_BYTES = 1024 * 1024;
+
+    private final long highestTrackableNano;
+
+    private final int significantDigits;
+
+    /**
+     * 計測箇所識別子ごとのヒストグラム
+     */
+    private final Map<String, LatencyHistogram> histograms = new TreeMap<>();
+
+    /**
+     * コンストラクタ。
+     * 空の集計結果を生成する。
+     *
+     * @param highestTrackableNano 記録できる最大値（ナノ秒）
+     * @param significantDigits 有効桁数（1～5）
+     */
+    public MeasurementAggregates(final long highestTrackableNano, final int significantDigits) {
+        if (highestTrackableNano < 2) {
+            throw new IllegalArgumentException("Argument 'highestTrackableNano' is too small.");
+        }
+        if (significantDigits < 1 || significantDigits > 5) {
+            throw new IllegalArgumentException("Argument 'significantDigits' is out of range.");
+        }
+        this.highestTrackableNano = highestTrackableNano;
+        this.significantDigits = significantDigits;
+    }
+
+    /**
+     * ヒストグラムによる処理時間記録から集計結果を生成する。
+     *
+     * @param result 処理時間記録
+     * @return 集計結果
+     */
+    public static MeasurementAggregates of(final HistogramResult result) {
+        final MeasurementAggregates aggregates = new MeasurementAggregates(
+                result.getHighestTrackableNano(), result.getSignificantDigits());
+        for (Map.Entry<String, LatencyHistogram> entry : result.getHistograms().entrySet()) {
+            aggregates.histogram(entry.getKey()).add(entry.getValue());
+        }
+        return aggregates;
+    }
+
+    /**
+     * 標準処理時間記録から集計結果を生成する。
+     * 1時間までの処理時間を有効桁数2桁で集計する。
+     *
+     * @param result 処理時間記録
+     * @return 集計結果
+     */
+    public static MeasurementAggregates of(final MeasurementResult result) {
+        final MeasurementAggregates aggregates = new MeasurementAggregates(
+                HistogramResult.DEFAULT_HIGHEST_TRACKABLE_NANO, HistogramResult.DEFAULT_SIGNIFICANT_DIGITS);
+        for (MeasurementReport report : result.getImmutableRecords().values()) {
+            aggregates.add(report);
+        }
+        return aggregates;
+    }
+
+    /**
+     * 計測結果を加える。
+     * 抽出の重みは確率的に丸めた件数として加える（件数の期待値は重みに等しい）。
+     *
+     * @param report 計測結果
+     */
+    public void add(final MeasurementReport report) {
+        histogram(report.getId()).record(
+                report.getElapsedEpochNano(), LatencyHistogram.sampledCount(report.getWeight()));
+    }
+
+    private LatencyHistogram histogram(final String id) {
+        LatencyHistogram histogram = this.histograms.get(id);
+        if (histogram == null) {
+            histogram = new LatencyHistogram(this.highestTrackableNano, this.significantDigits);
+            this.histograms.put(id, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * 2つの集計結果を併合した集計結果を生成する。
+     * 引数は変更しない。
+     *
+     * @param other 併合する集計結果。上限値と有効桁数が同じであること。
+     * @return 併合した集計結果
+     */
+    public MeasurementAggregates merge(final MeasurementAggregates other) {
+        if (other.highestTrackableNano != this.highestTrackableNano
+                || other.significantDigits != this.significantDigits) {
+            throw new IllegalArgumentException("Argument 'other' has a different layout.");
+        }
+        final MeasurementAggregates merged =
+                new MeasurementAggregates(this.highestTrackableNano, this.significantDigits);
+        merged.addAll(this);
+        merged.addAll(other);
+        return merged;
+    }
+
+    private void addAll(final MeasurementAggregates other) {
+        for (Map.Entry<String, LatencyHistogram> entry : other.histograms.entrySet()) {
+            histogram(entry.getKey()).add(entry.getValue());
+        }
+    }
+
+    /**
+     * 複数の集計結果を並列に併合する。
+     *
+     * @param aggregates 集計結果。上限値と有効桁数が全て同じであること。
+     * @return 併合した集計結果
+     */
+    public static MeasurementAggregates mergeAll(final Collection<MeasurementAggregates> aggregates) {
+        if (aggregates.isEmpty()) {
+            throw new IllegalArgumentException("Argument 'aggregates' is empty.");
+        }
+        return aggregates.parallelStream()
+                .reduce(MeasurementAggregates::merge)
+                .get();
+    }
+
+    /**
+     * 複数のファイルを並列に読み込んで併合する。
+     *
+     * @param paths ファイル
+     * @return 併合した集計結果
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public static MeasurementAggregates mergeFiles(final Collection<Path> paths) throws IOException {
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("Argument 'paths' is empty.");
+        }
+        try {
+            return paths.parallelStream()
+                    .map(path -> {
+                        try {
+                            return read(path);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    })
+                    .reduce(MeasurementAggregates::merge)
+                    .get();
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * 計測箇所のヒストグラムを返す。
+     *
+     * @param id 計測箇所識別子
+     * @return ヒストグラム。集計結果がない場合はNULL。
+     */
+    public LatencyHistogram get(final String id) {
+        return this.histograms.get(id);
+    }
+
+    /**
+     * 計測箇所識別子を返す。
+     *
+     * @return 計測箇所識別子（読み取り専用、昇順）
+     */
+    public Set<String> getIds() {
+        return Collections.unmodifiableSet(this.histograms.keySet());
+    }
+
+    /**
+     * 記録できる最大値を返す。
+     *
+     * @return 最大値（ナノ秒）
+     */
+    public long getHighestTrackableNano() {
+        return this.highestTrackableNano;
+    }
+
+    /**
+     * 有効桁数を返す。
+     *
+     * @return 有効桁数
+     */
+    public int getSignificantDigits() {
+        return this.significantDigits;
+    }
+
+    /**
+     * バイナリ形式で書き出す。
+     *
+     * @param out 出力先（閉じない）
+     * @throws IOException 出力に失敗した場合
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(MAGIC);
+        writeVarint(out, VERSION);
+        writeVarint(out, this.highestTrackableNano);
+        writeVarint(out, this.significantDigits);
+        writeVarint(out, this.histograms.size());
+        for (Map.Entry<String, LatencyHistogram> entry : this.histograms.entrySet()) {
+            final byte[] id = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, id.length);
+            out.write(id);
+
+            final LatencyHistogram histogram = entry.getValue();
+            writeVarint(out, histogram.getCount());
+            writeVarint(out, histogram.getTotalValue());
+            writeVarint(out, histogram.getMin());
+            writeVarint(out, histogram.getMax());
+            writeVarint(out, histogram.getOverflowCount());
+            int buckets = 0;
+            for (int index = 0; index < histogram.length(); index++) {
+                if (histogram.countAt(index) != 0) {
+                    buckets++;
+                }
+            }
+            writeVarint(out, buckets);
+            int previous = 0;
+            for (int index = 0; index < histogram.length(); index++) {
+                final long count = histogram.countAt(index);
+                if (count != 0) {
+                    writeVarint(out, index - previous);
+                    writeVarint(out, count);
+                    previous = index;
+                }
+            }
+        }
+    }
+
+    /**
+     * バイナリ形式のバイト列を返す。
+     *
+     * @return バイト列
+     */
+    public byte[] toBytes() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try {
+            writeTo(out);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * ファイルに書き出す。
+     *
+     * @param path 出力先
+     * @throws IOException 出力に失敗した場合
+     */
+    public void write(final Path path) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+            writeTo(out);
+        }
+    }
+
+    /**
+     * バイナリ形式を読み込む。
+     *
+     * @param in 入力元（閉じない）
+     * @return 集計結果
+     * @throws IOException 読み込みに失敗した場合、または形式が正しくない場合
+     */
+    public static MeasurementAggregates readFrom(final InputStream in) throws IOException {
+        for (byte expected : MAGIC) {
+            if (readByte(in) != expected) {
+                throw new IOException("Not a measurement aggregates stream.");
+            }
+        }
+        final long version = readVarint(in);
+        if (version != VERSION) {
+            throw new IOException("Unsupported version: " + version);
+        }
+        final long highest = readVarint(in);
+        final int digits = (int) readVarint(in);
+        final MeasurementAggregates aggregates;
+        try {
+            aggregates = new MeasurementAggregates(highest, digits);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Invalid layout.", ex);
+        }
+        final long ids = readVarint(in);
+        for (long i = 0; i < ids; i++) {
+            final long length = readVarint(in);
+            if (length < 0 || length > MAX_ID_BYTES) {
+                throw new IOException("Invalid id length.");
+            }
+            final byte[] id = new byte[(int) length];
+            readFully(in, id);
+            final LatencyHistogram histogram = aggregates.histogram(new String(id, StandardCharsets.UTF_8));
+
+            final long count = readVarint(in);
+            final long total = readVarint(in);
+            final long min = readVarint(in);
+            final long max = readVarint(in);
+            final long overflow = readVarint(in);
+            final long buckets = readVarint(in);
+            int index = 0;
+            for (long b = 0; b < buckets; b++) {
+                index += (int) readVarint(in);
+                if (index < 0 || index >= histogram.length()) {
+                    throw new IOException("Bucket index is out of range.");
+                }
+                histogram.addCountAt(index, readVarint(in));
+            }
+            histogram.addTotals(count, total, min, max, overflow);
+        }
+        return aggregates;
+    }
+
+    /**
+     * バイナリ形式のバイト列を読み込む。
+     *
+     * @param bytes バイト列
+     * @return 集計結果
+     * @throws IOException 形式が正しくない場合
+     */
+    public static MeasurementAggregates fromBytes(final byte[] bytes) throws IOException {
+        return readFrom(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * ファイルを読み込む。
+     *
+     * @param path 入力元
+     * @return 集計結果
+     * @throws IOException 読み込みに失敗した場合、または形式が正しくない場合
+     */
+    public static MeasurementAggregates read(final Path path) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            return readFrom(in);
+        }
+    }
+
+    /**
+     * 符号なし可変長整数（下位から7ビットずつ、継続ビット付き）を書き出す。
+     */
+    static void writeVarint(final OutputStream out, final long value) throws IOException {
+        long remain = value;
+        while ((remain & ~0x7FL) != 0) {
+            out.write((int) ((remain & 0x7F) | 0x80));
+            remain >>>= 7;
+        }
+        out.write((int) remain);
+    }
+
+    static long readVarint(final InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = readByte(in);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint.");
+    }
+
+    private static int readByte(final InputStream in) throws IOException {
+        final int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static void readFully(final InputStream in, final byte[] into) throws IOException {
+        int offset = 0;
+        while (offset < into.length) {
+            final int read = in.read(into, offset, into.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * 永続的な計測ログ。
+ * 計測結果と区間記録を固定長エントリとしてメモリマップしたセグメントファイルに追記する。
+ * 書き込みはマップした領域へのメモリ書き込みのみであり、1件ごとのシステムコールはない。
+ * 書き込んだ内容はOSのページキャッシュに載るため、プロセスが異常終了しても失われない。
+ * セグメントが満杯になると次のセグメントを作る。
+ * 計測箇所識別子は初出時のみ計測箇所ファイル（sites.txt）に追記し、エントリには番号のみを書く。
+ * 区間（Period.PeriodId）はスレッドを区別しないクラス名と行番号で計測箇所を割り当て、スレッドIDはエントリにのみ書く。
+ * スレッドが入れ替わっても計測箇所登録簿と計測箇所ファイルが増え続けないようにするためである。
+ * 読み取りはMeasurementLogReaderで行う。
+ * 複数のスレッドから同時に書き込める。
+ * マップした領域への書き込みの順序はJavaでは保証されないため、種類を書いた順序には頼らず、
+ * 読み取り器は検査値の合わないエントリを書き込み途中として読み飛ばす。
+ * 閉じた後、セグメントを作れない場合、または計測箇所ファイルに書けない場合の書き込みは例外にせず、捨てて件数を数える。
+ * <pre>
+ * セグメントの見出し（リトルエンディアン、HEADER_SIZEバイト）
+ *  0: int  "MLOG"
+ *  4: int  バージョン
+ *  8: int  エントリのバイト数
+ * 16: long セグメント番号
+ * 24: long 作成時の時刻（1970-01-01T00:00:00Zからのミリ秒）
+ * 32: long 作成時の計算機クロック時刻（ナノ秒）
+ * エントリ（リトルエンディアン、ENTRY_SIZEバイト）
+ *  0: int  下位8ビットは種類（0は未書き込み）、上位24ビットは他の項目の検査値（他の項目を書いた後に書く）
+ *  4: int  計測箇所番号（計測箇所ファイル）
+ *  8: long 計算機クロック時刻（ナノ秒）
+ * 16: long スレッドID
+ * 24: long 処理時間（計測結果）または非同期の区間番号（区間記録、同期の区間は0）
+ * 32: long 抽出の重み（計測結果と区間の終了、doubleのビット列。区間の開始は0）
+ * 計測箇所ファイル（UTF-8） 1行に「番号 TAB 計測箇所識別子」
+ *   区間（Period.PeriodId）の場合は計測箇所識別子を「クラス名-行番号」とし、続けて「TAB クラス名 TAB メソッド名」
+ * </pre>
+ */
+public final class MeasurementLog implements MeasurementResultCollectable, PeriodRecordSink {
+
+    /**
+     * 既定のセグメントのバイト数
+     */
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    static final int MAGIC = 0x474f4c4d;
+
+    /**
+     * 形式のバージョン。
+     * 1は32バイトのエントリ、2は抽出の重みを加えた40バイトのエントリ、3は種類に検査値を加えた形式である。
+     */
+    static final int VERSION = 3;
+
+    static final int HEADER_SIZE = 64;
+
+    static final int ENTRY_SIZE = 40;
+
+    static final int KIND_OFFSET = 0;
+
+    static final int SITE_OFFSET = 4;
+
+    static final int TIME_OFFSET = 8;
+
+    static final int THREAD_OFFSET = 16;
+
+    static final int VALUE_OFFSET = 24;
+
+    static final int EXTRA_OFFSET = 32;
+
+    /**
+     * 種類を取り出すマスク
+     */
+    static final int KIND_MASK = 0xff;
+
+    /**
+     * 計測結果
+     */
+    static final int KIND_MEASUREMENT = 1;
+
+    /**
+     * 区間の開始
+     */
+    static final int KIND_BEGIN = 2;
+
+    /**
+     * 区間の終了
+     */
+    static final int KIND_END = 3;
+
+    static final String SITES_FILE = "sites.txt";
+
+    static final String SEGMENT_PREFIX = "segment-";
+
+    static final String SEGMENT_SUFFIX = ".mlog";
+
+    /**
+     * セグメント
+     */
+    private static final class Segment {
+
+        final long index;
+
+        final MappedByteBuffer bytes;
+
+        final int capacity;
+
+        /**
+         * 次に書き込むエントリの位置
+         */
+        final AtomicInteger next = new AtomicInteger();
+
+        Segment(final long index, final MappedByteBuffer bytes, final int capacity) {
+            this.index = index;
+            this.bytes = bytes;
+            this.capacity = capacity;
+        }
+    }
+
+    private final Path directory;
+
+    private final int segmentBytes;
+
+    private final SiteRegistry registry = SiteRegistry.getInstance();
+
+    /**
+     * SiteRegistryの番号から本ログの計測箇所番号+1への対応（変更時に複製する）
+     */
+    private volatile int[] localIds = new int[64];
+
+    /**
+     * 計測箇所識別子から本ログの計測箇所番号への対応（本オブジェクトで同期する）
+     */
+    private final Map<String, Integer> keys = new HashMap<>();
+
+    private final Writer sites;
+
+    private volatile Segment current;
+
+    private volatile boolean closed = false;
+
+    /**
+     * 閉じた後、セグメントを作れずに、または計測箇所ファイルに書けずに捨てた件数
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * コンストラクタ。
+     * 64MBのセグメントに書き込む。
+     *
+     * @param directory 出力先のディレクトリ
+     * @throws IOException ファイルを作れない場合
+     */
+    public MeasurementLog(final Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * コンストラクタ。
+     * ディレクトリに既存のログがある場合は、計測箇所ファイルを引き継ぎ、次の番号のセグメントから書き込む。
+     *
+     * @param directory 出力先のディレクトリ
+     * @param segmentBytes 1セグメントのバイト数
+     * @throws IOException ファイルを作れない場合
+     */
+    public MeasurementLog(final Path directory, final int segmentBytes) throws IOException {
+        if (segmentBytes < HEADER_SIZE + ENTRY_SIZE) {
+            throw new IllegalArgumentException("Argument 'segmentBytes' is too small.");
+        }
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        final Path sitesPath = directory.resolve(SITES_FILE);
+        if (Files.exists(sitesPath)) {
+            for (Map.Entry<Integer, String[]> entry : MeasurementLogReader.readSites(sitesPath).entrySet()) {
+                this.keys.put(entry.getValue()[0], entry.getKey());
+            }
+        }
+        this.sites = Files.newBufferedWriter(sitesPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        final List<Path> segments = MeasurementLogReader.listSegments(directory);
+        final long next = segments.isEmpty() ? 0 : MeasurementLogReader.segmentIndex(segments.get(segments.size() - 1)) + 1;
+        this.current = openSegment(next);
+    }
+
+    private Segment openSegment(final long index) throws IOException {
+        final Path path = this.directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+        final MappedByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            bytes = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentBytes);
+        }
+        bytes.order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putInt(0, MAGIC);
+        bytes.putInt(4, VERSION);
+        bytes.putInt(8, ENTRY_SIZE);
+        bytes.putLong(16, index);
+        bytes.putLong(24, System.currentTimeMillis());
+        bytes.putLong(32, System.nanoTime());
+        return new Segment(index, bytes, (this.segmentBytes - HEADER_SIZE) / ENTRY_SIZE);
+    }
+
+    @Override
+    public void append(final MeasurementReport report) {
+        append(this.registry.registerKey(report.getId()), report.getElapsedEpochNano(), report.getWeight());
+    }
+
+    /**
+     * 計測箇所識別子で処理時間を記録する。
+     * 計測箇所番号はここで引く。
+     *
+     * @param id 計測箇所識別子
+     * @param elapsedNano 処理時間（ナノ秒）
+     * @param weight 抽出の重み（抽出確率の逆数）
+     */
+    @Override
+    public void append(final String id, final long elapsedNano, final double weight) {
+        append(this.registry.registerKey(id), elapsedNano, weight);
+    }
+
+    /**
+     * 計測箇所番号で処理時間を記録する。
+     * 計測結果のオブジェクトを生成しない。
+     *
+     * @param siteId 計測箇所番号（SiteRegistry）
+     * @param elapsedNano 処理時間（ナノ秒）
+     */
+    @Override
+    public void append(final int siteId, final long elapsedNano) {
+        append(siteId, elapsedNano, 1.0);
+    }
+
+    /**
+     * 計測箇所番号で抽出した処理時間を記録する。
+     * 計測結果のオブジェクトを生成しない。
+     *
+     * @param siteId 計測箇所番号（SiteRegistry）
+     * @param elapsedNano 処理時間（ナノ秒）
+     * @param weight 抽出の重み（抽出確率の逆数）
+     */
+    @Override
+    public void append(final int siteId, final long elapsedNano, final double weight) {
+        put(KIND_MEASUREMENT, localId(siteId), System.nanoTime(), Thread.currentThread().getId(),
+                elapsedNano, Double.doubleToRawLongBits(weight));
+    }
+
+    /**
+     * 区間記録をまとめて書き込む。
+     * PeriodExporterの出力先として使用する。
+     * 終了の記録は抽出の重みを書き込む。
+     *
+     * @param batch 記録
+     */
+    @Override
+    public void write(final List<PeriodRecorder.Record> batch) {
+        for (PeriodRecorder.Record record : batch) {
+            final Uniquable id = record.getId();
+            final int kind = record.isBegin() ? KIND_BEGIN : KIND_END;
+            final long extra = record.isBegin() ? 0 : Double.doubleToRawLongBits(record.getWeight());
+            if (id instanceof AsyncPeriod.Span) {
+                final AsyncPeriod.Span span = (AsyncPeriod.Span) id;
+                put(kind, localId(this.registry.registerKey(span.getSiteKey())),
+                        record.getEpochNano(), record.getThreadId(), span.getSpanId(), extra);
+            } else if (id instanceof Period.PeriodId) {
+                put(kind, localId(SlabRecordBuffer.registerPeriod((Period.PeriodId) id)),
+                        record.getEpochNano(), record.getThreadId(), 0, extra);
+            } else {
+                put(kind, localId(this.registry.register(id)),
+                        record.getEpochNano(), record.getThreadId(), 0, extra);
+            }
+        }
+    }
+
+    /**
+     * エントリを1件書き込む。
+     * 位置の確保のみを原子的に行い、確保した位置へは各スレッドが並行して書き込む。
+     */
+    private void put(
+            final int kind,
+            final int site,
+            final long time,
+            final long threadId,
+            final long value,
+            final long extra) {
+        while (site >= 0 && !this.closed) {
+            final Segment segment = this.current;
+            final int slot = segment.next.getAndIncrement();
+            if (slot < segment.capacity) {
+                final int offset = HEADER_SIZE + slot * ENTRY_SIZE;
+                final MappedByteBuffer bytes = segment.bytes;
+                bytes.putInt(offset + SITE_OFFSET, site);
+                bytes.putLong(offset + TIME_OFFSET, time);
+                bytes.putLong(offset + THREAD_OFFSET, threadId);
+                bytes.putLong(offset + VALUE_OFFSET, value);
+                bytes.putLong(offset + EXTRA_OFFSET, extra);
+                bytes.putInt(offset + KIND_OFFSET, kind | check(site, time, threadId, value, extra) << 8);
+                return;
+            }
+            if (!roll(segment)) {
+                break;
+            }
+        }
+        this.dropped.incrementAndGet();
+    }
+
+    /**
+     * エントリの種類以外の項目から24ビットの検査値を求める。
+     *
+     * @return 検査値
+     */
+    static int check(final int site, final long time, final long threadId, final long value, final long extra) {
+        long hash = site;
+        hash = hash * 0x9e3779b97f4a7c15L + time;
+        hash = hash * 0x9e3779b97f4a7c15L + threadId;
+        hash = hash * 0x9e3779b97f4a7c15L + value;
+        hash = hash * 0x9e3779b97f4a7c15L + extra;
+        hash ^= hash >>> 32;
+        hash *= 0x9e3779b97f4a7c15L;
+        return (int) (hash >>> 40);
+    }
+
+    /**
+     * 満杯のセグメントを次のセグメントに切り替える。
+     *
+     * @return 書き込みを続けられる場合は真である。閉じた後、またはセグメントを作れない場合は偽である。
+     */
+    private synchronized boolean roll(final Segment full) {
+        if (this.closed) {
+            return false;
+        }
+        if (this.current != full) {
+            return true;
+        }
+        try {
+            this.current = openSegment(full.index + 1);
+            return true;
+        } catch (IOException ex) {
+            LocalLog.getThreadLocalLogger().log(Level.WARNING, "MeasurementLog cannot open a new segment.", ex);
+            return false;
+        }
+    }
+
+    /**
+     * 閉じた後、セグメントを作れずに、または計測箇所ファイルに書けずに捨てた件数を返す。
+     *
+     * @return 件数
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * 本ログの計測箇所番号を返す。
+     * 初出の計測箇所は計測箇所ファイルに追記する。
+     *
+     * @return 計測箇所番号。計測箇所ファイルに書けない場合は-1。
+     */
+    private int localId(final int siteId) {
+        final int[] ids = this.localIds;
+        if (siteId < ids.length && ids[siteId] != 0) {
+            return ids[siteId] - 1;
+        }
+        return registerLocal(siteId);
+    }
+
+    private synchronized int registerLocal(final int siteId) {
+        int[] ids = this.localIds;
+        if (siteId < ids.length && ids[siteId] != 0) {
+            return ids[siteId] - 1;
+        }
+        final Uniquable site = this.registry.lookup(siteId);
+        final String key = site == null ? String.valueOf(siteId) : site.getKey();
+        Integer local = this.keys.get(key);
+        if (local == null) {
+            local = this.keys.size();
+            final StringBuilder line = new StringBuilder();
+            line.append(local).append('\t').append(MeasurementLogReader.escape(key));
+            final Period.PeriodId periodId = site instanceof SlabRecordBuffer.PeriodSite
+                    ? ((SlabRecordBuffer.PeriodSite) site).getTemplate()
+                    : site instanceof Period.PeriodId ? (Period.PeriodId) site : null;
+            if (periodId != null) {
+                // 解析時にクラスやメソッドで集計できるようにする
+                line.append('\t').append(MeasurementLogReader.escape(periodId.getClassName()))
+                        .append('\t').append(MeasurementLogReader.escape(periodId.getMethodName()));
+            }
+            try {
+                this.sites.write(line.append('\n').toString());
+                this.sites.flush();
+            } catch (IOException ex) {
+                // 計測しているスレッドに例外を投げず、書き込みを捨てる（次の書き込みで再び試みる）
+                LocalLog.getThreadLocalLogger().log(Level.WARNING, "MeasurementLog cannot write a site.", ex);
+                return -1;
+            }
+            this.keys.put(key, local);
+        }
+        if (siteId >= ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(ids.length * 2, siteId + 1));
+        } else {
+            ids = ids.clone();
+        }
+        ids[siteId] = local + 1;
+        this.localIds = ids;
+        return local;
+    }
+
+    /**
+     * 書き込み中のセグメントを記憶装置に書き出す。
+     * 電源断にも備える場合に呼び出す。
+     */
+    @Override
+    public void flush() {
+        this.current.bytes.force();
+    }
+
+    /**
+     * 書き込み中のセグメントを記憶装置に書き出し、計測箇所ファイルを閉じる。
+     * 閉じた後の書き込みは捨てて件数を数える（getDroppedCount()）。
+     *
+     * @throws IOException 閉じられない場合
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        flush();
+        this.sites.close();
+    }
+}
@@ -0,0 +1,689 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+/**
+ * 永続的な計測ログ（MeasurementLog）の解析。
+ * 1つ以上のログのディレクトリを読み込み、集計単位ごとの件数、スループット、百分位数を求める。
+ * 計測結果はそのまま、区間記録は開始と終了を対応付けた処理時間を集計する。
+ * 抽出した計測結果と区間は、抽出の重みを確率的に丸めた件数として集計する。
+ * 区間の計測箇所識別子はスレッドを区別しない（MeasurementLogReader.getThreadlessSiteKey()）。
+ * 計測箇所識別子の正規表現と時刻の範囲で絞り込み、計測箇所識別子、クラス、メソッド、スレッドのいずれかで集計する。
+ * セグメントごとに1つのフォーク/ジョインのタスクで並行して読み込み、
+ * 各タスクはメモリマップしたセグメントを走査してヒストグラムに集計するため、
+ * 数GBのログでもヒープに全件を載せずに解析できる。
+ * セグメントをまたぐ区間はタスクの結果を併合する際にセグメント順に対応付ける。
+ * <pre>
+ * java -jar SimpleGadgets.jar [--id REGEX] [--from INSTANT] [--to INSTANT] [--group id|class|method|thread] DIRECTORY...
+ * </pre>
+ */
+public final class MeasurementLogAnalyzer {
+
+    /**
+     * 集計単位
+     */
+    public enum Grouping {
+
+        /**
+         * 計測箇所識別子
+         */
+        ID,
+
+        /**
+         * クラス
+         */
+        CLASS,
+
+        /**
+         * メソッド
+         */
+        METHOD,
+
+        /**
+         * スレッド
+         */
+        THREAD
+    }
+
+    /**
+     * 使い方
+     */
+    static final String USAGE = "Usage: MeasurementLogAnalyzer [--id REGEX] [--from INSTANT] [--to INSTANT]"
+            + " [--group id|class|method|thread] DIRECTORY...";
+
+    /**
+     * 集計単位ごとの集計
+     */
+    public static final class Summary {
+
+        private final LatencyHistogram histogram = new LatencyHistogram(
+                HistogramResult.DEFAULT_HIGHEST_TRACKABLE_NANO, HistogramResult.DEFAULT_SIGNIFICANT_DIGITS);
+
+        private long firstEpochMilli = Long.MAX_VALUE;
+
+        private long lastEpochMilli = Long.MIN_VALUE;
+
+        Summary() {
+        }
+
+        void record(final long elapsedNano, final long count, final long epochMilli) {
+            this.histogram.record(elapsedNano, count);
+            this.firstEpochMilli = Math.min(this.firstEpochMilli, epochMilli);
+            this.lastEpochMilli = Math.max(this.lastEpochMilli, epochMilli);
+        }
+
+        void add(final Summary other) {
+            this.histogram.add(other.histogram);
+            this.firstEpochMilli = Math.min(this.firstEpochMilli, other.firstEpochMilli);
+            this.lastEpochMilli = Math.max(this.lastEpochMilli, other.lastEpochMilli);
+        }
+
+        /**
+         * 処理時間のヒストグラムを返す。
+         *
+         * @return ヒストグラム
+         */
+        public LatencyHistogram getHistogram() {
+            return this.histogram;
+        }
+
+        /**
+         * 件数を返す。
+         * 抽出した計測結果は抽出の重みで推定した件数である。
+         *
+         * @return 件数
+         */
+        public long getCount() {
+            return this.histogram.getCount();
+        }
+
+        /**
+         * 最初の記録の時刻を返す。
+         *
+         * @return 1970-01-01T00:00:00Zからのミリ秒
+         */
+        public long getFirstEpochMilli() {
+            return this.firstEpochMilli;
+        }
+
+        /**
+         * 最後の記録の時刻を返す。
+         *
+         * @return 1970-01-01T00:00:00Zからのミリ秒
+         */
+        public long getLastEpochMilli() {
+            return this.lastEpochMilli;
+        }
+
+        /**
+         * 最初から最後の記録までの1秒あたりの件数を返す。
+         *
+         * @return スループット（件/秒）。期間が1ミリ秒未満の場合はNaN。
+         */
+        public double getThroughput() {
+            final long span = this.lastEpochMilli - this.firstEpochMilli;
+            return span <= 0 ? Double.NaN : getCount() * 1000.0 / span;
+        }
+    }
+
+    /**
+     * 解析結果
+     */
+    public static final class Report {
+
+        private final Map<String, Summary> summaries;
+
+        private final long entryCount;
+
+        private final long unmatchedCount;
+
+        Report(final Map<String, Summary> summaries, final long entryCount, final long unmatchedCount) {
+            this.summaries = Collections.unmodifiableMap(summaries);
+            this.entryCount = entryCount;
+            this.unmatchedCount = unmatchedCount;
+        }
+
+        /**
+         * 集計単位ごとの集計を返す。
+         *
+         * @return 集計単位の名前順の集計（読み取り専用）
+         */
+        public Map<String, Summary> getSummaries() {
+            return this.summaries;
+        }
+
+        /**
+         * 読み込んだエントリの件数を返す。
+         *
+         * @return 件数
+         */
+        public long getEntryCount() {
+            return this.entryCount;
+        }
+
+        /**
+         * 対応する開始または終了が見つからなかった区間記録の件数を返す。
+         *
+         * @return 件数
+         */
+        public long getUnmatchedCount() {
+            return this.unmatchedCount;
+        }
+    }
+
+    /**
+     * 区間の対応付けのキー
+     */
+    private static final class PairKey {
+
+        final int siteId;
+
+        /**
+         * スレッドID（同期の区間）または-1（非同期の区間）
+         */
+        final long threadId;
+
+        /**
+         * 非同期の区間番号（同期の区間は0）
+         */
+        final long spanId;
+
+        PairKey(final int siteId, final long threadId, final long spanId) {
+            this.siteId = siteId;
+            this.threadId = threadId;
+            this.spanId = spanId;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof PairKey)) {
+                return false;
+            }
+            final PairKey other = (PairKey) obj;
+            return this.siteId == other.siteId && this.threadId == other.threadId && this.spanId == other.spanId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.siteId, this.threadId, this.spanId);
+        }
+    }
+
+    /**
+     * 対応する開始がセグメント内になかった区間の終了
+     */
+    private static final class PendingEnd {
+
+        final PairKey key;
+
+        final long timeNano;
+
+        final long epochMilli;
+
+        final double weight;
+
+        PendingEnd(final PairKey key, final long timeNano, final long epochMilli, final double weight) {
+            this.key = key;
+            this.timeNano = timeNano;
+            this.epochMilli = epochMilli;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * ログのディレクトリごとの集計単位への振り分け。
+     * 計測箇所番号ごとの結果を覚えておく。スレッドセーフではないため、タスクごとに生成する。
+     */
+    private final class Grouper {
+
+        private final MeasurementLogReader reader;
+
+        /**
+         * 計測箇所番号ごとの集計単位。絞り込みで除外する場合は空文字列。
+         */
+        private final Map<Integer, String> sites = new HashMap<>();
+
+        private final Map<Long, String> threads = new HashMap<>();
+
+        Grouper(final MeasurementLogReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * 集計単位を返す。
+         *
+         * @return 集計単位。絞り込みで除外する場合はNULL。
+         */
+        String group(final int siteId, final long threadId) {
+            final String site = this.sites.computeIfAbsent(siteId, this::resolve);
+            if (site.isEmpty()) {
+                return null;
+            }
+            if (MeasurementLogAnalyzer.this.grouping == Grouping.THREAD) {
+                return this.threads.computeIfAbsent(threadId, id -> "thread-" + id);
+            }
+            return site;
+        }
+
+        private String resolve(final int siteId) {
+            final String key = this.reader.getThreadlessSiteKey(siteId);
+            if (MeasurementLogAnalyzer.this.idPattern != null
+                    && !MeasurementLogAnalyzer.this.idPattern.matcher(key).find()) {
+                return "";
+            }
+            final String className = this.reader.getSiteClassName(siteId);
+            switch (MeasurementLogAnalyzer.this.grouping) {
+                case CLASS:
+                    if (className != null) {
+                        return className;
+                    }
+                    // StopWatchの計測箇所識別子は「クラス.メソッド」とみなす
+                    final int dot = key.lastIndexOf('.');
+                    return dot > 0 ? key.substring(0, dot) : key;
+                case METHOD:
+                    return className != null ? className + "." + this.reader.getSiteMethodName(siteId) : key;
+                default:
+                    return key;
+            }
+        }
+    }
+
+    /**
+     * 1つのセグメントの集計
+     */
+    private final class Partial {
+
+        final Grouper grouper;
+
+        final Map<String, Summary> summaries = new HashMap<>();
+
+        /**
+         * 終了待ちの区間の開始（計算機クロック時刻とスレッドIDの組）
+         */
+        final Map<PairKey, ArrayDeque<long[]>> open = new LinkedHashMap<>();
+
+        /**
+         * セグメント内で開始が見つからなかった終了（書き込み順）
+         */
+        final List<PendingEnd> pendingEnds = new ArrayList<>();
+
+        long entryCount = 0;
+
+        Partial(final Grouper grouper) {
+            this.grouper = grouper;
+        }
+
+        void measure(
+                final int siteId,
+                final long threadId,
+                final long elapsedNano,
+                final long epochMilli,
+                final double weight) {
+            if (!inRange(epochMilli)) {
+                return;
+            }
+            final String group = this.grouper.group(siteId, threadId);
+            if (group != null) {
+                this.summaries.computeIfAbsent(group, key -> new Summary())
+                        .record(elapsedNano, LatencyHistogram.sampledCount(weight), epochMilli);
+            }
+        }
+
+        void begin(final PairKey key, final long timeNano, final long threadId) {
+            this.open.computeIfAbsent(key, k -> new ArrayDeque<>()).push(new long[]{timeNano, threadId});
+        }
+
+        /**
+         * 区間の終了を対応付ける。
+         *
+         * @return 対応付けられた場合はtrue
+         */
+        boolean end(final PairKey key, final long timeNano, final long epochMilli, final double weight) {
+            final ArrayDeque<long[]> begins = this.open.get(key);
+            if (begins == null || begins.isEmpty()) {
+                return false;
+            }
+            final long[] begin = begins.pop();
+            if (begins.isEmpty()) {
+                this.open.remove(key);
+            }
+            measure(key.siteId, begin[1], timeNano - begin[0], epochMilli, weight);
+            return true;
+        }
+
+        void merge(final Partial other) {
+            for (Map.Entry<String, Summary> entry : other.summaries.entrySet()) {
+                final Summary summary = this.summaries.get(entry.getKey());
+                if (summary == null) {
+                    this.summaries.put(entry.getKey(), entry.getValue());
+                } else {
+                    summary.add(entry.getValue());
+                }
+            }
+            this.entryCount += other.entryCount;
+        }
+    }
+
+    /**
+     * 1つのセグメントを集計するタスク
+     */
+    private final class SegmentTask extends RecursiveTask<Partial> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final MeasurementLogReader reader;
+
+        private final Path path;
+
+        SegmentTask(final MeasurementLogReader reader, final Path path) {
+            this.reader = reader;
+            this.path = path;
+        }
+
+        @Override
+        protected Partial compute() {
+            final Partial partial = new Partial(new Grouper(this.reader));
+            try {
+                final MeasurementLogReader.Segment segment = this.reader.readHeader(this.path);
+                if (segment == null) {
+                    return partial;
+                }
+                partial.entryCount = this.reader.forEach(this.path, (kind, siteId, timeNano, threadId, value, extra) -> {
+                    switch (kind) {
+                        case MeasurementLog.KIND_MEASUREMENT:
+                            partial.measure(siteId, threadId, value, segment.toEpochMilli(timeNano),
+                                    MeasurementLogReader.weightOf(extra));
+                            break;
+                        case MeasurementLog.KIND_BEGIN:
+                            partial.begin(pairKey(siteId, threadId, value), timeNano, threadId);
+                            break;
+                        case MeasurementLog.KIND_END:
+                            final PairKey key = pairKey(siteId, threadId, value);
+                            final long epochMilli = segment.toEpochMilli(timeNano);
+                            final double weight = MeasurementLogReader.weightOf(extra);
+                            if (!partial.end(key, timeNano, epochMilli, weight)) {
+                                partial.pendingEnds.add(new PendingEnd(key, timeNano, epochMilli, weight));
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                });
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return partial;
+        }
+    }
+
+    /**
+     * 全てのセグメントを並行して集計し、セグメント順に併合するタスク
+     */
+    private final class AnalyzeTask extends RecursiveTask<Report> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<MeasurementLogReader> readers;
+
+        AnalyzeTask(final List<MeasurementLogReader> readers) {
+            this.readers = readers;
+        }
+
+        @Override
+        protected Report compute() {
+            final List<List<SegmentTask>> tasks = new ArrayList<>();
+            final List<SegmentTask> all = new ArrayList<>();
+            for (MeasurementLogReader reader : this.readers) {
+                final List<SegmentTask> perLog = new ArrayList<>();
+                for (Path path : reader.getSegments()) {
+                    perLog.add(new SegmentTask(reader, path));
+                }
+                tasks.add(perLog);
+                all.addAll(perLog);
+            }
+            invokeAll(all);
+
+            final Map<String, Summary> summaries = new TreeMap<>();
+            long entryCount = 0;
+            long unmatchedCount = 0;
+            for (int i = 0; i < this.readers.size(); i++) {
+                // セグメントをまたぐ区間は、前のセグメントまでの終了待ちの開始と対応付ける
+                final Partial carried = new Partial(new Grouper(this.readers.get(i)));
+                for (SegmentTask task : tasks.get(i)) {
+                    final Partial partial = task.join();
+                    for (PendingEnd end : partial.pendingEnds) {
+                        if (!carried.end(end.key, end.timeNano, end.epochMilli, end.weight)) {
+                            unmatchedCount++;
+                        }
+                    }
+                    for (Map.Entry<PairKey, ArrayDeque<long[]>> entry : partial.open.entrySet()) {
+                        final ArrayDeque<long[]> begins = carried.open.computeIfAbsent(entry.getKey(),
+                                key -> new ArrayDeque<>());
+                        // 古い開始から積む
+                        entry.getValue().descendingIterator().forEachRemaining(begins::push);
+                    }
+                    carried.merge(partial);
+                }
+                for (ArrayDeque<long[]> begins : carried.open.values()) {
+                    unmatchedCount += begins.size();
+                }
+                for (Map.Entry<String, Summary> entry : carried.summaries.entrySet()) {
+                    final Summary summary = summaries.get(entry.getKey());
+                    if (summary == null) {
+                        summaries.put(entry.getKey(), entry.getValue());
+                    } else {
+                        summary.add(entry.getValue());
+                    }
+                }
+                entryCount += carried.entryCount;
+            }
+            return new Report(summaries, entryCount, unmatchedCount);
+        }
+    }
+
+    private final Pattern idPattern;
+
+    private final long fromEpochMilli;
+
+    private final long toEpochMilli;
+
+    private final Grouping grouping;
+
+    /**
+     * コンストラクタ。
+     * 全ての記録を計測箇所識別子ごとに集計する。
+     */
+    public MeasurementLogAnalyzer() {
+        this(null, Long.MIN_VALUE, Long.MAX_VALUE, Grouping.ID);
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param idPattern 計測箇所識別子の正規表現（一部に一致すれば対象とする）。NULLの場合は全て対象とする。
+     * @param fromEpochMilli 対象とする時刻の下限（この時刻を含む、1970-01-01T00:00:00Zからのミリ秒）
+     * @param toEpochMilli 対象とする時刻の上限（この時刻を含まない、1970-01-01T00:00:00Zからのミリ秒）
+     * @param grouping 集計単位
+     */
+    public MeasurementLogAnalyzer(
+            final Pattern idPattern,
+            final long fromEpochMilli,
+            final long toEpochMilli,
+            final Grouping grouping) {
+        if (fromEpochMilli > toEpochMilli) {
+            throw new IllegalArgumentException("Argument 'fromEpochMilli' is out of range.");
+        }
+        if (grouping == null) {
+            throw new IllegalArgumentException("Argument 'grouping' is null.");
+        }
+        this.idPattern = idPattern;
+        this.fromEpochMilli = fromEpochMilli;
+        this.toEpochMilli = toEpochMilli;
+        this.grouping = grouping;
+    }
+
+    private boolean inRange(final long epochMilli) {
+        return epochMilli >= this.fromEpochMilli && epochMilli < this.toEpochMilli;
+    }
+
+    private static PairKey pairKey(final int siteId, final long threadId, final long spanId) {
+        // 非同期の区間は開始と終了のスレッドが異なりうる
+        return spanId == 0 ? new PairKey(siteId, threadId, 0) : new PairKey(siteId, -1, spanId);
+    }
+
+    /**
+     * ログを解析する。
+     * 区間記録の時刻の絞り込みは終了の時刻で行う。
+     *
+     * @param directories ログのディレクトリ
+     * @return 解析結果
+     * @throws IOException 読み取りに失敗した場合、または形式が異なる場合
+     */
+    public Report analyze(final List<Path> directories) throws IOException {
+        if (directories == null) {
+            throw new IllegalArgumentException("Argument 'directories' is null.");
+        }
+        final List<MeasurementLogReader> readers = new ArrayList<>();
+        for (Path directory : directories) {
+            readers.add(new MeasurementLogReader(directory));
+        }
+        try {
+            return ForkJoinPool.commonPool().invoke(new AnalyzeTask(readers));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * 解析結果を表形式で出力する。
+     * 処理時間の単位はナノ秒である。
+     *
+     * @param report 解析結果
+     * @param out 出力先
+     */
+    public static void print(final Report report, final PrintStream out) {
+        int width = "group".length();
+        for (String group : report.getSummaries().keySet()) {
+            width = Math.max(width, group.length());
+        }
+        final String header = "%-" + width + "s %10s %12s %12s %12s %12s %12s %12s %12s%n";
+        final String row = "%-" + width + "s %10d %12s %12.0f %12d %12d %12d %12d %12d%n";
+        out.printf(Locale.ROOT, header, "group", "count", "rate/s", "mean", "p50", "p90", "p99", "p99.9", "max");
+        for (Map.Entry<String, Summary> entry : report.getSummaries().entrySet()) {
+            final Summary summary = entry.getValue();
+            final LatencyHistogram histogram = summary.getHistogram();
+            final double throughput = summary.getThroughput();
+            out.printf(Locale.ROOT, row, entry.getKey(), summary.getCount(),
+                    Double.isNaN(throughput) ? "-" : String.format(Locale.ROOT, "%.1f", throughput),
+                    histogram.getMean(), histogram.getP50(), histogram.getP90(), histogram.getP99(),
+                    histogram.getP999(), histogram.getMax());
+        }
+        out.printf(Locale.ROOT, "entries: %d, unmatched periods: %d%n",
+                report.getEntryCount(), report.getUnmatchedCount());
+    }
+
+    /**
+     * コマンドラインを解釈して解析し、結果を出力する。
+     *
+     * @param args 引数
+     * @param out 結果の出力先
+     * @param err エラーの出力先
+     * @return 終了コード（0は成功、1は読み取りの失敗、2は引数の誤り）
+     */
+    static int run(final String[] args, final PrintStream out, final PrintStream err) {
+        Pattern idPattern = null;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        Grouping grouping = Grouping.ID;
+        final List<Path> directories = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                switch (arg) {
+                    case "--id":
+                        idPattern = Pattern.compile(value(args, ++i));
+                        break;
+                    case "--from":
+                        from = Instant.parse(value(args, ++i)).toEpochMilli();
+                        break;
+                    case "--to":
+                        to = Instant.parse(value(args, ++i)).toEpochMilli();
+                        break;
+                    case "--group":
+                        grouping = Grouping.valueOf(value(args, ++i).toUpperCase(Locale.ROOT));
+                        break;
+                    case "--help":
+                        out.println(USAGE);
+                        return 0;
+                    default:
+                        if (arg.startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option: " + arg);
+                        }
+                        directories.add(Paths.get(arg));
+                }
+            }
+            if (directories.isEmpty()) {
+                throw new IllegalArgumentException("No log directory.");
+            }
+            if (from > to) {
+                throw new IllegalArgumentException("--from is after --to.");
+            }
+        } catch (IllegalArgumentException | DateTimeParseException ex) {
+            err.println(ex.getMessage());
+            err.println(USAGE);
+            return 2;
+        }
+
+        try {
+            print(new MeasurementLogAnalyzer(idPattern, from, to, grouping).analyze(directories), out);
+        } catch (IOException ex) {
+            err.println("Cannot read the log: " + ex.getMessage());
+            return 1;
+        }
+        return 0;
+    }
+
+    private static String value(final String[] args, final int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1] + ".");
+        }
+        return args[index];
+    }
+
+    /**
+     * コマンドラインから解析する。
+     *
+     * @param args 引数
+     */
+    public static void main(final String[] args) {
+        final int status = run(args, System.out, System.err);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * 永続的な計測ログ（MeasurementLog）の読み取り器。
+ * セグメントを読み取り専用でメモリマップし、エントリを複製せずに先頭から走査する。
+ * 種類が0のエントリ（未書き込みの位置）と検査値の合わないエントリ（書き込み途中の位置）は読み飛ばす。
+ * 計測結果は任意の処理時間記録に、区間記録は開始と終了の記録として再生できる。
+ */
+public final class MeasurementLogReader {
+
+    /**
+     * エントリの処理
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+
+        /**
+         * エントリを1件受け取る。
+         *
+         * @param kind 種類（1は計測結果、2は区間の開始、3は区間の終了）
+         * @param siteId 計測箇所番号（getSiteKey()で計測箇所識別子に変換する）
+         * @param timeNano 計算機クロック時刻（ナノ秒）
+         * @param threadId スレッドID
+         * @param value 処理時間（計測結果）または非同期の区間番号（区間記録、同期の区間は0）
+         * @param extra 抽出の重みのビット列（計測結果）
+         */
+        void accept(int kind, int siteId, long timeNano, long threadId, long value, long extra);
+    }
+
+    /**
+     * セグメントの見出し
+     */
+    public static final class Segment {
+
+        private final Path path;
+
+        private final long index;
+
+        private final long originEpochMilli;
+
+        private final long originNano;
+
+        Segment(final Path path, final long index, final long originEpochMilli, final long originNano) {
+            this.path = path;
+            this.index = index;
+            this.originEpochMilli = originEpochMilli;
+            this.originNano = originNano;
+        }
+
+        /**
+         * セグメントファイルを返す。
+         *
+         * @return セグメントファイル
+         */
+        public Path getPath() {
+            return this.path;
+        }
+
+        /**
+         * セグメント番号を返す。
+         *
+         * @return セグメント番号
+         */
+        public long getIndex() {
+            return this.index;
+        }
+
+        /**
+         * 作成時の時刻を返す。
+         *
+         * @return 1970-01-01T00:00:00Zからのミリ秒
+         */
+        public long getOriginEpochMilli() {
+            return this.originEpochMilli;
+        }
+
+        /**
+         * 作成時の計算機クロック時刻を返す。
+         *
+         * @return 計算機クロック時刻（ナノ秒）
+         */
+        public long getOriginNano() {
+            return this.originNano;
+        }
+
+        /**
+         * エントリの計算機クロック時刻を時刻に換算する。
+         *
+         * @param timeNano 計算機クロック時刻（ナノ秒）
+         * @return 1970-01-01T00:00:00Zからのミリ秒
+         */
+        public long toEpochMilli(final long timeNano) {
+            return this.originEpochMilli + Math.floorDiv(timeNano - this.originNano, 1000000L);
+        }
+    }
+
+    /**
+     * 記録から復元した計測箇所識別子
+     */
+    private static final class LoggedId implements Uniquable {
+
+        private final String key;
+
+        LoggedId(final String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String getKey() {
+            return this.key;
+        }
+    }
+
+    private final List<Path> segments;
+
+    /**
+     * 計測箇所番号ごとの計測箇所識別子、クラス名、メソッド名
+     */
+    private final Map<Integer, String[]> sites;
+
+    /**
+     * 計測箇所番号ごとの識別子（同期の区間の再生で共有する）
+     */
+    private final Map<Integer, Uniquable> ids = new HashMap<>();
+
+    /**
+     * 計測箇所番号ごとのスレッドを区別しない識別子（同期の区間の再生で共有する）
+     */
+    private final Map<Integer, Uniquable> threadlessIds = new HashMap<>();
+
+    /**
+     * コンストラクタ。
+     *
+     * @param directory ログのディレクトリ
+     * @throws IOException 読み取りに失敗した場合
+     */
+    public MeasurementLogReader(final Path directory) throws IOException {
+        this.segments = listSegments(directory);
+        final Path sitesPath = directory.resolve(MeasurementLog.SITES_FILE);
+        this.sites = Files.exists(sitesPath) ? readSites(sitesPath) : Collections.emptyMap();
+    }
+
+    /**
+     * セグメントファイルを番号順に返す。
+     */
+    static List<Path> listSegments(final Path directory) throws IOException {
+        final List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                MeasurementLog.SEGMENT_PREFIX + "*" + MeasurementLog.SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * セグメントファイルの番号を返す。
+     */
+    static long segmentIndex(final Path segment) {
+        final String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(MeasurementLog.SEGMENT_PREFIX.length(),
+                name.length() - MeasurementLog.SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * 計測箇所ファイルを読み込む。
+     * 値は計測箇所識別子、クラス名、メソッド名の配列であり、クラス名とメソッド名は記録がない場合NULLとなる。
+     * 末尾の書き込み途中の行は無視する。
+     */
+    static Map<Integer, String[]> readSites(final Path path) throws IOException {
+        final Map<Integer, String[]> sites = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    continue;
+                }
+                final String[] columns = line.substring(tab + 1).split("\t", -1);
+                final String[] site = new String[3];
+                site[0] = unescape(columns[0]);
+                if (columns.length >= 3) {
+                    site[1] = unescape(columns[1]);
+                    site[2] = unescape(columns[2]);
+                }
+                try {
+                    sites.put(Integer.parseInt(line.substring(0, tab)), site);
+                } catch (NumberFormatException ex) {
+                    // 書き込み途中の行
+                }
+            }
+        }
+        return sites;
+    }
+
+    /**
+     * 計測箇所識別子の改行、タブ、逆斜線を逃がす。
+     */
+    static String escape(final String key) {
+        final StringBuilder escaped = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); i++) {
+            final char c = key.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    static String unescape(final String escaped) {
+        final StringBuilder key = new StringBuilder(escaped.length());
+        for (int i = 0; i < escaped.length(); i++) {
+            final char c = escaped.charAt(i);
+            if (c != '\\' || i + 1 == escaped.length()) {
+                key.append(c);
+                continue;
+            }
+            final char next = escaped.charAt(++i);
+            switch (next) {
+                case 't':
+                    key.append('\t');
+                    break;
+                case 'n':
+                    key.append('\n');
+                    break;
+                case 'r':
+                    key.append('\r');
+                    break;
+                default:
+                    key.append(next);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * 計測箇所識別子を返す。
+     *
+     * @param siteId 計測箇所番号
+     * @return 計測箇所識別子。不明な場合は番号の文字列。
+     */
+    public String getSiteKey(final int siteId) {
+        final String[] site = this.sites.get(siteId);
+        return site == null ? String.valueOf(siteId) : site[0];
+    }
+
+    /**
+     * スレッドを区別しない計測箇所識別子を返す。
+     * 区間（Period.PeriodId）の計測箇所識別子は以前の形式ではスレッドIDを含むため、
+     * スレッドIDを除いたクラス名と行番号からなる識別子（Period.PeriodId.getSiteKey()）を返す。
+     * 現在の形式は初めからスレッドIDを含まないため、そのまま返す。
+     * 実行をまたいで計測箇所を突き合わせる場合に使用する。
+     *
+     * @param siteId 計測箇所番号
+     * @return 計測箇所識別子。不明な場合は番号の文字列。
+     */
+    public String getThreadlessSiteKey(final int siteId) {
+        final String[] site = this.sites.get(siteId);
+        if (site == null) {
+            return String.valueOf(siteId);
+        }
+        final int separator = site[0].lastIndexOf('-');
+        if (site[1] == null || separator <= site[0].indexOf('-')) {
+            // 区間以外、またはスレッドIDを含まない「クラス名-行番号」の形式
+            return site[0];
+        }
+        return site[0].substring(0, separator);
+    }
+
+    /**
+     * 区間（Period.PeriodId）の計測箇所のクラス名を返す。
+     *
+     * @param siteId 計測箇所番号
+     * @return クラス名。記録がない場合はNULL。
+     */
+    public String getSiteClassName(final int siteId) {
+        final String[] site = this.sites.get(siteId);
+        return site == null ? null : site[1];
+    }
+
+    /**
+     * 区間（Period.PeriodId）の計測箇所のメソッド名を返す。
+     *
+     * @param siteId 計測箇所番号
+     * @return メソッド名。記録がない場合はNULL。
+     */
+    public String getSiteMethodName(final int siteId) {
+        final String[] site = this.sites.get(siteId);
+        return site == null ? null : site[2];
+    }
+
+    /**
+     * セグメントファイルを返す。
+     *
+     * @return セグメントファイル（番号順、読み取り専用）
+     */
+    public List<Path> getSegments() {
+        return Collections.unmodifiableList(this.segments);
+    }
+
+    /**
+     * セグメントの見出しを読み込む。
+     *
+     * @param segment セグメントファイル
+     * @return 見出し。見出しの書き込み前のファイルの場合はNULL。
+     * @throws IOException 読み取りに失敗した場合、または形式が異なる場合
+     */
+    public Segment readHeader(final Path segment) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(MeasurementLog.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    return null;
+                }
+            }
+        }
+        checkHeader(header, segment);
+        return new Segment(segment, header.getLong(16), header.getLong(24), header.getLong(32));
+    }
+
+    private static void checkHeader(final ByteBuffer bytes, final Path segment) throws IOException {
+        if (bytes.getInt(0) != MeasurementLog.MAGIC) {
+            throw new IOException("Bad magic number: " + segment);
+        }
+        if (bytes.getInt(4) != MeasurementLog.VERSION || bytes.getInt(8) != MeasurementLog.ENTRY_SIZE) {
+            throw new IOException("Unsupported version: " + segment);
+        }
+    }
+
+    /**
+     * 全てのエントリを書き込み順に処理する。
+     * スレッド間では時刻順に並ばない。
+     *
+     * @param action エントリを受け取る処理
+     * @return 処理したエントリの件数
+     * @throws IOException 読み取りに失敗した場合、または形式が異なる場合
+     */
+    public long forEach(final EntryConsumer action) throws IOException {
+        long count = 0;
+        for (Path segment : this.segments) {
+            count += forEach(segment, action);
+        }
+        return count;
+    }
+
+    /**
+     * 1つのセグメントのエントリを書き込み順に処理する。
+     * セグメントをメモリマップして走査するため、ヒープの大きさによらず処理できる。
+     * 異なるセグメントは複数のスレッドから並行して処理できる。
+     *
+     * @param segment セグメントファイル
+     * @param action エントリを受け取る処理
+     * @return 処理したエントリの件数
+     * @throws IOException 読み取りに失敗した場合、または形式が異なる場合
+     */
+    public long forEach(final Path segment, final EntryConsumer action) throws IOException {
+        final MappedByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            if (channel.size() < MeasurementLog.HEADER_SIZE) {
+                return 0;
+            }
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        bytes.order(ByteOrder.LITTLE_ENDIAN);
+        checkHeader(bytes, segment);
+        long count = 0;
+        for (int offset = MeasurementLog.HEADER_SIZE;
+                offset + MeasurementLog.ENTRY_SIZE <= bytes.limit();
+                offset += MeasurementLog.ENTRY_SIZE) {
+            final int word = bytes.getInt(offset + MeasurementLog.KIND_OFFSET);
+            if (word == 0) {
+                // 未書き込みの位置
+                continue;
+            }
+            final int site = bytes.getInt(offset + MeasurementLog.SITE_OFFSET);
+            final long time = bytes.getLong(offset + MeasurementLog.TIME_OFFSET);
+            final long threadId = bytes.getLong(offset + MeasurementLog.THREAD_OFFSET);
+            final long value = bytes.getLong(offset + MeasurementLog.VALUE_OFFSET);
+            final long extra = bytes.getLong(offset + MeasurementLog.EXTRA_OFFSET);
+            if (MeasurementLog.check(site, time, threadId, value, extra) != word >>> 8) {
+                // 書き込み途中、または書き込み途中で異常終了した位置
+                continue;
+            }
+            action.accept(word & MeasurementLog.KIND_MASK, site, time, threadId, value, extra);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * エントリの付加情報から抽出の重みを返す。
+     * 重みのないエントリ（区間の開始、旧形式の区間の終了）は1とする。
+     *
+     * @param extra 付加情報
+     * @return 抽出の重み
+     */
+    static double weightOf(final long extra) {
+        return extra == 0 ? 1.0 : Double.longBitsToDouble(extra);
+    }
+
+    /**
+     * 計測結果を処理時間記録に再生する。
+     *
+     * @param collector 処理時間記録
+     * @return 再生した計測結果の件数
+     * @throws IOException 読み取りに失敗した場合
+     */
+    public long replay(final MeasurementResultCollectable collector) throws IOException {
+        final long[] count = {0};
+        forEach((kind, siteId, timeNano, threadId, value, extra) -> {
+            if (kind == MeasurementLog.KIND_MEASUREMENT) {
+                collector.append(new MeasurementReport(getSiteKey(siteId), value, Double.longBitsToDouble(extra)));
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * 区間記録を開始と終了の記録として再生する。
+     * PeriodPairingに渡すと処理時間に変換できる。
+     * 非同期の区間は区間番号ごとのAsyncPeriod.Spanとして再生するため、開始と終了のスレッドが異なっても対応付けられる。
+     * 親の区間番号は記録しないため0となる。
+     * 区間の計測箇所識別子は計測箇所ファイルの通りであり、現在の形式ではスレッドIDを含まない（スレッドIDは記録にある）。
+     *
+     * @param action 記録を受け取る処理
+     * @return 再生した記録の件数
+     * @throws IOException 読み取りに失敗した場合
+     */
+    public long replayRecords(final Consumer<? super PeriodRecorder.Record> action) throws IOException {
+        return replayRecords(action, this.ids, this::getSiteKey);
+    }
+
+    /**
+     * 区間記録をスレッドを区別しない計測箇所識別子（getThreadlessSiteKey()）で再生する。
+     * 実行ごとにスレッドIDが変わっても同じ計測箇所として集計できる。
+     * 開始と終了はPeriodPairingがスレッドごとに対応付ける。
+     *
+     * @param action 記録を受け取る処理
+     * @return 再生した記録の件数
+     * @throws IOException 読み取りに失敗した場合
+     */
+    public long replaySiteRecords(final Consumer<? super PeriodRecorder.Record> action) throws IOException {
+        return replayRecords(action, this.threadlessIds, this::getThreadlessSiteKey);
+    }
+
+    private long replayRecords(
+            final Consumer<? super PeriodRecorder.Record> action,
+            final Map<Integer, Uniquable> cache,
+            final IntFunction<String> keyOf) throws IOException {
+        final long[] count = {0};
+        forEach((kind, siteId, timeNano, threadId, value, extra) -> {
+            if (kind == MeasurementLog.KIND_BEGIN || kind == MeasurementLog.KIND_END) {
+                final Uniquable id = value == 0
+                        ? cache.computeIfAbsent(siteId, key -> new LoggedId(keyOf.apply(key)))
+                        : new AsyncPeriod.Span(getSiteKey(siteId), value, 0);
+                action.accept(new PeriodRecorder.Record(
+                        id, kind == MeasurementLog.KIND_BEGIN, timeNano, threadId, -1, weightOf(extra)));
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+}
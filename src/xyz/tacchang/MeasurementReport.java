@@ -21,6 +21,12 @@ public final class MeasurementReport {
      */
     private long elapsedEpochNano;
     
+    /**
+     * 抽出の重み（抽出確率の逆数）。
+     * 抽出しない場合は1である。
+     */
+    private double weight;
+    
     /**
      * コンストラクタ。
      * 
@@ -28,11 +34,23 @@ public final class MeasurementReport {
      * @param elapsedEpochNano 処理時間 
      */
     public MeasurementReport(final String id, final long elapsedEpochNano) {
+        this(id, elapsedEpochNano, 1.0);
+    }
+    
+    /**
+     * コンストラクタ。
+     * 
+     * @param id 計測箇所識別子
+     * @param elapsedEpochNano 処理時間 
+     * @param weight 抽出の重み（抽出確率の逆数）
+     */
+    public MeasurementReport(final String id, final long elapsedEpochNano, final double weight) {
         if (id.isEmpty()) {
             throw new IllegalArgumentException("Argument 'id' is not allowed to be empty.");
         }
         this.id = id;
         this.elapsedEpochNano = elapsedEpochNano;
+        this.weight = weight;
     }
     
     /**
@@ -42,6 +60,7 @@ public final class MeasurementReport {
     public MeasurementReport(final MeasurementReport rhs) {
         this.id = rhs.id;
         this.elapsedEpochNano = rhs.elapsedEpochNano;
+        this.weight = rhs.weight;
     }
     
     /**
@@ -61,4 +80,14 @@ public final class MeasurementReport {
     public long getElapsedEpochNano() {
         return this.elapsedEpochNano;
     }
+    
+    /**
+     * 抽出の重みを返す。
+     * 1件の計測結果が何件分の計測を代表するかを表す。
+     * 
+     * @return 抽出の重み
+     */
+    public double getWeight() {
+        return this.weight;
+    }
 }
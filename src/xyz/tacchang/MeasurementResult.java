@@ -57,4 +57,40 @@ public class MeasurementResult implements MeasurementResultCollectable {
     public Map<LocalDateTime, MeasurementReport> getImmutableRecords() {
         return Collections.unmodifiableMap(this.records);
     }
+    
+    /**
+     * 計測箇所の推定件数を返す。
+     * 抽出された計測結果の件数を抽出の重みで拡大した値である。
+     * 
+     * @param id 計測箇所識別子
+     * @return 推定件数
+     */
+    public double getEstimatedCount(final String id) {
+        double count = 0.0;
+        for (MeasurementReport report : this.records.values()) {
+            if (report.getId().equals(id)) {
+                count += report.getWeight();
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * 計測箇所の処理時間の推定平均を返す。
+     * 抽出の重みによる加重平均である。
+     * 
+     * @param id 計測箇所識別子
+     * @return 処理時間の推定平均（ナノ秒）。計測結果がない場合はNaN。
+     */
+    public double getEstimatedMeanNano(final String id) {
+        double count = 0.0;
+        double total = 0.0;
+        for (MeasurementReport report : this.records.values()) {
+            if (report.getId().equals(id)) {
+                count += report.getWeight();
+                total += report.getWeight() * report.getElapsedEpochNano();
+            }
+        }
+        return count == 0.0 ? Double.NaN : total / count;
+    }
 }
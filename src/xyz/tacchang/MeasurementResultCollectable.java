@@ -16,4 +16,58 @@ public interface MeasurementResultCollectable {
      * @param report 処理時間(計測結果) 
      */
     void append(final MeasurementReport report);
+
+    /**
+     * 計測箇所識別子で抽出した処理時間を記録に加える。
+     * 計測箇所番号を持たないStopWatchが使用する。
+     * 既定では計測結果のオブジェクトを生成し、append(MeasurementReport)に渡す。
+     * 計測箇所番号で記録する記録では、再定義して計測箇所番号を引く（SiteRegistry.registerKey()）。
+     * 
+     * @param id 計測箇所識別子
+     * @param elapsedNano 処理時間（ナノ秒）
+     * @param weight 抽出の重み（抽出確率の逆数）
+     */
+    default void append(final String id, final long elapsedNano, final double weight) {
+        append(new MeasurementReport(id, elapsedNano, weight));
+    }
+
+    /**
+     * 計測箇所番号で処理時間を記録に加える。
+     * 計測結果のオブジェクトを生成しない記録では再定義する。
+     * 
+     * @param siteId 計測箇所番号（SiteRegistry）
+     * @param elapsedNano 処理時間（ナノ秒）
+     */
+    default void append(final int siteId, final long elapsedNano) {
+        append(siteId, elapsedNano, 1.0);
+    }
+
+    /**
+     * 計測箇所番号で抽出した処理時間を記録に加える。
+     * 既定では計測箇所識別子を引いて計測結果のオブジェクトを生成し、append(MeasurementReport)に渡す。
+     * 
+     * @param siteId 計測箇所番号（SiteRegistry）
+     * @param elapsedNano 処理時間（ナノ秒）
+     * @param weight 抽出の重み（抽出確率の逆数）
+     */
+    default void append(final int siteId, final long elapsedNano, final double weight) {
+        final Uniquable site = SiteRegistry.getInstance().lookup(siteId);
+        append(new MeasurementReport(site == null ? String.valueOf(siteId) : site.getKey(), elapsedNano, weight));
+    }
+
+    /**
+     * 計測箇所番号で抽出した処理時間をまとめて記録に加える。
+     * 同じ抽出の重みの一連の計測結果（StopWatchのラップと全体など）を1回で渡す。
+     * 既定では1件ずつappend(int, long, double)に渡す。
+     * 
+     * @param siteIds 計測箇所番号（SiteRegistry）
+     * @param elapsedNanos 処理時間（ナノ秒）
+     * @param length 件数（配列の先頭から）
+     * @param weight 抽出の重み（抽出確率の逆数）
+     */
+    default void appendAll(final int[] siteIds, final long[] elapsedNanos, final int length, final double weight) {
+        for (int i = 0; i < length; i++) {
+            append(siteIds[i], elapsedNanos[i], weight);
+        }
+    }
 }
@@ -0,0 +1,270 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 外れ値の処理時間記録。
+ * 計測箇所識別子ごとに、処理時間の長い上位K件を、記録時刻、スレッド、文脈の文字列とともに保持する。
+ * ヒストグラムで分かる遅い百分位数が、どの呼び出しによるものかを調べるために使用する。
+ * 上位K件が揃った後は、K番目の処理時間（閾値）との比較1回でほとんどの計測結果を捨てるため、
+ * 記録時にロックを取るのは閾値を超えた場合のみである。
+ */
+public class OutlierResult implements MeasurementResultCollectable {
+
+    /**
+     * 既定の保持件数
+     */
+    public static final int DEFAULT_SIZE = 10;
+
+    /**
+     * 外れ値の計測結果
+     */
+    public static final class Outlier {
+
+        private final String id;
+
+        private final long elapsedNano;
+
+        private final long epochMilli;
+
+        private final long threadId;
+
+        private final String threadName;
+
+        private final String context;
+
+        Outlier(
+                final String id,
+                final long elapsedNano,
+                final long epochMilli,
+                final Thread thread,
+                final String context) {
+            this.id = id;
+            this.elapsedNano = elapsedNano;
+            this.epochMilli = epochMilli;
+            this.threadId = thread.getId();
+            this.threadName = thread.getName();
+            this.context = context;
+        }
+
+        /**
+         * 計測箇所識別子を返す。
+         *
+         * @return 計測箇所識別子
+         */
+        public String getId() {
+            return this.id;
+        }
+
+        /**
+         * 処理時間を返す。
+         *
+         * @return 処理時間（ナノ秒）
+         */
+        public long getElapsedNano() {
+            return this.elapsedNano;
+        }
+
+        /**
+         * 記録時の時刻を返す。
+         *
+         * @return 1970-01-01T00:00:00Zからのミリ秒
+         */
+        public long getEpochMilli() {
+            return this.epochMilli;
+        }
+
+        /**
+         * 記録したスレッドの識別子を返す。
+         *
+         * @return スレッド識別子
+         */
+        public long getThreadId() {
+            return this.threadId;
+        }
+
+        /**
+         * 記録したスレッドの名前を返す。
+         *
+         * @return スレッド名
+         */
+        public String getThreadName() {
+            return this.threadName;
+        }
+
+        /**
+         * 文脈の文字列を返す。
+         *
+         * @return 文脈。指定がない場合はNULL。
+         */
+        public String getContext() {
+            return this.context;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("{id=%s,elapsed=%d,epochMilli=%d,thread=%s,context=%s}",
+                    this.id, this.elapsedNano, this.epochMilli, this.threadName, this.context);
+        }
+    }
+
+    /**
+     * 1計測箇所分の上位K件
+     */
+    private final class Tracker {
+
+        /**
+         * 上位K件のK番目の処理時間。K件揃うまでは全ての計測結果を受け入れる。
+         */
+        volatile long threshold = Long.MIN_VALUE;
+
+        /**
+         * 処理時間の短い順のヒープ（本オブジェクトで同期する）
+         */
+        final PriorityQueue<Outlier> heap = new PriorityQueue<>(size + 1,
+                (a, b) -> Long.compare(a.elapsedNano, b.elapsedNano));
+
+        synchronized void offer(final String id, final long elapsedNano, final Supplier<String> context) {
+            if (elapsedNano <= this.threshold) {
+                return;
+            }
+            this.heap.add(new Outlier(id, elapsedNano, System.currentTimeMillis(),
+                    Thread.currentThread(), context == null ? null : context.get()));
+            if (this.heap.size() > size) {
+                this.heap.poll();
+            }
+            if (this.heap.size() == size) {
+                this.threshold = this.heap.peek().elapsedNano;
+            }
+        }
+
+        synchronized List<Outlier> snapshot() {
+            final List<Outlier> outliers = new ArrayList<>(this.heap);
+            outliers.sort((a, b) -> Long.compare(b.elapsedNano, a.elapsedNano));
+            return outliers;
+        }
+    }
+
+    private final int size;
+
+    private final Map<String, Tracker> trackers = new ConcurrentHashMap<>();
+
+    /**
+     * コンストラクタ。
+     * 計測箇所ごとに上位10件を保持する。
+     */
+    public OutlierResult() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param size 計測箇所ごとの保持件数
+     */
+    public OutlierResult(final int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Argument 'size' must be positive.");
+        }
+        this.size = size;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 非同期の区間の中で記録した場合は、区間の識別子を文脈とする。
+     */
+    @Override
+    public void append(final MeasurementReport report) {
+        append(report.getId(), report.getElapsedEpochNano(), OutlierResult::currentSpanKey);
+    }
+
+    private static String currentSpanKey() {
+        final AsyncPeriod.Span span = PeriodContext.current();
+        return span == null ? null : span.getKey();
+    }
+
+    /**
+     * 文脈の文字列とともに処理時間を記録する。
+     * 文脈は上位K件に入る場合のみ取得するため、文字列の生成に手間がかかってもよい。
+     *
+     * @param id 計測箇所識別子
+     * @param elapsedNano 処理時間（ナノ秒）
+     * @param context 文脈の文字列の取得方法。NULL許容。
+     */
+    public void append(final String id, final long elapsedNano, final Supplier<String> context) {
+        final Tracker tracker = tracker(id);
+        if (elapsedNano <= tracker.threshold) {
+            return;
+        }
+        tracker.offer(id, elapsedNano, context);
+    }
+
+    private Tracker tracker(final String id) {
+        final Tracker tracker = this.trackers.get(id);
+        if (tracker != null) {
+            return tracker;
+        }
+        return this.trackers.computeIfAbsent(id, key -> new Tracker());
+    }
+
+    /**
+     * 計測箇所の外れ値を返す。
+     *
+     * @param id 計測箇所識別子
+     * @return 外れ値（処理時間の長い順）。記録がない場合は空のリスト。
+     */
+    public List<Outlier> getOutliers(final String id) {
+        final Tracker tracker = this.trackers.get(id);
+        return tracker == null ? Collections.emptyList() : tracker.snapshot();
+    }
+
+    /**
+     * 計測箇所の閾値を返す。
+     * 閾値以下の処理時間は保持しない。
+     *
+     * @param id 計測箇所識別子
+     * @return 閾値（ナノ秒）。保持件数に満たない場合はLong.MIN_VALUE。
+     */
+    public long getThreshold(final String id) {
+        final Tracker tracker = this.trackers.get(id);
+        return tracker == null ? Long.MIN_VALUE : tracker.threshold;
+    }
+
+    /**
+     * 記録のある計測箇所識別子を返す。
+     *
+     * @return 計測箇所識別子（読み取り専用）
+     */
+    public Set<String> getIds() {
+        return Collections.unmodifiableSet(this.trackers.keySet());
+    }
+
+    /**
+     * 計測箇所ごとの保持件数を返す。
+     *
+     * @return 保持件数
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * 全ての記録を消去する。
+     */
+    public void clear() {
+        this.trackers.clear();
+    }
+}
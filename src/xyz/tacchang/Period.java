@@ -6,12 +6,30 @@
 
 package xyz.tacchang;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 
 /**
- *
+ * 区間計測。
+ * 計測箇所は引数なしのコンストラクタで呼び出し元のスタックから求めるか、
+ * site()で取得した計測箇所ハンドルで指定する。
+ * 計測箇所ハンドルはstatic finalに保持して使い回すことを想定している。
+ * <pre>
+ * private static final Period.Site PRICE = Period.site("OrderService.price");
+ * 
+ * try (Period p = new Period(PRICE)) {
+ *     ...
+ * }
+ * </pre>
  */
 public final class Period implements AutoCloseable {
     
+    /**
+     * 名前ごとの計測箇所ハンドル
+     */
+    private static final Map<String, Site> SITES = new ConcurrentHashMap<>();
+    
     /**
      * 計測開始している場合は真である。
      */
@@ -26,7 +44,7 @@ public final class Period implements AutoCloseable {
      * PeriodRecordableに渡す計測箇所識別子である。
      * 本クラスでは処理に使用しない。
      */
-    private final PeriodId id;
+    private final Uniquable id;
     
     /**
      * 結果の出力先である。
@@ -34,6 +52,12 @@ public final class Period implements AutoCloseable {
      */
     private final PeriodRecordable recorder;
     
+    /**
+     * 抽出の重み。
+     * 0の場合は抽出されておらず、PeriodRecordableに出力しない。
+     */
+    private final double weight;
+    
     /**
      * 最後のエラー内容。
      */
@@ -42,6 +66,34 @@ public final class Period implements AutoCloseable {
     public Period() {
         this.id = new PeriodId();
         this.recorder = PeriodRecorder.getInstance();
+        this.weight = Sampler.getInstance().sample(this.id);
+        start();
+    }
+    
+    /**
+     * コンストラクタ。
+     * 計測箇所ハンドルで計測箇所を指定し、標準の区間記録に出力する。
+     * スタックを走査せず、計測箇所識別子も生成しない。
+     * 自動で開始する。
+     * 
+     * @param site 計測箇所ハンドル
+     */
+    public Period(final Site site) {
+        this(site, PeriodRecorder.getInstance());
+    }
+    
+    /**
+     * コンストラクタ。
+     * 計測箇所ハンドルで計測箇所を指定する。
+     * 自動で開始する。
+     * 
+     * @param site 計測箇所ハンドル
+     * @param recorder PeriodRecordableオブジェクト。
+     */
+    public Period(final Site site, final PeriodRecordable recorder) {
+        this.id = site;
+        this.recorder = recorder;
+        this.weight = Sampler.getInstance().sample(site);
         start();
     }
     
@@ -57,6 +109,7 @@ public final class Period implements AutoCloseable {
             final PeriodRecordable recorder) {
         this.id = id;
         this.recorder = recorder;
+        this.weight = Sampler.getInstance().sample(id);
         start();
     }
     
@@ -73,6 +126,7 @@ public final class Period implements AutoCloseable {
             boolean immediately) {
         this.id = id;
         this.recorder = recorder;
+        this.weight = Sampler.getInstance().sample(id);
         if (immediately) {
             start();
         }
@@ -86,7 +140,9 @@ public final class Period implements AutoCloseable {
     public boolean start() {
         if (!this.started) {
             this.started = true;
-            recorder.begin(id);
+            if (this.weight != 0.0) {
+                recorder.begin(id);
+            }
             return true;
         }
         return false;
@@ -100,7 +156,9 @@ public final class Period implements AutoCloseable {
     public boolean stop() {
         if (this.started) {
             this.started = false;
-            recorder.end(id);
+            if (this.weight != 0.0) {
+                recorder.end(id, this.weight);
+            }
             this.lastError = "";
             this.automaticallyStopped = false;
             return true;
@@ -134,6 +192,16 @@ public final class Period implements AutoCloseable {
         return this.automaticallyStopped;
     }
     
+    /**
+     * 抽出されたか否かを返す。
+     * 抽出されなかった場合はPeriodRecordableに出力しない。
+     * 
+     * @return 抽出された場合は真である。
+     */
+    public boolean isSampled() {
+        return this.weight != 0.0;
+    }
+    
     /**
      * 最後のエラーを返す。
      * 
@@ -143,10 +211,81 @@ public final class Period implements AutoCloseable {
         return this.lastError;
     }
     
+    /**
+     * 計測箇所ハンドルを取得する。
+     * 同じ名前に対しては同じハンドルを返す。
+     * ハンドルには計測箇所登録簿（SiteRegistry）の計測箇所番号が割り当てられる。
+     * 
+     * @param name 計測箇所名
+     * @return 計測箇所ハンドル
+     */
+    public static Site site(final String name) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Argument 'name' is not allowed to be empty.");
+        }
+        final Site site = SITES.get(name);
+        if (site != null) {
+            return site;
+        }
+        return SITES.computeIfAbsent(name, Site::new);
+    }
+    
+    /**
+     * 計測箇所ハンドル。
+     * 名前と計測箇所番号を一度だけ決めて保持するため、
+     * 区間の開始と終了でオブジェクトを生成しない。
+     */
+    public static final class Site implements Uniquable {
+        
+        private final String name;
+        
+        private final int number;
+        
+        private Site(final String name) {
+            this.name = name;
+            this.number = SiteRegistry.getInstance().registerNew(this);
+        }
+        
+        /**
+         * 計測箇所番号を返す。
+         * 
+         * @return 計測箇所番号（SiteRegistry）
+         */
+        public int getNumber() {
+            return this.number;
+        }
+        
+        @Override
+        public String getKey() {
+            return this.name;
+        }
+        
+        /**
+         * 標準の区間記録に開始を記録する。
+         * Periodオブジェクトを生成せずに計測する場合に使用する。
+         * 抽出方針は適用しない。
+         */
+        public void begin() {
+            PeriodRecorder.getInstance().begin(this);
+        }
+        
+        /**
+         * 標準の区間記録に終了を記録する。
+         */
+        public void end() {
+            PeriodRecorder.getInstance().end(this);
+        }
+        
+        @Override
+        public String toString() {
+            return this.name;
+        }
+    }
+    
     /**
      *
      */
-    public class PeriodId implements Uniquable, Comparable<PeriodId> {
+    public static class PeriodId implements Uniquable, Comparable<PeriodId> {
 
         final String className;
 
@@ -157,6 +296,16 @@ public final class Period implements AutoCloseable {
         final int lineNumber;
 
         final long threadId;
+        
+        /**
+         * getKey()の結果
+         */
+        private String key;
+        
+        /**
+         * getSiteKey()の結果
+         */
+        private String siteKey;
 
         public PeriodId() {
             StackTraceElement ste = Thread.currentThread().getStackTrace()[3];
@@ -209,15 +358,41 @@ public final class Period implements AutoCloseable {
             return this.threadId;
         }
 
+        /**
+         * スレッドを区別しない計測箇所識別子を返す。
+         * 抽出方針の選択に使用する。
+         * 
+         * @return クラス名と行番号からなる識別子
+         */
+        public String getSiteKey() {
+            if (this.siteKey == null) {
+                StringBuilder key = new StringBuilder(256);
+                key.append(this.className);
+                key.append('-');
+                key.append(String.valueOf(this.lineNumber));
+                this.siteKey = key.toString();
+            }
+            return this.siteKey;
+        }
+
+        /**
+         * 計測箇所識別子を返す。
+         * 初回に生成した文字列を使い回す。
+         * 
+         * @return クラス名、行番号、スレッドIDからなる識別子
+         */
         @Override
         public String getKey() {
-            StringBuilder key = new StringBuilder(256);
-            key.append(this.className);
-            key.append('-');
-            key.append(String.valueOf(this.lineNumber));
-            key.append('-');
-            key.append(String.valueOf(this.threadId));
-            return key.toString();
+            if (this.key == null) {
+                StringBuilder key = new StringBuilder(256);
+                key.append(this.className);
+                key.append('-');
+                key.append(String.valueOf(this.lineNumber));
+                key.append('-');
+                key.append(String.valueOf(this.threadId));
+                this.key = key.toString();
+            }
+            return this.key;
         }
 
         @Override
@@ -0,0 +1,295 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 区間の呼び出し木。
+ * 入れ子になった区間の記録からスレッドごとの呼び出し木を再構築し、
+ * 節ごとに合計時間と自己時間（子の区間を除いた時間）を集計する。
+ * フレームグラフ用の折り畳みスタック形式で出力できる。
+ */
+public final class PeriodCallTree {
+
+    /**
+     * 呼び出し木の節
+     */
+    public static final class Node {
+
+        private final String name;
+
+        private final Node parent;
+
+        private final Map<String, Node> children = new LinkedHashMap<>();
+
+        private long count = 0;
+
+        private long totalNano = 0;
+
+        private long childNano = 0;
+
+        Node(final String name, final Node parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        Node child(final String name) {
+            Node child = this.children.get(name);
+            if (child == null) {
+                child = new Node(name, this);
+                this.children.put(name, child);
+            }
+            return child;
+        }
+
+        void add(final long elapsedNano) {
+            this.count++;
+            this.totalNano += elapsedNano;
+            if (this.parent != null) {
+                this.parent.childNano += elapsedNano;
+            }
+        }
+
+        /**
+         * 節の名前を返す。
+         * PeriodIdの場合は「クラス名.メソッド名:行番号」である。
+         *
+         * @return 節の名前
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * 子の節を返す。
+         *
+         * @return 子の節（読み取り専用）
+         */
+        public Collection<Node> getChildren() {
+            return Collections.unmodifiableCollection(this.children.values());
+        }
+
+        /**
+         * 区間が終了した回数を返す。
+         *
+         * @return 回数
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * 合計時間を返す。
+         *
+         * @return 合計時間（ナノ秒）
+         */
+        public long getTotalNano() {
+            return this.totalNano;
+        }
+
+        /**
+         * 自己時間を返す。
+         * 合計時間から子の区間の合計時間を除いた時間である。
+         *
+         * @return 自己時間（ナノ秒）
+         */
+        public long getSelfNano() {
+            return this.totalNano - this.childNano;
+        }
+    }
+
+    /**
+     * 開いている区間
+     */
+    private static final class Frame {
+
+        final Node node;
+
+        final String key;
+
+        final long beginNano;
+
+        Frame(final Node node, final String key, final long beginNano) {
+            this.node = node;
+            this.key = key;
+            this.beginNano = beginNano;
+        }
+    }
+
+    /**
+     * スレッドIDごとの根の節
+     */
+    private final Map<Long, Node> roots = new LinkedHashMap<>();
+
+    private PeriodCallTree() {}
+
+    /**
+     * 記録から呼び出し木を再構築する。
+     * 記録はスレッドごとに時刻順に並んでいること。
+     * 終了していない区間は集計しない。
+     * 非同期区間（AsyncPeriod）はスレッドの呼び出し関係に従わないため集計しない。
+     *
+     * @param records 記録
+     * @return 呼び出し木
+     */
+    public static PeriodCallTree of(final Iterable<PeriodRecorder.Record> records) {
+        final PeriodCallTree tree = new PeriodCallTree();
+        final Map<Long, Deque<Frame>> stacks = new HashMap<>();
+        for (PeriodRecorder.Record record : records) {
+            if (record.getId() instanceof AsyncPeriod.Span) {
+                continue;
+            }
+            final Long threadId = record.getThreadId();
+            Deque<Frame> stack = stacks.get(threadId);
+            if (stack == null) {
+                stack = new ArrayDeque<>();
+                stacks.put(threadId, stack);
+            }
+            final String key = record.getId().getKey();
+            if (record.isBegin()) {
+                final Node parent = stack.isEmpty() ? tree.root(threadId) : stack.peek().node;
+                stack.push(new Frame(parent.child(frameName(record.getId())), key, record.getEpochNano()));
+            } else {
+                if (!contains(stack, key)) {
+                    continue;
+                }
+                // 終了が記録されなかった区間は閉じずに取り除く
+                Frame frame = stack.pop();
+                while (!frame.key.equals(key)) {
+                    frame = stack.pop();
+                }
+                frame.node.add(record.getEpochNano() - frame.beginNano);
+            }
+        }
+        return tree;
+    }
+
+    private static boolean contains(final Deque<Frame> stack, final String key) {
+        for (Frame frame : stack) {
+            if (frame.key.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Node root(final long threadId) {
+        Node root = this.roots.get(threadId);
+        if (root == null) {
+            root = new Node("thread-" + threadId, null);
+            this.roots.put(threadId, root);
+        }
+        return root;
+    }
+
+    private static String frameName(final Uniquable id) {
+        if (id instanceof Period.PeriodId) {
+            final Period.PeriodId periodId = (Period.PeriodId) id;
+            return periodId.getClassName() + "." + periodId.getMethodName() + ":" + periodId.getLineNumber();
+        }
+        return id.getKey();
+    }
+
+    /**
+     * スレッドIDごとの根の節を返す。
+     * 根の節はスレッドを表し、時間は集計しない。
+     *
+     * @return 根の節（読み取り専用）
+     */
+    public Map<Long, Node> getRoots() {
+        return Collections.unmodifiableMap(this.roots);
+    }
+
+    /**
+     * 折り畳みスタック形式で出力する。
+     * 1行が1つの節であり、根からの節の名前を「;」で連結し、空白の後に自己時間（ナノ秒）を続ける。
+     *
+     * @param out 出力先
+     * @param perThread 真の場合はスレッドを最上位のフレームとして出力する。
+     * @throws IOException 出力に失敗した場合
+     */
+    public void writeCollapsed(final Appendable out, final boolean perThread) throws IOException {
+        final StringBuilder stack = new StringBuilder(256);
+        if (perThread) {
+            for (Node root : this.roots.values()) {
+                stack.setLength(0);
+                stack.append(sanitize(root.getName()));
+                for (Node child : root.getChildren()) {
+                    writeCollapsed(out, stack, child);
+                }
+            }
+        } else {
+            // スレッドを区別しない場合は同じ経路の節をまとめてから出力する
+            final Node merged = new Node("", null);
+            for (Node root : this.roots.values()) {
+                for (Node child : root.getChildren()) {
+                    merge(merged, child);
+                }
+            }
+            for (Node child : merged.getChildren()) {
+                writeCollapsed(out, stack, child);
+            }
+        }
+    }
+
+    /**
+     * 折り畳みスタック形式の文字列を返す。
+     *
+     * @param perThread 真の場合はスレッドを最上位のフレームとして出力する。
+     * @return 折り畳みスタック形式の文字列
+     */
+    public String toCollapsed(final boolean perThread) {
+        final StringBuilder out = new StringBuilder(4096);
+        try {
+            writeCollapsed(out, perThread);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return out.toString();
+    }
+
+    private static void merge(final Node into, final Node node) {
+        final Node target = into.child(node.name);
+        target.count += node.count;
+        target.totalNano += node.totalNano;
+        target.childNano += node.childNano;
+        for (Node child : node.children.values()) {
+            merge(target, child);
+        }
+    }
+
+    private static void writeCollapsed(
+            final Appendable out,
+            final StringBuilder stack,
+            final Node node) throws IOException {
+        final int length = stack.length();
+        if (length > 0) {
+            stack.append(';');
+        }
+        stack.append(sanitize(node.getName()));
+        final long self = node.getSelfNano();
+        if (self > 0) {
+            out.append(stack).append(' ').append(String.valueOf(self)).append('\n');
+        }
+        for (Node child : node.getChildren()) {
+            writeCollapsed(out, stack, child);
+        }
+        stack.setLength(length);
+    }
+
+    private static String sanitize(final String name) {
+        return name.replace(';', '_').replace(' ', '_').replace('\n', '_');
+    }
+}
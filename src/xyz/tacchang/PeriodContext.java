@@ -0,0 +1,247 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 非同期区間の文脈。
+ * スレッドごとに現在の非同期区間を保持し、新しいAsyncPeriodの親とする。
+ * wrap()は生成時点の文脈を取り込み、実行するスレッドで文脈を設定してから処理を呼び出す。
+ * 処理の終了後は必ず元の文脈に戻すため、スレッドプールのスレッドに文脈が残らない。
+ * ラムダ式の型が曖昧にならないよう、CompletableFutureの段階向けは関数型ごとに名前を分けている。
+ * 文脈の中で開始した同期の区間（Period）は、PeriodRecorderが開始の記録に文脈の区間番号を親として残す。
+ * <pre>
+ * try (PeriodContext.Scope scope = period.makeCurrent()) {
+ *     executor.execute(PeriodContext.wrap(() -&gt; ...));
+ * }
+ * </pre>
+ */
+public final class PeriodContext {
+
+    /**
+     * 呼び出しスレッドの現在の非同期区間
+     */
+    private static final ThreadLocal<AsyncPeriod.Span> CURRENT = new ThreadLocal<>();
+
+    private PeriodContext() {}
+
+    /**
+     * 文脈の有効範囲。
+     * 閉じると設定前の文脈に戻る。
+     */
+    public static final class Scope implements AutoCloseable {
+
+        private final AsyncPeriod.Span previous;
+
+        private boolean closed = false;
+
+        private Scope(final AsyncPeriod.Span previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            restore(this.previous);
+        }
+    }
+
+    /**
+     * 呼び出しスレッドの現在の非同期区間を返す。
+     *
+     * @return 非同期区間。設定されていない場合はNULL。
+     */
+    public static AsyncPeriod.Span current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * 呼び出しスレッドの文脈を設定する。
+     *
+     * @param span 非同期区間。NULLの場合は文脈を外す。
+     * @return 文脈の有効範囲
+     */
+    public static Scope attach(final AsyncPeriod.Span span) {
+        final AsyncPeriod.Span previous = CURRENT.get();
+        if (span == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(span);
+        }
+        return new Scope(previous);
+    }
+
+    private static void restore(final AsyncPeriod.Span previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * 現在の文脈を引き継ぐ処理を返す。
+     *
+     * @param task 処理
+     * @return 文脈を引き継ぐ処理
+     */
+    public static Runnable wrap(final Runnable task) {
+        final AsyncPeriod.Span captured = CURRENT.get();
+        return () -> {
+            final Scope scope = attach(captured);
+            try {
+                task.run();
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    /**
+     * 現在の文脈を引き継ぐ処理を返す。
+     *
+     * @param <V> 結果の型
+     * @param task 処理
+     * @return 文脈を引き継ぐ処理
+     */
+    public static <V> Callable<V> wrap(final Callable<V> task) {
+        final AsyncPeriod.Span captured = CURRENT.get();
+        return () -> {
+            final Scope scope = attach(captured);
+            try {
+                return task.call();
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    /**
+     * 現在の文脈を引き継ぐ処理を返す。
+     * CompletableFuture.supplyAsync()に渡すことを想定している。
+     *
+     * @param <T> 結果の型
+     * @param task 処理
+     * @return 文脈を引き継ぐ処理
+     */
+    public static <T> Supplier<T> wrapSupplier(final Supplier<T> task) {
+        final AsyncPeriod.Span captured = CURRENT.get();
+        return () -> {
+            final Scope scope = attach(captured);
+            try {
+                return task.get();
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    /**
+     * 現在の文脈を引き継ぐ処理を返す。
+     * CompletableFuture.thenApply()などに渡すことを想定している。
+     *
+     * @param <T> 引数の型
+     * @param <R> 結果の型
+     * @param task 処理
+     * @return 文脈を引き継ぐ処理
+     */
+    public static <T, R> Function<T, R> wrapFunction(final Function<T, R> task) {
+        final AsyncPeriod.Span captured = CURRENT.get();
+        return value -> {
+            final Scope scope = attach(captured);
+            try {
+                return task.apply(value);
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    /**
+     * 現在の文脈を引き継ぐ処理を返す。
+     * CompletableFuture.thenAccept()などに渡すことを想定している。
+     *
+     * @param <T> 引数の型
+     * @param task 処理
+     * @return 文脈を引き継ぐ処理
+     */
+    public static <T> Consumer<T> wrapConsumer(final Consumer<T> task) {
+        final AsyncPeriod.Span captured = CURRENT.get();
+        return value -> {
+            final Scope scope = attach(captured);
+            try {
+                task.accept(value);
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    /**
+     * 現在の文脈を引き継ぐ処理を返す。
+     * CompletableFuture.whenComplete()などに渡すことを想定している。
+     *
+     * @param <T> 第1引数の型
+     * @param <U> 第2引数の型
+     * @param task 処理
+     * @return 文脈を引き継ぐ処理
+     */
+    public static <T, U> BiConsumer<T, U> wrapBiConsumer(final BiConsumer<T, U> task) {
+        final AsyncPeriod.Span captured = CURRENT.get();
+        return (first, second) -> {
+            final Scope scope = attach(captured);
+            try {
+                task.accept(first, second);
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    /**
+     * 現在の文脈を引き継ぐ処理を返す。
+     * CompletableFuture.handle()やthenCombine()などに渡すことを想定している。
+     *
+     * @param <T> 第1引数の型
+     * @param <U> 第2引数の型
+     * @param <R> 結果の型
+     * @param task 処理
+     * @return 文脈を引き継ぐ処理
+     */
+    public static <T, U, R> BiFunction<T, U, R> wrapBiFunction(final BiFunction<T, U, R> task) {
+        final AsyncPeriod.Span captured = CURRENT.get();
+        return (first, second) -> {
+            final Scope scope = attach(captured);
+            try {
+                return task.apply(first, second);
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    /**
+     * 投入時点の文脈を処理に引き継ぐExecutorを返す。
+     * CompletableFutureの*Async()に渡すと、各段階は投入された時点の文脈で実行される。
+     *
+     * @param executor Executor
+     * @return 文脈を引き継ぐExecutor
+     */
+    public static Executor wrap(final Executor executor) {
+        return task -> executor.execute(wrap(task));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 区間記録の読み取り位置。
+ * スレッドごとに次に読み取る通番（Record.getSequence()）を保持し、
+ * 前回以降に追加された記録だけを読み取る。読み取りの手間は新しい記録の件数に比例する。
+ * 読み取り位置は読み取り位置ごとに独立しており、複数の読み取り位置で同じ区間記録を同時に読み取れる。
+ * 区間記録は全ての読み取り位置が読み取り終えるまで記録を破棄しない（PeriodRecorder.clear()）。
+ * 使い終わったら閉じること。
+ * 1つの読み取り位置は1つのスレッドから使用すること。
+ * <pre>
+ * try (PeriodCursor cursor = PeriodRecorder.getInstance().newCursor()) {
+ *     cursor.poll(record -&gt; ...);
+ * }
+ * </pre>
+ */
+public final class PeriodCursor implements Closeable {
+
+    private final PeriodRecorder recorder;
+
+    /**
+     * バッファごとの次の読み取り開始通番。
+     * 読み取りのたびに複製を差し替えるため、他のスレッドからも参照できる。
+     */
+    private volatile Map<ThreadRecordBuffer, Long> positions = Collections.emptyMap();
+
+    private volatile boolean closed = false;
+
+    PeriodCursor(final PeriodRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * 前回以降に公開された記録を渡す。
+     * 記録はスレッドごとに記録順に渡す。スレッド間では時刻順に並ばない。
+     *
+     * @param action 記録を受け取る処理
+     * @return 渡した件数
+     */
+    public long poll(final Consumer<? super PeriodRecorder.Record> action) {
+        if (this.closed) {
+            throw new IllegalStateException("Cursor is closed.");
+        }
+        final long[] count = new long[1];
+        final Consumer<PeriodRecorder.Record> counting = record -> {
+            count[0]++;
+            action.accept(record);
+        };
+        final Map<ThreadRecordBuffer, Long> current = this.positions;
+        final Map<ThreadRecordBuffer, Long> next = new IdentityHashMap<>();
+        for (ThreadRecordBuffer buffer : this.recorder.getBuffers()) {
+            final Long position = current.get(buffer);
+            next.put(buffer, buffer.forEachFrom(position == null ? 0 : position, counting));
+        }
+        // 取り除かれたバッファの位置は忘れる
+        this.positions = next;
+        return count[0];
+    }
+
+    /**
+     * 未読の記録のおおよその件数を返す。
+     *
+     * @return 件数
+     */
+    public long pending() {
+        final Map<ThreadRecordBuffer, Long> current = this.positions;
+        long pending = 0;
+        for (ThreadRecordBuffer buffer : this.recorder.getBuffers()) {
+            final Long position = current.get(buffer);
+            pending += Math.max(0, buffer.getPublished() - (position == null ? 0 : position));
+        }
+        return pending;
+    }
+
+    /**
+     * スレッドごとの次に読み取る通番を返す。
+     *
+     * @return スレッドIDから通番への対応（複製）
+     */
+    public Map<Long, Long> getPositions() {
+        final Map<Long, Long> result = new HashMap<>();
+        for (Map.Entry<ThreadRecordBuffer, Long> entry : this.positions.entrySet()) {
+            result.put(entry.getKey().getThreadId(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * スレッドの読み取り位置を移動する。
+     * 次のpoll()は指定の通番以降の記録を渡す。破棄済みの記録は渡さない。
+     *
+     * @param threadId スレッドID
+     * @param sequence 次に読み取る通番
+     */
+    public void seek(final long threadId, final long sequence) {
+        if (sequence < 0) {
+            throw new IllegalArgumentException("Argument 'sequence' is not allowed to be negative.");
+        }
+        final Map<ThreadRecordBuffer, Long> next = new IdentityHashMap<>(this.positions);
+        for (ThreadRecordBuffer buffer : this.recorder.getBuffers()) {
+            if (buffer.getThreadId() == threadId) {
+                next.put(buffer, sequence);
+            }
+        }
+        this.positions = next;
+    }
+
+    /**
+     * バッファの次に読み取る通番を返す。
+     *
+     * @param buffer バッファ
+     * @return 通番
+     */
+    long getPosition(final ThreadRecordBuffer buffer) {
+        final Long position = this.positions.get(buffer);
+        return position == null ? 0 : position;
+    }
+
+    boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * 読み取り位置を閉じる。
+     * 以降、区間記録は本読み取り位置を記録の破棄の条件にしない。
+     */
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.recorder.removeCursor(this);
+    }
+}
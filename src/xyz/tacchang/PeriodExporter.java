@@ -0,0 +1,477 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * 区間記録の非同期出力。
+ * 回収スレッドが一定時間ごと、または未読の記録が一定件数に達するたびに
+ * 区間記録の読み取り位置（PeriodCursor）から新しい記録だけを読み取り、まとめて出力待ちの列に積む。
+ * 出力スレッドは列から取り出して出力先に渡す。計測するスレッドは出力を待たない。
+ * 回収した記録は区間記録から解放する（PeriodRecorder.releaseConsumed()）。
+ * 出力待ちの列が溢れた場合の振る舞いはBackpressureで選ぶ。
+ * JVMの終了時には残りの記録を出力してから出力先を閉じる。
+ * <pre>
+ * try (PeriodExporter exporter = new PeriodExporter(
+ *         PeriodRecorder.getInstance(),
+ *         Collections.singletonList(PeriodRecordSinks.file(path)))) {
+ *     ...
+ * }
+ * </pre>
+ */
+public final class PeriodExporter implements Closeable {
+
+    /**
+     * 出力待ちの列が溢れた場合の振る舞い
+     */
+    public enum Backpressure {
+
+        /**
+         * 列が空くまで回収スレッドを待たせる。
+         */
+        BLOCK,
+
+        /**
+         * 溢れた記録を捨てて件数を数える。
+         */
+        DROP,
+
+        /**
+         * 溢れた記録を一時ファイルに退避し、列が空いてから出力する。
+         */
+        SPILL
+    }
+
+    /**
+     * 既定の出力間隔（ミリ秒）
+     */
+    public static final long DEFAULT_INTERVAL_MILLI = 1000;
+
+    /**
+     * 既定の1回にまとめる最大件数
+     */
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+
+    /**
+     * 既定の出力待ちの列の長さ
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    /**
+     * 出力スレッドの終了を指示する目印
+     */
+    private static final List<PeriodRecorder.Record> END_OF_STREAM = new ArrayList<>(0);
+
+    /**
+     * 出力スレッドが列を待つ時間（ミリ秒）
+     */
+    private static final long POLL_MILLI = 100;
+
+    /**
+     * 終了時に出力スレッドを待つ時間（ミリ秒）
+     */
+    private static final long CLOSE_TIMEOUT_MILLI = 10000;
+
+    private final PeriodRecorder recorder;
+
+    private final PeriodCursor cursor;
+
+    private final List<PeriodRecordSink> sinks;
+
+    private final long intervalNano;
+
+    private final int batchSize;
+
+    private final Backpressure backpressure;
+
+    private final BlockingQueue<List<PeriodRecorder.Record>> queue;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Thread worker;
+
+    private final Thread shutdownHook;
+
+    /**
+     * 退避ファイル（SPILLの場合のみ）
+     */
+    private final RecordSpill spill;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong exported = new AtomicLong();
+
+    /**
+     * 前回回収した時刻（回収側で同期）
+     */
+    private long lastDrainNano = System.nanoTime();
+
+    /**
+     * 回収中の記録（回収側で同期）
+     */
+    private List<PeriodRecorder.Record> current;
+
+    /**
+     * 回収を終えて列に積む前の記録（回収側で同期）
+     */
+    private final List<List<PeriodRecorder.Record>> collected = new ArrayList<>();
+
+    private boolean closed = false;
+
+    /**
+     * コンストラクタ。
+     * 既定の間隔と件数で出力し、列が溢れた場合は待つ。
+     *
+     * @param recorder 区間記録
+     * @param sinks 出力先
+     * @throws IOException 出力の準備に失敗した場合
+     */
+    public PeriodExporter(
+            final PeriodRecorder recorder,
+            final List<? extends PeriodRecordSink> sinks) throws IOException {
+        this(recorder, sinks, DEFAULT_INTERVAL_MILLI, DEFAULT_BATCH_SIZE,
+                DEFAULT_QUEUE_CAPACITY, Backpressure.BLOCK);
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param recorder 区間記録
+     * @param sinks 出力先
+     * @param intervalMilli 出力間隔（ミリ秒）
+     * @param batchSize 1回にまとめる最大件数。未読の記録がこの件数に達した場合は間隔を待たずに回収する。
+     * @param queueCapacity 出力待ちの列の長さ
+     * @param backpressure 列が溢れた場合の振る舞い
+     * @throws IOException 出力の準備に失敗した場合
+     */
+    public PeriodExporter(
+            final PeriodRecorder recorder,
+            final List<? extends PeriodRecordSink> sinks,
+            final long intervalMilli,
+            final int batchSize,
+            final int queueCapacity,
+            final Backpressure backpressure) throws IOException {
+        if (recorder == null) {
+            throw new IllegalArgumentException("Argument 'recorder' is null.");
+        }
+        if (sinks == null || sinks.isEmpty()) {
+            throw new IllegalArgumentException("Argument 'sinks' is empty.");
+        }
+        if (intervalMilli <= 0) {
+            throw new IllegalArgumentException("Argument 'intervalMilli' must be positive.");
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Argument 'batchSize' must be positive.");
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Argument 'queueCapacity' must be positive.");
+        }
+        if (backpressure == null) {
+            throw new IllegalArgumentException("Argument 'backpressure' is null.");
+        }
+        this.recorder = recorder;
+        this.cursor = recorder.newCursor();
+        this.sinks = Collections.unmodifiableList(new ArrayList<>(sinks));
+        this.intervalNano = TimeUnit.MILLISECONDS.toNanos(intervalMilli);
+        this.batchSize = batchSize;
+        this.backpressure = backpressure;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.spill = backpressure == Backpressure.SPILL ? new RecordSpill() : null;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "PeriodExporter-drainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.worker = new Thread(this::work, "PeriodExporter-worker");
+        this.worker.setDaemon(true);
+        this.worker.start();
+        // 件数による回収を間隔より細かく判定する
+        final long tickMilli = Math.max(1, intervalMilli / 10);
+        this.scheduler.scheduleWithFixedDelay(this::tick, tickMilli, tickMilli, TimeUnit.MILLISECONDS);
+
+        this.shutdownHook = new Thread(this::closeQuietly, "PeriodExporter-shutdown");
+        Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+    }
+
+    /**
+     * 列が溢れて捨てた記録の件数を返す。
+     *
+     * @return 件数
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * 出力先に渡した記録の件数を返す。
+     *
+     * @return 件数
+     */
+    public long getExportedCount() {
+        return this.exported.get();
+    }
+
+    /**
+     * 間隔を待たずに未読の記録を回収する。
+     * 出力先への出力は出力スレッドで行う。
+     */
+    public void drainNow() {
+        drain(true);
+    }
+
+    private void tick() {
+        try {
+            drain(false);
+        } catch (RuntimeException ex) {
+            LocalLog.getThreadLocalLogger().log(Level.WARNING, "PeriodExporter drain failed.", ex);
+        }
+    }
+
+    /**
+     * 未読の記録を回収して出力待ちの列に積む。
+     * 列に積むのはバッファのロックを離してからである。
+     * 回収した記録は区間記録から解放する。
+     *
+     * @param force 真の場合は間隔と件数によらず回収する。
+     */
+    private synchronized void drain(final boolean force) {
+        final long now = System.nanoTime();
+        if (!force
+                && now - this.lastDrainNano < this.intervalNano
+                && this.cursor.pending() < this.batchSize) {
+            return;
+        }
+        this.lastDrainNano = now;
+        this.current = new ArrayList<>(Math.min(this.batchSize, 1024));
+        this.cursor.poll(this::collect);
+        if (!this.current.isEmpty()) {
+            this.collected.add(this.current);
+        }
+        this.current = null;
+        try {
+            for (List<PeriodRecorder.Record> batch : this.collected) {
+                enqueue(batch);
+            }
+        } finally {
+            this.collected.clear();
+        }
+        this.recorder.releaseConsumed();
+    }
+
+    /**
+     * 回収した記録を最大件数ごとに区切る。
+     */
+    private void collect(final PeriodRecorder.Record record) {
+        this.current.add(record);
+        if (this.current.size() >= this.batchSize) {
+            this.collected.add(this.current);
+            this.current = new ArrayList<>(Math.min(this.batchSize, 1024));
+        }
+    }
+
+    private void enqueue(final List<PeriodRecorder.Record> batch) {
+        switch (this.backpressure) {
+            case BLOCK:
+                if (!offer(batch)) {
+                    this.dropped.addAndGet(batch.size());
+                }
+                break;
+            case DROP:
+                if (!this.queue.offer(batch)) {
+                    this.dropped.addAndGet(batch.size());
+                }
+                break;
+            case SPILL:
+                // 退避中の記録がある間は順序を保つために新しい記録も退避する
+                if (!this.spill.isEmpty() || !this.queue.offer(batch)) {
+                    try {
+                        this.spill.write(batch);
+                    } catch (IOException ex) {
+                        LocalLog.getThreadLocalLogger().log(Level.WARNING, "PeriodExporter spill failed.", ex);
+                        this.dropped.addAndGet(batch.size());
+                    }
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown backpressure.");
+        }
+    }
+
+    /**
+     * 列が空くまで待って積む。
+     * 出力スレッドが終了している場合は待たない。
+     *
+     * @param batch 積む記録
+     * @return 積めた場合は真である。
+     */
+    private boolean offer(final List<PeriodRecorder.Record> batch) {
+        try {
+            while (this.worker.isAlive()) {
+                if (this.queue.offer(batch, POLL_MILLI, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * 出力スレッドの処理。
+     * 列に積まれた記録は退避した記録より古いため、列を先に出力する。
+     * 列が空の間は待たずに退避した記録を出力する。
+     */
+    private void work() {
+        try {
+            while (true) {
+                List<PeriodRecorder.Record> batch = this.queue.poll();
+                if (batch == null) {
+                    if (unspill()) {
+                        continue;
+                    }
+                    batch = this.queue.poll(POLL_MILLI, TimeUnit.MILLISECONDS);
+                }
+                if (batch == END_OF_STREAM) {
+                    break;
+                }
+                if (batch != null) {
+                    deliver(batch);
+                } else {
+                    flushSinks();
+                }
+            }
+            while (unspill()) {
+                // 退避した記録を全て出力する
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flushSinks();
+    }
+
+    /**
+     * 退避した記録を出力する。
+     * 読み戻せない行は破棄件数に数え、出力スレッドは止めない。
+     *
+     * @return 読み戻した場合は真である。
+     */
+    private boolean unspill() {
+        if (this.spill == null || this.spill.isEmpty()) {
+            return false;
+        }
+        try {
+            final List<String> lines = this.spill.readLines(this.batchSize);
+            final List<PeriodRecorder.Record> batch = new ArrayList<>(lines.size());
+            for (String line : lines) {
+                try {
+                    batch.add(RecordSpill.parse(line));
+                } catch (RuntimeException ex) {
+                    LocalLog.getThreadLocalLogger().log(Level.WARNING, "PeriodExporter spill record is malformed.", ex);
+                    this.dropped.incrementAndGet();
+                }
+            }
+            deliver(batch);
+            return !lines.isEmpty();
+        } catch (IOException ex) {
+            LocalLog.getThreadLocalLogger().log(Level.WARNING, "PeriodExporter spill failed.", ex);
+            return false;
+        }
+    }
+
+    private void deliver(final List<PeriodRecorder.Record> batch) {
+        for (PeriodRecordSink sink : this.sinks) {
+            try {
+                sink.write(batch);
+            } catch (IOException | RuntimeException ex) {
+                LocalLog.getThreadLocalLogger().log(Level.WARNING, "PeriodExporter sink failed.", ex);
+            }
+        }
+        this.exported.addAndGet(batch.size());
+    }
+
+    private void flushSinks() {
+        for (PeriodRecordSink sink : this.sinks) {
+            try {
+                sink.flush();
+            } catch (IOException | RuntimeException ex) {
+                LocalLog.getThreadLocalLogger().log(Level.WARNING, "PeriodExporter sink failed.", ex);
+            }
+        }
+    }
+
+    /**
+     * 残りの記録を出力して出力先を閉じる。
+     * 2回目以降の呼び出しは何もしない。
+     *
+     * @throws IOException 出力先を閉じられない場合
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+        }
+        if (Thread.currentThread() != this.shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+            } catch (IllegalStateException ex) {
+                // JVMの終了中
+            }
+        }
+        this.scheduler.shutdown();
+        try {
+            this.scheduler.awaitTermination(CLOSE_TIMEOUT_MILLI, TimeUnit.MILLISECONDS);
+            drain(true);
+            if (this.worker.isAlive()
+                    && this.queue.offer(END_OF_STREAM, CLOSE_TIMEOUT_MILLI, TimeUnit.MILLISECONDS)) {
+                this.worker.join(CLOSE_TIMEOUT_MILLI);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        IOException failure = null;
+        for (PeriodRecordSink sink : this.sinks) {
+            try {
+                sink.close();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        this.cursor.close();
+        if (this.spill != null) {
+            this.spill.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ex) {
+            LocalLog.getThreadLocalLogger().log(Level.WARNING, "PeriodExporter close failed.", ex);
+        }
+    }
+}
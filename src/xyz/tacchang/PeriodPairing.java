@@ -0,0 +1,283 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 区間の開始と終了を対応付けて処理時間に変換する。
+ * 開始と終了は計測箇所識別子のキーとスレッドごとに対応付ける。
+ * 同じキーの入れ子（再入）は後入れ先出しで対応付ける。
+ * 非同期区間（AsyncPeriod）はキーが区間ごとに一意であるため、スレッドを区別せずキーのみで対応付け、
+ * 計測箇所名で処理時間を出力する。
+ * 保持するのは終了していない区間の開始時刻のみであり、
+ * 対応付けた処理時間はMeasurementResultCollectableに直接出力する。
+ */
+public class PeriodPairing implements PeriodRecordable {
+
+    /**
+     * 処理時間の出力先
+     */
+    private final MeasurementResultCollectable collector;
+
+    /**
+     * 後段の区間記録。
+     * NULL許容。NULLの場合は転送しない。
+     */
+    private final PeriodRecordable next;
+
+    /**
+     * begin()/end()で受け取った区間のスレッドごとの未終了区間
+     */
+    private final ThreadLocal<OpenPeriods> local = ThreadLocal.withInitial(OpenPeriods::new);
+
+    /**
+     * accept()で受け取った記録のスレッドIDごとの未終了区間
+     */
+    private final Map<Long, OpenPeriods> replayed = new HashMap<>();
+
+    /**
+     * begin()/end()で受け取った非同期区間の開始時刻
+     */
+    private final Map<String, Long> asyncOpen = new ConcurrentHashMap<>();
+
+    /**
+     * accept()で受け取った非同期区間の開始時刻（replayedで同期）
+     */
+    private final Map<String, Long> replayedAsync = new HashMap<>();
+
+    /**
+     * 対応する開始がなかった終了の件数
+     */
+    private final AtomicLong unmatched = new AtomicLong();
+
+    /**
+     * コンストラクタ。
+     *
+     * @param collector 処理時間の出力先
+     */
+    public PeriodPairing(final MeasurementResultCollectable collector) {
+        this(collector, null);
+    }
+
+    /**
+     * コンストラクタ。
+     * 受け取った開始と終了を後段の区間記録にも転送する。
+     *
+     * @param collector 処理時間の出力先
+     * @param next 後段の区間記録。NULLの場合は転送しない。
+     */
+    public PeriodPairing(
+            final MeasurementResultCollectable collector,
+            final PeriodRecordable next) {
+        this.collector = collector;
+        this.next = next;
+    }
+
+    @Override
+    public void begin(Uniquable id) {
+        final long epochNano = System.nanoTime();
+        if (id instanceof AsyncPeriod.Span) {
+            this.asyncOpen.put(id.getKey(), epochNano);
+        } else {
+            this.local.get().open(id.getKey(), epochNano);
+        }
+        if (this.next != null) {
+            this.next.begin(id);
+        }
+    }
+
+    @Override
+    public void end(Uniquable id) {
+        end(id, 1.0);
+    }
+
+    @Override
+    public void end(Uniquable id, double weight) {
+        final long epochNano = System.nanoTime();
+        if (this.next != null) {
+            this.next.end(id, weight);
+        }
+        if (id instanceof AsyncPeriod.Span) {
+            closeAsync((AsyncPeriod.Span) id, this.asyncOpen.remove(id.getKey()), epochNano, weight);
+        } else {
+            close(this.local.get(), id.getKey(), epochNano, weight);
+        }
+    }
+
+    /**
+     * PeriodRecorderの記録を1件ずつ受け取る。
+     * 記録はスレッドごとに時刻順に渡すこと。
+     * 処理時間には終了の記録の抽出の重みを付ける。
+     *
+     * @param record 記録
+     */
+    public void accept(final PeriodRecorder.Record record) {
+        final String key = record.getId().getKey();
+        synchronized (this.replayed) {
+            if (record.getId() instanceof AsyncPeriod.Span) {
+                if (record.isBegin()) {
+                    this.replayedAsync.put(key, record.getEpochNano());
+                } else {
+                    closeAsync((AsyncPeriod.Span) record.getId(),
+                            this.replayedAsync.remove(key), record.getEpochNano(), record.getWeight());
+                }
+                return;
+            }
+            OpenPeriods open = this.replayed.get(record.getThreadId());
+            if (record.isBegin()) {
+                if (open == null) {
+                    open = new OpenPeriods();
+                    this.replayed.put(record.getThreadId(), open);
+                }
+                open.open(key, record.getEpochNano());
+            } else {
+                if (open == null) {
+                    this.unmatched.incrementAndGet();
+                    return;
+                }
+                close(open, key, record.getEpochNano(), record.getWeight());
+                if (open.isEmpty()) {
+                    this.replayed.remove(record.getThreadId());
+                }
+            }
+        }
+    }
+
+    /**
+     * PeriodRecorderの記録をまとめて受け取る。
+     *
+     * @param records 記録
+     */
+    public void acceptAll(final Iterable<PeriodRecorder.Record> records) {
+        for (PeriodRecorder.Record record : records) {
+            accept(record);
+        }
+    }
+
+    /**
+     * accept()で受け取った記録のうち終了していない区間の数を返す。
+     *
+     * @return 未終了区間の数
+     */
+    public int getOpenCount() {
+        synchronized (this.replayed) {
+            int count = this.replayedAsync.size();
+            for (OpenPeriods open : this.replayed.values()) {
+                count += open.size();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * 対応する開始がなかった終了の件数を返す。
+     *
+     * @return 件数
+     */
+    public long getUnmatchedCount() {
+        return this.unmatched.get();
+    }
+
+    private void close(
+            final OpenPeriods open,
+            final String key,
+            final long endNano,
+            final double weight) {
+        final long beginNano = open.close(key);
+        if (beginNano == OpenPeriods.NONE) {
+            this.unmatched.incrementAndGet();
+            return;
+        }
+        this.collector.append(new MeasurementReport(key, endNano - beginNano, weight));
+    }
+
+    private void closeAsync(
+            final AsyncPeriod.Span span,
+            final Long beginNano,
+            final long endNano,
+            final double weight) {
+        if (beginNano == null) {
+            this.unmatched.incrementAndGet();
+            return;
+        }
+        this.collector.append(new MeasurementReport(span.getSiteKey(), endNano - beginNano, weight));
+    }
+
+    /**
+     * 1スレッド分の未終了区間。
+     * キーごとに開始時刻をスタックで保持し、空になったキーは取り除く。
+     */
+    private static final class OpenPeriods {
+
+        static final long NONE = Long.MIN_VALUE;
+
+        private final Map<String, LongStack> stacks = new HashMap<>();
+
+        private int size = 0;
+
+        void open(final String key, final long beginNano) {
+            LongStack stack = this.stacks.get(key);
+            if (stack == null) {
+                stack = new LongStack();
+                this.stacks.put(key, stack);
+            }
+            stack.push(beginNano);
+            this.size++;
+        }
+
+        long close(final String key) {
+            final LongStack stack = this.stacks.get(key);
+            if (stack == null) {
+                return NONE;
+            }
+            final long beginNano = stack.pop();
+            if (stack.isEmpty()) {
+                this.stacks.remove(key);
+            }
+            this.size--;
+            return beginNano;
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        boolean isEmpty() {
+            return this.size == 0;
+        }
+    }
+
+    /**
+     * longのスタック
+     */
+    private static final class LongStack {
+
+        private long[] values = new long[4];
+
+        private int size = 0;
+
+        void push(final long value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = value;
+        }
+
+        long pop() {
+            return this.values[--this.size];
+        }
+
+        boolean isEmpty() {
+            return this.size == 0;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 区間記録の出力先。
+ * PeriodExporterから1つのスレッドでまとめて渡される。
+ */
+public interface PeriodRecordSink extends Closeable {
+
+    /**
+     * 記録をまとめて出力する。
+     *
+     * @param batch 記録
+     * @throws IOException 出力に失敗した場合
+     */
+    void write(final List<PeriodRecorder.Record> batch) throws IOException;
+
+    /**
+     * 出力をフラッシュする。
+     *
+     * @throws IOException 出力に失敗した場合
+     */
+    default void flush() throws IOException {
+    }
+
+    /**
+     * 出力を閉じる。
+     *
+     * @throws IOException 出力に失敗した場合
+     */
+    @Override
+    default void close() throws IOException {
+        flush();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 標準の区間記録の出力先。
+ * 1行が1件の記録であり、形式はPeriodRecorder.dump()と同じである。
+ */
+public final class PeriodRecordSinks {
+
+    private PeriodRecordSinks() {}
+
+    /**
+     * 標準出力に出力する出力先を生成する。
+     *
+     * @return 出力先
+     */
+    public static PeriodRecordSink console() {
+        return new Console(System.out);
+    }
+
+    /**
+     * ファイルに追記する出力先を生成する。
+     *
+     * @param path 出力先のファイル
+     * @return 出力先
+     * @throws IOException ファイルを開けない場合
+     */
+    public static PeriodRecordSink file(final Path path) throws IOException {
+        return new TextFile(path);
+    }
+
+    /**
+     * メモリに保持する出力先を生成する。
+     *
+     * @return 出力先
+     */
+    public static Memory memory() {
+        return new Memory();
+    }
+
+    static void writeLine(final Writer writer, final PeriodRecorder.Record record) throws IOException {
+        writer.write(String.valueOf(record.getThreadId()));
+        writer.write(' ');
+        writer.write(record.toString());
+        writer.write('\n');
+    }
+
+    /**
+     * 標準出力への出力先
+     */
+    private static final class Console implements PeriodRecordSink {
+
+        private final Writer writer;
+
+        Console(final PrintStream out) {
+            this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void write(final List<PeriodRecorder.Record> batch) throws IOException {
+            for (PeriodRecorder.Record record : batch) {
+                writeLine(this.writer, record);
+            }
+            this.writer.flush();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.writer.flush();
+        }
+    }
+
+    /**
+     * ファイルへの出力先
+     */
+    private static final class TextFile implements PeriodRecordSink {
+
+        private final Writer writer;
+
+        TextFile(final Path path) throws IOException {
+            this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        }
+
+        @Override
+        public void write(final List<PeriodRecorder.Record> batch) throws IOException {
+            for (PeriodRecorder.Record record : batch) {
+                writeLine(this.writer, record);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.writer.close();
+        }
+    }
+
+    /**
+     * メモリへの出力先。
+     * 試験や少量の記録の確認に使用する。
+     */
+    public static final class Memory implements PeriodRecordSink {
+
+        private final List<PeriodRecorder.Record> records = new ArrayList<>();
+
+        private Memory() {}
+
+        @Override
+        public synchronized void write(final List<PeriodRecorder.Record> batch) {
+            this.records.addAll(batch);
+        }
+
+        /**
+         * 受け取った記録を返す。
+         *
+         * @return 記録（複製）
+         */
+        public synchronized List<PeriodRecorder.Record> getRecords() {
+            return Collections.unmodifiableList(new ArrayList<>(this.records));
+        }
+    }
+}
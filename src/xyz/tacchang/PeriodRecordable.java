@@ -14,4 +14,15 @@ public interface PeriodRecordable {
     void begin(final Uniquable id);
     
     void end(final Uniquable id);
+    
+    /**
+     * 抽出の重みを付けて区間を終了する。
+     * 既定では重みを使用しない。
+     * 
+     * @param id 計測箇所識別子
+     * @param weight 抽出の重み（抽出確率の逆数）
+     */
+    default void end(final Uniquable id, final double weight) {
+        end(id);
+    }
 }
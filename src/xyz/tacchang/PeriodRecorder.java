@@ -6,14 +6,30 @@
 
 package xyz.tacchang;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 
 /**
- *
+ * 区間記録。
+ * 記録はスレッドごとの単一ライターバッファ（ThreadRecordBuffer）に書き込むため、
+ * begin()/end()はロックを取らない。
+ * 記録簿の取得時に各スレッドのバッファを時刻順にマージする。
+ * 記録の格納先はヒープ（既定）、ヒープ外（offHeap()）、
+ * 固定容量のフライトレコーダ（flightRecorder()）から選べる。
+ * 記録にはスレッドごとの通番が付き、読み取り位置（newCursor()）で新しい記録だけを読み取れる。
  */
 public class PeriodRecorder implements PeriodRecordable {
     
@@ -25,7 +41,46 @@ public class PeriodRecorder implements PeriodRecordable {
         private static final PeriodRecorder INSTANCE = new PeriodRecorder();  
     }
     
-    protected PeriodRecorder() {}
+    /**
+     * 既定のスラブのバイト数
+     */
+    public static final int DEFAULT_SLAB_BYTES = 64 * 1024;
+    
+    /**
+     * スレッドごとの記録バッファの生成方法
+     */
+    private final Supplier<? extends ThreadRecordBuffer> bufferFactory;
+    
+    /**
+     * ヒープ外に記録する場合は真である。
+     */
+    private final boolean offHeap;
+    
+    protected PeriodRecorder() {
+        this(HeapRecordBuffer::new, false);
+    }
+    
+    PeriodRecorder(
+            final Supplier<? extends ThreadRecordBuffer> bufferFactory,
+            boolean offHeap) {
+        this.bufferFactory = bufferFactory;
+        this.offHeap = offHeap;
+    }
+    
+    /**
+     * ヒープ外に記録する区間記録を生成する。
+     * 記録は固定長エントリとしてダイレクトバッファに格納するため、
+     * 記録時にヒープオブジェクトを生成しない。
+     * 
+     * @param slabBytes 1スラブあたりのバイト数
+     * @return 区間記録
+     */
+    public static PeriodRecorder offHeap(final int slabBytes) {
+        if (slabBytes < SlabRecordBuffer.ENTRY_SIZE) {
+            throw new IllegalArgumentException("Argument 'slabBytes' is too small.");
+        }
+        return new PeriodRecorder(() -> new SlabRecordBuffer(slabBytes), true);
+    }
         
     /**
      * 標準処理時間記録オブジェクトを取得する。
@@ -36,15 +91,53 @@ public class PeriodRecorder implements PeriodRecordable {
         return SingletonHolder.INSTANCE;
     }
     
-    final class Record {
+    public static final class Record {
         private final Uniquable id;
         private final long epochNano;
         private final boolean begin;
+        private final long threadId;
+        private final long sequence;
+        private final double weight;
+        private final long parentSpanId;
+                
+        Record(final Uniquable id, final boolean begin, final long epochNano, final long threadId) {
+            this(id, begin, epochNano, threadId, -1);
+        }
+                
+        Record(
+                final Uniquable id,
+                final boolean begin,
+                final long epochNano,
+                final long threadId,
+                final long sequence) {
+            this(id, begin, epochNano, threadId, sequence, 1.0);
+        }
+                
+        Record(
+                final Uniquable id,
+                final boolean begin,
+                final long epochNano,
+                final long threadId,
+                final long sequence,
+                final double weight) {
+            this(id, begin, epochNano, threadId, sequence, weight, 0);
+        }
                 
-        Record(final Uniquable id, final boolean begin, final long epochNano) {
+        Record(
+                final Uniquable id,
+                final boolean begin,
+                final long epochNano,
+                final long threadId,
+                final long sequence,
+                final double weight,
+                final long parentSpanId) {
             this.id = id;
             this.begin = begin;
             this.epochNano = epochNano;
+            this.threadId = threadId;
+            this.sequence = sequence;
+            this.weight = weight;
+            this.parentSpanId = parentSpanId;
         }
         
         public Uniquable getId() {
@@ -59,6 +152,49 @@ public class PeriodRecorder implements PeriodRecordable {
             return this.epochNano;
         }
         
+        /**
+         * 記録したスレッドのスレッドIDを返す。
+         * 
+         * @return スレッドID
+         */
+        public long getThreadId() {
+            return this.threadId;
+        }
+        
+        /**
+         * スレッド内の通番を返す。
+         * スレッドごとに0から始まり、記録順に1ずつ増える。
+         * 
+         * @return 通番。不明な場合は-1。
+         */
+        public long getSequence() {
+            return this.sequence;
+        }
+        
+        /**
+         * 抽出の重みを返す。
+         * 抽出して記録した区間の終了では抽出確率の逆数であり、開始では1である。
+         * 
+         * @return 抽出の重み
+         */
+        public double getWeight() {
+            return this.weight;
+        }
+        
+        /**
+         * 親の区間番号を返す。
+         * 非同期区間の場合はその親の区間番号であり、
+         * 同期の区間の開始では記録したときの文脈（PeriodContext）の非同期区間の区間番号である。
+         * 
+         * @return 親の区間番号。親がない場合は0。
+         */
+        public long getParentSpanId() {
+            if (this.id instanceof AsyncPeriod.Span) {
+                return ((AsyncPeriod.Span) this.id).getParentSpanId();
+            }
+            return this.parentSpanId;
+        }
+        
         @Override
         public String toString() {
             StringBuilder result = new StringBuilder(256);
@@ -73,35 +209,259 @@ public class PeriodRecorder implements PeriodRecordable {
         }
     }
     
-    private List<Record> records = new CopyOnWriteArrayList<>();
+    /**
+     * 全スレッドの記録バッファ。
+     * 追加はスレッドの初回記録時のみ行う。
+     */
+    private final List<ThreadRecordBuffer> buffers = new CopyOnWriteArrayList<>();
+    
+    /**
+     * 呼び出しスレッドの記録バッファ
+     */
+    private final ThreadLocal<ThreadRecordBuffer> localBuffer =
+            ThreadLocal.withInitial(this::newBuffer);
+    
+    /**
+     * 取り除いたバッファの上書き件数
+     */
+    private final AtomicLong retiredOverwritten = new AtomicLong();
+    
+    /**
+     * 取り除いたバッファの破棄件数
+     */
+    private final AtomicLong retiredDropped = new AtomicLong();
+    
+    /**
+     * 開いている読み取り位置
+     */
+    private final List<PeriodCursor> cursors = new CopyOnWriteArrayList<>();
+    
+    private ThreadRecordBuffer newBuffer() {
+        final ThreadRecordBuffer buffer = this.bufferFactory.get();
+        this.buffers.add(buffer);
+        return buffer;
+    }
     
     @Override
-    public synchronized void begin(Uniquable id) {
+    public void begin(Uniquable id) {
         final long epochNano = System.nanoTime();
-        final Record record = new Record(id, true, epochNano);
-        final Pair<String, Boolean> key = new Pair(id.getKey(), true);
-        records.add(record);
+        this.localBuffer.get().append(id, true, epochNano, 1.0, contextSpanId(id));
+    }
+
+    /**
+     * 同期の区間の親とする文脈の非同期区間の区間番号を返す。
+     * 
+     * @param id 計測箇所識別子
+     * @return 区間番号。非同期区間の場合、または文脈がない場合は0。
+     */
+    private static long contextSpanId(final Uniquable id) {
+        if (id instanceof AsyncPeriod.Span) {
+            return 0;
+        }
+        final AsyncPeriod.Span current = PeriodContext.current();
+        return current == null ? 0 : current.getSpanId();
     }
 
     @Override
-    public synchronized void end(Uniquable id) {
+    public void end(Uniquable id) {
+        end(id, 1.0);
+    }
+
+    /**
+     * 抽出の重みを付けて区間を終了する。
+     * 重みは終了の記録に保持し、Record.getWeight()で参照できる。
+     * 
+     * @param id 計測箇所識別子
+     * @param weight 抽出の重み（抽出確率の逆数）
+     */
+    @Override
+    public void end(Uniquable id, double weight) {
         final long epochNano = System.nanoTime();
-        final Record record = new Record(id, false, epochNano);
-        final Pair<String, Boolean> key = new Pair(id.getKey(), false);
-        records.add(record);
+        this.localBuffer.get().append(id, false, epochNano, weight, 0);
     }
     
     /**
      * 記録簿を取得する。
-     * 記録簿は読み取り専用である。
+     * 記録簿は読み取り専用であり、呼び出し時点のスナップショットである。
+     * 各スレッドの記録は時刻順に並んでいるため、
+     * 安定ソートでスレッド内の順序を保ったままマージする。
      * 
      * @return 記録簿 
      */
-    public synchronized List<Record> getImmutableRecords() {
+    public List<Record> getImmutableRecords() {
+        final List<Record> records = new ArrayList<>();
+        for (ThreadRecordBuffer buffer : this.buffers) {
+            buffer.collect(records);
+        }
+        records.sort(Comparator.comparingLong(Record::getEpochNano));
         return Collections.unmodifiableList(records);
     }
     
+    /**
+     * フライトレコーダとして動作する区間記録を生成する。
+     * スレッドごとに最新の記録を固定件数だけ保持し、古い記録は上書きする。
+     * 保持期間を指定した場合は、それより古い記録を読み取り時に捨てる。
+     * 
+     * @param capacityPerThread スレッドごとの保持件数
+     * @param retentionMilli 保持期間（ミリ秒）。0の場合は期間で捨てない。
+     * @return 区間記録
+     */
+    public static PeriodRecorder flightRecorder(final int capacityPerThread, final long retentionMilli) {
+        if (capacityPerThread <= 0 || capacityPerThread > (1 << 29)) {
+            throw new IllegalArgumentException("Argument 'capacityPerThread' is out of range.");
+        }
+        if (retentionMilli < 0) {
+            throw new IllegalArgumentException("Argument 'retentionMilli' is not allowed to be negative.");
+        }
+        final long retentionNano = TimeUnit.MILLISECONDS.toNanos(retentionMilli);
+        return new PeriodRecorder(
+                () -> new RingRecordBuffer(capacityPerThread, retentionNano), false);
+    }
+    
+    /**
+     * スレッドごとの記録バッファを返す。
+     * 
+     * @return 記録バッファ（読み取り専用）
+     */
+    List<ThreadRecordBuffer> getBuffers() {
+        return Collections.unmodifiableList(this.buffers);
+    }
+    
+    /**
+     * 記録を1件ずつ渡す。
+     * 記録簿の複製を作らずにスレッドごとのバッファを順に走査するため、
+     * 記録の順序はスレッドごとの記録順であり、スレッド間では時刻順に並ばない。
+     * 
+     * @param action 記録を受け取る処理
+     */
+    public void forEachRecord(final Consumer<? super Record> action) {
+        for (ThreadRecordBuffer buffer : this.buffers) {
+            buffer.forEach(action);
+        }
+    }
+    
+    /**
+     * 記録簿から呼び出し木を再構築する。
+     * 
+     * @return 呼び出し木
+     */
+    public PeriodCallTree getCallTree() {
+        return PeriodCallTree.of(getImmutableRecords());
+    }
+    
+    /**
+     * ヒープ外記録の読み取り器を生成する。
+     * 
+     * @return 読み取り器
+     */
+    public SlabRecordReader newSlabReader() {
+        if (!this.offHeap) {
+            throw new IllegalStateException("Off-heap storage is not enabled.");
+        }
+        return new SlabRecordReader(this.buffers);
+    }
+    
+    /**
+     * 上書きで失った記録の件数を返す。
+     * フライトレコーダ以外では常に0である。
+     * 
+     * @return 件数
+     */
+    public long getOverwrittenCount() {
+        long count = this.retiredOverwritten.get();
+        for (ThreadRecordBuffer buffer : this.buffers) {
+            count += buffer.getOverwrittenCount();
+        }
+        return count;
+    }
+    
+    /**
+     * 保持期間切れ、または読み取り中の上書きで捨てた記録の件数を返す。
+     * フライトレコーダ以外では常に0である。
+     * 
+     * @return 件数
+     */
+    public long getDroppedCount() {
+        long count = this.retiredDropped.get();
+        for (ThreadRecordBuffer buffer : this.buffers) {
+            count += buffer.getDroppedCount();
+        }
+        return count;
+    }
+    
+    /**
+     * 記録簿をテキストファイルに書き出す。
+     * 障害発生時にフライトレコーダの内容を保存することを想定している。
+     * 
+     * @param path 出力先
+     * @throws IOException 書き出しに失敗した場合
+     */
+    public void dump(final Path path) throws IOException {
+        final List<Record> records = getImmutableRecords();
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write("# records=" + records.size()
+                    + " overwritten=" + getOverwrittenCount()
+                    + " dropped=" + getDroppedCount());
+            writer.newLine();
+            for (Record record : records) {
+                writer.write(String.valueOf(record.getThreadId()));
+                writer.write(' ');
+                writer.write(record.toString());
+                writer.newLine();
+            }
+        }
+    }
+    
+    /**
+     * 読み取り位置を生成する。
+     * 生成した読み取り位置は閉じるまで記録の破棄の条件になる。
+     * 
+     * @return 読み取り位置
+     */
+    public PeriodCursor newCursor() {
+        final PeriodCursor cursor = new PeriodCursor(this);
+        this.cursors.add(cursor);
+        return cursor;
+    }
+    
+    void removeCursor(final PeriodCursor cursor) {
+        this.cursors.remove(cursor);
+    }
+    
+    /**
+     * 記録を破棄する。
+     * 読み取り位置が開いている場合は、全ての読み取り位置が読み取り済みの記録だけを破棄する。
+     * 終了したスレッドのバッファは、記録が残っていなければ取り除く。
+     */
     public void clear() {
-        this.records.clear();
+        release();
+    }
+    
+    /**
+     * 全ての読み取り位置が読み取り済みの記録を破棄する。
+     * 最も遅い読み取り位置に合わせて古い記録を解放するため、
+     * 読み取り位置で記録を出力し続ける場合に記録が際限なく増えない。
+     * 読み取り位置が開いていない場合は何もしない。
+     */
+    public void releaseConsumed() {
+        if (!this.cursors.isEmpty()) {
+            release();
+        }
+    }
+    
+    private void release() {
+        for (ThreadRecordBuffer buffer : this.buffers) {
+            final boolean terminated = buffer.isOwnerTerminated();
+            long limit = Long.MAX_VALUE;
+            for (PeriodCursor cursor : this.cursors) {
+                limit = Math.min(limit, cursor.getPosition(buffer));
+            }
+            buffer.clear(limit);
+            if (terminated && buffer.size() == 0) {
+                this.retiredOverwritten.addAndGet(buffer.getOverwrittenCount());
+                this.retiredDropped.addAndGet(buffer.getDroppedCount());
+                this.buffers.remove(buffer);
+            }
+        }
     }
 }
@@ -0,0 +1,318 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+
+/**
+ * Prometheus形式の計測結果の公開。
+ * 計測結果をヒストグラムによる処理時間記録（HistogramResult）に加え、
+ * 計測箇所識別子ごとの件数、合計、百分位数をPrometheusのテキスト形式（summary）で
+ * JDK組み込みのHTTPサーバから公開する。待ち受けはループバックアドレスのみである。
+ * 応答の内容は更新スレッドが一定間隔ごとに再利用するバイト列に描画しておき、
+ * 取得要求は描画済みのバイト列を送るだけである。描画用と公開用のバイト列を交互に使う。
+ * <pre>
+ * try (PrometheusEndpoint endpoint = new PrometheusEndpoint(9464)) {
+ *     try (StopWatch watch = new StopWatch(true, "OrderService.price", endpoint)) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public final class PrometheusEndpoint implements MeasurementResultCollectable, Closeable {
+
+    /**
+     * 既定の描画間隔（ミリ秒）
+     */
+    public static final long DEFAULT_REFRESH_MILLI = 5000;
+
+    /**
+     * 公開するパス
+     */
+    public static final String PATH = "/metrics";
+
+    /**
+     * 指標名
+     */
+    static final String METRIC_NAME = "measurement_duration_seconds";
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * 公開する分位点の表記。PERCENTILESと同じ順である。
+     */
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+
+    /**
+     * 公開する百分位
+     */
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+    /**
+     * 描画済みの応答
+     */
+    private static final class Page {
+
+        ByteBuffer bytes = ByteBuffer.allocate(4096);
+    }
+
+    private final HistogramResult result;
+
+    private final HttpServer server;
+
+    /**
+     * 取得要求を処理するスレッド
+     */
+    private final ExecutorService handler;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * 公開用のバイト列の差し替えと送信の間の排他
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * 公開中の応答（lockで保護する）
+     */
+    private Page front = new Page();
+
+    /**
+     * 描画中の応答（描画側で同期）
+     */
+    private Page back = new Page();
+
+    private final StringBuilder text = new StringBuilder(4096);
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+    /**
+     * コンストラクタ。
+     * 5秒ごとに描画する。
+     *
+     * @param port 待ち受けるポート番号。0の場合は空いているポートを使う。
+     * @throws IOException 待ち受けを開始できない場合
+     */
+    public PrometheusEndpoint(final int port) throws IOException {
+        this(port, new HistogramResult(), DEFAULT_REFRESH_MILLI);
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param port 待ち受けるポート番号。0の場合は空いているポートを使う。
+     * @param result 公開するヒストグラムによる処理時間記録
+     * @param refreshMilli 描画間隔（ミリ秒）
+     * @throws IOException 待ち受けを開始できない場合
+     */
+    public PrometheusEndpoint(
+            final int port,
+            final HistogramResult result,
+            final long refreshMilli) throws IOException {
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException("Argument 'port' is out of range.");
+        }
+        if (result == null) {
+            throw new IllegalArgumentException("Argument 'result' is null.");
+        }
+        if (refreshMilli <= 0) {
+            throw new IllegalArgumentException("Argument 'refreshMilli' must be positive.");
+        }
+        this.result = result;
+        refreshNow();
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext(PATH, this::handle);
+        this.handler = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "PrometheusEndpoint-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server.setExecutor(this.handler);
+        this.server.start();
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "PrometheusEndpoint-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::tick, refreshMilli, refreshMilli, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void append(final MeasurementReport report) {
+        this.result.append(report);
+    }
+
+    @Override
+    public void append(final String id, final long elapsedNano, final double weight) {
+        this.result.append(id, elapsedNano, weight);
+    }
+
+    @Override
+    public void append(final int siteId, final long elapsedNano, final double weight) {
+        this.result.append(siteId, elapsedNano, weight);
+    }
+
+    @Override
+    public void appendAll(final int[] siteIds, final long[] elapsedNanos, final int length, final double weight) {
+        this.result.appendAll(siteIds, elapsedNanos, length, weight);
+    }
+
+    /**
+     * 待ち受けているポート番号を返す。
+     *
+     * @return ポート番号
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * 公開しているヒストグラムによる処理時間記録を返す。
+     *
+     * @return 処理時間記録
+     */
+    public HistogramResult getResult() {
+        return this.result;
+    }
+
+    private void tick() {
+        try {
+            refreshNow();
+        } catch (RuntimeException ex) {
+            LocalLog.getThreadLocalLogger().log(Level.WARNING, "PrometheusEndpoint refresh failed.", ex);
+        }
+    }
+
+    /**
+     * 間隔を待たずに応答を描画し直す。
+     */
+    public synchronized void refreshNow() {
+        render();
+        encode(this.back);
+        final Page published;
+        this.lock.writeLock().lock();
+        try {
+            published = this.front;
+            this.front = this.back;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        this.back = published;
+    }
+
+    private void render() {
+        this.text.setLength(0);
+        this.text.append("# HELP ").append(METRIC_NAME).append(" Elapsed time per measurement site.\n")
+                .append("# TYPE ").append(METRIC_NAME).append(" summary\n");
+        final Map<String, LatencyHistogram> sorted = new TreeMap<>(this.result.getHistograms());
+        for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+            final LatencyHistogram histogram = entry.getValue();
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                this.text.append(METRIC_NAME).append("{id=");
+                TextEscapes.appendLabelValue(this.text, entry.getKey());
+                this.text.append(",quantile=\"").append(QUANTILE_LABELS[i]).append("\"} ")
+                        .append(histogram.getValueAtPercentile(PERCENTILES[i]) / 1e9).append('\n');
+            }
+            this.text.append(METRIC_NAME).append("_sum{id=");
+            TextEscapes.appendLabelValue(this.text, entry.getKey());
+            this.text.append("} ").append(histogram.getTotalValue() / 1e9).append('\n');
+            this.text.append(METRIC_NAME).append("_count{id=");
+            TextEscapes.appendLabelValue(this.text, entry.getKey());
+            this.text.append("} ").append(histogram.getCount()).append('\n');
+        }
+    }
+
+    /**
+     * 描画した文字列をバイト列に符号化する。
+     * バイト列が足りない場合のみ広げる。
+     */
+    private void encode(final Page page) {
+        final CharBuffer chars = CharBuffer.wrap(this.text);
+        page.bytes.clear();
+        this.encoder.reset();
+        while (true) {
+            final CoderResult coded = this.encoder.encode(chars, page.bytes, true);
+            if (coded.isOverflow()) {
+                final ByteBuffer grown = ByteBuffer.allocate(page.bytes.capacity() * 2);
+                page.bytes.flip();
+                grown.put(page.bytes);
+                page.bytes = grown;
+            } else if (coded.isUnderflow()) {
+                break;
+            } else {
+                try {
+                    coded.throwException();
+                } catch (CharacterCodingException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * 取得要求に描画済みのバイト列を送る。
+     */
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            final String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            this.lock.readLock().lock();
+            try {
+                final ByteBuffer bytes = this.front.bytes;
+                if ("HEAD".equals(method)) {
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(200, bytes.position());
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes.array(), 0, bytes.position());
+                }
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * 待ち受けと描画を終了する。
+     */
+    @Override
+    public void close() {
+        this.scheduler.shutdownNow();
+        this.server.stop(0);
+        this.handler.shutdownNow();
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+/**
+ * 相対誤差を保証する分位点スケッチ（DDSketch方式）。
+ * 値を比gamma=(1+α)/(1-α)の等比級数のバケットに分けて件数のみを数える。
+ * バケットの代表値はバケット内の全ての値に対して相対誤差α以内であるため、
+ * 百分位数は値の大きさによらず相対誤差α以内で求まる。
+ * バケットは使用している範囲のみを配列に持ち、ナノ秒から分の範囲でも数KBに収まる。
+ * バケット数が上限を超えた場合は、最も小さい値のバケットから併合する（遅い側の精度を優先する）。
+ * 同じ相対誤差のスケッチ同士は併合できる。
+ * 本クラスはスレッドセーフではない。
+ */
+public final class QuantileSketch {
+
+    /**
+     * 既定の相対誤差
+     */
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+    /**
+     * 既定のバケット数の上限
+     */
+    public static final int DEFAULT_MAX_BINS = 2048;
+
+    /**
+     * 配列の初期の長さ
+     */
+    private static final int INITIAL_BINS = 64;
+
+    private final double relativeAccuracy;
+
+    private final double gamma;
+
+    private final double logGamma;
+
+    private final int maxBins;
+
+    /**
+     * バケットの件数。添字0がバケット番号offsetに対応する。
+     */
+    private long[] bins = new long[0];
+
+    private int offset = 0;
+
+    /**
+     * 件数のあるバケット番号の範囲（binCountが0でない場合のみ有効）
+     */
+    private int minIndex = 0;
+
+    private int maxIndex = 0;
+
+    /**
+     * バケットに数えた件数
+     */
+    private long binCount = 0;
+
+    /**
+     * 1未満の値の件数
+     */
+    private long zeroCount = 0;
+
+    private long minValue = Long.MAX_VALUE;
+
+    private long maxValue = Long.MIN_VALUE;
+
+    /**
+     * コンストラクタ。
+     * 相対誤差1%、バケット数の上限2048で生成する。
+     */
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BINS);
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param relativeAccuracy 相対誤差（0より大きく1未満）
+     * @param maxBins バケット数の上限
+     */
+    public QuantileSketch(final double relativeAccuracy, final int maxBins) {
+        if (!(relativeAccuracy > 0.0 && relativeAccuracy < 1.0)) {
+            throw new IllegalArgumentException("Argument 'relativeAccuracy' is out of range.");
+        }
+        if (maxBins <= 0) {
+            throw new IllegalArgumentException("Argument 'maxBins' must be positive.");
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1.0 + relativeAccuracy) / (1.0 - relativeAccuracy);
+        this.logGamma = Math.log(this.gamma);
+        this.maxBins = maxBins;
+    }
+
+    /**
+     * 同じ相対誤差とバケット数の上限の空のスケッチを生成する。
+     *
+     * @return スケッチ
+     */
+    public QuantileSketch newEmpty() {
+        return new QuantileSketch(this.relativeAccuracy, this.maxBins);
+    }
+
+    /**
+     * 値を1件記録する。
+     *
+     * @param value 値（ナノ秒）
+     */
+    public void record(final long value) {
+        record(value, 1);
+    }
+
+    /**
+     * 値を指定の件数だけ記録する。
+     *
+     * @param value 値（ナノ秒）
+     * @param count 件数
+     */
+    public void record(final long value, final long count) {
+        if (count <= 0) {
+            return;
+        }
+        if (value < 1) {
+            this.zeroCount += count;
+        } else {
+            addToBin((int) Math.ceil(Math.log(value) / this.logGamma), count);
+        }
+        this.minValue = Math.min(this.minValue, value);
+        this.maxValue = Math.max(this.maxValue, value);
+    }
+
+    private void addToBin(final int index, final long count) {
+        int target = index;
+        if (this.binCount == 0) {
+            reserve(index, index);
+            this.minIndex = index;
+            this.maxIndex = index;
+        } else if (index < this.minIndex) {
+            // 範囲を超える小さい値は最も小さいバケットに入れる
+            target = Math.max(index, this.maxIndex - this.maxBins + 1);
+            if (target < this.minIndex) {
+                reserve(target, this.maxIndex);
+                this.minIndex = target;
+            }
+        } else if (index > this.maxIndex) {
+            final int lowest = index - this.maxBins + 1;
+            if (lowest > this.minIndex) {
+                collapseBelow(lowest);
+            }
+            reserve(this.minIndex, index);
+            this.maxIndex = index;
+        }
+        this.bins[target - this.offset] += count;
+        this.binCount += count;
+    }
+
+    /**
+     * バケット番号lowestより小さいバケットをlowestに併合する。
+     */
+    private void collapseBelow(final int lowest) {
+        long collapsed = 0;
+        final int upper = Math.min(this.maxIndex, lowest - 1);
+        for (int index = this.minIndex; index <= upper; index++) {
+            collapsed += this.bins[index - this.offset];
+            this.bins[index - this.offset] = 0;
+        }
+        if (this.maxIndex < lowest) {
+            this.maxIndex = lowest;
+        }
+        this.minIndex = lowest;
+        reserve(lowest, this.maxIndex);
+        this.bins[lowest - this.offset] += collapsed;
+    }
+
+    /**
+     * バケット番号の範囲を格納できるように配列を広げる。
+     * 既存の件数は範囲内のもののみ引き継ぐ。
+     */
+    private void reserve(final int from, final int to) {
+        if (from >= this.offset && to < this.offset + this.bins.length) {
+            return;
+        }
+        final int needed = to - from + 1;
+        final int length = Math.max(needed,
+                Math.min(this.maxBins, Math.max(INITIAL_BINS, this.bins.length * 2)));
+        final int newOffset = from < this.offset ? to - length + 1 : from;
+        final long[] grown = new long[length];
+        if (this.binCount > 0) {
+            final int first = Math.max(this.minIndex, Math.max(newOffset, this.offset));
+            final int last = Math.min(this.maxIndex,
+                    Math.min(newOffset + length - 1, this.offset + this.bins.length - 1));
+            for (int index = first; index <= last; index++) {
+                grown[index - newOffset] = this.bins[index - this.offset];
+            }
+        }
+        this.bins = grown;
+        this.offset = newOffset;
+    }
+
+    /**
+     * 別のスケッチの記録を加える。
+     * 相対誤差が同じであること。
+     *
+     * @param other 加えるスケッチ
+     */
+    public void merge(final QuantileSketch other) {
+        if (Double.compare(other.relativeAccuracy, this.relativeAccuracy) != 0) {
+            throw new IllegalArgumentException("Argument 'other' has a different relative accuracy.");
+        }
+        if (other.getCount() == 0) {
+            return;
+        }
+        if (other.binCount > 0) {
+            // 大きい値から加えると、併合が必要な場合に1回で済む
+            for (int index = other.maxIndex; index >= other.minIndex; index--) {
+                final long count = other.bins[index - other.offset];
+                if (count != 0) {
+                    addToBin(index, count);
+                }
+            }
+        }
+        this.zeroCount += other.zeroCount;
+        this.minValue = Math.min(this.minValue, other.minValue);
+        this.maxValue = Math.max(this.maxValue, other.maxValue);
+    }
+
+    /**
+     * 百分位数を返す。
+     * 値は相対誤差以内であり、記録した最小値と最大値の範囲に収める。
+     * 先頭と末尾の順位は記録した最小値と最大値そのものを返す。
+     *
+     * @param percentile 百分位（0～100）
+     * @return 百分位数（ナノ秒）。記録がない場合は0。
+     */
+    public long getValueAtPercentile(final double percentile) {
+        if (!(percentile >= 0.0 && percentile <= 100.0)) {
+            throw new IllegalArgumentException("Argument 'percentile' is out of range.");
+        }
+        final long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        final double rank = percentile / 100.0 * (total - 1);
+        if (rank >= total - 1) {
+            return this.maxValue;
+        }
+        long seen = this.zeroCount;
+        if (rank <= 0.0 || seen > rank) {
+            return this.minValue;
+        }
+        for (int index = this.minIndex; index <= this.maxIndex; index++) {
+            seen += this.bins[index - this.offset];
+            if (seen > rank) {
+                final long estimate = Math.round(2.0 * Math.pow(this.gamma, index) / (this.gamma + 1.0));
+                return Math.max(this.minValue, Math.min(this.maxValue, estimate));
+            }
+        }
+        return this.maxValue;
+    }
+
+    /**
+     * 記録件数を返す。
+     *
+     * @return 件数
+     */
+    public long getCount() {
+        return this.binCount + this.zeroCount;
+    }
+
+    /**
+     * 最小値を返す。
+     *
+     * @return 最小値（ナノ秒）。記録がない場合は0。
+     */
+    public long getMin() {
+        return getCount() == 0 ? 0 : this.minValue;
+    }
+
+    /**
+     * 最大値を返す。
+     *
+     * @return 最大値（ナノ秒）。記録がない場合は0。
+     */
+    public long getMax() {
+        return getCount() == 0 ? 0 : this.maxValue;
+    }
+
+    /**
+     * 相対誤差を返す。
+     *
+     * @return 相対誤差
+     */
+    public double getRelativeAccuracy() {
+        return this.relativeAccuracy;
+    }
+
+    /**
+     * 使用しているバケットの数を返す。
+     *
+     * @return バケット数
+     */
+    public int getBinCount() {
+        return this.binCount == 0 ? 0 : this.maxIndex - this.minIndex + 1;
+    }
+
+    /**
+     * 記録を全て消去する。
+     */
+    public void reset() {
+        this.bins = new long[0];
+        this.offset = 0;
+        this.binCount = 0;
+        this.zeroCount = 0;
+        this.minValue = Long.MAX_VALUE;
+        this.maxValue = Long.MIN_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{count=%d,p50=%d,p90=%d,p99=%d,p99.9=%d,max=%d}",
+                getCount(), getValueAtPercentile(50.0), getValueAtPercentile(90.0),
+                getValueAtPercentile(99.0), getValueAtPercentile(99.9), getMax());
+    }
+}
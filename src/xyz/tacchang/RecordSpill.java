@@ -0,0 +1,143 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 記録の退避ファイル。
+ * 出力待ちの列が溢れた記録を一時ファイルに書き出し、後で書き出した順に読み戻す。
+ * 読み戻した記録の計測箇所識別子はキーのみを保持する。
+ * 1行が1件の記録であり、形式は「スレッドID TAB 開始(1)/終了(0) TAB 時刻 TAB 抽出の重み TAB キー」である。
+ * キーは計測ログの計測箇所ファイルと同じ規則（MeasurementLogReader.escape()）でエスケープする。
+ */
+final class RecordSpill implements Closeable {
+
+    /**
+     * 書き込み中のファイル
+     */
+    private final Path writePath;
+
+    /**
+     * 読み戻し中のファイル
+     */
+    private final Path readPath;
+
+    private BufferedWriter writer;
+
+    private BufferedReader reader;
+
+    /**
+     * 退避中の件数
+     */
+    private long pending = 0;
+
+    RecordSpill() throws IOException {
+        this.writePath = Files.createTempFile("period-spill-", ".txt");
+        this.readPath = Files.createTempFile("period-spill-", ".txt");
+    }
+
+    synchronized boolean isEmpty() {
+        return this.pending == 0;
+    }
+
+    synchronized long size() {
+        return this.pending;
+    }
+
+    synchronized void write(final List<PeriodRecorder.Record> batch) throws IOException {
+        if (this.writer == null) {
+            this.writer = Files.newBufferedWriter(this.writePath, StandardCharsets.UTF_8);
+        }
+        for (PeriodRecorder.Record record : batch) {
+            this.writer.write(String.valueOf(record.getThreadId()));
+            this.writer.write('\t');
+            this.writer.write(record.isBegin() ? '1' : '0');
+            this.writer.write('\t');
+            this.writer.write(String.valueOf(record.getEpochNano()));
+            this.writer.write('\t');
+            this.writer.write(String.valueOf(record.getWeight()));
+            this.writer.write('\t');
+            this.writer.write(MeasurementLogReader.escape(record.getId().getKey()));
+            this.writer.write('\n');
+        }
+        this.pending += batch.size();
+    }
+
+    /**
+     * 退避した記録の行を書き出した順に読み戻す。
+     * 行は1件ずつparse()で記録に戻す。
+     *
+     * @param max 最大件数
+     * @return 記録の行。退避中の記録がない場合は空である。
+     * @throws IOException 読み込みに失敗した場合
+     */
+    synchronized List<String> readLines(final int max) throws IOException {
+        final List<String> batch = new ArrayList<>();
+        while (batch.size() < max && this.pending > 0) {
+            if (this.reader == null) {
+                this.writer.close();
+                this.writer = null;
+                Files.move(this.writePath, this.readPath, StandardCopyOption.REPLACE_EXISTING);
+                this.reader = Files.newBufferedReader(this.readPath, StandardCharsets.UTF_8);
+            }
+            final String line = this.reader.readLine();
+            if (line == null) {
+                this.reader.close();
+                this.reader = null;
+                continue;
+            }
+            batch.add(line);
+            this.pending--;
+        }
+        return batch;
+    }
+
+    /**
+     * 退避した記録の行を記録に戻す。
+     *
+     * @param line 記録の行
+     * @return 記録
+     * @throws RuntimeException 行の形式が正しくない場合
+     */
+    static PeriodRecorder.Record parse(final String line) {
+        final String[] fields = line.split("\t", 5);
+        final String key = MeasurementLogReader.unescape(fields[4]);
+        return new PeriodRecorder.Record(
+                () -> key,
+                "1".equals(fields[1]),
+                Long.parseLong(fields[2]),
+                Long.parseLong(fields[0]),
+                -1,
+                Double.parseDouble(fields[3]));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (this.writer != null) {
+                this.writer.close();
+            }
+            if (this.reader != null) {
+                this.reader.close();
+            }
+        } finally {
+            this.pending = 0;
+            Files.deleteIfExists(this.writePath);
+            Files.deleteIfExists(this.readPath);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * JMXによる計測の公開と制御。
+ * 計測結果をヒストグラムによる処理時間記録（HistogramResult）に加え、
+ * 計測箇所ごとに件数、平均値、最大値、百分位数を属性に持つMBeanを初回の計測時に登録する。
+ * また、自身を制御のMBean（RecorderControlMBean）として登録し、
+ * 計測の停止、抽出方針の変更、区間記録の保存、記録の消去を実行中に行えるようにする。
+ * 公開するのは本オブジェクトに出力された計測箇所である。区間記録の計測箇所を公開する場合は
+ * PeriodPairingの出力先に本オブジェクトを指定する。
+ * <pre>
+ * try (RecorderControl control = new RecorderControl(PeriodRecorder.getInstance())) {
+ *     try (StopWatch watch = new StopWatch(true, "OrderService.price", control)) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public final class RecorderControl implements RecorderControlMBean, MeasurementResultCollectable, Closeable {
+
+    /**
+     * 既定のMBeanのドメイン
+     */
+    public static final String DEFAULT_DOMAIN = "xyz.tacchang";
+
+    private final PeriodRecorder recorder;
+
+    private final HistogramResult result;
+
+    private final MBeanServer server;
+
+    private final String domain;
+
+    private final ObjectName controlName;
+
+    /**
+     * 計測箇所識別子から登録したMBeanの名前への対応
+     */
+    private final Map<String, ObjectName> sites = new ConcurrentHashMap<>();
+
+    /**
+     * 消去時に合わせて行う処理
+     */
+    private final List<Runnable> resetActions = new CopyOnWriteArrayList<>();
+
+    /**
+     * コンストラクタ。
+     * プラットフォームのMBeanサーバに既定のドメインで登録する。
+     *
+     * @param recorder 制御する区間記録
+     * @throws JMException 登録に失敗した場合
+     */
+    public RecorderControl(final PeriodRecorder recorder) throws JMException {
+        this(recorder, new HistogramResult(), ManagementFactory.getPlatformMBeanServer(), DEFAULT_DOMAIN);
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param recorder 制御する区間記録
+     * @param result 統計を公開するヒストグラムによる処理時間記録
+     * @param server 登録先のMBeanサーバ
+     * @param domain MBeanのドメイン
+     * @throws JMException 登録に失敗した場合
+     */
+    public RecorderControl(
+            final PeriodRecorder recorder,
+            final HistogramResult result,
+            final MBeanServer server,
+            final String domain) throws JMException {
+        if (recorder == null) {
+            throw new IllegalArgumentException("Argument 'recorder' is null.");
+        }
+        if (result == null) {
+            throw new IllegalArgumentException("Argument 'result' is null.");
+        }
+        if (server == null) {
+            throw new IllegalArgumentException("Argument 'server' is null.");
+        }
+        if (domain == null || domain.isEmpty()) {
+            throw new IllegalArgumentException("Argument 'domain' is not allowed to be empty.");
+        }
+        this.recorder = recorder;
+        this.result = result;
+        this.server = server;
+        this.domain = domain;
+        this.controlName = new ObjectName(domain + ":type=RecorderControl");
+        this.server.registerMBean(this, this.controlName);
+    }
+
+    @Override
+    public void append(final MeasurementReport report) {
+        this.result.append(report);
+        final String id = report.getId();
+        if (!this.sites.containsKey(id)) {
+            registerSite(id);
+        }
+    }
+
+    private void registerSite(final String id) {
+        try {
+            final ObjectName name = getSiteName(id);
+            if (this.sites.putIfAbsent(id, name) == null) {
+                this.server.registerMBean(new SiteMBean(id, () -> this.result.getHistogram(id)), name);
+            }
+        } catch (JMException ex) {
+            LocalLog.getThreadLocalLogger().log(Level.WARNING, "RecorderControl site registration failed.", ex);
+        }
+    }
+
+    /**
+     * 計測箇所のMBeanの名前を返す。
+     *
+     * @param id 計測箇所識別子
+     * @return MBeanの名前
+     * @throws JMException 名前を作れない場合
+     */
+    public ObjectName getSiteName(final String id) throws JMException {
+        return new ObjectName(this.domain + ":type=Site,name=" + ObjectName.quote(id));
+    }
+
+    /**
+     * 制御のMBeanの名前を返す。
+     *
+     * @return MBeanの名前
+     */
+    public ObjectName getControlName() {
+        return this.controlName;
+    }
+
+    /**
+     * 統計を公開しているヒストグラムによる処理時間記録を返す。
+     *
+     * @return 処理時間記録
+     */
+    public HistogramResult getResult() {
+        return this.result;
+    }
+
+    /**
+     * 消去時に合わせて行う処理を加える。
+     * 本オブジェクト以外の処理時間記録を消去する場合に使用する。
+     *
+     * @param action 処理
+     */
+    public void addResetAction(final Runnable action) {
+        this.resetActions.add(action);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return Sampler.getInstance().isEnabled();
+    }
+
+    @Override
+    public void setEnabled(final boolean enabled) {
+        Sampler.getInstance().setEnabled(enabled);
+    }
+
+    @Override
+    public int getSiteCount() {
+        return this.sites.size();
+    }
+
+    @Override
+    public void setSamplingProbability(final String siteKey, final double probability) {
+        Sampler.getInstance().setPolicy(siteKey, Sampler.probability(probability));
+    }
+
+    @Override
+    public void setSamplingEveryNth(final String siteKey, final int n) {
+        Sampler.getInstance().setPolicy(siteKey, Sampler.everyNth(n));
+    }
+
+    @Override
+    public void setSamplingRateLimit(final String siteKey, final double maxEventsPerSecond) {
+        Sampler.getInstance().setPolicy(siteKey, Sampler.adaptive(maxEventsPerSecond));
+    }
+
+    @Override
+    public void removeSampling(final String siteKey) {
+        Sampler.getInstance().removePolicy(siteKey);
+    }
+
+    @Override
+    public void clearSampling() {
+        Sampler.getInstance().clear();
+    }
+
+    @Override
+    public void dumpRecorder(final String path) throws IOException {
+        this.recorder.dump(Paths.get(path));
+    }
+
+    /**
+     * {@inheritDoc}
+     * 計測箇所のMBeanは登録したまま、統計を0に戻す。
+     */
+    @Override
+    public void reset() {
+        this.result.clear();
+        this.recorder.clear();
+        for (Runnable action : this.resetActions) {
+            action.run();
+        }
+    }
+
+    /**
+     * 登録した全てのMBeanを登録解除する。
+     */
+    @Override
+    public void close() {
+        for (ObjectName name : this.sites.values()) {
+            unregister(name);
+        }
+        this.sites.clear();
+        unregister(this.controlName);
+    }
+
+    private void unregister(final ObjectName name) {
+        try {
+            if (this.server.isRegistered(name)) {
+                this.server.unregisterMBean(name);
+            }
+        } catch (JMException ex) {
+            LocalLog.getThreadLocalLogger().log(Level.WARNING, "RecorderControl unregistration failed.", ex);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.IOException;
+
+/**
+ * 計測の制御のMBean。
+ * jconsoleなどから実行中に計測の停止、抽出方針の変更、フライトレコーダの保存、記録の消去を行う。
+ */
+public interface RecorderControlMBean {
+
+    /**
+     * 計測しているか否かを返す。
+     *
+     * @return 計測している場合は真である。
+     */
+    boolean isEnabled();
+
+    /**
+     * 計測を再開または停止する。
+     *
+     * @param enabled 真の場合は計測する。
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * 統計を公開している計測箇所の数を返す。
+     *
+     * @return 計測箇所の数
+     */
+    int getSiteCount();
+
+    /**
+     * 計測箇所を一定の確率で抽出する。
+     *
+     * @param siteKey 計測箇所識別子
+     * @param probability 抽出確率（0より大きく1以下）
+     */
+    void setSamplingProbability(String siteKey, double probability);
+
+    /**
+     * 計測箇所をN回に1回抽出する。
+     *
+     * @param siteKey 計測箇所識別子
+     * @param n 抽出間隔
+     */
+    void setSamplingEveryNth(String siteKey, int n);
+
+    /**
+     * 計測箇所の抽出件数を毎秒の上限までに抑える。
+     *
+     * @param siteKey 計測箇所識別子
+     * @param maxEventsPerSecond 毎秒の抽出件数の上限
+     */
+    void setSamplingRateLimit(String siteKey, double maxEventsPerSecond);
+
+    /**
+     * 計測箇所の抽出方針を取り除き、常に抽出する。
+     *
+     * @param siteKey 計測箇所識別子
+     */
+    void removeSampling(String siteKey);
+
+    /**
+     * 全ての抽出方針を取り除く。
+     */
+    void clearSampling();
+
+    /**
+     * 区間記録の内容をファイルに書き出す。
+     *
+     * @param path 出力先
+     * @throws IOException 書き出しに失敗した場合
+     */
+    void dumpRecorder(String path) throws IOException;
+
+    /**
+     * 統計と区間記録を消去する。
+     */
+    void reset();
+}
@@ -0,0 +1,832 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * 処理時間の回帰の検出。
+ * 基準の計測結果と今回の計測結果を計測箇所識別子ごとに比べ、分布が有意にずれた計測箇所を判定する。
+ * 分布のずれはMann-Whitney U検定（順位和検定、同順位補正付きの正規近似）で、
+ * ずれの大きさは百分位数の差のブートストラップ信頼区間で求める。
+ * どちらもヒストグラムの副バケットを同順位の組として扱うため、計測結果そのものは不要である。
+ * ブートストラップの百分位数は、k番目の順序統計量の一様分布上の位置がベータ分布に従うことを用いて、
+ * 再標本を作らずに1回あたり定数の手間で引く。
+ * 有意水準未満で遅くなり、いずれかの百分位数の差の信頼区間の下限が基準値の一定割合を超えた計測箇所を回帰とする。
+ * 結果はJSONで出力でき、ビルドを失敗させる判定に使える。
+ * <pre>
+ * java -cp SimpleGadgets.jar xyz.tacchang.RegressionDetector [--alpha A] [--min-shift S] [--iterations N] [--seed N] BASELINE CURRENT
+ * </pre>
+ * BASELINEとCURRENTは集計結果のファイル（MeasurementAggregates）または計測ログのディレクトリ（MeasurementLog）である。
+ */
+public final class RegressionDetector {
+
+    /**
+     * 既定の有意水準
+     */
+    public static final double DEFAULT_ALPHA = 0.01;
+
+    /**
+     * 既定の回帰とみなす百分位数の差の基準値に対する割合
+     */
+    public static final double DEFAULT_MIN_RELATIVE_SHIFT = 0.05;
+
+    /**
+     * 既定のブートストラップの反復回数
+     */
+    public static final int DEFAULT_BOOTSTRAP_ITERATIONS = 1000;
+
+    /**
+     * 判定に必要な件数
+     */
+    public static final long MIN_COUNT = 20;
+
+    /**
+     * 差の信頼区間を求める百分位
+     */
+    static final double[] PERCENTILES = {50.0, 90.0, 99.0};
+
+    /**
+     * 終了コード：回帰あり
+     */
+    static final int EXIT_REGRESSED = 3;
+
+    static final String USAGE = "Usage: RegressionDetector [--alpha A] [--min-shift S] [--iterations N] [--seed N]"
+            + " BASELINE CURRENT";
+
+    /**
+     * 判定
+     */
+    public enum Status {
+
+        /**
+         * 遅くなった
+         */
+        REGRESSED,
+
+        /**
+         * 速くなった
+         */
+        IMPROVED,
+
+        /**
+         * 有意な差がない
+         */
+        UNCHANGED,
+
+        /**
+         * 件数が足りない
+         */
+        INSUFFICIENT,
+
+        /**
+         * 基準のみにある
+         */
+        BASELINE_ONLY,
+
+        /**
+         * 今回のみにある
+         */
+        CURRENT_ONLY
+    }
+
+    /**
+     * 百分位数の差
+     */
+    public static final class PercentileShift {
+
+        private final double percentile;
+
+        private final long baseline;
+
+        private final long current;
+
+        private final long lowerDiff;
+
+        private final long upperDiff;
+
+        PercentileShift(
+                final double percentile,
+                final long baseline,
+                final long current,
+                final long lowerDiff,
+                final long upperDiff) {
+            this.percentile = percentile;
+            this.baseline = baseline;
+            this.current = current;
+            this.lowerDiff = lowerDiff;
+            this.upperDiff = upperDiff;
+        }
+
+        /**
+         * 百分位を返す。
+         *
+         * @return 百分位（0～100）
+         */
+        public double getPercentile() {
+            return this.percentile;
+        }
+
+        /**
+         * 基準の百分位数を返す。
+         *
+         * @return 百分位数（ナノ秒）
+         */
+        public long getBaseline() {
+            return this.baseline;
+        }
+
+        /**
+         * 今回の百分位数を返す。
+         *
+         * @return 百分位数（ナノ秒）
+         */
+        public long getCurrent() {
+            return this.current;
+        }
+
+        /**
+         * 差（今回-基準）の信頼区間の下限を返す。
+         *
+         * @return 差の下限（ナノ秒）
+         */
+        public long getLowerDiff() {
+            return this.lowerDiff;
+        }
+
+        /**
+         * 差（今回-基準）の信頼区間の上限を返す。
+         *
+         * @return 差の上限（ナノ秒）
+         */
+        public long getUpperDiff() {
+            return this.upperDiff;
+        }
+    }
+
+    /**
+     * 計測箇所ごとの比較結果
+     */
+    public static final class Comparison {
+
+        private final String id;
+
+        private final Status status;
+
+        private final long baselineCount;
+
+        private final long currentCount;
+
+        private final double u;
+
+        private final double z;
+
+        private final double pValue;
+
+        private final double probabilityOfSlower;
+
+        private final List<PercentileShift> shifts;
+
+        Comparison(
+                final String id,
+                final Status status,
+                final long baselineCount,
+                final long currentCount,
+                final double u,
+                final double z,
+                final double pValue,
+                final double probabilityOfSlower,
+                final List<PercentileShift> shifts) {
+            this.id = id;
+            this.status = status;
+            this.baselineCount = baselineCount;
+            this.currentCount = currentCount;
+            this.u = u;
+            this.z = z;
+            this.pValue = pValue;
+            this.probabilityOfSlower = probabilityOfSlower;
+            this.shifts = Collections.unmodifiableList(shifts);
+        }
+
+        /**
+         * 計測箇所識別子を返す。
+         *
+         * @return 計測箇所識別子
+         */
+        public String getId() {
+            return this.id;
+        }
+
+        /**
+         * 判定を返す。
+         *
+         * @return 判定
+         */
+        public Status getStatus() {
+            return this.status;
+        }
+
+        /**
+         * 基準の件数を返す。
+         *
+         * @return 件数
+         */
+        public long getBaselineCount() {
+            return this.baselineCount;
+        }
+
+        /**
+         * 今回の件数を返す。
+         *
+         * @return 件数
+         */
+        public long getCurrentCount() {
+            return this.currentCount;
+        }
+
+        /**
+         * Mann-WhitneyのU統計量を返す。
+         * 今回の値が基準の値より大きい組の数（同じ副バケットの組は0.5と数える）である。
+         *
+         * @return U統計量。片方にしかない場合はNaN。
+         */
+        public double getU() {
+            return this.u;
+        }
+
+        /**
+         * 標準化したU統計量を返す。
+         *
+         * @return z値。片方にしかない場合はNaN。
+         */
+        public double getZ() {
+            return this.z;
+        }
+
+        /**
+         * 両側検定のp値を返す。
+         *
+         * @return p値。片方にしかない場合はNaN。
+         */
+        public double getPValue() {
+            return this.pValue;
+        }
+
+        /**
+         * 無作為に選んだ今回の値が基準の値より大きい確率を返す。
+         * 0.5より大きい場合は遅くなっている。
+         *
+         * @return 確率。片方にしかない場合はNaN。
+         */
+        public double getProbabilityOfSlower() {
+            return this.probabilityOfSlower;
+        }
+
+        /**
+         * 百分位数の差を返す。
+         *
+         * @return 百分位数の差（読み取り専用）。片方にしかない場合は空。
+         */
+        public List<PercentileShift> getShifts() {
+            return this.shifts;
+        }
+    }
+
+    /**
+     * 比較結果の一覧
+     */
+    public static final class Report {
+
+        private final double alpha;
+
+        private final double minRelativeShift;
+
+        private final List<Comparison> comparisons;
+
+        Report(final double alpha, final double minRelativeShift, final List<Comparison> comparisons) {
+            this.alpha = alpha;
+            this.minRelativeShift = minRelativeShift;
+            this.comparisons = Collections.unmodifiableList(comparisons);
+        }
+
+        /**
+         * 計測箇所ごとの比較結果を返す。
+         *
+         * @return 計測箇所識別子順の比較結果（読み取り専用）
+         */
+        public List<Comparison> getComparisons() {
+            return this.comparisons;
+        }
+
+        /**
+         * 計測箇所の比較結果を返す。
+         *
+         * @param id 計測箇所識別子
+         * @return 比較結果。ない場合はNULL。
+         */
+        public Comparison get(final String id) {
+            for (Comparison comparison : this.comparisons) {
+                if (comparison.getId().equals(id)) {
+                    return comparison;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 回帰した計測箇所の比較結果を返す。
+         *
+         * @return 比較結果
+         */
+        public List<Comparison> getRegressions() {
+            final List<Comparison> regressions = new ArrayList<>();
+            for (Comparison comparison : this.comparisons) {
+                if (comparison.getStatus() == Status.REGRESSED) {
+                    regressions.add(comparison);
+                }
+            }
+            return regressions;
+        }
+
+        /**
+         * 回帰した計測箇所があるか判定する。
+         *
+         * @return ある場合はtrue
+         */
+        public boolean hasRegression() {
+            return !getRegressions().isEmpty();
+        }
+
+        /**
+         * JSONで表す。
+         *
+         * @return JSON
+         */
+        public String toJson() {
+            final StringBuilder json = new StringBuilder();
+            json.append("{\"alpha\":").append(this.alpha)
+                    .append(",\"minRelativeShift\":").append(this.minRelativeShift)
+                    .append(",\"regressions\":").append(getRegressions().size())
+                    .append(",\"results\":[");
+            for (int i = 0; i < this.comparisons.size(); i++) {
+                final Comparison comparison = this.comparisons.get(i);
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append("{\"id\":");
+                TextEscapes.appendJsonString(json, comparison.getId());
+                json.append(",\"status\":\"").append(comparison.getStatus()).append('"')
+                        .append(",\"baselineCount\":").append(comparison.getBaselineCount())
+                        .append(",\"currentCount\":").append(comparison.getCurrentCount());
+                if (!Double.isNaN(comparison.getPValue())) {
+                    json.append(",\"u\":").append(comparison.getU())
+                            .append(",\"z\":").append(comparison.getZ())
+                            .append(",\"pValue\":").append(comparison.getPValue())
+                            .append(",\"probabilityOfSlower\":").append(comparison.getProbabilityOfSlower())
+                            .append(",\"percentiles\":[");
+                    for (int j = 0; j < comparison.getShifts().size(); j++) {
+                        final PercentileShift shift = comparison.getShifts().get(j);
+                        if (j > 0) {
+                            json.append(',');
+                        }
+                        json.append("{\"percentile\":").append(shift.getPercentile())
+                                .append(",\"baseline\":").append(shift.getBaseline())
+                                .append(",\"current\":").append(shift.getCurrent())
+                                .append(",\"lowerDiff\":").append(shift.getLowerDiff())
+                                .append(",\"upperDiff\":").append(shift.getUpperDiff())
+                                .append('}');
+                    }
+                    json.append(']');
+                }
+                json.append('}');
+            }
+            return json.append("]}").toString();
+        }
+    }
+
+    /**
+     * 件数のある副バケットの累積件数。百分位数の逆引きに使う。
+     */
+    private static final class Cumulative {
+
+        final LatencyHistogram histogram;
+
+        final int[] indexes;
+
+        final long[] counts;
+
+        final long total;
+
+        Cumulative(final LatencyHistogram histogram) {
+            this.histogram = histogram;
+            int used = 0;
+            for (int index = 0; index < histogram.length(); index++) {
+                if (histogram.countAt(index) != 0) {
+                    used++;
+                }
+            }
+            this.indexes = new int[used];
+            this.counts = new long[used];
+            long seen = 0;
+            int next = 0;
+            for (int index = 0; index < histogram.length(); index++) {
+                final long count = histogram.countAt(index);
+                if (count != 0) {
+                    seen += count;
+                    this.indexes[next] = index;
+                    this.counts[next] = seen;
+                    next++;
+                }
+            }
+            this.total = seen;
+        }
+
+        /**
+         * 順位（1から）の値を返す。
+         * LatencyHistogram.getValueAtPercentile()と同じく副バケットの最大値とする。
+         */
+        long valueAtRank(final long rank) {
+            int found = Arrays.binarySearch(this.counts, rank);
+            if (found < 0) {
+                found = Math.min(-found - 1, this.counts.length - 1);
+            }
+            return Math.min(this.histogram.highestValueAt(this.indexes[found]), this.histogram.getMax());
+        }
+    }
+
+    private final double alpha;
+
+    private final double minRelativeShift;
+
+    private final int iterations;
+
+    private final long seed;
+
+    /**
+     * コンストラクタ。
+     * 有意水準1%、基準値の5%を超える差を回帰とし、ブートストラップを1000回行う。
+     */
+    public RegressionDetector() {
+        this(DEFAULT_ALPHA, DEFAULT_MIN_RELATIVE_SHIFT, DEFAULT_BOOTSTRAP_ITERATIONS, 0);
+    }
+
+    /**
+     * コンストラクタ。
+     * 信頼区間の信頼度は1-有意水準とする。
+     *
+     * @param alpha 有意水準（0より大きく1未満）
+     * @param minRelativeShift 回帰とみなす百分位数の差の基準値に対する割合（0以上）
+     * @param iterations ブートストラップの反復回数
+     * @param seed 乱数の種。同じ入力と種からは同じ結果となる。
+     */
+    public RegressionDetector(
+            final double alpha,
+            final double minRelativeShift,
+            final int iterations,
+            final long seed) {
+        if (!(alpha > 0.0 && alpha < 1.0)) {
+            throw new IllegalArgumentException("Argument 'alpha' is out of range.");
+        }
+        if (!(minRelativeShift >= 0.0)) {
+            throw new IllegalArgumentException("Argument 'minRelativeShift' is out of range.");
+        }
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Argument 'iterations' must be positive.");
+        }
+        this.alpha = alpha;
+        this.minRelativeShift = minRelativeShift;
+        this.iterations = iterations;
+        this.seed = seed;
+    }
+
+    /**
+     * 2つの集計結果を比べる。
+     *
+     * @param baseline 基準の集計結果
+     * @param current 今回の集計結果
+     * @return 比較結果
+     */
+    public Report compare(final MeasurementAggregates baseline, final MeasurementAggregates current) {
+        if (baseline == null) {
+            throw new IllegalArgumentException("Argument 'baseline' is null.");
+        }
+        if (current == null) {
+            throw new IllegalArgumentException("Argument 'current' is null.");
+        }
+        final TreeSet<String> ids = new TreeSet<>(baseline.getIds());
+        ids.addAll(current.getIds());
+        final List<Comparison> comparisons = new ArrayList<>();
+        for (String id : ids) {
+            comparisons.add(compare(id, baseline.get(id), current.get(id)));
+        }
+        return new Report(this.alpha, this.minRelativeShift, comparisons);
+    }
+
+    /**
+     * 基準の集計結果と実行中の標準処理時間記録を比べる。
+     *
+     * @param baseline 基準の集計結果
+     * @param current 今回の処理時間記録
+     * @return 比較結果
+     */
+    public Report compare(final MeasurementAggregates baseline, final MeasurementResult current) {
+        if (current == null) {
+            throw new IllegalArgumentException("Argument 'current' is null.");
+        }
+        return compare(baseline, MeasurementAggregates.of(current));
+    }
+
+    /**
+     * 基準の集計結果と実行中のヒストグラムによる処理時間記録を比べる。
+     *
+     * @param baseline 基準の集計結果
+     * @param current 今回の処理時間記録
+     * @return 比較結果
+     */
+    public Report compare(final MeasurementAggregates baseline, final HistogramResult current) {
+        if (current == null) {
+            throw new IllegalArgumentException("Argument 'current' is null.");
+        }
+        return compare(baseline, MeasurementAggregates.of(current));
+    }
+
+    private Comparison compare(final String id, final LatencyHistogram baseline, final LatencyHistogram current) {
+        final long baselineCount = baseline == null ? 0 : baseline.getCount();
+        final long currentCount = current == null ? 0 : current.getCount();
+        if (baselineCount == 0 || currentCount == 0) {
+            return new Comparison(id, baselineCount == 0 ? Status.CURRENT_ONLY : Status.BASELINE_ONLY,
+                    baselineCount, currentCount, Double.NaN, Double.NaN, Double.NaN, Double.NaN,
+                    Collections.emptyList());
+        }
+        final LatencyHistogram aligned = align(current, baseline);
+        final double[] test = mannWhitney(baseline, aligned);
+        final double u = test[0];
+        final double z = test[1];
+        final double pValue = test[2];
+        final double probabilityOfSlower = u / ((double) baselineCount * currentCount);
+
+        // 計測箇所ごとに種を変え、比べる順序によらず同じ結果にする
+        final Random random = new Random(this.seed ^ id.hashCode());
+        final Cumulative base = new Cumulative(baseline);
+        final Cumulative curr = new Cumulative(aligned);
+        final List<PercentileShift> shifts = new ArrayList<>();
+        boolean slower = false;
+        boolean faster = false;
+        for (double percentile : PERCENTILES) {
+            final PercentileShift shift = bootstrap(percentile, base, curr, random);
+            shifts.add(shift);
+            final double margin = this.minRelativeShift * shift.getBaseline();
+            slower |= shift.getLowerDiff() > margin;
+            faster |= shift.getUpperDiff() < -margin;
+        }
+
+        final Status status;
+        if (baselineCount < MIN_COUNT || currentCount < MIN_COUNT) {
+            status = Status.INSUFFICIENT;
+        } else if (pValue < this.alpha && probabilityOfSlower > 0.5 && slower) {
+            status = Status.REGRESSED;
+        } else if (pValue < this.alpha && probabilityOfSlower < 0.5 && faster) {
+            status = Status.IMPROVED;
+        } else {
+            status = Status.UNCHANGED;
+        }
+        return new Comparison(id, status, baselineCount, currentCount, u, z, pValue, probabilityOfSlower, shifts);
+    }
+
+    /**
+     * ヒストグラムを基準と同じ副バケットの構成に揃える。
+     * 構成が異なる場合は各副バケットの最小値で記録し直す。
+     */
+    private static LatencyHistogram align(final LatencyHistogram histogram, final LatencyHistogram template) {
+        if (histogram.getSignificantDigits() == template.getSignificantDigits()
+                && histogram.getHighestTrackableValue() == template.getHighestTrackableValue()) {
+            return histogram;
+        }
+        final LatencyHistogram aligned = template.newEmpty();
+        for (int index = 0; index < histogram.length(); index++) {
+            final long count = histogram.countAt(index);
+            if (count != 0) {
+                aligned.record(histogram.lowestValueAt(index), count);
+            }
+        }
+        return aligned;
+    }
+
+    /**
+     * Mann-Whitney U検定を行う。
+     * 同じ副バケットの値は同順位として扱い、分散を同順位補正する。
+     *
+     * @return U統計量、z値（連続性補正付き）、両側検定のp値
+     */
+    static double[] mannWhitney(final LatencyHistogram baseline, final LatencyHistogram current) {
+        final double n1 = baseline.getCount();
+        final double n2 = current.getCount();
+        double u = 0.0;
+        double below = 0.0;
+        double ties = 0.0;
+        for (int index = 0; index < baseline.length(); index++) {
+            final double a = baseline.countAt(index);
+            final double b = current.countAt(index);
+            if (a == 0.0 && b == 0.0) {
+                continue;
+            }
+            u += b * (below + a / 2.0);
+            below += a;
+            final double t = a + b;
+            ties += t * t * t - t;
+        }
+        final double n = n1 + n2;
+        final double variance = n1 * n2 / 12.0 * ((n + 1.0) - ties / (n * (n - 1.0)));
+        final double diff = u - n1 * n2 / 2.0;
+        if (!(variance > 0.0)) {
+            return new double[]{u, 0.0, 1.0};
+        }
+        final double z = (diff - Math.signum(diff) * Math.min(0.5, Math.abs(diff))) / Math.sqrt(variance);
+        return new double[]{u, z, Math.min(1.0, erfc(Math.abs(z) / Math.sqrt(2.0)))};
+    }
+
+    /**
+     * 相補誤差関数を返す（相対誤差1.2e-7以内のチェビシェフ近似）。
+     */
+    static double erfc(final double x) {
+        final double z = Math.abs(x);
+        final double t = 1.0 / (1.0 + 0.5 * z);
+        final double r = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+                + t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587
+                + t * (-0.82215223 + t * 0.17087277)))))))));
+        return x >= 0.0 ? r : 2.0 - r;
+    }
+
+    /**
+     * 百分位数の差（今回-基準）のブートストラップ信頼区間を求める。
+     * 件数nの再標本のk番目の値は、経験分布の逆関数にベータ分布Beta(k, n-k+1)の値を与えたものと同じ分布に従う。
+     */
+    private PercentileShift bootstrap(
+            final double percentile,
+            final Cumulative baseline,
+            final Cumulative current,
+            final Random random) {
+        final long baselineRank = rankOf(percentile, baseline.total);
+        final long currentRank = rankOf(percentile, current.total);
+        final long[] diffs = new long[this.iterations];
+        for (int i = 0; i < this.iterations; i++) {
+            diffs[i] = resample(current, currentRank, random) - resample(baseline, baselineRank, random);
+        }
+        Arrays.sort(diffs);
+        final int lower = (int) Math.floor(this.alpha / 2.0 * this.iterations);
+        final int upper = Math.max(lower, (int) Math.ceil((1.0 - this.alpha / 2.0) * this.iterations) - 1);
+        return new PercentileShift(percentile,
+                baseline.valueAtRank(baselineRank), current.valueAtRank(currentRank),
+                diffs[lower], diffs[upper]);
+    }
+
+    private static long rankOf(final double percentile, final long total) {
+        return Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+    }
+
+    private static long resample(final Cumulative cumulative, final long rank, final Random random) {
+        final double x = gamma(rank, random);
+        final double y = gamma(cumulative.total - rank + 1, random);
+        final double position = x / (x + y);
+        return cumulative.valueAtRank(Math.max(1, (long) Math.ceil(position * cumulative.total)));
+    }
+
+    /**
+     * ガンマ分布（形状1以上、尺度1）の値を引く（Marsaglia-Tsang法）。
+     */
+    private static double gamma(final double shape, final Random random) {
+        final double d = shape - 1.0 / 3.0;
+        final double c = 1.0 / Math.sqrt(9.0 * d);
+        while (true) {
+            double x;
+            double v;
+            do {
+                x = random.nextGaussian();
+                v = 1.0 + c * x;
+            } while (v <= 0.0);
+            v = v * v * v;
+            final double u = random.nextDouble();
+            if (u < 1.0 - 0.0331 * x * x * x * x || Math.log(u) < 0.5 * x * x + d * (1.0 - v + Math.log(v))) {
+                return d * v;
+            }
+        }
+    }
+
+    /**
+     * 集計結果のファイル、または計測ログのディレクトリを読み込む。
+     * 計測ログの区間記録は開始と終了を対応付けた処理時間として集計する。
+     * 実行ごとにスレッドIDが変わるため、区間はスレッドを区別しない計測箇所（クラス名と行番号）で集計する。
+     *
+     * @param path 集計結果のファイル（MeasurementAggregates）または計測ログのディレクトリ（MeasurementLog）
+     * @return 集計結果
+     * @throws IOException 読み取りに失敗した場合
+     */
+    public static MeasurementAggregates load(final Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return MeasurementAggregates.read(path);
+        }
+        final MeasurementAggregates aggregates = new MeasurementAggregates(
+                HistogramResult.DEFAULT_HIGHEST_TRACKABLE_NANO, HistogramResult.DEFAULT_SIGNIFICANT_DIGITS);
+        final MeasurementLogReader reader = new MeasurementLogReader(path);
+        reader.replay(aggregates::add);
+        final PeriodPairing pairing = new PeriodPairing(aggregates::add);
+        reader.replaySiteRecords(pairing::accept);
+        return aggregates;
+    }
+
+    /**
+     * コマンドラインを解釈して比較し、結果をJSONで出力する。
+     *
+     * @param args 引数
+     * @param out 結果の出力先
+     * @param err エラーの出力先
+     * @return 終了コード（0は回帰なし、1は読み取りの失敗、2は引数の誤り、3は回帰あり）
+     */
+    static int run(final String[] args, final PrintStream out, final PrintStream err) {
+        double alpha = DEFAULT_ALPHA;
+        double minShift = DEFAULT_MIN_RELATIVE_SHIFT;
+        int iterations = DEFAULT_BOOTSTRAP_ITERATIONS;
+        long seed = 0;
+        final List<Path> paths = new ArrayList<>();
+        final RegressionDetector detector;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                switch (arg) {
+                    case "--alpha":
+                        alpha = Double.parseDouble(value(args, ++i));
+                        break;
+                    case "--min-shift":
+                        minShift = Double.parseDouble(value(args, ++i));
+                        break;
+                    case "--iterations":
+                        iterations = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(value(args, ++i));
+                        break;
+                    case "--help":
+                        out.println(USAGE);
+                        return 0;
+                    default:
+                        if (arg.startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option: " + arg);
+                        }
+                        paths.add(Paths.get(arg));
+                }
+            }
+            if (paths.size() != 2) {
+                throw new IllegalArgumentException("BASELINE and CURRENT are required.");
+            }
+            detector = new RegressionDetector(alpha, minShift, iterations, seed);
+        } catch (IllegalArgumentException ex) {
+            err.println(ex.getMessage());
+            err.println(USAGE);
+            return 2;
+        }
+
+        final Report report;
+        try {
+            report = detector.compare(load(paths.get(0)), load(paths.get(1)));
+        } catch (IOException ex) {
+            err.println("Cannot read the measurements: " + ex.getMessage());
+            return 1;
+        }
+        out.println(report.toJson());
+        return report.hasRegression() ? EXIT_REGRESSED : 0;
+    }
+
+    private static String value(final String[] args, final int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1] + ".");
+        }
+        return args[index];
+    }
+
+    /**
+     * コマンドラインから比較する。
+     * 回帰がある場合は終了コード3で終了する。
+     *
+     * @param args 引数
+     */
+    public static void main(final String[] args) {
+        final int status = run(args, System.out, System.err);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+}
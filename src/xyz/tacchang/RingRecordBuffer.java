@@ -0,0 +1,240 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 固定容量のリング状記録バッファ（フライトレコーダ）。
+ * 満杯になると最も古い記録を上書きする。
+ * 書き込み側はロックもCASも使わない。
+ * 読み取り側は読み取り後に書き込み位置を再確認し、
+ * 読み取り中に上書きされた可能性のある記録を捨てる。
+ * 読み取りは共有の状態を変えないため、複数の読み取り側（PeriodCursor）が互いに独立して読める。
+ * 書き込み中の1件分を避けるため、配列は容量より大きい2のべき乗で確保する。
+ */
+final class RingRecordBuffer extends ThreadRecordBuffer {
+
+    /**
+     * 保持件数
+     */
+    private final int capacity;
+
+    /**
+     * 配列の大きさ
+     */
+    private final int length;
+
+    private final int mask;
+
+    /**
+     * 保持期間（ナノ秒）。0以下の場合は期間で捨てない。
+     */
+    private final long retentionNano;
+
+    private final AtomicReferenceArray<Uniquable> ids;
+
+    private final AtomicLongArray epochNanos;
+
+    private final AtomicIntegerArray begins;
+
+    /**
+     * 抽出の重み（doubleのビット列）
+     */
+    private final AtomicLongArray weights;
+
+    /**
+     * 区間の開始を記録したときの文脈の非同期区間の区間番号
+     */
+    private final AtomicLongArray parentSpanIds;
+
+    /**
+     * 次に書き込む通番（所有スレッドのみ参照）
+     */
+    private long writeIndex = 0;
+
+    /**
+     * 読み取り側に公開済みの書き込み件数
+     */
+    private final AtomicLong published = new AtomicLong();
+
+    /**
+     * 保持している最も古い記録の通番（読み取り側で同期）。
+     * 上書き、保持期間切れ、クリアでのみ進み、読み取りでは進まない。
+     */
+    private long start = 0;
+
+    /**
+     * 上書きで失った件数（読み取り側で同期）
+     */
+    private long overwritten = 0;
+
+    /**
+     * 保持期間切れで捨てた件数（読み取り側で同期）
+     */
+    private long dropped = 0;
+
+    /**
+     * コンストラクタ。
+     * 所有スレッドで呼び出すこと。
+     *
+     * @param capacity 保持件数
+     * @param retentionNano 保持期間（ナノ秒）。0以下の場合は期間で捨てない。
+     */
+    RingRecordBuffer(final int capacity, final long retentionNano) {
+        this.capacity = capacity;
+        this.length = Integer.highestOneBit(capacity) << 1;
+        this.mask = this.length - 1;
+        this.retentionNano = retentionNano;
+        this.ids = new AtomicReferenceArray<>(this.length);
+        this.epochNanos = new AtomicLongArray(this.length);
+        this.begins = new AtomicIntegerArray(this.length);
+        this.weights = new AtomicLongArray(this.length);
+        this.parentSpanIds = new AtomicLongArray(this.length);
+    }
+
+    @Override
+    void append(
+            final Uniquable id,
+            final boolean begin,
+            final long epochNano,
+            final double weight,
+            final long parentSpanId) {
+        final long index = this.writeIndex;
+        final int slot = (int) index & this.mask;
+        this.ids.lazySet(slot, id);
+        this.epochNanos.lazySet(slot, epochNano);
+        this.begins.lazySet(slot, begin ? 1 : 0);
+        this.weights.lazySet(slot, Double.doubleToRawLongBits(weight));
+        this.parentSpanIds.lazySet(slot, parentSpanId);
+        this.writeIndex = index + 1;
+        this.published.lazySet(index + 1);
+    }
+
+    @Override
+    void collect(final List<PeriodRecorder.Record> into) {
+        read(0, Long.MAX_VALUE, into);
+    }
+
+    /**
+     * 指定の通番以降の公開済みの記録を追加する。
+     * 読み取り開始通番は読み取り側ごとに異なってよく、共有の状態は上書きと保持期間切れでのみ進める。
+     *
+     * @param position 読み取り開始通番
+     * @param maxCount 最大件数
+     * @param into 追加先
+     * @return 読み取り終了通番
+     */
+    private synchronized long read(
+            final long position,
+            final long maxCount,
+            final List<PeriodRecorder.Record> into) {
+        final long published = this.published.get();
+        settle(published);
+        final long from = Math.max(position, this.start);
+        final long end = from + Math.min(maxCount, Math.max(0, published - from));
+        final int mark = into.size();
+        for (long index = from; index < end; index++) {
+            final int slot = (int) index & this.mask;
+            into.add(new PeriodRecorder.Record(
+                    this.ids.get(slot),
+                    this.begins.get(slot) != 0,
+                    this.epochNanos.get(slot),
+                    getThreadId(),
+                    index,
+                    Double.longBitsToDouble(this.weights.get(slot)),
+                    this.parentSpanIds.get(slot)));
+        }
+
+        // 読み取り中に書き込み側が追い越した記録は内容が保証できない
+        settle(this.published.get());
+        int discard = (int) Math.max(0, Math.min(end, this.start) - from);
+
+        if (this.retentionNano > 0) {
+            // 時刻はスレッド内で単調であるため、期限切れの記録より前の記録も全て期限切れである
+            final long oldest = System.nanoTime() - this.retentionNano;
+            while (mark + discard < into.size()
+                    && into.get(mark + discard).getEpochNano() < oldest) {
+                discard++;
+            }
+            final long expiredUpTo = from + discard;
+            if (expiredUpTo > this.start) {
+                this.dropped += expiredUpTo - this.start;
+                this.start = expiredUpTo;
+            }
+        }
+
+        if (discard > 0) {
+            into.subList(mark, mark + discard).clear();
+        }
+        return end;
+    }
+
+    /**
+     * 上書きされた記録の分だけ保持している最も古い記録の通番を進める。
+     * 読み取り側で同期して呼び出すこと。
+     *
+     * @param end 公開済みの書き込み件数
+     */
+    private void settle(final long end) {
+        // 保持件数より古い記録は失ったものとする（配列は保持件数より大きいため、書き込み中の位置とも重ならない）
+        final long lost = end - this.capacity;
+        if (lost > this.start) {
+            this.overwritten += lost - this.start;
+            this.start = lost;
+        }
+    }
+
+    @Override
+    long forEachFrom(
+            final long position,
+            final long maxCount,
+            final Consumer<? super PeriodRecorder.Record> action) {
+        // 上書きされた記録を捨ててから渡すため、容量分をいったん集める
+        final long unread = getPublished() - position;
+        final List<PeriodRecorder.Record> records =
+                new ArrayList<>((int) Math.max(0, Math.min(Math.min(this.capacity, maxCount), unread)));
+        final long end = read(position, maxCount, records);
+        records.forEach(action);
+        return end;
+    }
+
+    @Override
+    long getPublished() {
+        return this.published.get();
+    }
+
+    @Override
+    synchronized long size() {
+        final long end = this.published.get();
+        return end - Math.max(this.start, end - this.capacity);
+    }
+
+    @Override
+    synchronized void clear(final long upTo) {
+        final long end = this.published.get();
+        settle(end);
+        this.start = Math.max(this.start, Math.min(upTo, end));
+    }
+
+    @Override
+    synchronized long getOverwrittenCount() {
+        settle(this.published.get());
+        return this.overwritten;
+    }
+
+    @Override
+    synchronized long getDroppedCount() {
+        return this.dropped;
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 計測箇所ごとの抽出。
+ * 計測箇所識別子（PeriodIdの場合はクラス名と行番号、StopWatchの場合はid）ごとに
+ * 抽出方針を設定する。方針が1つも設定されていない場合は常に抽出する。
+ * 計測箇所ハンドル（Period.Site）の方針は計測箇所番号ごとに覚えておき、方針を変更するまで引き直さない。
+ * シングルトンである。
+ */
+public final class Sampler {
+
+    /**
+     * シングルトンインスタンス
+     * Bill Push型シングルトンである。
+     */
+    private static class SingletonHolder {
+        private static final Sampler INSTANCE = new Sampler();
+    }
+
+    /**
+     * 常に抽出する方針
+     */
+    private static final SamplingPolicy ALWAYS = () -> 1.0;
+
+    /**
+     * 計測箇所ごとの抽出方針
+     */
+    private final Map<String, SamplingPolicy> policies = new ConcurrentHashMap<>();
+
+    /**
+     * 計測箇所番号ごとの抽出方針（Period.Site）。
+     * 方針を変更するたびに空の配列に差し替える。未設定の要素は引き直す。
+     */
+    private final AtomicReference<SamplingPolicy[]> siteCache = new AtomicReference<>(new SamplingPolicy[0]);
+
+    /**
+     * 抽出方針が設定されている、または計測を停止している場合は真である。
+     */
+    private volatile boolean active = false;
+
+    /**
+     * 計測している場合は真である。
+     */
+    private volatile boolean enabled = true;
+
+    private Sampler() {}
+
+    /**
+     * 抽出オブジェクトを取得する。
+     *
+     * @return 抽出オブジェクト
+     */
+    public static Sampler getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /**
+     * 計測箇所の抽出方針を設定する。
+     *
+     * @param siteKey 計測箇所識別子
+     * @param policy 抽出方針
+     */
+    public synchronized void setPolicy(final String siteKey, final SamplingPolicy policy) {
+        this.policies.put(siteKey, policy);
+        updateActive();
+    }
+
+    /**
+     * 計測箇所の抽出方針を取り除く。
+     *
+     * @param siteKey 計測箇所識別子
+     */
+    public synchronized void removePolicy(final String siteKey) {
+        this.policies.remove(siteKey);
+        updateActive();
+    }
+
+    /**
+     * 全ての抽出方針を取り除く。
+     */
+    public synchronized void clear() {
+        this.policies.clear();
+        updateActive();
+    }
+
+    /**
+     * 計測を再開または停止する。
+     * 停止中は全ての計測箇所で抽出せず、StopWatchとPeriodは何も出力しない。
+     * 抽出方針は停止中も保持する。
+     *
+     * @param enabled 真の場合は計測する。
+     */
+    public synchronized void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+        updateActive();
+    }
+
+    /**
+     * 計測しているか否かを返す。
+     *
+     * @return 計測している場合は真である。
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * 方針の変更を反映する。
+     * 方針の変更と同じ同期の中で呼び出すこと。
+     */
+    private void updateActive() {
+        this.siteCache.set(new SamplingPolicy[0]);
+        this.active = !this.enabled || !this.policies.isEmpty();
+    }
+
+    /**
+     * 計測箇所の抽出方針を返す。
+     *
+     * @param siteKey 計測箇所識別子
+     * @return 抽出方針。設定されていない場合は常に抽出する方針。
+     */
+    public SamplingPolicy getPolicy(final String siteKey) {
+        final SamplingPolicy policy = this.policies.get(siteKey);
+        return policy == null ? ALWAYS : policy;
+    }
+
+    /**
+     * 今回の計測を抽出するか否かを決める。
+     *
+     * @param siteKey 計測箇所識別子
+     * @return 抽出する場合は重み、抽出しない場合は0である。
+     */
+    public double sample(final String siteKey) {
+        if (!this.active) {
+            return 1.0;
+        }
+        if (!this.enabled) {
+            return 0.0;
+        }
+        return getPolicy(siteKey).sample();
+    }
+
+    /**
+     * 今回の計測を抽出するか否かを決める。
+     * PeriodIdの場合はスレッドを区別せず、クラス名と行番号で方針を選ぶ。
+     *
+     * @param id 計測箇所識別子
+     * @return 抽出する場合は重み、抽出しない場合は0である。
+     */
+    public double sample(final Uniquable id) {
+        if (!this.active) {
+            return 1.0;
+        }
+        if (!this.enabled) {
+            return 0.0;
+        }
+        if (id instanceof Period.Site) {
+            return getPolicy((Period.Site) id).sample();
+        }
+        if (id instanceof Period.PeriodId) {
+            return getPolicy(((Period.PeriodId) id).getSiteKey()).sample();
+        }
+        return getPolicy(id.getKey()).sample();
+    }
+
+    /**
+     * 計測箇所ハンドルの抽出方針を返す。
+     * 方針を変更するまでは計測箇所番号で覚えた方針を返す。
+     * 差し替え前の配列に書き込んだ方針は捨てられるだけであり、古い方針が残ることはない。
+     *
+     * @param site 計測箇所ハンドル
+     * @return 抽出方針
+     */
+    private SamplingPolicy getPolicy(final Period.Site site) {
+        final int number = site.getNumber();
+        final SamplingPolicy[] cache = this.siteCache.get();
+        if (number < cache.length) {
+            final SamplingPolicy policy = cache[number];
+            if (policy != null) {
+                return policy;
+            }
+        }
+        final SamplingPolicy policy = getPolicy(site.getKey());
+        if (number < cache.length) {
+            cache[number] = policy;
+        } else {
+            final SamplingPolicy[] grown = Arrays.copyOf(cache, Math.max(number + 1, cache.length * 2));
+            grown[number] = policy;
+            // 方針の変更で差し替えられていた場合は覚えない
+            this.siteCache.compareAndSet(cache, grown);
+        }
+        return policy;
+    }
+
+    /**
+     * 常に抽出する方針を返す。
+     *
+     * @return 抽出方針
+     */
+    public static SamplingPolicy always() {
+        return ALWAYS;
+    }
+
+    /**
+     * N回に1回抽出する方針を生成する。
+     *
+     * @param n 抽出間隔
+     * @return 抽出方針
+     */
+    public static SamplingPolicy everyNth(final int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("Argument 'n' must be positive.");
+        }
+        return new EveryNth(n);
+    }
+
+    /**
+     * 一定の確率で抽出する方針を生成する。
+     *
+     * @param probability 抽出確率（0より大きく1以下）
+     * @return 抽出方針
+     */
+    public static SamplingPolicy probability(final double probability) {
+        if (!(probability > 0.0 && probability <= 1.0)) {
+            throw new IllegalArgumentException("Argument 'probability' is out of range.");
+        }
+        return new Probabilistic(probability);
+    }
+
+    /**
+     * 抽出件数が毎秒の上限を超えないよう確率を調整する方針を生成する。
+     *
+     * @param maxEventsPerSecond 毎秒の抽出件数の上限
+     * @return 抽出方針
+     */
+    public static SamplingPolicy adaptive(final double maxEventsPerSecond) {
+        return adaptive(maxEventsPerSecond, System::nanoTime);
+    }
+
+    /**
+     * 抽出件数が毎秒の上限を超えないよう確率を調整する方針を生成する。
+     * 試験で時刻を差し替える場合に使用する。
+     *
+     * @param maxEventsPerSecond 毎秒の抽出件数の上限
+     * @param clock 計算機クロック時刻（ナノ秒）
+     * @return 抽出方針
+     */
+    static SamplingPolicy adaptive(final double maxEventsPerSecond, final LongSupplier clock) {
+        if (!(maxEventsPerSecond > 0.0)) {
+            throw new IllegalArgumentException("Argument 'maxEventsPerSecond' must be positive.");
+        }
+        return new Adaptive(maxEventsPerSecond, clock);
+    }
+
+    /**
+     * N回に1回抽出する方針
+     */
+    private static final class EveryNth implements SamplingPolicy {
+
+        private final int n;
+
+        private final AtomicLong count = new AtomicLong();
+
+        EveryNth(final int n) {
+            this.n = n;
+        }
+
+        @Override
+        public double sample() {
+            return this.count.getAndIncrement() % this.n == 0 ? this.n : 0.0;
+        }
+    }
+
+    /**
+     * 一定の確率で抽出する方針
+     */
+    private static final class Probabilistic implements SamplingPolicy {
+
+        private final double probability;
+
+        private final double weight;
+
+        Probabilistic(final double probability) {
+            this.probability = probability;
+            this.weight = 1.0 / probability;
+        }
+
+        @Override
+        public double sample() {
+            return ThreadLocalRandom.current().nextDouble() < this.probability ? this.weight : 0.0;
+        }
+    }
+
+    /**
+     * 抽出件数が毎秒の上限を超えないよう確率を調整する方針。
+     * 1秒ごとに直前の発生頻度から抽出確率を決め直す。
+     * 決め直しは1スレッドだけが行い、他のスレッドは待たない。
+     */
+    private static final class Adaptive implements SamplingPolicy {
+
+        private static final long WINDOW_NANO = TimeUnit.SECONDS.toNanos(1);
+
+        private final double maxEventsPerSecond;
+
+        private final LongSupplier clock;
+
+        /**
+         * 現在の窓で発生した件数
+         */
+        private final LongAdder seen = new LongAdder();
+
+        /**
+         * 現在の窓の開始時刻
+         */
+        private final AtomicLong windowStart;
+
+        private volatile double probability = 1.0;
+
+        Adaptive(final double maxEventsPerSecond, final LongSupplier clock) {
+            this.maxEventsPerSecond = maxEventsPerSecond;
+            this.clock = clock;
+            this.windowStart = new AtomicLong(clock.getAsLong());
+        }
+
+        @Override
+        public double sample() {
+            this.seen.increment();
+            final long now = this.clock.getAsLong();
+            final long start = this.windowStart.get();
+            if (now - start >= WINDOW_NANO && this.windowStart.compareAndSet(start, now)) {
+                final double rate = this.seen.sumThenReset() * (double) WINDOW_NANO / (now - start);
+                this.probability = rate <= this.maxEventsPerSecond
+                        ? 1.0 : this.maxEventsPerSecond / rate;
+            }
+            final double p = this.probability;
+            if (p >= 1.0) {
+                return 1.0;
+            }
+            return ThreadLocalRandom.current().nextDouble() < p ? 1.0 / p : 0.0;
+        }
+    }
+}
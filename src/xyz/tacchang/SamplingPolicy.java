@@ -0,0 +1,22 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+/**
+ * 抽出方針
+ */
+public interface SamplingPolicy {
+
+    /**
+     * 今回の計測を抽出するか否かを決める。
+     * 抽出する場合は重み（抽出確率の逆数）を返す。
+     * 集計時に件数を重みで拡大することで、抽出しても統計値が偏らない。
+     *
+     * @return 抽出する場合は重み（1以上）、抽出しない場合は0である。
+     */
+    double sample();
+}
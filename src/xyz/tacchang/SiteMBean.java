@@ -0,0 +1,123 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * 計測箇所ごとの統計のMBean。
+ * 属性は読み取り専用であり、読み取りのたびにヒストグラムから求める。
+ * 時間の属性の単位はナノ秒である。
+ */
+final class SiteMBean implements DynamicMBean {
+
+    /**
+     * 属性名
+     */
+    private static final String[] NAMES = {"Count", "Mean", "Min", "Max", "P50", "P90", "P99", "P999"};
+
+    private static final MBeanInfo INFO = buildInfo();
+
+    private final String id;
+
+    /**
+     * 統計の取得方法。記録がない場合はNULLを返す。
+     */
+    private final Supplier<LatencyHistogram> histogram;
+
+    SiteMBean(final String id, final Supplier<LatencyHistogram> histogram) {
+        this.id = id;
+        this.histogram = histogram;
+    }
+
+    private static MBeanInfo buildInfo() {
+        final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[NAMES.length];
+        for (int i = 0; i < NAMES.length; i++) {
+            final String type = "Mean".equals(NAMES[i]) ? "double" : "long";
+            attributes[i] = new MBeanAttributeInfo(NAMES[i], type,
+                    NAMES[i] + " of elapsed time (nanoseconds) or count.", true, false, false);
+        }
+        return new MBeanInfo(SiteMBean.class.getName(), "Timing statistics of a measurement site.",
+                attributes, null, new MBeanOperationInfo[0], null);
+    }
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+        final LatencyHistogram histogram = this.histogram.get();
+        switch (attribute) {
+            case "Count":
+                return histogram == null ? 0L : histogram.getCount();
+            case "Mean":
+                return histogram == null ? Double.NaN : histogram.getMean();
+            case "Min":
+                return histogram == null ? 0L : histogram.getMin();
+            case "Max":
+                return histogram == null ? 0L : histogram.getMax();
+            case "P50":
+                return histogram == null ? 0L : histogram.getP50();
+            case "P90":
+                return histogram == null ? 0L : histogram.getP90();
+            case "P99":
+                return histogram == null ? 0L : histogram.getP99();
+            case "P999":
+                return histogram == null ? 0L : histogram.getP999();
+            default:
+                throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only.");
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+        final AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            try {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch (AttributeNotFoundException ex) {
+                // 存在しない属性は含めない
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return INFO;
+    }
+
+    /**
+     * 計測箇所識別子を返す。
+     *
+     * @return 計測箇所識別子
+     */
+    String getId() {
+        return this.id;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 計測箇所登録簿。
+ * 計測箇所識別子のキーに0から始まる連番の計測箇所番号を割り当てる。
+ * 番号は一度割り当てたら変わらない。
+ * シングルトンである。
+ */
+public final class SiteRegistry {
+
+    /**
+     * シングルトンインスタンス
+     * Bill Push型シングルトンである。
+     */
+    private static class SingletonHolder {
+        private static final SiteRegistry INSTANCE = new SiteRegistry();
+    }
+
+    /**
+     * キーから計測箇所番号への対応
+     */
+    private final Map<String, Integer> numbers = new ConcurrentHashMap<>();
+
+    /**
+     * 計測箇所番号から計測箇所識別子への対応。
+     * 登録時のみ複製して差し替える。
+     */
+    private volatile Uniquable[] sites = new Uniquable[64];
+
+    /**
+     * 登録済みの計測箇所数
+     */
+    private volatile int size = 0;
+
+    private SiteRegistry() {}
+
+    /**
+     * 計測箇所登録簿を取得する。
+     *
+     * @return 計測箇所登録簿
+     */
+    public static SiteRegistry getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /**
+     * 計測箇所番号を取得する。
+     * 未登録の場合は登録する。
+     * 計測箇所ハンドル（Period.Site）の場合は割り当て済みの番号を返す。
+     *
+     * @param id 計測箇所識別子
+     * @return 計測箇所番号
+     */
+    public int register(final Uniquable id) {
+        if (id instanceof Period.Site) {
+            return ((Period.Site) id).getNumber();
+        }
+        final Integer number = this.numbers.get(id.getKey());
+        if (number != null) {
+            return number;
+        }
+        return registerNew(id);
+    }
+
+    /**
+     * キーの計測箇所番号を取得する。
+     * 未登録の場合は登録する。
+     * StopWatchなど文字列の計測箇所識別子で記録する場合に使用する。
+     *
+     * @param key 計測箇所識別子のキー
+     * @return 計測箇所番号
+     */
+    public int registerKey(final String key) {
+        final Integer number = this.numbers.get(key);
+        if (number != null) {
+            return number;
+        }
+        return registerNew(() -> key);
+    }
+
+    /**
+     * キーの計測箇所番号を引く。
+     * 未登録の場合も登録しない。
+     *
+     * @param key 計測箇所識別子のキー
+     * @return 計測箇所番号。未登録の場合は-1。
+     */
+    public int find(final String key) {
+        final Integer number = this.numbers.get(key);
+        return number == null ? -1 : number;
+    }
+
+    /**
+     * キーで計測箇所番号を割り当てる。
+     * 割り当て済みの場合はその番号を返す。
+     *
+     * @param id 計測箇所識別子
+     * @return 計測箇所番号
+     */
+    synchronized int registerNew(final Uniquable id) {
+        final String key = id.getKey();
+        final Integer number = this.numbers.get(key);
+        if (number != null) {
+            return number;
+        }
+        final int next = this.size;
+        Uniquable[] current = this.sites;
+        if (next == current.length) {
+            current = Arrays.copyOf(current, next * 2);
+        }
+        current[next] = id;
+        this.sites = current;
+        this.size = next + 1;
+        this.numbers.put(key, next);
+        return next;
+    }
+
+    /**
+     * 計測箇所番号に対応する計測箇所識別子を返す。
+     *
+     * @param number 計測箇所番号
+     * @return 計測箇所識別子。未登録の場合はNULL。
+     */
+    public Uniquable lookup(final int number) {
+        if (number < 0 || number >= this.size) {
+            return null;
+        }
+        return this.sites[number];
+    }
+
+    /**
+     * 登録済みの計測箇所数を返す。
+     *
+     * @return 計測箇所数
+     */
+    public int size() {
+        return this.size;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 分位点スケッチによる処理時間記録。
+ * 計測箇所識別子ごと、スレッドごとに分位点スケッチ（QuantileSketch）を持ち、
+ * 各スレッドは自分のスケッチのみを更新するため、スレッド間で競合しない。
+ * 読み取り時にスレッドごとのスケッチを併合する。
+ * 百分位数は相対誤差以内で求まり、使用するメモリは計測箇所とスレッドの数で決まる。
+ * 抽出の重みは確率的に丸めた件数として記録する（件数の期待値は重みに等しい）。
+ */
+public class SketchResult implements MeasurementResultCollectable {
+
+    /**
+     * スレッドごとのスケッチ。
+     * 更新は所有スレッドのみが行い、読み取り側との間は本オブジェクトで同期する。
+     */
+    private static final class Part {
+
+        final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+
+        final QuantileSketch sketch;
+
+        Part(final QuantileSketch sketch) {
+            this.sketch = sketch;
+        }
+
+        boolean isOwnerTerminated() {
+            final Thread thread = this.owner.get();
+            return thread == null || !thread.isAlive();
+        }
+    }
+
+    /**
+     * 1計測箇所分のスケッチ
+     */
+    private final class Site {
+
+        final List<Part> parts = new CopyOnWriteArrayList<>();
+
+        /**
+         * 終了したスレッドのスケッチを併合したもの（本オブジェクトで同期する）
+         */
+        final QuantileSketch retired = newSketch();
+
+        Part newPart() {
+            final Part part = new Part(newSketch());
+            this.parts.add(part);
+            return part;
+        }
+
+        /**
+         * 全てのスケッチを併合する。
+         * 終了したスレッドのスケッチは以降の読み取りのために退避する。
+         */
+        QuantileSketch merge() {
+            final QuantileSketch merged = newSketch();
+            synchronized (this.retired) {
+                for (Part part : this.parts) {
+                    final boolean terminated = part.isOwnerTerminated();
+                    synchronized (part) {
+                        (terminated ? this.retired : merged).merge(part.sketch);
+                    }
+                    if (terminated) {
+                        this.parts.remove(part);
+                    }
+                }
+                merged.merge(this.retired);
+            }
+            return merged;
+        }
+    }
+
+    private final double relativeAccuracy;
+
+    private final int maxBins;
+
+    private final Map<String, Site> sites = new ConcurrentHashMap<>();
+
+    /**
+     * スレッドごとの、計測箇所識別子から自スレッドのスケッチへの対応
+     */
+    private final ThreadLocal<Map<String, Part>> local = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * コンストラクタ。
+     * 相対誤差1%で記録する。
+     */
+    public SketchResult() {
+        this(QuantileSketch.DEFAULT_RELATIVE_ACCURACY, QuantileSketch.DEFAULT_MAX_BINS);
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param relativeAccuracy 相対誤差（0より大きく1未満）
+     * @param maxBins 1スケッチあたりのバケット数の上限
+     */
+    public SketchResult(final double relativeAccuracy, final int maxBins) {
+        if (!(relativeAccuracy > 0.0 && relativeAccuracy < 1.0)) {
+            throw new IllegalArgumentException("Argument 'relativeAccuracy' is out of range.");
+        }
+        if (maxBins <= 0) {
+            throw new IllegalArgumentException("Argument 'maxBins' must be positive.");
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.maxBins = maxBins;
+    }
+
+    private QuantileSketch newSketch() {
+        return new QuantileSketch(this.relativeAccuracy, this.maxBins);
+    }
+
+    @Override
+    public void append(final MeasurementReport report) {
+        final Part part = part(report.getId());
+        final long count = LatencyHistogram.sampledCount(report.getWeight());
+        synchronized (part) {
+            part.sketch.record(report.getElapsedEpochNano(), count);
+        }
+    }
+
+    private Part part(final String id) {
+        final Map<String, Part> parts = this.local.get();
+        Part part = parts.get(id);
+        if (part == null) {
+            part = this.sites.computeIfAbsent(id, key -> new Site()).newPart();
+            parts.put(id, part);
+        }
+        return part;
+    }
+
+    /**
+     * 計測箇所のスケッチを返す。
+     * スレッドごとのスケッチを併合した複製であり、以降の記録は反映しない。
+     *
+     * @param id 計測箇所識別子
+     * @return スケッチ。記録がない場合はNULL。
+     */
+    public QuantileSketch getSketch(final String id) {
+        final Site site = this.sites.get(id);
+        return site == null ? null : site.merge();
+    }
+
+    /**
+     * 記録したことのある計測箇所識別子を返す。
+     * clear()の後も含む。
+     *
+     * @return 計測箇所識別子（読み取り専用）
+     */
+    public Set<String> getIds() {
+        return Collections.unmodifiableSet(this.sites.keySet());
+    }
+
+    /**
+     * 相対誤差を返す。
+     *
+     * @return 相対誤差
+     */
+    public double getRelativeAccuracy() {
+        return this.relativeAccuracy;
+    }
+
+    /**
+     * 全ての記録を消去する。
+     */
+    public void clear() {
+        for (Site site : this.sites.values()) {
+            synchronized (site.retired) {
+                for (Part part : site.parts) {
+                    synchronized (part) {
+                        part.sketch.reset();
+                    }
+                }
+                site.retired.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * ヒープ外の記録バッファ。
+ * 記録を固定長エントリとしてダイレクトバッファ（スラブ）に詰めて格納する。
+ * 記録時にヒープオブジェクトを生成しない。
+ * エントリの形式は以下の通り（ネイティブバイトオーダー）。
+ * <pre>
+ *  0: int  計測箇所番号（SiteRegistry）
+ *  4: int  フラグ（FLAG_BEGIN、FLAG_SPAN、FLAG_PERIOD）
+ *  8: long 計算機クロック時刻（ナノ秒）
+ * 16: long スレッドID
+ * 24: long 区間番号（非同期区間のみ）
+ * 32: long 親の区間番号（非同期区間のみ）
+ * 40: double 抽出の重み（開始は1）
+ * </pre>
+ * 非同期区間（AsyncPeriod.Span）は計測箇所名で計測箇所番号を割り当て、区間番号はエントリに格納する。
+ * 区間ごとに計測箇所登録簿の登録が増えないようにするためである。
+ * 同様に区間（Period.PeriodId）はスレッドを区別しないクラス名と行番号で計測箇所番号を割り当て、
+ * 読み取り時にエントリのスレッドIDからPeriodIdを組み立て直す。
+ * そのためSlabRecordReader.getSiteId()の計測箇所番号はスレッドを区別しない。
+ * 動的に組み立てたキーの計測箇所識別子は、従来通りキーごとに計測箇所登録簿に残り続ける。
+ */
+final class SlabRecordBuffer extends ThreadRecordBuffer {
+
+    /**
+     * 1エントリのバイト数
+     */
+    static final int ENTRY_SIZE = 48;
+
+    static final int SITE_OFFSET = 0;
+
+    static final int FLAGS_OFFSET = 4;
+
+    static final int EPOCH_NANO_OFFSET = 8;
+
+    static final int THREAD_ID_OFFSET = 16;
+
+    static final int SPAN_ID_OFFSET = 24;
+
+    static final int PARENT_SPAN_ID_OFFSET = 32;
+
+    static final int WEIGHT_OFFSET = 40;
+
+    /**
+     * 開始を表すフラグ
+     */
+    static final int FLAG_BEGIN = 1;
+
+    /**
+     * 非同期区間を表すフラグ
+     */
+    static final int FLAG_SPAN = 2;
+
+    /**
+     * 区間（Period.PeriodId）を表すフラグ
+     */
+    static final int FLAG_PERIOD = 4;
+
+    /**
+     * 区間の計測箇所。
+     * 計測箇所登録簿にクラス名と行番号のキーで登録し、PeriodIdを組み立て直す元にする。
+     */
+    static final class PeriodSite implements Uniquable {
+
+        private final Period.PeriodId template;
+
+        PeriodSite(final Period.PeriodId template) {
+            this.template = template;
+        }
+
+        Period.PeriodId getTemplate() {
+            return this.template;
+        }
+
+        Period.PeriodId toPeriodId(final long threadId) {
+            return new Period.PeriodId(
+                    this.template.getClassName(),
+                    this.template.getMethodName(),
+                    this.template.getFileName(),
+                    this.template.getLineNumber(),
+                    threadId);
+        }
+
+        @Override
+        public String getKey() {
+            return this.template.getSiteKey();
+        }
+
+        @Override
+        public String toString() {
+            return getKey();
+        }
+    }
+
+    /**
+     * スラブ。
+     * 満杯になると次のスラブを連結する。
+     */
+    static final class Slab {
+
+        /**
+         * 本スラブ先頭の通番
+         */
+        final long base;
+
+        final ByteBuffer bytes;
+
+        volatile Slab next;
+
+        Slab(final long base, final int capacity) {
+            this.base = base;
+            this.bytes = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE)
+                    .order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * 1スラブあたりのエントリ数
+     */
+    private final int capacity;
+
+    private final SiteRegistry registry = SiteRegistry.getInstance();
+
+    /**
+     * 書き込み中のスラブ（所有スレッドのみ参照）
+     */
+    private Slab tail;
+
+    /**
+     * 次に書き込む通番（所有スレッドのみ参照）
+     */
+    private long writeIndex = 0;
+
+    /**
+     * 読み取り側に公開済みの書き込み件数
+     */
+    private final AtomicLong published = new AtomicLong();
+
+    /**
+     * 読み取り開始スラブ（読み取り側で同期）
+     */
+    private Slab head;
+
+    /**
+     * 読み取り開始通番（読み取り側で同期）
+     */
+    private long start = 0;
+
+    /**
+     * コンストラクタ。
+     * 所有スレッドで呼び出すこと。
+     *
+     * @param slabBytes 1スラブあたりのバイト数
+     */
+    SlabRecordBuffer(final int slabBytes) {
+        this.capacity = slabBytes / ENTRY_SIZE;
+        if (this.capacity <= 0) {
+            throw new IllegalArgumentException("Argument 'slabBytes' is too small.");
+        }
+        this.tail = new Slab(0, this.capacity);
+        this.head = this.tail;
+    }
+
+    @Override
+    void append(
+            final Uniquable id,
+            final boolean begin,
+            final long epochNano,
+            final double weight,
+            final long parentSpanId) {
+        final long index = this.writeIndex;
+        int offset = (int) (index - this.tail.base);
+        if (offset == this.capacity) {
+            final Slab slab = new Slab(index, this.capacity);
+            this.tail.next = slab;
+            this.tail = slab;
+            offset = 0;
+        }
+        final ByteBuffer bytes = this.tail.bytes;
+        final int position = offset * ENTRY_SIZE;
+        final int flags = begin ? FLAG_BEGIN : 0;
+        if (id instanceof AsyncPeriod.Span) {
+            final AsyncPeriod.Span span = (AsyncPeriod.Span) id;
+            bytes.putInt(position + SITE_OFFSET, this.registry.registerKey(span.getSiteKey()));
+            bytes.putInt(position + FLAGS_OFFSET, flags | FLAG_SPAN);
+            bytes.putLong(position + SPAN_ID_OFFSET, span.getSpanId());
+            bytes.putLong(position + PARENT_SPAN_ID_OFFSET, span.getParentSpanId());
+        } else if (id instanceof Period.PeriodId) {
+            bytes.putInt(position + SITE_OFFSET, registerPeriod((Period.PeriodId) id));
+            bytes.putInt(position + FLAGS_OFFSET, flags | FLAG_PERIOD);
+            bytes.putLong(position + PARENT_SPAN_ID_OFFSET, parentSpanId);
+        } else {
+            bytes.putInt(position + SITE_OFFSET, this.registry.register(id));
+            bytes.putInt(position + FLAGS_OFFSET, flags);
+            bytes.putLong(position + PARENT_SPAN_ID_OFFSET, parentSpanId);
+        }
+        bytes.putLong(position + EPOCH_NANO_OFFSET, epochNano);
+        bytes.putLong(position + THREAD_ID_OFFSET, getThreadId());
+        bytes.putDouble(position + WEIGHT_OFFSET, weight);
+        this.writeIndex = index + 1;
+        this.published.lazySet(index + 1);
+    }
+
+    @Override
+    synchronized long forEachFrom(
+            final long from,
+            final long maxCount,
+            final Consumer<? super PeriodRecorder.Record> action) {
+        final long published = this.published.get();
+        final long first = Math.max(from, this.start);
+        final long end = first + Math.min(maxCount, Math.max(0, published - first));
+        Slab slab = this.head;
+        for (long index = first; index < end; index++) {
+            int offset = (int) (index - slab.base);
+            while (offset >= this.capacity) {
+                slab = slab.next;
+                offset = (int) (index - slab.base);
+            }
+            final ByteBuffer bytes = slab.bytes;
+            final int position = offset * ENTRY_SIZE;
+            final int flags = bytes.getInt(position + FLAGS_OFFSET);
+            action.accept(new PeriodRecorder.Record(
+                    idOf(bytes, position, flags),
+                    (flags & FLAG_BEGIN) != 0,
+                    bytes.getLong(position + EPOCH_NANO_OFFSET),
+                    bytes.getLong(position + THREAD_ID_OFFSET),
+                    index,
+                    bytes.getDouble(position + WEIGHT_OFFSET),
+                    (flags & FLAG_SPAN) != 0 ? 0 : bytes.getLong(position + PARENT_SPAN_ID_OFFSET)));
+        }
+        return end;
+    }
+
+    /**
+     * 区間の計測箇所番号をクラス名と行番号で引く。
+     * 未登録の場合は登録する。
+     * スレッドごとに計測箇所登録簿の登録が増えないよう、MeasurementLogでも使用する。
+     *
+     * @param id 区間の計測箇所識別子
+     * @return 計測箇所番号
+     */
+    static int registerPeriod(final Period.PeriodId id) {
+        final SiteRegistry registry = SiteRegistry.getInstance();
+        final int number = registry.find(id.getSiteKey());
+        if (number >= 0) {
+            return number;
+        }
+        return registry.registerNew(new PeriodSite(id));
+    }
+
+    /**
+     * エントリの計測箇所識別子を返す。
+     * 非同期区間の場合は区間番号から区間ごとの識別子を生成する。
+     * 区間の場合はスレッドIDからPeriodIdを生成する。
+     *
+     * @param bytes スラブ
+     * @param position エントリの位置
+     * @param flags エントリのフラグ
+     * @return 計測箇所識別子
+     */
+    static Uniquable idOf(final ByteBuffer bytes, final int position, final int flags) {
+        final Uniquable site = SiteRegistry.getInstance().lookup(bytes.getInt(position + SITE_OFFSET));
+        if ((flags & FLAG_PERIOD) != 0 && site instanceof PeriodSite) {
+            return ((PeriodSite) site).toPeriodId(bytes.getLong(position + THREAD_ID_OFFSET));
+        }
+        if ((flags & FLAG_SPAN) == 0 || site == null) {
+            return site;
+        }
+        return new AsyncPeriod.Span(
+                site.getKey(),
+                bytes.getLong(position + SPAN_ID_OFFSET),
+                bytes.getLong(position + PARENT_SPAN_ID_OFFSET));
+    }
+
+    @Override
+    long getPublished() {
+        return this.published.get();
+    }
+
+    @Override
+    synchronized long size() {
+        return this.published.get() - this.start;
+    }
+
+    @Override
+    synchronized void clear(final long upTo) {
+        final long end = Math.min(upTo, this.published.get());
+        if (end <= this.start) {
+            return;
+        }
+        while (this.head.next != null && this.head.next.base <= end) {
+            this.head = this.head.next;
+        }
+        this.start = end;
+    }
+
+    /**
+     * 読み取り範囲を読み取り器に設定する。
+     * 読み取り器はスラブを直接参照するため、
+     * 設定後にclear()されても読み取り中のスラブは回収されない。
+     *
+     * @param reader 読み取り器
+     */
+    synchronized void position(final SlabRecordReader reader) {
+        reader.position(this.head, this.start, this.published.get(), this.capacity);
+    }
+}
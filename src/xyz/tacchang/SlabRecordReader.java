@@ -0,0 +1,204 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * ヒープ外記録の読み取り器。
+ * フライウェイトであり、next()で現在位置を進めて各値をスラブから直接読み取る。
+ * 読み取り中にオブジェクトを生成しない。
+ * 記録の順序はスレッドごとの記録順であり、スレッド間では時刻順に並ばない。
+ * <pre>
+ * SlabRecordReader reader = recorder.newSlabReader();
+ * while (reader.next()) {
+ *     reader.getSiteId();
+ * }
+ * </pre>
+ */
+public final class SlabRecordReader {
+
+    private final List<ThreadRecordBuffer> source;
+
+    /**
+     * reset()時点のバッファ一覧
+     */
+    private ThreadRecordBuffer[] buffers = new ThreadRecordBuffer[0];
+
+    /**
+     * 読み取り中のバッファの位置
+     */
+    private int bufferIndex;
+
+    private SlabRecordBuffer.Slab slab;
+
+    private long index;
+
+    private long end;
+
+    private int capacity;
+
+    /**
+     * 現在のエントリのスラブ内位置
+     */
+    private int position;
+
+    private ByteBuffer bytes;
+
+    SlabRecordReader(final List<ThreadRecordBuffer> buffers) {
+        this.source = buffers;
+        reset();
+    }
+
+    /**
+     * 先頭から読み直す。
+     * 読み取り範囲はバッファごとにnext()で移った時点の公開済み記録である。
+     */
+    public void reset() {
+        this.buffers = this.source.toArray(this.buffers);
+        this.bufferIndex = -1;
+        this.slab = null;
+        this.index = 0;
+        this.end = 0;
+        this.bytes = null;
+    }
+
+    /**
+     * 次のエントリに進む。
+     *
+     * @return エントリがある場合は真である。
+     */
+    public boolean next() {
+        while (this.index >= this.end) {
+            if (!nextBuffer()) {
+                this.bytes = null;
+                return false;
+            }
+        }
+        int offset = (int) (this.index - this.slab.base);
+        while (offset >= this.capacity) {
+            this.slab = this.slab.next;
+            offset = (int) (this.index - this.slab.base);
+        }
+        this.bytes = this.slab.bytes;
+        this.position = offset * SlabRecordBuffer.ENTRY_SIZE;
+        this.index++;
+        return true;
+    }
+
+    private boolean nextBuffer() {
+        while (++this.bufferIndex < this.buffers.length) {
+            final ThreadRecordBuffer buffer = this.buffers[this.bufferIndex];
+            if (buffer == null) {
+                return false;
+            }
+            if (buffer instanceof SlabRecordBuffer) {
+                ((SlabRecordBuffer) buffer).position(this);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void position(
+            final SlabRecordBuffer.Slab slab,
+            final long start,
+            final long end,
+            final int capacity) {
+        this.slab = slab;
+        this.index = start;
+        this.end = end;
+        this.capacity = capacity;
+    }
+
+    /**
+     * 計測箇所番号を返す。
+     *
+     * @return 計測箇所番号（SiteRegistry）
+     */
+    public int getSiteId() {
+        return this.bytes.getInt(this.position + SlabRecordBuffer.SITE_OFFSET);
+    }
+
+    /**
+     * 計測箇所識別子を返す。
+     * 非同期区間の場合は区間ごとの識別子を生成する。
+     *
+     * @return 計測箇所識別子
+     */
+    public Uniquable getId() {
+        return SlabRecordBuffer.idOf(this.bytes, this.position,
+                this.bytes.getInt(this.position + SlabRecordBuffer.FLAGS_OFFSET));
+    }
+
+    /**
+     * 非同期区間の記録か否かを返す。
+     *
+     * @return 非同期区間の場合は真である。
+     */
+    public boolean isSpan() {
+        return (this.bytes.getInt(this.position + SlabRecordBuffer.FLAGS_OFFSET)
+                & SlabRecordBuffer.FLAG_SPAN) != 0;
+    }
+
+    /**
+     * 区間番号を返す。
+     *
+     * @return 区間番号。非同期区間でない場合は0。
+     */
+    public long getSpanId() {
+        return isSpan() ? this.bytes.getLong(this.position + SlabRecordBuffer.SPAN_ID_OFFSET) : 0;
+    }
+
+    /**
+     * 親の区間番号を返す。
+     * 非同期区間でない場合は、開始を記録したときの文脈（PeriodContext）の非同期区間の区間番号を返す。
+     *
+     * @return 親の区間番号。親がない場合は0。
+     */
+    public long getParentSpanId() {
+        return this.bytes.getLong(this.position + SlabRecordBuffer.PARENT_SPAN_ID_OFFSET);
+    }
+
+    /**
+     * 開始の記録か否かを返す。
+     *
+     * @return 開始の場合は真である。
+     */
+    public boolean isBegin() {
+        return (this.bytes.getInt(this.position + SlabRecordBuffer.FLAGS_OFFSET)
+                & SlabRecordBuffer.FLAG_BEGIN) != 0;
+    }
+
+    /**
+     * 計算機クロック時刻を返す。
+     *
+     * @return 計算機クロック時刻（ナノ秒）
+     */
+    public long getEpochNano() {
+        return this.bytes.getLong(this.position + SlabRecordBuffer.EPOCH_NANO_OFFSET);
+    }
+
+    /**
+     * 記録したスレッドのスレッドIDを返す。
+     *
+     * @return スレッドID
+     */
+    public long getThreadId() {
+        return this.bytes.getLong(this.position + SlabRecordBuffer.THREAD_ID_OFFSET);
+    }
+
+    /**
+     * 現在の記録の抽出の重みを返す。
+     *
+     * @return 抽出の重み（抽出確率の逆数。開始は1）
+     */
+    public double getWeight() {
+        return this.bytes.getDouble(this.position + SlabRecordBuffer.WEIGHT_OFFSET);
+    }
+}
@@ -9,6 +9,26 @@ package xyz.tacchang;
  * 処理時間計測。
  * 時間単位はプログラムを実行しているマシンの時間である。
  * 便宜上これを計算機クロック時刻と呼ぶ。
+ * 計測結果は計測箇所番号、または計測箇所識別子でMeasurementResultCollectableに渡すため、
+ * 対応する出力先であれば計測結果のオブジェクトを生成しない。
+ * 計測箇所識別子で生成した場合は計測箇所登録簿（SiteRegistry）に登録せず、
+ * 計測箇所番号が必要な出力先が記録時に引く。
+ * 動的に組み立てた計測箇所識別子で計測箇所登録簿が増え続けないようにするためである。
+ * stop()の後、またはreset()の後に再びstart()を呼べば同じオブジェクトで計測を繰り返せる。
+ * ラップの上限数を指定した場合は、段階ごとの区切り（ラップ）を生成時に確保した配列に記録し、
+ * stop()で各段階の処理時間と全体の処理時間をまとめて出力先に渡す。
+ * 段階の処理時間は直前のラップ（最初の段階は開始）からの時間である。
+ * <pre>
+ * final StopWatch watch = new StopWatch(false, "OrderService.handle", reporter, 8);
+ * final int parse = watch.registerLap("parse");
+ * final int price = watch.registerLap("price");
+ * watch.start();
+ * ...
+ * watch.lap(parse);
+ * ...
+ * watch.lap(price);
+ * watch.stop();  // OrderService.handle/parse、OrderService.handle/price、OrderService.handle を出力する
+ * </pre>
  */
 public final class StopWatch implements AutoCloseable {
     
@@ -38,6 +58,12 @@ public final class StopWatch implements AutoCloseable {
      */
     private final String id;
     
+    /**
+     * 計測箇所識別子の計測箇所番号（SiteRegistry）である。
+     * 未登録の場合は-1であり、ラップとまとめて出力する場合、またはgetSiteId()で登録する。
+     */
+    private int siteId;
+    
     /**
      * 結果の出力先である。
      * NULL許容。NULLの場合は出力しない。
@@ -49,6 +75,26 @@ public final class StopWatch implements AutoCloseable {
      */
     private String lastError = "not started";
     
+    /**
+     * ラップの計測箇所番号である。末尾の1つは全体の計測箇所番号に使う。
+     */
+    private final int[] lapSiteIds;
+    
+    /**
+     * ラップ時の計算機クロック時刻である。
+     */
+    private final long[] lapNanos;
+    
+    /**
+     * 出力する処理時間である。末尾の1つは全体の処理時間に使う。
+     */
+    private final long[] reportNanos;
+    
+    /**
+     * 記録したラップの数である。
+     */
+    private int lapCount = 0;
+    
     /**
      * デフォルトコンストラクタ。
      * 計測を自動で開始する。
@@ -80,8 +126,79 @@ public final class StopWatch implements AutoCloseable {
             boolean immediately,
             final String id, 
             final MeasurementResultCollectable reporter) {
+        this(immediately, id, reporter, 0);
+    }
+    
+    /**
+     * コンストラクタ。
+     * 1つのオブジェクトで複数の段階の処理時間を計測する場合に使用する。
+     * 
+     * @param immediately 真の場合は計測を自動で開始する。
+     * @param id MeasurementResultCollectableに渡す計測箇所識別子。
+     * @param reporter MeasurementResultCollectableオブジェクト。
+     * @param maxLaps 1回の計測で記録できるラップの上限数。
+     */
+    public StopWatch(
+            boolean immediately,
+            final String id,
+            final MeasurementResultCollectable reporter,
+            final int maxLaps) {
+        if (maxLaps < 0) {
+            throw new IllegalArgumentException("Argument 'maxLaps' is out of range.");
+        }
         this.id = id;
+        this.siteId = -1;
         this.reporter = reporter;
+        this.lapSiteIds = new int[maxLaps + 1];
+        this.lapNanos = new long[maxLaps];
+        this.reportNanos = new long[maxLaps + 1];
+        if (immediately) {
+            start();
+        }
+    }
+    
+    /**
+     * コンストラクタ。
+     * 登録済みの計測箇所番号で計測結果をMeasurementResultCollectableに登録する場合に使用する。
+     * 
+     * @param immediately 真の場合は計測を自動で開始する。
+     * @param siteId 計測箇所番号（SiteRegistry）。
+     * @param reporter MeasurementResultCollectableオブジェクト。
+     */
+    public StopWatch(
+            boolean immediately,
+            final int siteId,
+            final MeasurementResultCollectable reporter) {
+        this(immediately, siteId, reporter, 0);
+    }
+    
+    /**
+     * コンストラクタ。
+     * 登録済みの計測箇所番号で複数の段階の処理時間を計測する場合に使用する。
+     * 
+     * @param immediately 真の場合は計測を自動で開始する。
+     * @param siteId 計測箇所番号（SiteRegistry）。
+     * @param reporter MeasurementResultCollectableオブジェクト。
+     * @param maxLaps 1回の計測で記録できるラップの上限数。
+     */
+    public StopWatch(
+            boolean immediately,
+            final int siteId,
+            final MeasurementResultCollectable reporter,
+            final int maxLaps) {
+        if (maxLaps < 0) {
+            throw new IllegalArgumentException("Argument 'maxLaps' is out of range.");
+        }
+        final Uniquable site = SiteRegistry.getInstance().lookup(siteId);
+        if (site == null) {
+            throw new IllegalArgumentException("Argument 'siteId' is out of range.");
+        }
+        this.id = site.getKey();
+        this.siteId = siteId;
+        this.reporter = reporter;
+        this.lapSiteIds = new int[maxLaps + 1];
+        this.lapNanos = new long[maxLaps];
+        this.reportNanos = new long[maxLaps + 1];
         if (immediately) {
             start();
         }
@@ -96,6 +213,7 @@ public final class StopWatch implements AutoCloseable {
         if (!this.started) {
             this.beginNano = System.nanoTime();
             this.endNano = 0;
+            this.lapCount = 0;
             this.started = true;
             
             return true;
@@ -116,8 +234,21 @@ public final class StopWatch implements AutoCloseable {
             this.automaticallyStopped = false;
             
             if (reporter != null) {
-                MeasurementReport report = new MeasurementReport(this.id, this.getElapsedEpochNano());
-                reporter.append(report);
+                final double weight = Sampler.getInstance().sample(this.id);
+                if (weight != 0.0) {
+                    if (this.lapCount == 0 && this.siteId < 0) {
+                        reporter.append(this.id, this.getElapsedEpochNano(), weight);
+                    } else if (this.lapCount == 0) {
+                        reporter.append(this.siteId, this.getElapsedEpochNano(), weight);
+                    } else {
+                        for (int i = 0; i < this.lapCount; i++) {
+                            this.reportNanos[i] = getLapElapsedEpochNano(i);
+                        }
+                        this.lapSiteIds[this.lapCount] = getSiteId();
+                        this.reportNanos[this.lapCount] = this.getElapsedEpochNano();
+                        reporter.appendAll(this.lapSiteIds, this.reportNanos, this.lapCount + 1, weight);
+                    }
+                }
             }
             
             return true;
@@ -125,6 +256,105 @@ public final class StopWatch implements AutoCloseable {
         return false;
     }
 
+    /**
+     * ラップの計測箇所番号を登録する。
+     * 計測箇所識別子は「計測箇所識別子/ラップ名」となる。
+     * 計測の前に一度だけ呼び、戻り値をlap(int)に渡す。
+     * 
+     * @param name ラップ名
+     * @return ラップの計測箇所番号（SiteRegistry）
+     */
+    public int registerLap(final String name) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Argument 'name' is not allowed to be empty.");
+        }
+        return SiteRegistry.getInstance().registerKey(this.id + "/" + name);
+    }
+    
+    /**
+     * ラップを記録する。
+     * 直前のラップ（最初のラップは開始）からこの時点までを1つの段階とする。
+     * オブジェクトを生成しない。
+     * 
+     * @param lapSiteId registerLap()で得たラップの計測箇所番号
+     * @return 記録できた場合は真である。計測中でない場合、上限数に達した場合は偽である。
+     */
+    public boolean lap(final int lapSiteId) {
+        if (!this.started) {
+            return false;
+        }
+        if (this.lapCount == this.lapNanos.length) {
+            this.lastError = "too many laps";
+            return false;
+        }
+        this.lapNanos[this.lapCount] = System.nanoTime();
+        this.lapSiteIds[this.lapCount] = lapSiteId;
+        this.lapCount++;
+        return true;
+    }
+    
+    /**
+     * ラップを記録する。
+     * ラップの計測箇所識別子を毎回組み立てるため、繰り返し計測する場合はlap(int)を使う。
+     * 
+     * @param name ラップ名
+     * @return 記録できた場合は真である。計測中でない場合、上限数に達した場合は偽である。
+     */
+    public boolean lap(final String name) {
+        return lap(registerLap(name));
+    }
+    
+    /**
+     * 記録したラップの数を返す。
+     * 
+     * @return ラップの数
+     */
+    public int getLapCount() {
+        return this.lapCount;
+    }
+    
+    /**
+     * ラップの計測箇所番号を返す。
+     * 
+     * @param index ラップの位置（0から）
+     * @return ラップの計測箇所番号（SiteRegistry）
+     */
+    public int getLapSiteId(final int index) {
+        checkLapIndex(index);
+        return this.lapSiteIds[index];
+    }
+    
+    /**
+     * 段階の処理時間を計算機クロック(ナノ秒)で返す。
+     * 
+     * @param index ラップの位置（0から）
+     * @return 直前のラップ（最初のラップは開始）からの処理時間（ナノ秒）
+     */
+    public long getLapElapsedEpochNano(final int index) {
+        checkLapIndex(index);
+        return this.lapNanos[index] - (index == 0 ? this.beginNano : this.lapNanos[index - 1]);
+    }
+    
+    private void checkLapIndex(final int index) {
+        if (index < 0 || index >= this.lapCount) {
+            throw new IllegalArgumentException("Argument 'index' is out of range.");
+        }
+    }
+    
+    /**
+     * 計測を取り消して初期状態に戻す。
+     * 計測中の場合も結果は出力しない。
+     * 再びstart()を呼べば同じオブジェクトで計測できる。
+     */
+    public void reset() {
+        this.started = false;
+        this.lapCount = 0;
+        this.automaticallyStopped = false;
+        this.beginNano = 0;
+        this.endNano = 0;
+        this.lastError = "not started";
+    }
+
     /**
      * 自動で計測を終了する。
      * もしオブジェクト破棄時にstop()が呼ばれていない場合は自動で計測を終了する。
@@ -193,6 +423,19 @@ public final class StopWatch implements AutoCloseable {
         return false;
     }
     
+    /**
+     * 計測箇所番号を返す。
+     * 計測箇所識別子で生成した場合は、初回に計測箇所登録簿に登録する。
+     * 
+     * @return 計測箇所番号（SiteRegistry）。結果を出力しない場合は-1である。
+     */
+    public int getSiteId() {
+        if (this.siteId < 0 && this.reporter != null) {
+            this.siteId = SiteRegistry.getInstance().registerKey(this.id);
+        }
+        return this.siteId;
+    }
+    
     /**
      * 自動終了したか否かを返す。
      * 
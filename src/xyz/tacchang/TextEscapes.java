@@ -0,0 +1,71 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+/**
+ * 出力形式ごとの文字列の引用とエスケープ。
+ * JSONとPrometheusのテキスト形式のラベル値は同じ規則を基にし、
+ * ラベル値では引用符、逆斜線、改行のみをエスケープする。
+ */
+final class TextEscapes {
+
+    private TextEscapes() {}
+
+    /**
+     * JSONの文字列として引用符で囲んで追加する。
+     * 制御文字は\\uXXXX形式でエスケープする。
+     *
+     * @param into 追加先
+     * @param value 文字列。NULLの場合は空文字列とする。
+     */
+    static void appendJsonString(final StringBuilder into, final String value) {
+        appendQuoted(into, value, true);
+    }
+
+    /**
+     * Prometheusのテキスト形式のラベル値として引用符で囲んで追加する。
+     *
+     * @param into 追加先
+     * @param value 文字列。NULLの場合は空文字列とする。
+     */
+    static void appendLabelValue(final StringBuilder into, final String value) {
+        appendQuoted(into, value, false);
+    }
+
+    private static void appendQuoted(final StringBuilder into, final String value, final boolean json) {
+        into.append('"');
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        into.append("\\\"");
+                        break;
+                    case '\\':
+                        into.append("\\\\");
+                        break;
+                    case '\n':
+                        into.append("\\n");
+                        break;
+                    case '\r':
+                        into.append(json ? "\\r" : "\r");
+                        break;
+                    case '\t':
+                        into.append(json ? "\\t" : "\t");
+                        break;
+                    default:
+                        if (json && c < 0x20) {
+                            into.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            into.append(c);
+                        }
+                }
+            }
+        }
+        into.append('"');
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * スレッド専用の記録バッファ。
+ * 書き込みは所有スレッドのみが行う（単一ライター）。
+ * 読み取り側（スナップショット取得、クリア）は本オブジェクトで同期する。
+ */
+abstract class ThreadRecordBuffer {
+
+    /**
+     * 所有スレッドのスレッドID
+     */
+    private final long threadId;
+
+    /**
+     * 所有スレッド。
+     * スレッド終了後にバッファを破棄できるよう弱参照で保持する。
+     */
+    private final WeakReference<Thread> owner;
+
+    /**
+     * コンストラクタ。
+     * 所有スレッドで呼び出すこと。
+     */
+    ThreadRecordBuffer() {
+        final Thread thread = Thread.currentThread();
+        this.threadId = thread.getId();
+        this.owner = new WeakReference<>(thread);
+    }
+
+    long getThreadId() {
+        return this.threadId;
+    }
+
+    /**
+     * 所有スレッドが終了しているか否かを返す。
+     *
+     * @return 終了している場合は真である。
+     */
+    boolean isOwnerTerminated() {
+        final Thread thread = this.owner.get();
+        return thread == null || !thread.isAlive();
+    }
+
+    /**
+     * 記録を追記する。
+     * 所有スレッドからのみ呼び出すこと。
+     *
+     * @param id 計測箇所識別子
+     * @param begin 開始の場合は真
+     * @param epochNano 計算機クロック時刻（ナノ秒）
+     * @param weight 抽出の重み（抽出確率の逆数。開始は1）
+     * @param parentSpanId 区間の開始を記録したときの文脈の非同期区間の区間番号。ない場合は0。
+     */
+    abstract void append(
+            final Uniquable id,
+            final boolean begin,
+            final long epochNano,
+            final double weight,
+            final long parentSpanId);
+
+    /**
+     * 公開済みの記録を追加する。
+     *
+     * @param into 追加先
+     */
+    void collect(final List<PeriodRecorder.Record> into) {
+        forEach(into::add);
+    }
+
+    /**
+     * 公開済みの記録を記録順に1件ずつ渡す。
+     *
+     * @param action 記録を受け取る処理
+     */
+    void forEach(final Consumer<? super PeriodRecorder.Record> action) {
+        forEachFrom(0, action);
+    }
+
+    /**
+     * 指定の通番以降の公開済みの記録を記録順に1件ずつ渡す。
+     * 破棄済みの記録は渡さない。
+     *
+     * @param position 読み取り開始通番
+     * @param action 記録を受け取る処理
+     * @return 読み取り終了通番（次回の読み取り開始通番）
+     */
+    long forEachFrom(final long position, final Consumer<? super PeriodRecorder.Record> action) {
+        return forEachFrom(position, Long.MAX_VALUE, action);
+    }
+
+    /**
+     * 指定の通番以降の公開済みの記録を、最大件数までの範囲で記録順に1件ずつ渡す。
+     * 破棄済みの記録は渡さず、件数にも数えない。
+     * 記録を一定件数ずつ複製して処理する場合に使う。
+     *
+     * @param position 読み取り開始通番
+     * @param maxCount 最大件数
+     * @param action 記録を受け取る処理
+     * @return 読み取り終了通番（次回の読み取り開始通番）
+     */
+    abstract long forEachFrom(
+            final long position,
+            final long maxCount,
+            final Consumer<? super PeriodRecorder.Record> action);
+
+    /**
+     * 公開済みの書き込み件数（次に公開する通番）を返す。
+     *
+     * @return 書き込み件数
+     */
+    abstract long getPublished();
+
+    /**
+     * 公開済みの記録件数を返す。
+     *
+     * @return 記録件数
+     */
+    abstract long size();
+
+    /**
+     * 公開済みの記録を破棄する。
+     * 破棄した領域は参照を外してGCに回収させる。
+     */
+    void clear() {
+        clear(Long.MAX_VALUE);
+    }
+
+    /**
+     * 指定の通番より前の公開済みの記録を破棄する。
+     * 破棄した領域は参照を外してGCに回収させる。
+     *
+     * @param upTo 破棄終了通番（この通番の記録は残す）
+     */
+    abstract void clear(final long upTo);
+
+    /**
+     * 上書きで失った記録の件数を返す。
+     *
+     * @return 件数
+     */
+    long getOverwrittenCount() {
+        return 0;
+    }
+
+    /**
+     * 保持期間切れなどで捨てた記録の件数を返す。
+     *
+     * @return 件数
+     */
+    long getDroppedCount() {
+        return 0;
+    }
+}
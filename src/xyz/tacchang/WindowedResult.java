@@ -0,0 +1,269 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * 直近の期間の処理時間記録。
+ * 計測箇所識別子ごとに、一定時間ごとの小ヒストグラムを環状に保持する。
+ * 期間の統計は、期間に含まれる小ヒストグラムを合算して求めるため、
+ * 手間は小ヒストグラムの数に比例し、記録件数によらない。
+ * 小ヒストグラムは時間が過ぎると新しいものに差し替える。差し替えはCASで行い、記録するスレッドは待たない。
+ * 保持件数を指定した場合は、前方減衰による標本保持（DecayingReservoir）にも記録する。
+ * <pre>
+ * WindowedResult result = new WindowedResult();
+ * long p99 = result.getWindow("OrderService.price", 10000).getP99();
+ * </pre>
+ */
+public class WindowedResult implements MeasurementResultCollectable {
+
+    /**
+     * 既定の小ヒストグラムの時間幅（ミリ秒）
+     */
+    public static final long DEFAULT_BUCKET_MILLI = 5000;
+
+    /**
+     * 既定の小ヒストグラムの数（既定の時間幅で5分）
+     */
+    public static final int DEFAULT_BUCKET_COUNT = 60;
+
+    /**
+     * 既定の記録できる最大値（ナノ秒）
+     */
+    public static final long DEFAULT_HIGHEST_TRACKABLE_NANO = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * 小ヒストグラム。
+     * 時間幅の通番とヒストグラムの組であり、差し替えの単位である。
+     */
+    private static final class Bucket {
+
+        final long epoch;
+
+        final LatencyHistogram histogram;
+
+        Bucket(final long epoch, final LatencyHistogram histogram) {
+            this.epoch = epoch;
+            this.histogram = histogram;
+        }
+    }
+
+    /**
+     * 1計測箇所分の環状の小ヒストグラム
+     */
+    private final class Window {
+
+        final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(bucketCount);
+
+        final DecayingReservoir reservoir = reservoirSize > 0
+                ? new DecayingReservoir(reservoirSize, DecayingReservoir.DEFAULT_ALPHA, clock)
+                : null;
+
+        void record(final long epoch, final long value, final long count, final double weight) {
+            final int slot = (int) (epoch % bucketCount);
+            Bucket bucket = this.buckets.get(slot);
+            while (bucket == null || bucket.epoch < epoch) {
+                final Bucket fresh = new Bucket(epoch, newHistogram());
+                if (this.buckets.compareAndSet(slot, bucket, fresh)) {
+                    bucket = fresh;
+                    break;
+                }
+                bucket = this.buckets.get(slot);
+            }
+            if (bucket.epoch == epoch) {
+                bucket.histogram.record(value, count);
+            }
+            if (this.reservoir != null) {
+                this.reservoir.update(value, weight);
+            }
+        }
+    }
+
+    private final long bucketNano;
+
+    private final int bucketCount;
+
+    private final long highestTrackableNano;
+
+    private final int significantDigits;
+
+    private final int reservoirSize;
+
+    private final LongSupplier clock;
+
+    /**
+     * 時間幅の通番の原点（nanoTime()は負の値もとり得るため）
+     */
+    private final long originNano;
+
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    /**
+     * コンストラクタ。
+     * 5秒ごとの小ヒストグラムを5分間保持し、前方減衰による標本保持は行わない。
+     */
+    public WindowedResult() {
+        this(DEFAULT_BUCKET_MILLI, DEFAULT_BUCKET_COUNT);
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param bucketMilli 小ヒストグラムの時間幅（ミリ秒）
+     * @param bucketCount 小ヒストグラムの数
+     */
+    public WindowedResult(final long bucketMilli, final int bucketCount) {
+        this(bucketMilli, bucketCount, DEFAULT_HIGHEST_TRACKABLE_NANO,
+                HistogramResult.DEFAULT_SIGNIFICANT_DIGITS, 0);
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param bucketMilli 小ヒストグラムの時間幅（ミリ秒）
+     * @param bucketCount 小ヒストグラムの数
+     * @param highestTrackableNano 記録できる最大値（ナノ秒）
+     * @param significantDigits 有効桁数（1～5）
+     * @param reservoirSize 前方減衰による標本保持の件数。0の場合は行わない。
+     */
+    public WindowedResult(
+            final long bucketMilli,
+            final int bucketCount,
+            final long highestTrackableNano,
+            final int significantDigits,
+            final int reservoirSize) {
+        this(bucketMilli, bucketCount, highestTrackableNano, significantDigits, reservoirSize, System::nanoTime);
+    }
+
+    WindowedResult(
+            final long bucketMilli,
+            final int bucketCount,
+            final long highestTrackableNano,
+            final int significantDigits,
+            final int reservoirSize,
+            final LongSupplier clock) {
+        if (bucketMilli <= 0) {
+            throw new IllegalArgumentException("Argument 'bucketMilli' must be positive.");
+        }
+        if (bucketCount <= 0) {
+            throw new IllegalArgumentException("Argument 'bucketCount' must be positive.");
+        }
+        if (highestTrackableNano < 2) {
+            throw new IllegalArgumentException("Argument 'highestTrackableNano' is too small.");
+        }
+        if (significantDigits < 1 || significantDigits > 5) {
+            throw new IllegalArgumentException("Argument 'significantDigits' is out of range.");
+        }
+        if (reservoirSize < 0) {
+            throw new IllegalArgumentException("Argument 'reservoirSize' is not allowed to be negative.");
+        }
+        this.bucketNano = TimeUnit.MILLISECONDS.toNanos(bucketMilli);
+        this.bucketCount = bucketCount;
+        this.highestTrackableNano = highestTrackableNano;
+        this.significantDigits = significantDigits;
+        this.reservoirSize = reservoirSize;
+        this.clock = clock;
+        this.originNano = clock.getAsLong();
+    }
+
+    private LatencyHistogram newHistogram() {
+        return new LatencyHistogram(this.highestTrackableNano, this.significantDigits);
+    }
+
+    /**
+     * 現在の時間幅の通番を返す。
+     */
+    private long currentEpoch() {
+        return (this.clock.getAsLong() - this.originNano) / this.bucketNano;
+    }
+
+    @Override
+    public void append(final MeasurementReport report) {
+        final long count = LatencyHistogram.sampledCount(report.getWeight());
+        window(report.getId()).record(currentEpoch(), report.getElapsedEpochNano(), count, report.getWeight());
+    }
+
+    private Window window(final String id) {
+        final Window window = this.windows.get(id);
+        if (window != null) {
+            return window;
+        }
+        return this.windows.computeIfAbsent(id, key -> new Window());
+    }
+
+    /**
+     * 直近の期間のヒストグラムを返す。
+     * 期間は小ヒストグラムの時間幅に切り上げ、記録中の小ヒストグラムを含む。
+     *
+     * @param id 計測箇所識別子
+     * @param windowMilli 期間（ミリ秒）。保持する期間を超える場合は保持する期間全体。
+     * @return 期間内の記録を合算したヒストグラム。記録がない場合は空のヒストグラム。
+     */
+    public LatencyHistogram getWindow(final String id, final long windowMilli) {
+        if (windowMilli <= 0) {
+            throw new IllegalArgumentException("Argument 'windowMilli' must be positive.");
+        }
+        final LatencyHistogram merged = newHistogram();
+        final Window window = this.windows.get(id);
+        if (window == null) {
+            return merged;
+        }
+        final long windowNano = TimeUnit.MILLISECONDS.toNanos(windowMilli);
+        final long span = Math.min(this.bucketCount, (windowNano + this.bucketNano - 1) / this.bucketNano);
+        final long current = currentEpoch();
+        for (long epoch = Math.max(0, current - span + 1); epoch <= current; epoch++) {
+            final Bucket bucket = window.buckets.get((int) (epoch % this.bucketCount));
+            if (bucket != null && bucket.epoch == epoch) {
+                merged.add(bucket.histogram);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 計測箇所の前方減衰による標本保持を返す。
+     *
+     * @param id 計測箇所識別子
+     * @return 標本保持。記録がない場合、または保持件数が0の場合はNULL。
+     */
+    public DecayingReservoir getReservoir(final String id) {
+        final Window window = this.windows.get(id);
+        return window == null ? null : window.reservoir;
+    }
+
+    /**
+     * 記録のある計測箇所識別子を返す。
+     *
+     * @return 計測箇所識別子（読み取り専用）
+     */
+    public Set<String> getIds() {
+        return Collections.unmodifiableSet(this.windows.keySet());
+    }
+
+    /**
+     * 保持する期間を返す。
+     *
+     * @return 期間（ミリ秒）
+     */
+    public long getRetentionMilli() {
+        return TimeUnit.NANOSECONDS.toMillis(this.bucketNano * this.bucketCount);
+    }
+
+    /**
+     * 全ての記録を消去する。
+     */
+    public void clear() {
+        this.windows.clear();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class AsyncPeriodTest {
+
+    public AsyncPeriodTest() {
+    }
+
+    @Test
+    public void test01() throws Exception {
+        final MeasurementResult result = new MeasurementResult();
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final PeriodPairing pairing = new PeriodPairing(result, recorder);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final AsyncPeriod period = new AsyncPeriod("async.request", pairing);
+            final CompletableFuture<Integer> future = period.endOn(new CompletableFuture<>());
+            // 別スレッドで完了させると、そのスレッドで終了する
+            executor.submit(() -> future.complete(42)).get();
+            assertTrue(period.isEnded());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(0, pairing.getUnmatchedCount());
+        assertEquals(1.0, result.getEstimatedCount("async.request"), 1e-9);
+
+        // 記録からも開始と終了を対応付けられる
+        final List<PeriodRecorder.Record> records = recorder.getImmutableRecords();
+        assertEquals(2, records.size());
+        final PeriodPairing replay = new PeriodPairing(new MeasurementResult());
+        replay.acceptAll(records);
+        assertEquals(0, replay.getOpenCount());
+        assertEquals(0, replay.getUnmatchedCount());
+    }
+
+    @Test
+    public void test02() {
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final AsyncPeriod period = new AsyncPeriod("async.twice", recorder);
+        assertTrue(period.end());
+        assertFalse(period.end());
+        assertTrue(period.isEnded());
+        assertEquals(2, recorder.getImmutableRecords().size());
+    }
+
+    @Test
+    public void test03() throws Exception {
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            final AsyncPeriod parent = new AsyncPeriod("async.parent", recorder);
+            final Future<Long> child;
+            try (PeriodContext.Scope scope = parent.makeCurrent()) {
+                assertSame(parent.getSpan(), PeriodContext.current());
+                child = pool.submit(PeriodContext.wrap(() -> {
+                    try (AsyncPeriod period = new AsyncPeriod("async.child", recorder)) {
+                        return period.getSpan().getParentSpanId();
+                    }
+                }));
+            }
+            assertNull(PeriodContext.current());
+            assertEquals(parent.getSpan().getSpanId(), (long) child.get());
+            parent.end();
+
+            // プールのスレッドに文脈が残らない
+            final Future<AsyncPeriod.Span> leaked = pool.submit(PeriodContext::current);
+            assertNull(leaked.get());
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void test04() throws Exception {
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final AsyncPeriod parent = new AsyncPeriod("async.stages", recorder);
+            final CompletableFuture<Long> future;
+            try (PeriodContext.Scope scope = parent.makeCurrent()) {
+                future = CompletableFuture
+                        .supplyAsync(() -> 1L, PeriodContext.wrap(pool))
+                        .thenApplyAsync(PeriodContext.wrapFunction(
+                                value -> PeriodContext.current().getSpanId() + value - 1), pool);
+            }
+            assertEquals(parent.getSpan().getSpanId(), (long) future.get());
+            parent.end();
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void test05() {
+        // ヒープ外の記録では区間ごとに計測箇所を登録しない
+        final PeriodRecorder recorder = PeriodRecorder.offHeap(SlabRecordBuffer.ENTRY_SIZE * 16);
+        new AsyncPeriod("async.slab", recorder).end();
+        final int sites = SiteRegistry.getInstance().size();
+        final AsyncPeriod parent = new AsyncPeriod("async.slab", recorder);
+        final AsyncPeriod child;
+        try (PeriodContext.Scope scope = parent.makeCurrent()) {
+            child = new AsyncPeriod("async.slab", recorder);
+        }
+        child.end();
+        parent.end();
+        assertEquals(sites, SiteRegistry.getInstance().size());
+
+        final List<PeriodRecorder.Record> records = recorder.getImmutableRecords();
+        assertEquals(6, records.size());
+        final AsyncPeriod.Span span = (AsyncPeriod.Span) records.get(3).getId();
+        assertEquals("async.slab", span.getSiteKey());
+        assertEquals(child.getSpan().getKey(), span.getKey());
+        assertEquals(parent.getSpan().getSpanId(), span.getParentSpanId());
+        final PeriodPairing replay = new PeriodPairing(new MeasurementResult());
+        replay.acceptAll(records);
+        assertEquals(0, replay.getOpenCount());
+        assertEquals(0, replay.getUnmatchedCount());
+
+        final SlabRecordReader reader = recorder.newSlabReader();
+        assertTrue(reader.next());
+        assertTrue(reader.isSpan());
+        assertEquals("async.slab", SiteRegistry.getInstance().lookup(reader.getSiteId()).getKey());
+        assertTrue(reader.getSpanId() > 0);
+        assertEquals(0, reader.getParentSpanId());
+    }
+
+    @Test
+    public void test06() {
+        // 文脈の中の同期の区間は開始の記録に文脈の区間番号を親として残す
+        final PeriodRecorder[] recorders = {
+            new PeriodRecorder(),
+            PeriodRecorder.offHeap(SlabRecordBuffer.ENTRY_SIZE * 16),
+            PeriodRecorder.flightRecorder(16, 0),
+        };
+        for (PeriodRecorder recorder : recorders) {
+            final Period.PeriodId id = new Period.PeriodId("async.Context", "m", "AsyncPeriodTest.java", 10, 0);
+            final AsyncPeriod async = new AsyncPeriod("async.context", recorder);
+            try (PeriodContext.Scope scope = async.makeCurrent()) {
+                new Period(id, recorder).stop();
+            }
+            new Period(id, recorder).stop();
+            async.end();
+
+            final List<PeriodRecorder.Record> records = recorder.getImmutableRecords();
+            assertEquals(6, records.size());
+            assertEquals(0, records.get(0).getParentSpanId());
+            assertTrue(records.get(1).isBegin());
+            assertEquals(async.getSpan().getSpanId(), records.get(1).getParentSpanId());
+            assertEquals(0, records.get(2).getParentSpanId());
+            assertEquals(0, records.get(3).getParentSpanId());
+            assertEquals(0, records.get(4).getParentSpanId());
+        }
+
+        final SlabRecordReader reader = recorders[1].newSlabReader();
+        assertTrue(reader.next());
+        assertTrue(reader.isSpan());
+        final long spanId = reader.getSpanId();
+        assertTrue(reader.next());
+        assertFalse(reader.isSpan());
+        assertTrue(reader.isBegin());
+        assertEquals(spanId, reader.getParentSpanId());
+        assertTrue(reader.next());
+        assertEquals(0, reader.getParentSpanId());
+        assertTrue(reader.next());
+        assertEquals(0, reader.getParentSpanId());
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class ChromeTraceExporterTest {
+
+    public ChromeTraceExporterTest() {
+    }
+
+    @Test
+    public void test01() throws Exception {
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final Uniquable id = () -> "say \"hello\"";
+        final int loop = 500;
+        for (int i=0; i<loop; i++) {
+            recorder.begin(id);
+            recorder.end(id);
+        }
+        
+        Path path = Files.createTempFile("trace", ".json");
+        try (ChromeTraceExporter exporter = new ChromeTraceExporter(path, 1024)) {
+            exporter.writeAll(recorder);
+        }
+        try {
+            final String json = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            assertTrue(json.startsWith("{\"displayTimeUnit\":\"ns\",\"traceEvents\":["));
+            assertTrue(json.endsWith("]}\n"));
+            assertEquals(loop, count(json, "\"ph\":\"B\""));
+            assertEquals(loop, count(json, "\"ph\":\"E\""));
+            assertEquals(1, count(json, "\"ph\":\"M\""));
+            assertTrue(json.contains("\"name\":\"say \\\"hello\\\"\""));
+        } finally {
+            Files.delete(path);
+        }
+    }
+    
+    @Test
+    public void test02() throws Exception {
+        // 一定件数ずつ複製して、スレッドの履歴全体を一度に複製しない
+        final int loop = ChromeTraceExporter.CHUNK_SIZE + 10;
+        final PeriodRecorder[] recorders = {
+            new PeriodRecorder(),
+            PeriodRecorder.offHeap(SlabRecordBuffer.ENTRY_SIZE * 100),
+            PeriodRecorder.flightRecorder(ChromeTraceExporter.CHUNK_SIZE, 0),
+        };
+        final int[] expected = {loop, loop, ChromeTraceExporter.CHUNK_SIZE / 2};
+        final Uniquable id = () -> "chunk";
+        for (int r = 0; r < recorders.length; r++) {
+            final PeriodRecorder recorder = recorders[r];
+            for (int i = 0; i < loop; i++) {
+                recorder.begin(id);
+                recorder.end(id);
+            }
+            final ThreadRecordBuffer buffer = recorder.getBuffers().get(0);
+            final int[] chunk = {0};
+            final long next = buffer.forEachFrom(0, 10, record -> chunk[0]++);
+            assertEquals(10, chunk[0]);
+            assertEquals(r < 2 ? 10 : 10 + 2L * loop - ChromeTraceExporter.CHUNK_SIZE, next);
+
+            final Path path = Files.createTempFile("trace", ".json");
+            try {
+                try (ChromeTraceExporter exporter = new ChromeTraceExporter(path, 1024)) {
+                    exporter.writeAll(recorder);
+                }
+                final String json = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+                assertEquals(expected[r], count(json, "\"ph\":\"B\""));
+                assertEquals(expected[r], count(json, "\"ph\":\"E\""));
+            } finally {
+                Files.delete(path);
+            }
+        }
+    }
+    
+    private static int count(final String text, final String token) {
+        int count = 0;
+        for (int i = text.indexOf(token); i >= 0; i = text.indexOf(token, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class ColumnarResultTest {
+
+    public ColumnarResultTest() {
+    }
+
+    @Test
+    public void test01() throws InterruptedException {
+        final ColumnarResult result = new ColumnarResult();
+        final int threads = 4;
+        final int loop = ColumnarResult.CHUNK_SIZE * 3 + 17;
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 1; i <= loop; i++) {
+                    result.append(new MeasurementReport(i % 2 == 0 ? "col.even" : "col.odd", i));
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(threads * loop, result.size());
+
+        final ColumnarResult.Statistics odd = result.summarize("col.odd");
+        assertEquals(threads * ((loop + 1) / 2), odd.getCount());
+        assertEquals(1, odd.getMin());
+        assertEquals(loop, odd.getMax());
+
+        final Map<String, ColumnarResult.Statistics> all = result.summarizeAll();
+        assertEquals(threads * (loop / 2), all.get("col.even").getCount());
+        assertEquals(odd.getSum(), all.get("col.odd").getSum());
+
+        final long[] count = new long[1];
+        result.forEach((epochNano, siteId, elapsedNano, weight) -> count[0]++);
+        assertEquals(threads * loop, count[0]);
+
+        result.clear();
+        assertEquals(0, result.size());
+        assertEquals(0, result.summarize("col.odd").getCount());
+    }
+
+    @Test
+    public void test02() {
+        final ColumnarResult result = new ColumnarResult();
+        final int siteId = SiteRegistry.getInstance().registerKey("col.site");
+        for (int i = 0; i < 10; i++) {
+            result.append(siteId, i);
+        }
+        result.clear();
+        for (int i = 0; i < 5; i++) {
+            result.append(siteId, 100 + i);
+        }
+        // 破棄した記録は渡さない
+        final long[] sum = new long[1];
+        result.forEachChunk((epochNanos, siteIds, elapsedNanos, weights, length) -> {
+            for (int i = 0; i < length; i++) {
+                assertEquals(siteId, siteIds[i]);
+                sum[0] += elapsedNanos[i];
+            }
+        });
+        assertEquals(510, sum[0]);
+    }
+
+    @Test
+    public void test03() {
+        final ColumnarResult result = new ColumnarResult();
+        final SiteRegistry registry = SiteRegistry.getInstance();
+        final int siteId = registry.registerKey("col.weight");
+        // 重み付きの記録も1件として保持し、集計時に重みを掛ける
+        result.append(siteId, 10, 3.0);
+        result.append("col.weight", 20, 2.0);
+        result.appendAll(new int[]{siteId, siteId}, new long[]{30, 40}, 2, 1000.0);
+        result.append(siteId, 50, 0.0);
+        assertEquals(4, result.size());
+        final ColumnarResult.Statistics statistics = result.summarize("col.weight");
+        assertEquals(4, statistics.getSampleCount());
+        assertEquals(3 + 2 + 2000, statistics.getCount());
+        assertEquals(30 + 40 + 70_000, statistics.getSum());
+        assertEquals(10, statistics.getMin());
+        assertEquals(40, statistics.getMax());
+        assertEquals(2005, result.summarizeAll().get("col.weight").getCount());
+        final double[] weight = new double[1];
+        result.forEach((epochNano, site, elapsedNano, sampled) -> weight[0] += sampled);
+        assertEquals(2005.0, weight[0], 1e-9);
+
+        // 未登録の識別子で集計しても登録しない
+        final int size = registry.size();
+        assertEquals(0, result.summarize("col.unregistered").getCount());
+        assertEquals(size, registry.size());
+    }
+
+    @Test
+    public void test04() {
+        // 表の作り直しをまたいで書き込みと破棄を繰り返す
+        final ColumnarResult result = new ColumnarResult();
+        final int siteId = SiteRegistry.getInstance().registerKey("col.table");
+        long expected = 0;
+        for (int round = 0; round < 5; round++) {
+            final int loop = ColumnarResult.CHUNK_SIZE * (7 + round * 5) + round;
+            long sum = 0;
+            for (int i = 0; i < loop; i++) {
+                result.append(siteId, i);
+                sum += i;
+            }
+            expected = sum;
+            assertEquals(loop, result.size());
+            assertEquals(expected, result.summarize("col.table").getSum());
+            if (round < 4) {
+                result.clear();
+            }
+        }
+        final long[] sum = new long[1];
+        result.forEach((epochNano, site, elapsedNano, sampled) -> sum[0] += elapsedNano);
+        assertEquals(expected, sum[0]);
+    }
+}
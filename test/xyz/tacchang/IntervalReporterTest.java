@@ -0,0 +1,108 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class IntervalReporterTest {
+
+    public IntervalReporterTest() {
+    }
+
+    private static void deleteAll(final Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void test01() throws Exception {
+        final Path directory = Files.createTempDirectory("interval");
+        try {
+            final HistogramResult downstream = new HistogramResult();
+            final PeriodRecorder recorder = new PeriodRecorder();
+            final Path file;
+            try (IntervalReporter reporter = new IntervalReporter(directory, "latency",
+                    IntervalReporter.Format.CSV, 3_600_000, 1024 * 1024, 2, recorder, downstream)) {
+                file = reporter.getCurrentFile();
+                final List<Thread> threads = new ArrayList<>();
+                for (int thread = 0; thread < 4; thread++) {
+                    threads.add(new Thread(() -> {
+                        for (int i = 0; i < 2500; i++) {
+                            reporter.append(new MeasurementReport("interval,a", 1000));
+                        }
+                    }));
+                }
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                // 記録中に差分を出力しても件数は失われない
+                reporter.reportNow();
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                new AsyncPeriod("interval.async", recorder).end();
+                reporter.reportNow();
+                reporter.reportNow();
+            }
+            final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            assertEquals("time,id,count,rate,mean,p50,p90,p99,p999,max", lines.get(0));
+            long total = 0;
+            int async = 0;
+            for (String line : lines.subList(1, lines.size())) {
+                if (line.contains("\"interval,a\"")) {
+                    final String[] columns = line.split(",");
+                    total += Long.parseLong(columns[3]);
+                    assertEquals("1000", columns[columns.length - 1]);
+                } else if (line.contains("interval.async")) {
+                    async++;
+                }
+            }
+            assertEquals(10000, total);
+            assertEquals(1, async);
+            assertEquals(10000, downstream.getHistogram("interval,a").getCount());
+        } finally {
+            deleteAll(directory);
+        }
+    }
+
+    @Test
+    public void test02() throws Exception {
+        final Path directory = Files.createTempDirectory("interval");
+        try {
+            try (IntervalReporter reporter = new IntervalReporter(directory, "rotate",
+                    IntervalReporter.Format.JSON_LINES, 3_600_000, 100, 2, null, null)) {
+                for (int i = 0; i < 4; i++) {
+                    reporter.append(new MeasurementReport("interval.\"b\"", 2000));
+                    reporter.reportNow();
+                }
+                assertEquals(directory.resolve("rotate-4.jsonl"), reporter.getCurrentFile());
+            }
+            assertFalse(Files.exists(directory.resolve("rotate-2.jsonl")));
+            final List<String> lines = Files.readAllLines(directory.resolve("rotate-3.jsonl"), StandardCharsets.UTF_8);
+            assertEquals(1, lines.size());
+            assertTrue(lines.get(0).startsWith("{\"time\":\""));
+            assertTrue(lines.get(0).contains("\"id\":\"interval.\\\"b\\\"\",\"count\":1,"));
+            assertTrue(lines.get(0).endsWith(",\"max\":2000}"));
+            // 最後のファイルは空
+            assertEquals(0, Files.size(directory.resolve("rotate-4.jsonl")));
+        } finally {
+            deleteAll(directory);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class LatencyHistogramTest {
+
+    public LatencyHistogramTest() {
+    }
+
+    @Test
+    public void test01() {
+        final LatencyHistogram histogram = new LatencyHistogram(3_600_000_000_000L, 3);
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(1000, histogram.getMin());
+        assertEquals(100_000_000, histogram.getMax());
+        // 有効桁数3桁の精度
+        assertEquals(50_000_000, histogram.getP50(), 50_000_000 * 0.001);
+        assertEquals(90_000_000, histogram.getP90(), 90_000_000 * 0.001);
+        assertEquals(99_000_000, histogram.getP99(), 99_000_000 * 0.001);
+        assertEquals(99_900_000, histogram.getP999(), 99_900_000 * 0.001);
+        assertEquals(100_000_000, histogram.getValueAtPercentile(100.0));
+        assertEquals(50_000_500.0, histogram.getMean(), 1.0);
+    }
+
+    @Test
+    public void test02() {
+        final LatencyHistogram histogram = new LatencyHistogram(1000, 2);
+        for (int index = 0; index < histogram.length(); index++) {
+            final long low = histogram.lowestValueAt(index);
+            final long high = histogram.highestValueAt(index);
+            assertEquals(index, histogram.indexOf(low));
+            assertEquals(index, histogram.indexOf(high));
+        }
+        histogram.record(5000);
+        histogram.record(-1);
+        assertEquals(1, histogram.getOverflowCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(0, histogram.getMin());
+        assertThrows(IllegalArgumentException.class, () -> new LatencyHistogram(1000, 6));
+    }
+
+    @Test
+    public void test03() throws InterruptedException {
+        final HistogramResult result = new HistogramResult();
+        final int threads = 4;
+        final int loop = 10_000;
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 1; i <= loop; i++) {
+                    result.append(new MeasurementReport("site", i));
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        final LatencyHistogram histogram = result.getHistogram("site");
+        assertEquals(threads * loop, histogram.getCount());
+        assertEquals(loop, histogram.getMax());
+        assertEquals(loop / 2, histogram.getP50(), loop / 2 * 0.01);
+
+        result.append(new MeasurementReport("weighted", 100, 10.0));
+        assertEquals(10, result.getHistogram("weighted").getCount());
+        assertNull(result.getHistogram("none"));
+    }
+
+    @Test
+    public void test04() {
+        // 整数の重みはそのままの件数となる
+        assertEquals(3, LatencyHistogram.sampledCount(3.0));
+        assertEquals(0, LatencyHistogram.sampledCount(0.0));
+
+        // 端数のある重みは件数の合計が重みの合計に近づく（四捨五入では3件ずつとなる）
+        final HistogramResult result = new HistogramResult();
+        for (int i = 0; i < 10_000; i++) {
+            result.append(new MeasurementReport("fraction", 100, 2.5));
+            result.append(SiteRegistry.getInstance().registerKey("fraction.site"), 100, 1.2);
+        }
+        assertEquals(25_000, result.getHistogram("fraction").getCount(), 500);
+        assertEquals(12_000, result.getHistogram("fraction.site").getCount(), 400);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class MeasurementAggregatesTest {
+
+    public MeasurementAggregatesTest() {
+    }
+
+    private static MeasurementAggregates aggregates(final String id, final long from, final long to) {
+        final MeasurementAggregates aggregates = new MeasurementAggregates(3_600_000_000_000L, 2);
+        for (long value = from; value <= to; value++) {
+            aggregates.add(new MeasurementReport(id, value * 1000));
+        }
+        return aggregates;
+    }
+
+    @Test
+    public void test01() throws IOException {
+        final MeasurementAggregates original = aggregates("agg.a", 1, 10_000);
+        original.add(new MeasurementReport("agg.b", 42));
+        final byte[] bytes = original.toBytes();
+        final MeasurementAggregates restored = MeasurementAggregates.fromBytes(bytes);
+
+        assertEquals(original.getIds(), restored.getIds());
+        final LatencyHistogram a = original.get("agg.a");
+        final LatencyHistogram b = restored.get("agg.a");
+        assertEquals(a.getCount(), b.getCount());
+        assertEquals(a.getTotalValue(), b.getTotalValue());
+        assertEquals(a.getMin(), b.getMin());
+        assertEquals(a.getMax(), b.getMax());
+        assertEquals(a.getP99(), b.getP99());
+        assertEquals(42, restored.get("agg.b").getMax());
+        // 疎な表現のため記録件数よりずっと小さい
+        assertTrue(bytes.length < 2000);
+
+        final byte[] broken = Arrays.copyOf(bytes, bytes.length);
+        broken[4] = 9;
+        assertThrows(IOException.class, () -> MeasurementAggregates.fromBytes(broken));
+    }
+
+    @Test
+    public void test02() throws IOException {
+        final MeasurementAggregates x = aggregates("agg.m", 1, 100);
+        final MeasurementAggregates y = aggregates("agg.m", 101, 200);
+        final MeasurementAggregates z = aggregates("agg.n", 1, 50);
+        // 結合的かつ可換
+        final byte[] left = x.merge(y).merge(z).toBytes();
+        final byte[] right = z.merge(y.merge(x)).toBytes();
+        assertArrayEquals(left, right);
+        assertArrayEquals(aggregates("agg.m", 1, 200).merge(z).toBytes(), left);
+        // 引数は変更しない
+        assertEquals(100, x.get("agg.m").getCount());
+
+        final List<Path> paths = new ArrayList<>();
+        try {
+            for (MeasurementAggregates part : Arrays.asList(x, y, z)) {
+                final Path path = Files.createTempFile("aggregates", ".bin");
+                part.write(path);
+                paths.add(path);
+            }
+            final MeasurementAggregates merged = MeasurementAggregates.mergeFiles(paths);
+            assertArrayEquals(left, merged.toBytes());
+        } finally {
+            for (Path path : paths) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    public void test03() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long[] values = {0, 1, 127, 128, 300, Long.MAX_VALUE, -1};
+        for (long value : values) {
+            MeasurementAggregates.writeVarint(out, value);
+        }
+        final ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        for (long value : values) {
+            assertEquals(value, MeasurementAggregates.readVarint(in));
+        }
+    }
+
+    @Test
+    public void test04() {
+        // 端数のある重みは確率的に丸めて件数とする
+        final MeasurementAggregates aggregates = new MeasurementAggregates(3_600_000_000_000L, 2);
+        for (int i = 0; i < 4000; i++) {
+            aggregates.add(new MeasurementReport("agg.w", 1000, 1.5));
+        }
+        assertEquals(6000, aggregates.get("agg.w").getCount(), 300);
+    }
+
+    @Test
+    public void test05() throws IOException {
+        // 計測箇所IDの長さが不正な場合は配列を確保せずに読み込みを中止する
+        for (long length : new long[] {(1L << 32) - 1, Integer.MAX_VALUE, MeasurementAggregates.MAX_ID_BYTES + 1L, -1}) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(new byte[] {'M', 'A', 'G', 'G'});
+            MeasurementAggregates.writeVarint(out, MeasurementAggregates.VERSION);
+            MeasurementAggregates.writeVarint(out, 3_600_000_000_000L);
+            MeasurementAggregates.writeVarint(out, 2);
+            MeasurementAggregates.writeVarint(out, 1);
+            MeasurementAggregates.writeVarint(out, length);
+            final IOException ex = assertThrows(IOException.class,
+                    () -> MeasurementAggregates.fromBytes(out.toByteArray()));
+            assertEquals("Invalid id length.", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class MeasurementLogAnalyzerTest {
+
+    /**
+     * 1セグメント3件
+     */
+    private static final int SEGMENT_BYTES = MeasurementLog.HEADER_SIZE + 3 * MeasurementLog.ENTRY_SIZE;
+
+    public MeasurementLogAnalyzerTest() {
+    }
+
+    private static void deleteAll(final Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static void writeMeasurements(final Path directory) throws IOException {
+        try (MeasurementLog log = new MeasurementLog(directory, SEGMENT_BYTES)) {
+            for (int i = 1; i <= 10; i++) {
+                log.append(new MeasurementReport("analyzer.Order.price", i * 1000L));
+                log.append(new MeasurementReport("analyzer.Order.save", 500));
+            }
+            log.append(new MeasurementReport("analyzer.Stock.find", 2000));
+        }
+    }
+
+    @Test
+    public void test01() throws Exception {
+        final Path directory = Files.createTempDirectory("analyzer");
+        try {
+            writeMeasurements(directory);
+            final List<Path> directories = Collections.singletonList(directory);
+
+            final MeasurementLogAnalyzer.Report byId = new MeasurementLogAnalyzer().analyze(directories);
+            assertEquals(21, byId.getEntryCount());
+            final Map<String, MeasurementLogAnalyzer.Summary> summaries = byId.getSummaries();
+            assertEquals(3, summaries.size());
+            assertEquals(10, summaries.get("analyzer.Order.price").getCount());
+            assertEquals(10000, summaries.get("analyzer.Order.price").getHistogram().getMax(), 100);
+            assertEquals(1, summaries.get("analyzer.Stock.find").getCount());
+
+            final MeasurementLogAnalyzer.Report byClass = new MeasurementLogAnalyzer(
+                    null, Long.MIN_VALUE, Long.MAX_VALUE, MeasurementLogAnalyzer.Grouping.CLASS).analyze(directories);
+            assertEquals(20, byClass.getSummaries().get("analyzer.Order").getCount());
+            assertEquals(1, byClass.getSummaries().get("analyzer.Stock").getCount());
+
+            final MeasurementLogAnalyzer.Report filtered = new MeasurementLogAnalyzer(
+                    Pattern.compile("save$"), Long.MIN_VALUE, Long.MAX_VALUE, MeasurementLogAnalyzer.Grouping.ID)
+                    .analyze(directories);
+            assertEquals(Collections.singleton("analyzer.Order.save"), filtered.getSummaries().keySet());
+
+            final MeasurementLogAnalyzer.Report byThread = new MeasurementLogAnalyzer(
+                    null, Long.MIN_VALUE, Long.MAX_VALUE, MeasurementLogAnalyzer.Grouping.THREAD).analyze(directories);
+            assertEquals(21, byThread.getSummaries().get("thread-" + Thread.currentThread().getId()).getCount());
+
+            // 記録より後の時刻の範囲には何もない
+            final long future = System.currentTimeMillis() + 60000;
+            final MeasurementLogAnalyzer.Report later = new MeasurementLogAnalyzer(
+                    null, future, Long.MAX_VALUE, MeasurementLogAnalyzer.Grouping.ID).analyze(directories);
+            assertTrue(later.getSummaries().isEmpty());
+        } finally {
+            deleteAll(directory);
+        }
+    }
+
+    @Test
+    public void test02() throws Exception {
+        final Path directory = Files.createTempDirectory("analyzer");
+        try {
+            final Period.PeriodId outer = new Period.PeriodId("analyzer.Job", "run", "Job.java", 10, 7);
+            final Period.PeriodId inner = new Period.PeriodId("analyzer.Job", "step", "Job.java", 20, 7);
+            final AsyncPeriod.Span span = new AsyncPeriod.Span("analyzer.async", 1, 0);
+            final List<PeriodRecorder.Record> records = new ArrayList<>();
+            long time = 1_000_000;
+            for (int i = 0; i < 5; i++) {
+                records.add(new PeriodRecorder.Record(outer, true, time, 7));
+                records.add(new PeriodRecorder.Record(inner, true, time + 100, 7));
+                records.add(new PeriodRecorder.Record(inner, false, time + 200, 7));
+                records.add(new PeriodRecorder.Record(outer, false, time + 1000, 7));
+                time += 10000;
+            }
+            // 開始と終了のスレッドが異なる非同期の区間
+            records.add(new PeriodRecorder.Record(span, true, time, 8));
+            records.add(new PeriodRecorder.Record(span, false, time + 5000, 9));
+            // 開始のない終了
+            records.add(new PeriodRecorder.Record(inner, false, time + 6000, 7));
+            try (MeasurementLog log = new MeasurementLog(directory, SEGMENT_BYTES)) {
+                log.write(records);
+            }
+            assertEquals(8, new MeasurementLogReader(directory).getSegments().size());
+
+            final List<Path> directories = Collections.singletonList(directory);
+            final MeasurementLogAnalyzer.Report byId = new MeasurementLogAnalyzer().analyze(directories);
+            assertEquals(23, byId.getEntryCount());
+            assertEquals(1, byId.getUnmatchedCount());
+            final MeasurementLogAnalyzer.Summary outerSummary = byId.getSummaries().get(outer.getSiteKey());
+            assertEquals(5, outerSummary.getCount());
+            assertEquals(1000, outerSummary.getHistogram().getMin(), 10);
+            assertEquals(1000, outerSummary.getHistogram().getMax(), 10);
+            final MeasurementLogAnalyzer.Summary innerSummary = byId.getSummaries().get(inner.getSiteKey());
+            assertEquals(5, innerSummary.getCount());
+            assertEquals(100, innerSummary.getHistogram().getMax(), 1);
+            assertEquals(5000, byId.getSummaries().get("analyzer.async").getHistogram().getMax(), 50);
+
+            final MeasurementLogAnalyzer.Report byMethod = new MeasurementLogAnalyzer(
+                    null, Long.MIN_VALUE, Long.MAX_VALUE, MeasurementLogAnalyzer.Grouping.METHOD).analyze(directories);
+            assertEquals(5, byMethod.getSummaries().get("analyzer.Job.run").getCount());
+            assertEquals(5, byMethod.getSummaries().get("analyzer.Job.step").getCount());
+
+            // 非同期の区間は開始のスレッドで集計する
+            final MeasurementLogAnalyzer.Report byThread = new MeasurementLogAnalyzer(
+                    null, Long.MIN_VALUE, Long.MAX_VALUE, MeasurementLogAnalyzer.Grouping.THREAD).analyze(directories);
+            assertEquals(10, byThread.getSummaries().get("thread-7").getCount());
+            assertEquals(1, byThread.getSummaries().get("thread-8").getCount());
+        } finally {
+            deleteAll(directory);
+        }
+    }
+
+    @Test
+    public void test03() throws Exception {
+        final Path first = Files.createTempDirectory("analyzer");
+        final Path second = Files.createTempDirectory("analyzer");
+        try {
+            writeMeasurements(first);
+            writeMeasurements(second);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final ByteArrayOutputStream err = new ByteArrayOutputStream();
+            final int status = MeasurementLogAnalyzer.run(
+                    new String[]{"--id", "Order", "--group", "class", first.toString(), second.toString()},
+                    new PrintStream(out, true, "UTF-8"), new PrintStream(err, true, "UTF-8"));
+            assertEquals(0, status);
+            final List<String> lines = Arrays.asList(new String(out.toByteArray(), StandardCharsets.UTF_8).split("\\R"));
+            assertEquals(3, lines.size());
+            assertTrue(lines.get(0).startsWith("group"));
+            assertTrue(lines.get(1).matches("analyzer\\.Order +40 .*"));
+            assertEquals("entries: 42, unmatched periods: 0", lines.get(2));
+
+            assertEquals(2, MeasurementLogAnalyzer.run(new String[]{"--from", "yesterday", first.toString()},
+                    new PrintStream(out, true, "UTF-8"), new PrintStream(err, true, "UTF-8")));
+            assertEquals(2, MeasurementLogAnalyzer.run(new String[0],
+                    new PrintStream(out, true, "UTF-8"), new PrintStream(err, true, "UTF-8")));
+            assertEquals(1, MeasurementLogAnalyzer.run(new String[]{first.resolve("missing").toString()},
+                    new PrintStream(out, true, "UTF-8"), new PrintStream(err, true, "UTF-8")));
+        } finally {
+            deleteAll(first);
+            deleteAll(second);
+        }
+    }
+
+    @Test
+    public void test04() throws Exception {
+        final Path directory = Files.createTempDirectory("analyzer");
+        try {
+            // 抽出した計測結果と区間は重みで推定した件数として集計する
+            final List<PeriodRecorder.Record> records = new ArrayList<>();
+            long time = 1_000_000;
+            for (long threadId = 7; threadId <= 9; threadId++) {
+                final Period.PeriodId id = new Period.PeriodId("analyzer.Pool", "work", "Pool.java", 30, threadId);
+                records.add(new PeriodRecorder.Record(id, true, time, threadId));
+                records.add(new PeriodRecorder.Record(id, false, time + 500, threadId, -1, 5.0));
+                time += 1000;
+            }
+            try (MeasurementLog log = new MeasurementLog(directory, SEGMENT_BYTES)) {
+                log.write(records);
+                for (int i = 0; i < 10; i++) {
+                    log.append("analyzer.sampled", 1000, 4.0);
+                }
+            }
+            final MeasurementLogAnalyzer.Report report =
+                    new MeasurementLogAnalyzer().analyze(Collections.singletonList(directory));
+            assertEquals(40, report.getSummaries().get("analyzer.sampled").getCount());
+            // スレッドごとに行を分けない
+            assertEquals(2, report.getSummaries().size());
+            assertEquals(15, report.getSummaries().get("analyzer.Pool-30").getCount());
+        } finally {
+            deleteAll(directory);
+        }
+    }
+}
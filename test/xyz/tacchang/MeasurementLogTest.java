@@ -0,0 +1,224 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class MeasurementLogTest {
+
+    public MeasurementLogTest() {
+    }
+
+    private static void deleteAll(final Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void test01() throws Exception {
+        final Path directory = Files.createTempDirectory("mlog");
+        try {
+            // 1セグメント10件
+            final int segmentBytes = MeasurementLog.HEADER_SIZE + 10 * MeasurementLog.ENTRY_SIZE;
+            try (MeasurementLog log = new MeasurementLog(directory, segmentBytes)) {
+                final List<Thread> threads = new ArrayList<>();
+                for (int thread = 0; thread < 4; thread++) {
+                    threads.add(new Thread(() -> {
+                        for (int i = 1; i <= 25; i++) {
+                            log.append(new MeasurementReport("mlog\tsite\n1", i * 100L, 2.0));
+                        }
+                    }));
+                }
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                log.append(SiteRegistry.getInstance().registerKey("mlog.site2"), 7);
+            }
+            final MeasurementLogReader reader = new MeasurementLogReader(directory);
+            assertEquals(11, reader.getSegments().size());
+            final HistogramResult result = new HistogramResult();
+            assertEquals(101, reader.replay(result));
+            assertEquals(200, result.getHistogram("mlog\tsite\n1").getCount());
+            assertEquals(2500, result.getHistogram("mlog\tsite\n1").getMax());
+            assertEquals(7, result.getHistogram("mlog.site2").getMax());
+
+            // 再び開くと計測箇所番号を引き継いで次のセグメントに書く
+            try (MeasurementLog log = new MeasurementLog(directory, segmentBytes)) {
+                log.append(new MeasurementReport("mlog.site2", 9));
+            }
+            final MeasurementLogReader again = new MeasurementLogReader(directory);
+            assertEquals(12, again.getSegments().size());
+            final HistogramResult second = new HistogramResult();
+            assertEquals(102, again.replay(second));
+            assertEquals(2, second.getHistogram("mlog.site2").getCount());
+            assertEquals(2, Files.readAllLines(directory.resolve(MeasurementLog.SITES_FILE)).size());
+        } finally {
+            deleteAll(directory);
+        }
+    }
+
+    @Test
+    public void test02() throws Exception {
+        final Path directory = Files.createTempDirectory("mlog");
+        try {
+            final PeriodRecorder recorder = new PeriodRecorder();
+            final Period.PeriodId id = new Period.PeriodId("c", "m", "MeasurementLogTest.java", 1, 1);
+            try (Period period = new Period(id, recorder)) {
+                Thread.sleep(1);
+            }
+            final AsyncPeriod async = new AsyncPeriod("mlog.async", recorder);
+            final Thread other = new Thread(async::end);
+            other.start();
+            other.join();
+            try (MeasurementLog log = new MeasurementLog(directory)) {
+                log.write(recorder.getImmutableRecords());
+            }
+            final MeasurementLogReader reader = new MeasurementLogReader(directory);
+            final MeasurementResult result = new MeasurementResult();
+            final PeriodPairing pairing = new PeriodPairing(result);
+            assertEquals(4, reader.replayRecords(pairing::accept));
+            assertEquals(0, pairing.getUnmatchedCount());
+            assertEquals(0, pairing.getOpenCount());
+            assertEquals(1.0, result.getEstimatedCount(id.getSiteKey()), 1e-9);
+            assertEquals(1.0, result.getEstimatedCount("mlog.async"), 1e-9);
+            assertTrue(result.getEstimatedMeanNano(id.getSiteKey()) >= 1_000_000);
+        } finally {
+            deleteAll(directory);
+        }
+    }
+
+    @Test
+    public void test03() throws Exception {
+        // 旧い形式のセグメントは読まない
+        final Path directory = Files.createTempDirectory("mlog");
+        try {
+            try (MeasurementLog log = new MeasurementLog(
+                    directory, MeasurementLog.HEADER_SIZE + 10 * MeasurementLog.ENTRY_SIZE)) {
+                log.append(new MeasurementReport("mlog.version", 1000));
+            }
+            final MeasurementLogReader reader = new MeasurementLogReader(directory);
+            final Path segment = reader.getSegments().get(0);
+            assertNotNull(reader.readHeader(segment));
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, 1), 4);
+            }
+            assertThrows(IOException.class, () -> reader.readHeader(segment));
+        } finally {
+            deleteAll(directory);
+        }
+    }
+
+    @Test
+    public void test04() throws Exception {
+        final Path directory = Files.createTempDirectory("mlog");
+        try {
+            final MeasurementLog log = new MeasurementLog(
+                    directory, MeasurementLog.HEADER_SIZE + 2 * MeasurementLog.ENTRY_SIZE);
+            log.append(new MeasurementReport("mlog.torn", 1000));
+            log.append(new MeasurementReport("mlog.torn", 2000));
+            log.close();
+            // 閉じた後の書き込みは例外にせず捨てる
+            log.append(new MeasurementReport("mlog.torn", 3000));
+            assertEquals(1, log.getDroppedCount());
+
+            // 種類の後に他の項目が書かれていないエントリは読み飛ばす
+            final MeasurementLogReader reader = new MeasurementLogReader(directory);
+            final Path segment = reader.getSegments().get(0);
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(8), MeasurementLog.HEADER_SIZE + MeasurementLog.VALUE_OFFSET);
+            }
+            final HistogramResult result = new HistogramResult();
+            assertEquals(1, reader.replay(result));
+            assertEquals(2000, result.getHistogram("mlog.torn").getMax(), 20);
+        } finally {
+            deleteAll(directory);
+        }
+    }
+
+    @Test
+    public void test05() throws Exception {
+        // 区間の終了の抽出の重みを書き込み、再生時に戻す
+        final Path directory = Files.createTempDirectory("mlog");
+        try {
+            final Uniquable id = () -> "mlog.weighted";
+            final AsyncPeriod.Span span = new AsyncPeriod.Span("mlog.span", 5, 0);
+            final List<PeriodRecorder.Record> records = new ArrayList<>();
+            records.add(new PeriodRecorder.Record(id, true, 100, 1));
+            records.add(new PeriodRecorder.Record(id, false, 300, 1, -1, 4.0));
+            records.add(new PeriodRecorder.Record(span, true, 400, 1));
+            records.add(new PeriodRecorder.Record(span, false, 900, 2, -1, 2.5));
+            try (MeasurementLog log = new MeasurementLog(directory, MeasurementLog.HEADER_SIZE + 8 * MeasurementLog.ENTRY_SIZE)) {
+                log.write(records);
+            }
+            final List<MeasurementReport> reports = new ArrayList<>();
+            final PeriodPairing pairing = new PeriodPairing(reports::add);
+            assertEquals(4, new MeasurementLogReader(directory).replayRecords(pairing::accept));
+            assertEquals(2, reports.size());
+            assertEquals(200, reports.get(0).getElapsedEpochNano());
+            assertEquals(4.0, reports.get(0).getWeight(), 0.0);
+            assertEquals(500, reports.get(1).getElapsedEpochNano());
+            assertEquals(2.5, reports.get(1).getWeight(), 0.0);
+        } finally {
+            deleteAll(directory);
+        }
+    }
+
+    @Test
+    public void test06() throws Exception {
+        // 区間はスレッドを区別せずに計測箇所を割り当て、スレッドIDはエントリに書く
+        final Path directory = Files.createTempDirectory("mlog");
+        try {
+            final int sites = SiteRegistry.getInstance().size();
+            final List<PeriodRecorder.Record> records = new ArrayList<>();
+            for (long threadId = 100; threadId < 110; threadId++) {
+                final Period.PeriodId id = new Period.PeriodId("mlog.Pool", "run", "Pool.java", 12, threadId);
+                records.add(new PeriodRecorder.Record(id, true, threadId * 10, threadId));
+                records.add(new PeriodRecorder.Record(id, false, threadId * 10 + 5, threadId));
+            }
+            try (MeasurementLog log = new MeasurementLog(directory, MeasurementLog.HEADER_SIZE + 32 * MeasurementLog.ENTRY_SIZE)) {
+                log.write(records);
+            }
+            assertTrue(SiteRegistry.getInstance().size() <= sites + 1);
+            assertEquals(1, Files.readAllLines(directory.resolve(MeasurementLog.SITES_FILE)).size());
+
+            final MeasurementLogReader reader = new MeasurementLogReader(directory);
+            final List<PeriodRecorder.Record> replayed = new ArrayList<>();
+            assertEquals(20, reader.replayRecords(replayed::add));
+            assertEquals("mlog.Pool-12", replayed.get(0).getId().getKey());
+            assertEquals(100, replayed.get(0).getThreadId());
+            assertEquals(109, replayed.get(19).getThreadId());
+            assertEquals("mlog.Pool-12", reader.getThreadlessSiteKey(0));
+            assertEquals("mlog.Pool", reader.getSiteClassName(0));
+
+            final List<MeasurementReport> reports = new ArrayList<>();
+            final PeriodPairing pairing = new PeriodPairing(reports::add);
+            reader.replayRecords(pairing::accept);
+            assertEquals(10, reports.size());
+            assertEquals(5, reports.get(9).getElapsedEpochNano());
+        } finally {
+            deleteAll(directory);
+        }
+    }
+}
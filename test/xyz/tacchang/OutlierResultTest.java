@@ -0,0 +1,93 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class OutlierResultTest {
+
+    public OutlierResultTest() {
+    }
+
+    @Test
+    public void test01() {
+        final OutlierResult result = new OutlierResult(3);
+        final AtomicInteger contexts = new AtomicInteger();
+        for (long value = 1; value <= 1000; value++) {
+            final long current = value;
+            result.append("outlier.a", (value * 7919) % 1000 + 1, () -> {
+                contexts.incrementAndGet();
+                return "request-" + current;
+            });
+        }
+        final List<OutlierResult.Outlier> outliers = result.getOutliers("outlier.a");
+        assertEquals(3, outliers.size());
+        assertEquals(1000, outliers.get(0).getElapsedNano());
+        assertEquals(999, outliers.get(1).getElapsedNano());
+        assertEquals(998, outliers.get(2).getElapsedNano());
+        assertEquals(998, result.getThreshold("outlier.a"));
+        assertEquals(Thread.currentThread().getId(), outliers.get(0).getThreadId());
+        assertNotNull(outliers.get(0).getContext());
+        assertTrue(outliers.get(0).getEpochMilli() > 0);
+        // 文脈は上位に入る場合のみ取得する
+        assertTrue(contexts.get() < 1000);
+
+        assertTrue(result.getOutliers("outlier.none").isEmpty());
+        assertEquals(Long.MIN_VALUE, result.getThreshold("outlier.none"));
+        result.clear();
+        assertTrue(result.getIds().isEmpty());
+    }
+
+    @Test
+    public void test02() throws Exception {
+        final OutlierResult result = new OutlierResult(5);
+        final AsyncPeriod period = new AsyncPeriod("outlier.span", new PeriodRecorder());
+        try (PeriodContext.Scope scope = period.makeCurrent()) {
+            new StopWatch(true, "outlier.b", result).stop();
+        }
+        period.end();
+        assertEquals(period.getSpan().getKey(), result.getOutliers("outlier.b").get(0).getContext());
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                final long offset = thread;
+                futures.add(executor.submit(() -> {
+                    for (long value = 0; value < 10000; value++) {
+                        result.append(new MeasurementReport("outlier.c", value * 4 + offset));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        final List<OutlierResult.Outlier> outliers = result.getOutliers("outlier.c");
+        assertEquals(5, outliers.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(39999 - i, outliers.get(i).getElapsedNano());
+            assertNull(outliers.get(i).getContext());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test03() {
+        new OutlierResult(0);
+    }
+}
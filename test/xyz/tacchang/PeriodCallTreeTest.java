@@ -0,0 +1,79 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import xyz.tacchang.PeriodRecorder.Record;
+
+/**
+ *
+ */
+public class PeriodCallTreeTest {
+
+    public PeriodCallTreeTest() {
+    }
+
+    @Test
+    public void test01() {
+        final Uniquable a = () -> "a";
+        final Uniquable b = () -> "b";
+        final Uniquable c = () -> "c";
+        List<Record> records = Arrays.asList(
+                new Record(a, true, 0, 1),
+                new Record(b, true, 10, 1),
+                new Record(b, false, 30, 1),
+                new Record(c, true, 40, 1),
+                new Record(c, false, 45, 1),
+                new Record(b, true, 50, 1),
+                new Record(b, false, 60, 1),
+                new Record(a, false, 100, 1),
+                new Record(a, true, 0, 2),
+                new Record(a, false, 50, 2));
+        
+        PeriodCallTree tree = PeriodCallTree.of(records);
+        assertEquals(2, tree.getRoots().size());
+        
+        PeriodCallTree.Node nodeA = tree.getRoots().get(1L).getChildren().iterator().next();
+        assertEquals("a", nodeA.getName());
+        assertEquals(1, nodeA.getCount());
+        assertEquals(100, nodeA.getTotalNano());
+        assertEquals(65, nodeA.getSelfNano());
+        assertEquals(2, nodeA.getChildren().size());
+        
+        PeriodCallTree.Node nodeB = nodeA.getChildren().iterator().next();
+        assertEquals(2, nodeB.getCount());
+        assertEquals(30, nodeB.getTotalNano());
+        
+        assertEquals("thread-1;a 65\nthread-1;a;b 30\nthread-1;a;c 5\nthread-2;a 50\n",
+                tree.toCollapsed(true));
+        assertEquals("a 115\na;b 30\na;c 5\n", tree.toCollapsed(false));
+    }
+
+    @Test
+    public void test02() {
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final long threadId = Thread.currentThread().getId();
+        final Period.PeriodId outerId = new Period.PeriodId(
+                "xyz.tacchang.PeriodCallTreeTest", "test02", "PeriodCallTreeTest.java", 1, threadId);
+        final Period.PeriodId innerId = new Period.PeriodId(
+                "xyz.tacchang.PeriodCallTreeTest", "test02", "PeriodCallTreeTest.java", 2, threadId);
+        try (Period p = new Period(outerId, recorder)) {
+            try (Period p1 = new Period(innerId, recorder)) {
+            }
+        }
+        PeriodCallTree tree = recorder.getCallTree();
+        PeriodCallTree.Node root = tree.getRoots().get(Thread.currentThread().getId());
+        assertNotNull(root);
+        PeriodCallTree.Node outer = root.getChildren().iterator().next();
+        assertEquals("xyz.tacchang.PeriodCallTreeTest.test02:1", outer.getName());
+        assertEquals(1, outer.getChildren().size());
+        assertEquals("xyz.tacchang.PeriodCallTreeTest.test02:2", outer.getChildren().iterator().next().getName());
+    }
+}
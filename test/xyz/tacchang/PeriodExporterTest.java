@@ -0,0 +1,208 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class PeriodExporterTest {
+
+    public PeriodExporterTest() {
+    }
+
+    private static void record(final PeriodRecorder recorder, final String key, final int count) {
+        final Uniquable id = () -> key;
+        for (int i = 0; i < count; i++) {
+            recorder.begin(id);
+            recorder.end(id);
+        }
+    }
+
+    @Test
+    public void test01() throws IOException {
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final PeriodRecordSinks.Memory sink = PeriodRecordSinks.memory();
+        try (PeriodExporter exporter = new PeriodExporter(recorder, Collections.singletonList(sink))) {
+            record(recorder, "a", 10);
+            exporter.drainNow();
+            record(recorder, "b", 5);
+        }
+        // 終了時に残りを出力する。重複はない。
+        final List<PeriodRecorder.Record> records = sink.getRecords();
+        assertEquals(30, records.size());
+        assertEquals("a", records.get(0).getId().getKey());
+        assertEquals("b", records.get(29).getId().getKey());
+    }
+
+    @Test
+    public void test02() throws Exception {
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final PeriodRecordSinks.Memory sink = PeriodRecordSinks.memory();
+        final List<Thread> threads = new ArrayList<>();
+        try (PeriodExporter exporter = new PeriodExporter(
+                recorder, Collections.singletonList(sink), 10, 64, 4, PeriodExporter.Backpressure.BLOCK)) {
+            for (int t = 0; t < 4; t++) {
+                final String key = "t" + t;
+                final Thread thread = new Thread(() -> record(recorder, key, 1000));
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(0, exporter.getDroppedCount());
+        }
+        assertEquals(8000, sink.getRecords().size());
+    }
+
+    @Test
+    public void test03() throws IOException {
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final Object lock = new Object();
+        // 出力先を止めて列を溢れさせる
+        final PeriodRecordSinks.Memory memory = PeriodRecordSinks.memory();
+        final PeriodRecordSink slow = batch -> {
+            synchronized (lock) {
+                memory.write(batch);
+            }
+        };
+        final PeriodExporter exporter = new PeriodExporter(
+                recorder, Collections.singletonList(slow), 60000, 10, 1, PeriodExporter.Backpressure.SPILL);
+        synchronized (lock) {
+            for (int i = 0; i < 5; i++) {
+                record(recorder, "s" + i, 50);
+                exporter.drainNow();
+            }
+        }
+        exporter.close();
+        final List<PeriodRecorder.Record> records = memory.getRecords();
+        assertEquals(500, records.size());
+        assertEquals(0, exporter.getDroppedCount());
+        assertEquals(500, exporter.getExportedCount());
+        // 退避しても順序は変わらない
+        for (int i = 0; i < 5; i++) {
+            assertEquals("s" + i, records.get(i * 100).getId().getKey());
+            assertEquals("s" + i, records.get(i * 100 + 99).getId().getKey());
+        }
+    }
+
+    @Test
+    public void test04() throws IOException {
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final Object lock = new Object();
+        final PeriodRecordSinks.Memory memory = PeriodRecordSinks.memory();
+        final PeriodRecordSink slow = batch -> {
+            synchronized (lock) {
+                memory.write(batch);
+            }
+        };
+        final PeriodExporter exporter = new PeriodExporter(
+                recorder, Collections.singletonList(slow), 60000, 10, 1, PeriodExporter.Backpressure.DROP);
+        synchronized (lock) {
+            for (int i = 0; i < 5; i++) {
+                record(recorder, "d" + i, 50);
+                exporter.drainNow();
+            }
+        }
+        exporter.close();
+        assertTrue(exporter.getDroppedCount() > 0);
+        assertEquals(500, exporter.getDroppedCount() + memory.getRecords().size());
+    }
+
+    @Test
+    public void test05() {
+        final PeriodRecorder recorder = new PeriodRecorder();
+        assertThrows(IllegalArgumentException.class,
+                () -> new PeriodExporter(recorder, Collections.<PeriodRecordSink>emptyList()));
+    }
+
+    @Test
+    public void test06() throws Exception {
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final Object lock = new Object();
+        final PeriodRecordSinks.Memory memory = PeriodRecordSinks.memory();
+        final PeriodRecordSink slow = batch -> {
+            synchronized (lock) {
+                memory.write(batch);
+            }
+        };
+        try (PeriodExporter exporter = new PeriodExporter(
+                recorder, Collections.singletonList(slow), 60000, 10, 1, PeriodExporter.Backpressure.SPILL)) {
+            synchronized (lock) {
+                for (int i = 0; i < 5; i++) {
+                    record(recorder, "r" + i, 50);
+                    exporter.drainNow();
+                }
+                // 回収した記録は区間記録から解放する
+                assertEquals(0, recorder.getImmutableRecords().size());
+            }
+            // 退避した記録は列の待ち時間を待たずに出力する
+            final long deadline = System.nanoTime() + 2_000_000_000L;
+            while (exporter.getExportedCount() < 500 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(500, exporter.getExportedCount());
+        }
+    }
+
+    @Test
+    public void test07() throws IOException {
+        // 出力スレッドが終了していても閉じられる
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final PeriodRecordSink broken = batch -> {
+            throw new OutOfMemoryError("test07");
+        };
+        final PeriodExporter exporter = new PeriodExporter(
+                recorder, Collections.singletonList(broken), 60000, 10, 1, PeriodExporter.Backpressure.BLOCK);
+        for (int i = 0; i < 5; i++) {
+            record(recorder, "x" + i, 50);
+        }
+        exporter.close();
+        assertTrue(exporter.getDroppedCount() > 0);
+    }
+
+    @Test
+    public void test08() throws IOException {
+        // 退避ファイルのキーは改行、復帰、タブを含んでもそのまま読み戻す
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final Object lock = new Object();
+        final PeriodRecordSinks.Memory memory = PeriodRecordSinks.memory();
+        final PeriodRecordSink slow = batch -> {
+            synchronized (lock) {
+                memory.write(batch);
+            }
+        };
+        final String[] keys = {"cr\rkey", "lf\nkey", "tab\tkey", "back\\slash\\"};
+        final PeriodExporter exporter = new PeriodExporter(
+                recorder, Collections.singletonList(slow), 60000, 10, 1, PeriodExporter.Backpressure.SPILL);
+        synchronized (lock) {
+            for (String key : keys) {
+                record(recorder, key, 50);
+                exporter.drainNow();
+            }
+        }
+        exporter.close();
+        final List<PeriodRecorder.Record> records = memory.getRecords();
+        assertEquals(400, records.size());
+        assertEquals(0, exporter.getDroppedCount());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(keys[i], records.get(i * 100).getId().getKey());
+            assertEquals(keys[i], records.get(i * 100 + 99).getId().getKey());
+        }
+
+        // 形式の正しくない行は実行時例外とし、出力スレッドで破棄件数に数える
+        assertThrows(RuntimeException.class, () -> RecordSpill.parse("1\t1\t2"));
+        assertThrows(RuntimeException.class, () -> RecordSpill.parse("x\t1\t2\t1.0\tkey"));
+        assertEquals("a\rb", RecordSpill.parse("1\t1\t2\t1.0\ta\\rb").getId().getKey());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class PeriodPairingTest {
+
+    public PeriodPairingTest() {
+    }
+
+    @Test
+    public void test01() {
+        final List<MeasurementReport> reports = new ArrayList<>();
+        final PeriodPairing pairing = new PeriodPairing(reports::add);
+        final Uniquable outer = () -> "outer";
+        final Uniquable inner = () -> "inner";
+        
+        pairing.begin(outer);
+        pairing.begin(inner);
+        pairing.begin(inner);
+        pairing.end(inner);
+        pairing.end(inner);
+        pairing.end(outer);
+        
+        assertEquals(3, reports.size());
+        assertEquals("inner", reports.get(0).getId());
+        assertEquals("inner", reports.get(1).getId());
+        assertEquals("outer", reports.get(2).getId());
+        assertTrue(reports.get(0).getElapsedEpochNano() <= reports.get(1).getElapsedEpochNano());
+        assertTrue(reports.get(1).getElapsedEpochNano() <= reports.get(2).getElapsedEpochNano());
+        
+        pairing.end(outer);
+        assertEquals(1, pairing.getUnmatchedCount());
+    }
+
+    @Test
+    public void test02() {
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final List<MeasurementReport> reports = new ArrayList<>();
+        final PeriodPairing pairing = new PeriodPairing(reports::add);
+        final Uniquable id = () -> "id";
+        
+        recorder.begin(id);
+        recorder.begin(id);
+        recorder.end(id);
+        List<PeriodRecorder.Record> records = recorder.getImmutableRecords();
+        pairing.acceptAll(records);
+        assertEquals(1, reports.size());
+        assertEquals(1, pairing.getOpenCount());
+        
+        recorder.clear();
+        recorder.end(id);
+        pairing.acceptAll(recorder.getImmutableRecords());
+        assertEquals(2, reports.size());
+        assertEquals(0, pairing.getOpenCount());
+        assertEquals(0, pairing.getUnmatchedCount());
+    }
+}
@@ -5,7 +5,10 @@
  */
 package xyz.tacchang;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.List;
 import org.junit.Test;
@@ -112,4 +115,288 @@ public class PeriodRecorderTest {
         }
     }
 
+    @Test
+    public void test03() throws InterruptedException {
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final int threads = 4;
+        final int loop = 3000;
+        
+        Thread[] workers = new Thread[threads];
+        for (int t=0; t<threads; t++) {
+            workers[t] = new Thread(() -> {
+                final Uniquable id = () -> "test03";
+                for (int i=0; i<loop; i++) {
+                    recorder.begin(id);
+                    recorder.end(id);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        
+        List<Record> records = recorder.getImmutableRecords();
+        assertEquals(threads * loop * 2, records.size());
+        
+        long last = Long.MIN_VALUE;
+        for (Record r : records) {
+            assertTrue(last <= r.getEpochNano());
+            last = r.getEpochNano();
+        }
+        
+        recorder.clear();
+        assertEquals(0, recorder.getImmutableRecords().size());
+    }
+
+    @Test
+    public void test04() {
+        final PeriodRecorder recorder = PeriodRecorder.offHeap(SlabRecordBuffer.ENTRY_SIZE * 4);
+        final Uniquable outer = () -> "test04-outer";
+        final Uniquable inner = () -> "test04-inner";
+        final int loop = 10;
+        for (int i=0; i<loop; i++) {
+            recorder.begin(outer);
+            recorder.begin(inner);
+            recorder.end(inner);
+            recorder.end(outer);
+        }
+        
+        List<Record> records = recorder.getImmutableRecords();
+        assertEquals(loop * 4, records.size());
+        assertEquals("test04-outer", records.get(0).getId().getKey());
+        assertTrue(records.get(0).isBegin());
+        assertEquals("test04-inner", records.get(2).getId().getKey());
+        assertFalse(records.get(2).isBegin());
+        assertEquals(Thread.currentThread().getId(), records.get(0).getThreadId());
+        
+        final int outerId = SiteRegistry.getInstance().register(outer);
+        SlabRecordReader reader = recorder.newSlabReader();
+        int count = 0;
+        long last = Long.MIN_VALUE;
+        while (reader.next()) {
+            assertTrue(last <= reader.getEpochNano());
+            last = reader.getEpochNano();
+            if (count % 4 == 0) {
+                assertEquals(outerId, reader.getSiteId());
+                assertTrue(reader.isBegin());
+            }
+            count++;
+        }
+        assertEquals(loop * 4, count);
+        
+        recorder.clear();
+        reader.reset();
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void test05() throws Exception {
+        final PeriodRecorder recorder = PeriodRecorder.flightRecorder(6, 0);
+        final Uniquable id = () -> "test05";
+        for (int i=0; i<10; i++) {
+            recorder.begin(id);
+            recorder.end(id);
+        }
+        
+        List<Record> records = recorder.getImmutableRecords();
+        assertEquals(6, records.size());
+        assertTrue(records.get(0).isBegin());
+        assertEquals(14, recorder.getOverwrittenCount());
+        assertEquals(0, recorder.getDroppedCount());
+        
+        Path dump = Files.createTempFile("flight", ".txt");
+        try {
+            recorder.dump(dump);
+            assertEquals(7, Files.readAllLines(dump).size());
+        } finally {
+            Files.delete(dump);
+        }
+        
+        // 消去した記録は上書きに数えない
+        recorder.clear();
+        for (int i=0; i<3; i++) {
+            recorder.begin(id);
+            recorder.end(id);
+        }
+        assertEquals(6, recorder.getImmutableRecords().size());
+        assertEquals(14, recorder.getOverwrittenCount());
+        recorder.begin(id);
+        assertEquals(15, recorder.getOverwrittenCount());
+        
+        final PeriodRecorder expiring = PeriodRecorder.flightRecorder(16, 1);
+        expiring.begin(id);
+        expiring.end(id);
+        Thread.sleep(5);
+        assertEquals(0, expiring.getImmutableRecords().size());
+        assertEquals(2, expiring.getDroppedCount());
+    }
+
+    @Test
+    public void test06() {
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final Uniquable id = () -> "test06";
+        final PeriodCursor fast = recorder.newCursor();
+        final PeriodCursor slow = recorder.newCursor();
+        for (int i=0; i<3000; i++) {
+            recorder.begin(id);
+            recorder.end(id);
+        }
+        
+        final List<Record> seen = new ArrayList<>();
+        assertEquals(6000, fast.poll(seen::add));
+        for (int i=0; i<seen.size(); i++) {
+            assertEquals(i, seen.get(i).getSequence());
+        }
+        // 新しい記録だけを読み取る
+        recorder.begin(id);
+        recorder.end(id);
+        assertEquals(2, fast.pending());
+        seen.clear();
+        assertEquals(2, fast.poll(seen::add));
+        assertEquals(6000, seen.get(0).getSequence());
+        assertEquals(0, fast.poll(seen::add));
+        
+        // 遅い読み取り位置が読み取るまで破棄しない
+        recorder.clear();
+        assertEquals(6002, recorder.getImmutableRecords().size());
+        slow.seek(Thread.currentThread().getId(), 5000);
+        assertEquals(1002, slow.poll(record -> { }));
+        assertEquals(Long.valueOf(6002), slow.getPositions().get(Thread.currentThread().getId()));
+        recorder.releaseConsumed();
+        assertEquals(0, recorder.getImmutableRecords().size());
+        
+        recorder.begin(id);
+        slow.close();
+        recorder.clear();
+        assertEquals(1, fast.pending());
+        assertEquals(1, recorder.getImmutableRecords().size());
+        fast.close();
+        recorder.clear();
+        assertEquals(0, recorder.getImmutableRecords().size());
+        assertThrows(IllegalStateException.class, () -> fast.poll(record -> { }));
+    }
+
+    @Test
+    public void test07() throws Exception {
+        // 読み取り位置の読み取りはフライトレコーダの保持内容を変えない
+        final PeriodRecorder recorder = PeriodRecorder.flightRecorder(64, 0);
+        final Uniquable id = () -> "test07";
+        try (PeriodCursor first = recorder.newCursor(); PeriodCursor second = recorder.newCursor()) {
+            for (int i=0; i<10; i++) {
+                recorder.begin(id);
+                recorder.end(id);
+            }
+            assertEquals(20, first.poll(record -> { }));
+            for (int i=0; i<10; i++) {
+                recorder.begin(id);
+                recorder.end(id);
+            }
+            assertEquals(20, first.poll(record -> { }));
+            assertEquals(40, recorder.getImmutableRecords().size());
+            assertEquals(40, second.poll(record -> { }));
+        }
+    }
+
+    @Test
+    public void test08() {
+        // フライトレコーダでも読み取り位置ごとに独立して読める
+        final PeriodRecorder recorder = PeriodRecorder.flightRecorder(32, 0);
+        final Uniquable id = () -> "test08";
+        try (PeriodCursor fast = recorder.newCursor(); PeriodCursor slow = recorder.newCursor()) {
+            int fastCount = 0;
+            int slowCount = 0;
+            for (int i=1; i<=20; i++) {
+                recorder.begin(id);
+                recorder.end(id);
+                fastCount += fast.poll(record -> { });
+                if (i % 10 == 0) {
+                    slowCount += slow.poll(record -> { });
+                }
+            }
+            assertEquals(40, fastCount);
+            assertEquals(40, slowCount);
+            assertEquals(32, recorder.getImmutableRecords().size());
+
+            // 上書きされた分は読めないが、残っている分はどちらも読める
+            for (int i=0; i<30; i++) {
+                recorder.begin(id);
+                recorder.end(id);
+            }
+            assertEquals(32, slow.poll(record -> { }));
+            assertEquals(32, fast.poll(record -> { }));
+            assertEquals(32, recorder.getImmutableRecords().size());
+        }
+    }
+
+    @Test
+    public void test09() throws Exception {
+        // ヒープ外の記録では区間をスレッドごとに計測箇所登録簿に登録しない
+        final PeriodRecorder recorder = PeriodRecorder.offHeap(SlabRecordBuffer.ENTRY_SIZE * 16);
+        final int sites = SiteRegistry.getInstance().size();
+        final List<String> keys = new ArrayList<>();
+        for (int t=0; t<3; t++) {
+            final Thread thread = new Thread(() -> {
+                final Period.PeriodId id = new Period.PeriodId(
+                        "PeriodRecorderTest", "test09", "PeriodRecorderTest.java", 9, Thread.currentThread().getId());
+                recorder.begin(id);
+                recorder.end(id);
+                synchronized (keys) {
+                    keys.add(id.getKey());
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+        assertTrue(SiteRegistry.getInstance().size() <= sites + 1);
+
+        final List<Record> records = recorder.getImmutableRecords();
+        assertEquals(6, records.size());
+        final List<String> recorded = new ArrayList<>();
+        for (Record record : records) {
+            final Period.PeriodId id = (Period.PeriodId) record.getId();
+            assertEquals(record.getThreadId(), id.getThreadId());
+            assertEquals("test09", id.getMethodName());
+            if (record.isBegin()) {
+                recorded.add(id.getKey());
+            }
+        }
+        recorded.sort(null);
+        keys.sort(null);
+        assertEquals(keys, recorded);
+    }
+
+    @Test
+    public void test10() throws Exception {
+        // 抽出した区間の重みが記録を経て推定件数に反映される
+        final Period.PeriodId id = new Period.PeriodId(
+                "PeriodRecorderTest", "test10", "PeriodRecorderTest.java", 10, Thread.currentThread().getId());
+        Sampler.getInstance().setPolicy(id.getSiteKey(), Sampler.everyNth(3));
+        try {
+            final PeriodRecorder[] recorders = {
+                new PeriodRecorder(),
+                PeriodRecorder.offHeap(SlabRecordBuffer.ENTRY_SIZE * 4),
+                PeriodRecorder.flightRecorder(64, 0),
+            };
+            for (PeriodRecorder recorder : recorders) {
+                for (int i=0; i<9; i++) {
+                    try (Period p = new Period(id, recorder)) {
+                    }
+                }
+                final List<Record> records = recorder.getImmutableRecords();
+                assertEquals(6, records.size());
+                final MeasurementResult result = new MeasurementResult();
+                final PeriodPairing pairing = new PeriodPairing(result);
+                for (Record record : records) {
+                    assertEquals(record.isBegin() ? 1.0 : 3.0, record.getWeight(), 0.0);
+                    pairing.accept(record);
+                    // 同じ時刻の計測結果は上書きされるため時刻をずらす
+                    Thread.sleep(2);
+                }
+                assertEquals(9.0, result.getEstimatedCount(id.getKey()), 0.0);
+            }
+        } finally {
+            Sampler.getInstance().clear();
+        }
+    }
 }
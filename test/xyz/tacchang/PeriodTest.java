@@ -0,0 +1,64 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class PeriodTest {
+
+    private static final Period.Site SITE = Period.site("PeriodTest.site");
+
+    public PeriodTest() {
+    }
+
+    @Test
+    public void test01() {
+        assertSame(SITE, Period.site("PeriodTest.site"));
+        assertNotSame(SITE, Period.site("PeriodTest.other"));
+        assertNotEquals(SITE.getNumber(), Period.site("PeriodTest.other").getNumber());
+        assertSame(SITE, SiteRegistry.getInstance().lookup(SITE.getNumber()));
+        assertEquals(SITE.getNumber(), SiteRegistry.getInstance().register(SITE));
+        
+        final PeriodRecorder recorder = new PeriodRecorder();
+        try (Period p = new Period(SITE, recorder)) {
+            assertTrue(p.isSampled());
+        }
+        List<PeriodRecorder.Record> records = recorder.getImmutableRecords();
+        assertEquals(2, records.size());
+        assertSame(SITE, records.get(0).getId());
+    }
+
+    @Test
+    public void test02() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        final long threadId = Thread.currentThread().getId();
+        final PeriodRecorder recorder = PeriodRecorder.flightRecorder(1024, 0);
+        final int loop = 100000;
+        
+        for (int i=0; i<loop; i++) {
+            recorder.begin(SITE);
+            recorder.end(SITE);
+        }
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i=0; i<loop; i++) {
+            recorder.begin(SITE);
+            recorder.end(SITE);
+        }
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class PrometheusEndpointTest {
+
+    public PrometheusEndpointTest() {
+    }
+
+    private static String scrape(final int port) throws IOException {
+        final HttpURLConnection connection =
+                (HttpURLConnection) new URL("http://127.0.0.1:" + port + PrometheusEndpoint.PATH).openConnection();
+        try {
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType().startsWith("text/plain"));
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                final byte[] chunk = new byte[1024];
+                int read;
+                while ((read = in.read(chunk)) >= 0) {
+                    out.write(chunk, 0, read);
+                }
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Test
+    public void test01() throws IOException {
+        try (PrometheusEndpoint endpoint = new PrometheusEndpoint(0, new HistogramResult(), 3_600_000)) {
+            endpoint.append(new MeasurementReport("prom.\"a\"", 1_000_000));
+            // 描画前の取得要求は前回の描画を返す
+            final String before = scrape(endpoint.getPort());
+            assertTrue(before.contains("# TYPE measurement_duration_seconds summary\n"));
+            assertFalse(before.contains("prom."));
+
+            for (int i = 0; i < 99; i++) {
+                endpoint.append(new MeasurementReport("prom.\"a\"", 1_000_000));
+            }
+            endpoint.refreshNow();
+            final String after = scrape(endpoint.getPort());
+            assertTrue(after.contains(
+                    "measurement_duration_seconds{id=\"prom.\\\"a\\\"\",quantile=\"0.5\"} 0.001\n"));
+            assertTrue(after.contains("measurement_duration_seconds_sum{id=\"prom.\\\"a\\\"\"} 0.1\n"));
+            assertTrue(after.contains("measurement_duration_seconds_count{id=\"prom.\\\"a\\\"\"} 100\n"));
+            // 描画を重ねても同じ内容
+            endpoint.refreshNow();
+            endpoint.refreshNow();
+            assertEquals(after, scrape(endpoint.getPort()));
+        }
+    }
+
+    @Test
+    public void test02() throws IOException {
+        final HistogramResult result = new HistogramResult();
+        for (int i = 0; i < 2000; i++) {
+            result.append(new MeasurementReport("prom.site" + i, i + 1));
+        }
+        try (PrometheusEndpoint endpoint = new PrometheusEndpoint(0, result, 3_600_000)) {
+            // 初期の大きさを超える応答
+            final String text = scrape(endpoint.getPort());
+            assertTrue(text.length() > 4096);
+            assertTrue(text.contains("measurement_duration_seconds_count{id=\"prom.site1999\"} 1\n"));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class RecorderControlTest {
+
+    public RecorderControlTest() {
+    }
+
+    @Test
+    public void test01() throws Exception {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final ObjectName site;
+        try (RecorderControl control = new RecorderControl(
+                recorder, new HistogramResult(), server, "xyz.tacchang.test01")) {
+            for (int i = 1; i <= 100; i++) {
+                control.append(new MeasurementReport("jmx:site,a", i * 1000L));
+            }
+            site = control.getSiteName("jmx:site,a");
+            assertTrue(server.isRegistered(site));
+            assertEquals(100L, server.getAttribute(site, "Count"));
+            assertEquals(100000L, server.getAttribute(site, "Max"));
+            assertEquals(50500.0, (Double) server.getAttribute(site, "Mean"), 1e-9);
+            assertEquals(99000L, (Long) server.getAttribute(site, "P99"), 99000 * 0.01);
+            assertEquals(1, server.getAttribute(control.getControlName(), "SiteCount"));
+
+            // 消去してもMBeanは残り、統計は0に戻る
+            server.invoke(control.getControlName(), "reset", null, null);
+            assertEquals(0L, server.getAttribute(site, "Count"));
+            assertTrue(server.isRegistered(site));
+        }
+        assertFalse(server.isRegistered(site));
+    }
+
+    @Test
+    public void test02() throws Exception {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final PeriodRecorder recorder = new PeriodRecorder();
+        final Path path = Files.createTempFile("recorder", ".txt");
+        try (RecorderControl control = new RecorderControl(
+                recorder, new HistogramResult(), server, "xyz.tacchang.test02")) {
+            final ObjectName name = control.getControlName();
+            assertEquals(true, server.getAttribute(name, "Enabled"));
+            server.setAttribute(name, new Attribute("Enabled", false));
+            assertFalse(Sampler.getInstance().isEnabled());
+            new StopWatch(true, "jmx.disabled", control).stop();
+            assertEquals(0, control.getSiteCount());
+            server.setAttribute(name, new Attribute("Enabled", true));
+            new StopWatch(true, "jmx.enabled", control).stop();
+            assertEquals(1, control.getSiteCount());
+
+            server.invoke(name, "setSamplingEveryNth",
+                    new Object[]{"jmx.sampled", 4}, new String[]{"java.lang.String", "int"});
+            for (int i = 0; i < 8; i++) {
+                new StopWatch(true, "jmx.sampled", control).stop();
+            }
+            assertEquals(8, control.getResult().getHistogram("jmx.sampled").getCount());
+            server.invoke(name, "removeSampling", new Object[]{"jmx.sampled"}, new String[]{"java.lang.String"});
+            assertEquals(Sampler.always(), Sampler.getInstance().getPolicy("jmx.sampled"));
+
+            try (Period period = new Period(new Period.PeriodId("c", "m", "f", 1, 1), recorder)) {
+                // 区間を1つ記録する
+            }
+            server.invoke(name, "dumpRecorder", new Object[]{path.toString()}, new String[]{"java.lang.String"});
+            assertTrue(Files.readAllLines(path).get(0).startsWith("# records=2 "));
+        } finally {
+            Sampler.getInstance().setEnabled(true);
+            Sampler.getInstance().clear();
+            Files.deleteIfExists(path);
+        }
+    }
+}
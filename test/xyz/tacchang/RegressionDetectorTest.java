@@ -0,0 +1,203 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class RegressionDetectorTest {
+
+    public RegressionDetectorTest() {
+    }
+
+    /**
+     * 対数正規分布の処理時間を記録した集計結果を返す。
+     */
+    private static MeasurementAggregates sample(
+            final String id,
+            final long medianNano,
+            final int count,
+            final long seed) {
+        final MeasurementAggregates aggregates = new MeasurementAggregates(
+                HistogramResult.DEFAULT_HIGHEST_TRACKABLE_NANO, HistogramResult.DEFAULT_SIGNIFICANT_DIGITS);
+        final Random random = new Random(seed);
+        for (int i = 0; i < count; i++) {
+            aggregates.add(new MeasurementReport(id, Math.round(medianNano * Math.exp(0.3 * random.nextGaussian()))));
+        }
+        return aggregates;
+    }
+
+    @Test
+    public void test01() {
+        final RegressionDetector detector = new RegressionDetector();
+        final MeasurementAggregates baseline = sample("hot", 100_000, 2000, 1)
+                .merge(sample("steady", 50_000, 2000, 2))
+                .merge(sample("removed", 10_000, 100, 3));
+        final MeasurementAggregates current = sample("hot", 130_000, 2000, 4)
+                .merge(sample("steady", 50_000, 2000, 5))
+                .merge(sample("added", 10_000, 100, 6));
+        final RegressionDetector.Report report = detector.compare(baseline, current);
+        assertEquals(4, report.getComparisons().size());
+
+        final RegressionDetector.Comparison hot = report.get("hot");
+        assertEquals(RegressionDetector.Status.REGRESSED, hot.getStatus());
+        assertTrue(hot.getPValue() < 1e-6);
+        assertTrue(hot.getProbabilityOfSlower() > 0.5);
+        final RegressionDetector.PercentileShift median = hot.getShifts().get(0);
+        assertEquals(50.0, median.getPercentile(), 0.0);
+        assertTrue(median.getLowerDiff() > 0);
+        assertTrue(median.getLowerDiff() <= median.getUpperDiff());
+        // 真の差30000nsを信頼区間が含む
+        assertTrue(median.getLowerDiff() < 30_000 && median.getUpperDiff() > 30_000);
+
+        final RegressionDetector.Comparison steady = report.get("steady");
+        assertEquals(RegressionDetector.Status.UNCHANGED, steady.getStatus());
+        assertTrue(steady.getPValue() > 0.01);
+
+        assertEquals(RegressionDetector.Status.BASELINE_ONLY, report.get("removed").getStatus());
+        assertEquals(RegressionDetector.Status.CURRENT_ONLY, report.get("added").getStatus());
+        assertTrue(report.hasRegression());
+        assertEquals(1, report.getRegressions().size());
+
+        // 逆にすると速くなった判定となる
+        assertEquals(RegressionDetector.Status.IMPROVED, detector.compare(current, baseline).get("hot").getStatus());
+
+        // 同じ種なら同じ結果
+        assertEquals(report.toJson(), new RegressionDetector().compare(baseline, current).toJson());
+    }
+
+    @Test
+    public void test02() {
+        // 基準{1,2,3}と今回{2,3,4}：同順位を0.5と数えてU=7
+        final LatencyHistogram baseline = new LatencyHistogram(1000, 3);
+        final LatencyHistogram current = baseline.newEmpty();
+        for (long value = 1; value <= 3; value++) {
+            baseline.record(value);
+            current.record(value + 1);
+        }
+        final double[] test = RegressionDetector.mannWhitney(baseline, current);
+        assertEquals(7.0, test[0], 1e-9);
+        assertTrue(test[1] > 0.0);
+        assertTrue(test[2] > 0.05 && test[2] < 1.0);
+
+        // 同じ分布はU=n1*n2/2、p値1
+        final double[] same = RegressionDetector.mannWhitney(baseline, baseline);
+        assertEquals(4.5, same[0], 1e-9);
+        assertEquals(1.0, same[2], 1e-9);
+
+        assertEquals(1.0, RegressionDetector.erfc(0.0), 1e-7);
+        assertEquals(0.04550026, RegressionDetector.erfc(2.0 / Math.sqrt(2.0)), 1e-7);
+        assertEquals(1.95449974, RegressionDetector.erfc(-2.0 / Math.sqrt(2.0)), 1e-7);
+
+        // 件数が足りない場合は判定しない
+        final RegressionDetector.Report small = new RegressionDetector().compare(
+                sample("few", 1000, 5, 1), sample("few", 5000, 5, 2));
+        assertEquals(RegressionDetector.Status.INSUFFICIENT, small.get("few").getStatus());
+    }
+
+    @Test
+    public void test03() throws IOException {
+        // 実行中の処理時間記録と比べる
+        final MeasurementResult live = new MeasurementResult();
+        final Random random = new Random(7);
+        for (int i = 0; i < 500; i++) {
+            live.append(new MeasurementReport("live", Math.round(200_000 * Math.exp(0.2 * random.nextGaussian()))));
+        }
+        final MeasurementAggregates baseline = sample("live", 100_000, 500, 8);
+        assertEquals(RegressionDetector.Status.REGRESSED,
+                new RegressionDetector().compare(baseline, live).get("live").getStatus());
+
+        final Path directory = Files.createTempDirectory("regression");
+        final Path before = directory.resolve("before.magg");
+        final Path after = directory.resolve("after.magg");
+        try {
+            baseline.write(before);
+            sample("live", 200_000, 500, 9).write(after);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final ByteArrayOutputStream err = new ByteArrayOutputStream();
+            assertEquals(3, RegressionDetector.run(new String[]{"--iterations", "200", before.toString(), after.toString()},
+                    new PrintStream(out, true, "UTF-8"), new PrintStream(err, true, "UTF-8")));
+            final String json = new String(out.toByteArray(), StandardCharsets.UTF_8);
+            assertTrue(json.startsWith("{\"alpha\":0.01,\"minRelativeShift\":0.05,\"regressions\":1,"));
+            assertTrue(json.contains("\"id\":\"live\",\"status\":\"REGRESSED\""));
+
+            assertEquals(0, RegressionDetector.run(new String[]{before.toString(), before.toString()},
+                    new PrintStream(out, true, "UTF-8"), new PrintStream(err, true, "UTF-8")));
+            assertEquals(2, RegressionDetector.run(new String[]{before.toString()},
+                    new PrintStream(out, true, "UTF-8"), new PrintStream(err, true, "UTF-8")));
+            assertEquals(2, RegressionDetector.run(new String[]{"--alpha", "2", before.toString(), after.toString()},
+                    new PrintStream(out, true, "UTF-8"), new PrintStream(err, true, "UTF-8")));
+            assertEquals(1, RegressionDetector.run(new String[]{before.toString(), directory.resolve("x").toString()},
+                    new PrintStream(out, true, "UTF-8"), new PrintStream(err, true, "UTF-8")));
+        } finally {
+            Files.deleteIfExists(before);
+            Files.deleteIfExists(after);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * 処理時間が対数正規分布の区間記録を計測ログに書く。
+     */
+    private static void writeLog(
+            final Path directory,
+            final long threadId,
+            final long medianNano,
+            final long seed) throws IOException {
+        final Period.PeriodId id = new Period.PeriodId("regression.Job", "run", "Job.java", 10, threadId);
+        final Random random = new Random(seed);
+        final List<PeriodRecorder.Record> records = new ArrayList<>();
+        long time = 1_000_000;
+        for (int i = 0; i < 300; i++) {
+            records.add(new PeriodRecorder.Record(id, true, time, threadId));
+            records.add(new PeriodRecorder.Record(id, false,
+                    time + Math.round(medianNano * Math.exp(0.2 * random.nextGaussian())), threadId));
+            time += 10 * medianNano;
+        }
+        try (MeasurementLog log = new MeasurementLog(
+                directory, MeasurementLog.HEADER_SIZE + 1024 * MeasurementLog.ENTRY_SIZE)) {
+            log.write(records);
+        }
+    }
+
+    private static void deleteAll(final Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void test04() throws IOException {
+        // 実行ごとにスレッドIDが異なっても同じ計測箇所として比べる
+        final Path before = Files.createTempDirectory("regression");
+        final Path after = Files.createTempDirectory("regression");
+        try {
+            writeLog(before, 7, 100_000, 1);
+            writeLog(after, 9, 200_000, 2);
+            final RegressionDetector.Report report = new RegressionDetector().compare(
+                    RegressionDetector.load(before), RegressionDetector.load(after));
+            assertEquals(1, report.getComparisons().size());
+            assertEquals(RegressionDetector.Status.REGRESSED, report.get("regression.Job-10").getStatus());
+        } finally {
+            deleteAll(before);
+            deleteAll(after);
+        }
+    }
+}
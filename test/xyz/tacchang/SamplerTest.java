@@ -0,0 +1,125 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+
+package xyz.tacchang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class SamplerTest {
+
+    public SamplerTest() {
+    }
+
+    @Test
+    public void test01() {
+        SamplingPolicy policy = Sampler.everyNth(4);
+        int sampled = 0;
+        double weight = 0.0;
+        for (int i=0; i<100; i++) {
+            final double w = policy.sample();
+            if (w != 0.0) {
+                sampled++;
+                weight += w;
+            }
+        }
+        assertEquals(25, sampled);
+        assertEquals(100.0, weight, 0.0);
+        
+        assertEquals(1.0, Sampler.always().sample(), 0.0);
+        assertEquals(1.0, Sampler.getInstance().sample("unknown"), 0.0);
+    }
+
+    @Test
+    public void test02() {
+        // 毎秒10000件の発生を毎秒1000件に抑える
+        final AtomicLong now = new AtomicLong();
+        final SamplingPolicy policy = Sampler.adaptive(1000, now::get);
+        for (int second = 0; second < 3; second++) {
+            int sampled = 0;
+            double estimated = 0.0;
+            for (int i = 0; i < 10_000; i++) {
+                final double weight = policy.sample();
+                if (weight != 0.0) {
+                    sampled++;
+                    estimated += weight;
+                }
+                now.addAndGet(100_000);
+            }
+            if (second == 0) {
+                // 最初の1秒は発生頻度が分からないため全て抽出する
+                assertEquals(10_000, sampled);
+            } else {
+                assertEquals(1000, sampled, 150);
+            }
+            assertEquals(10_000, estimated, 1500);
+        }
+    }
+
+    @Test
+    public void test03() {
+        final String id = "SamplerTest.test03";
+        Sampler.getInstance().setPolicy(id, Sampler.everyNth(3));
+        try {
+            final MeasurementResult result = new MeasurementResult();
+            for (int i=0; i<9; i++) {
+                try (StopWatch sp = new StopWatch(true, id, result)) {
+                }
+                // 同じ時刻の計測結果は上書きされるため時刻をずらす
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException ex) {
+                }
+            }
+            assertEquals(3, result.getImmutableRecords().size());
+            assertEquals(9.0, result.getEstimatedCount(id), 0.0);
+            
+            final List<MeasurementReport> reports = new ArrayList<>();
+            final PeriodPairing pairing = new PeriodPairing(reports::add);
+            final Period.PeriodId periodId = new Period.PeriodId(
+                    "SamplerTest", "test03", "SamplerTest.java", 1, Thread.currentThread().getId());
+            Sampler.getInstance().setPolicy(periodId.getSiteKey(), Sampler.everyNth(3));
+            int sampled = 0;
+            for (int i=0; i<9; i++) {
+                try (Period p = new Period(periodId, pairing)) {
+                    if (p.isSampled()) {
+                        sampled++;
+                    }
+                }
+            }
+            assertEquals(3, sampled);
+            assertEquals(3, reports.size());
+            assertEquals(3.0, reports.get(0).getWeight(), 0.0);
+        } finally {
+            Sampler.getInstance().clear();
+        }
+    }
+
+    @Test
+    public void test04() {
+        // 計測箇所ハンドルの方針は覚えておき、方針を変更すると引き直す
+        final Sampler sampler = Sampler.getInstance();
+        final Period.Site site = Period.site("SamplerTest.test04");
+        sampler.setPolicy("SamplerTest.other", Sampler.everyNth(2));
+        try {
+            assertEquals(1.0, sampler.sample(site), 0.0);
+            assertEquals(1.0, sampler.sample(site), 0.0);
+            sampler.setPolicy(site.getKey(), Sampler.everyNth(2));
+            assertEquals(2.0, sampler.sample(site), 0.0);
+            assertEquals(0.0, sampler.sample(site), 0.0);
+            sampler.removePolicy(site.getKey());
+            assertEquals(1.0, sampler.sample(site), 0.0);
+        } finally {
+            sampler.clear();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class SketchResultTest {
+
+    public SketchResultTest() {
+    }
+
+    @Test
+    public void test01() {
+        // ナノ秒から分までの値でも相対誤差以内
+        final QuantileSketch sketch = new QuantileSketch();
+        final long[] values = new long[100000];
+        final Random random = new Random(1);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * Math.log(TimeUnit.MINUTES.toNanos(1)));
+            sketch.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double percentile : new double[]{1.0, 50.0, 90.0, 99.0, 99.9}) {
+            final long exact = values[(int) Math.floor(percentile / 100.0 * (values.length - 1))];
+            final long estimate = sketch.getValueAtPercentile(percentile);
+            assertEquals(exact, estimate, exact * 0.01 + 1);
+        }
+        assertEquals(values.length, sketch.getCount());
+        assertEquals(values[0], sketch.getMin());
+        assertEquals(values[values.length - 1], sketch.getMax());
+        assertEquals(values[values.length - 1], sketch.getValueAtPercentile(100.0));
+        // 数KBに収まる
+        assertTrue(sketch.getBinCount() * 8 < 16 * 1024);
+    }
+
+    @Test
+    public void test02() {
+        // バケット数の上限を超えると小さい値から併合する
+        final QuantileSketch sketch = new QuantileSketch(0.01, 100);
+        for (long value = 1; value <= 1_000_000; value *= 2) {
+            sketch.record(value);
+        }
+        assertTrue(sketch.getBinCount() <= 100);
+        assertEquals(524288, sketch.getMax());
+        assertEquals(524288, sketch.getValueAtPercentile(100.0));
+        assertEquals(262144, sketch.getValueAtPercentile(95.0), 262144 * 0.01);
+        assertEquals(20, sketch.getCount());
+
+        final QuantileSketch zeros = new QuantileSketch(0.01, 100);
+        zeros.record(0, 3);
+        zeros.merge(sketch);
+        assertEquals(23, zeros.getCount());
+        assertEquals(0, zeros.getValueAtPercentile(10.0));
+        sketch.reset();
+        assertEquals(0, sketch.getCount());
+        assertEquals(0, sketch.getValueAtPercentile(50.0));
+    }
+
+    @Test
+    public void test03() throws InterruptedException {
+        final SketchResult result = new SketchResult();
+        final List<Thread> threads = new ArrayList<>();
+        for (int thread = 0; thread < 4; thread++) {
+            final long offset = thread;
+            threads.add(new Thread(() -> {
+                for (long value = 1; value <= 10000; value++) {
+                    result.append(new MeasurementReport("sketch.a", value * 4 - offset));
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        result.append(new MeasurementReport("sketch.a", 40000, 2.0));
+        final QuantileSketch merged = result.getSketch("sketch.a");
+        assertEquals(40002, merged.getCount());
+        assertEquals(20000, merged.getValueAtPercentile(50.0), 20000 * 0.01);
+        assertEquals(39600, merged.getValueAtPercentile(99.0), 39600 * 0.01);
+        // 終了したスレッドの分も残る
+        assertEquals(40002, result.getSketch("sketch.a").getCount());
+        assertNull(result.getSketch("sketch.none"));
+        result.clear();
+        assertEquals(0, result.getSketch("sketch.a").getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test04() {
+        new QuantileSketch(0.01, 10).merge(new QuantileSketch(0.02, 10));
+    }
+
+    @Test
+    public void test05() {
+        // 端数のある重みは確率的に丸めて件数とする
+        final SketchResult result = new SketchResult();
+        for (int i = 0; i < 4000; i++) {
+            result.append(new MeasurementReport("weighted", 1000, 2.5));
+        }
+        assertEquals(10_000, result.getSketch("weighted").getCount(), 400);
+    }
+}
@@ -5,7 +5,11 @@
  */
 package xyz.tacchang;
 
+import java.lang.management.ManagementFactory;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -93,4 +97,165 @@ public class StopWatchTest {
         }
     }
     
+    @Test
+    public void test04() {
+        final HistogramResult reporter = new HistogramResult();
+        final int siteId = SiteRegistry.getInstance().registerKey("StopWatchTest.reuse");
+        final StopWatch sp = new StopWatch(false, siteId, reporter);
+        assertEquals(siteId, sp.getSiteId());
+        assertTrue(sp.start());
+        sp.reset();
+        assertFalse(sp.stop());
+        assertNull(reporter.getHistogram("StopWatchTest.reuse"));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(sp.start());
+            assertTrue(sp.stop());
+        }
+        assertEquals(3, reporter.getHistogram("StopWatchTest.reuse").getCount());
+
+        // 計測箇所番号で記録しない出力先には計測結果のオブジェクトで渡す
+        final MeasurementResult result = new MeasurementResult();
+        try (StopWatch watch = new StopWatch(true, "StopWatchTest.report", result)) {
+            assertTrue(watch.getSiteId() >= 0);
+        }
+        assertEquals(1.0, result.getEstimatedCount("StopWatchTest.report"), 1e-9);
+        assertEquals(-1, new StopWatch().getSiteId());
+    }
+
+    @Test
+    public void test05() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        final HistogramResult reporter = new HistogramResult();
+        final StopWatch sp = new StopWatch(false, "StopWatchTest.allocation", reporter);
+        final long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < 20000; i++) {
+            sp.start();
+            sp.stop();
+        }
+        final int cycles = 100000;
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < cycles; i++) {
+            sp.start();
+            sp.stop();
+        }
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        // 1回ごとに生成していれば数MBになる
+        assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+        assertEquals(120000, reporter.getHistogram("StopWatchTest.allocation").getCount());
+
+        // ラップ付きの計測もオブジェクトを生成しない
+        final StopWatch laps = new StopWatch(false, "StopWatchTest.allocationLaps", reporter, 2);
+        final int first = laps.registerLap("first");
+        final int second = laps.registerLap("second");
+        for (int i = 0; i < 20000; i++) {
+            laps.start();
+            laps.lap(first);
+            laps.lap(second);
+            laps.stop();
+        }
+        final long lapsBefore = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < cycles; i++) {
+            laps.start();
+            laps.lap(first);
+            laps.lap(second);
+            laps.stop();
+        }
+        final long lapsAllocated = threads.getThreadAllocatedBytes(threadId) - lapsBefore;
+        assertTrue("allocated " + lapsAllocated + " bytes", lapsAllocated < 64 * 1024);
+        assertEquals(120000, reporter.getHistogram("StopWatchTest.allocationLaps/second").getCount());
+    }
+
+    @Test
+    public void test06() throws InterruptedException {
+        final HistogramResult histograms = new HistogramResult();
+        final int[] batches = {0};
+        final MeasurementResultCollectable reporter = new MeasurementResultCollectable() {
+            @Override
+            public void append(final MeasurementReport report) {
+                histograms.append(report);
+            }
+
+            @Override
+            public void appendAll(final int[] siteIds, final long[] elapsedNanos, final int length,
+                    final double weight) {
+                batches[0]++;
+                histograms.appendAll(siteIds, elapsedNanos, length, weight);
+            }
+        };
+        final StopWatch sp = new StopWatch(false, "StopWatchTest.pipeline", reporter, 2);
+        final int parse = sp.registerLap("parse");
+        final int price = sp.registerLap("price");
+        assertFalse(sp.lap(parse));
+        assertTrue(sp.start());
+        Thread.sleep(5);
+        assertTrue(sp.lap(parse));
+        Thread.sleep(10);
+        assertTrue(sp.lap(price));
+        // 上限を超えたラップは記録しない
+        assertFalse(sp.lap(price));
+        assertEquals("too many laps", sp.getLastMessage());
+        assertTrue(sp.stop());
+
+        assertEquals(1, batches[0]);
+        assertEquals(2, sp.getLapCount());
+        assertEquals(price, sp.getLapSiteId(1));
+        assertTrue(sp.getLapElapsedEpochNano(0) >= 5_000_000);
+        assertTrue(sp.getLapElapsedEpochNano(1) >= 10_000_000);
+        assertTrue(sp.getElapsedEpochNano() >= sp.getLapElapsedEpochNano(0) + sp.getLapElapsedEpochNano(1));
+        assertEquals(1, histograms.getHistogram("StopWatchTest.pipeline/parse").getCount());
+        assertEquals(1, histograms.getHistogram("StopWatchTest.pipeline/price").getCount());
+        assertEquals(1, histograms.getHistogram("StopWatchTest.pipeline").getCount());
+
+        // 再び開始するとラップは消える
+        assertTrue(sp.start());
+        assertEquals(0, sp.getLapCount());
+        assertTrue(sp.lap("parse"));
+        assertTrue(sp.stop());
+        assertEquals(2, batches[0]);
+        assertEquals(2, histograms.getHistogram("StopWatchTest.pipeline/parse").getCount());
+        assertEquals(1, histograms.getHistogram("StopWatchTest.pipeline/price").getCount());
+
+        // 既定の出力先では1件ずつ計測結果として渡る
+        final List<String> ids = new ArrayList<>();
+        final StopWatch watch = new StopWatch(true, "StopWatchTest.stages", report -> ids.add(report.getId()), 1);
+        assertTrue(watch.lap("only"));
+        assertTrue(watch.stop());
+        assertEquals(Arrays.asList("StopWatchTest.stages/only", "StopWatchTest.stages"), ids);
+    }
+
+    @Test
+    public void test07() {
+        // 計測箇所識別子で生成しても計測箇所登録簿に登録しない
+        final HistogramResult reporter = new HistogramResult();
+        final int sites = SiteRegistry.getInstance().size();
+        for (int i = 0; i < 100; i++) {
+            final StopWatch watch = new StopWatch(true, "StopWatchTest.dynamic" + i, reporter);
+            assertTrue(watch.stop());
+        }
+        assertEquals(sites, SiteRegistry.getInstance().size());
+        assertEquals(1, reporter.getHistogram("StopWatchTest.dynamic99").getCount());
+    }
+
+    @Test
+    public void test08() {
+        // 計測箇所番号で生成してもラップを記録できる
+        final HistogramResult reporter = new HistogramResult();
+        final int siteId = SiteRegistry.getInstance().registerKey("StopWatchTest.siteLaps");
+        final StopWatch sp = new StopWatch(true, siteId, reporter, 2);
+        assertTrue(sp.lap(sp.registerLap("first")));
+        assertTrue(sp.lap("second"));
+        assertFalse(sp.lap("third"));
+        assertTrue(sp.stop());
+        assertEquals(1, reporter.getHistogram("StopWatchTest.siteLaps/first").getCount());
+        assertEquals(1, reporter.getHistogram("StopWatchTest.siteLaps/second").getCount());
+        assertEquals(1, reporter.getHistogram("StopWatchTest.siteLaps").getCount());
+        assertThrows(IllegalArgumentException.class, () -> new StopWatch(false, siteId, reporter, -1));
+    }
 }
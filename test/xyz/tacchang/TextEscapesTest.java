@@ -0,0 +1,35 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class TextEscapesTest {
+
+    public TextEscapesTest() {
+    }
+
+    @Test
+    public void test01() {
+        final String value = "a\"b\\c\nd\re\tf\u0001g";
+        final StringBuilder json = new StringBuilder();
+        TextEscapes.appendJsonString(json, value);
+        assertEquals("\"a\\\"b\\\\c\\nd\\re\\tf\\u0001g\"", json.toString());
+
+        // ラベル値は引用符、逆斜線、改行のみエスケープする
+        final StringBuilder label = new StringBuilder();
+        TextEscapes.appendLabelValue(label, value);
+        assertEquals("\"a\\\"b\\\\c\\nd\re\tf\u0001g\"", label.toString());
+
+        final StringBuilder empty = new StringBuilder();
+        TextEscapes.appendJsonString(empty, null);
+        assertEquals("\"\"", empty.toString());
+    }
+}
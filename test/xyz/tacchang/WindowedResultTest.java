@@ -0,0 +1,116 @@
+/*
+ *  Copyright (c) 2023 YOKOUCHI Tatsuro
+ *  Released under the MIT license
+ *  https://opensource.org/licenses/mit-license.php
+ */
+package xyz.tacchang;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class WindowedResultTest {
+
+    public WindowedResultTest() {
+    }
+
+    @Test
+    public void test01() {
+        final AtomicLong now = new AtomicLong(-TimeUnit.SECONDS.toNanos(3));
+        final WindowedResult result = new WindowedResult(
+                1000, 10, TimeUnit.SECONDS.toNanos(10), 2, 0, now::get);
+        for (int second = 0; second < 15; second++) {
+            for (int i = 0; i < 10; i++) {
+                result.append(new MeasurementReport("w", (second + 1) * 1000L));
+            }
+            now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        }
+        now.addAndGet(-1);
+        // 直近1秒は最後の時間幅のみ
+        final LatencyHistogram last = result.getWindow("w", 1000);
+        assertEquals(10, last.getCount());
+        assertEquals(15000, last.getMax(), 15000 * 0.01);
+        // 直近5秒
+        final LatencyHistogram five = result.getWindow("w", 5000);
+        assertEquals(50, five.getCount());
+        assertEquals(11000, five.getMin(), 11000 * 0.01);
+        // 保持期間を超える期間は保持期間全体
+        assertEquals(100, result.getWindow("w", 60000).getCount());
+        assertEquals(0, result.getWindow("none", 1000).getCount());
+        assertNull(result.getReservoir("w"));
+        assertEquals(10000, result.getRetentionMilli());
+    }
+
+    @Test
+    public void test02() {
+        final AtomicLong now = new AtomicLong();
+        final WindowedResult result = new WindowedResult(
+                1000, 10, TimeUnit.SECONDS.toNanos(10), 2, 100, now::get);
+        // 古い大きな値の後に新しい小さな値を記録すると、新しい値に重みが置かれる
+        for (int i = 0; i < 1000; i++) {
+            result.append(new MeasurementReport("d", 1_000_000));
+        }
+        now.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        for (int i = 0; i < 1000; i++) {
+            result.append(new MeasurementReport("d", 1000));
+        }
+        final DecayingReservoir reservoir = result.getReservoir("d");
+        assertEquals(100, reservoir.size());
+        assertEquals(1000, reservoir.getValueAtPercentile(99.0));
+        assertEquals(1000.0, reservoir.getMean(), 1000.0);
+    }
+
+    @Test
+    public void test03() {
+        final AtomicLong now = new AtomicLong();
+        final DecayingReservoir reservoir = new DecayingReservoir(10, 0.015, now::get);
+        for (int i = 1; i <= 10; i++) {
+            reservoir.update(i);
+        }
+        assertEquals(10, reservoir.getMax());
+        assertEquals(5, reservoir.getValueAtPercentile(50.0));
+        // 基準時刻を進めても標本は残る
+        now.addAndGet(TimeUnit.HOURS.toNanos(2));
+        reservoir.update(100);
+        assertEquals(10, reservoir.size());
+        assertEquals(100, reservoir.getMax());
+    }
+
+    @Test
+    public void test04() {
+        // 端数のある重みは確率的に丸めて件数とする
+        final AtomicLong now = new AtomicLong();
+        final WindowedResult result = new WindowedResult(
+                1000, 10, TimeUnit.SECONDS.toNanos(10), 2, 0, now::get);
+        for (int i = 0; i < 4000; i++) {
+            result.append(new MeasurementReport("weighted", 1000, 2.5));
+        }
+        assertEquals(10_000, result.getWindow("weighted", 1000).getCount(), 400);
+    }
+
+    @Test
+    public void test05() {
+        // 抽出の重みを減衰の重みに掛ける
+        final AtomicLong now = new AtomicLong();
+        final WindowedResult result = new WindowedResult(
+                1000, 10, TimeUnit.SECONDS.toNanos(10), 2, 200, now::get);
+        for (int i = 0; i < 100; i++) {
+            result.append(new MeasurementReport("sampled", 1000));
+            result.append(new MeasurementReport("sampled", 1_000_000, 9.0));
+        }
+        final DecayingReservoir reservoir = result.getReservoir("sampled");
+        assertEquals(200, reservoir.size());
+        assertEquals(1000, reservoir.getValueAtPercentile(5.0));
+        assertEquals(1_000_000, reservoir.getValueAtPercentile(50.0));
+        assertEquals(900_100.0, reservoir.getMean(), 1.0);
+
+        // 重みが正でない場合は記録しない
+        reservoir.update(5, 0.0);
+        assertEquals(200, reservoir.size());
+        assertEquals(1000, reservoir.getValueAtPercentile(0.0));
+    }
+}